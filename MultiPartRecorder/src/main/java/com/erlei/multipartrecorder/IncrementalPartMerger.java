@@ -0,0 +1,230 @@
+package com.erlei.multipartrecorder;
+
+import com.erlei.videorecorder.mp4.Mp4Concatenator;
+import com.erlei.videorecorder.mp4.Mp4FastStart;
+import com.erlei.videorecorder.util.LogUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 增量合并 , 每录制完一个视频块就在后台线程把它追加到临时输出文件中 ,
+ * 最终合并时只需要写入索引 (moov) , 不需要再拷贝样本数据
+ * <p>
+ * 每追加一个视频块之前记录 Mp4Concatenator.Checkpoint , 删除视频块时截断到它的 checkpoint ,
+ * 再重新追加它后面的视频块 (删除最后一个视频块不需要重新追加)
+ * 所有操作都在同一个后台线程中按顺序执行 , 发生错误后不再增量合并 , 由 VideoPartMergeTask 重新完整合并
+ * <p>
+ * faststart 时在临时文件开头预留 moov 的空间 , finish() 时 moov 直接写入预留的位置 , 不需要移动 mdat ;
+ * 预留的空间放不下时才退回到 Mp4FastStart 在原文件上移动
+ */
+class IncrementalPartMerger {
+
+    private static final String TAG = "IncrementalPartMerger";
+    /**
+     * 默认预留的 moov 空间 , 每个样本一个 chunk 时 30fps 视频 + AAC 音频的索引大约每秒 1.1KB , 可以容纳 7 分钟以上
+     */
+    static final int DEFAULT_MOOV_RESERVE_BYTES = 512 * 1024;
+
+    private final File mOutputDir;
+    private final ExecutorService mExecutor;
+    private final int mMoovReserveBytes;
+    private final List<File> mMergedFiles = new ArrayList<>();
+    private final List<Mp4Concatenator.Checkpoint> mCheckpoints = new ArrayList<>();
+    private Mp4Concatenator mConcatenator;
+    private File mTempFile;
+    private volatile boolean mBroken;
+
+    /**
+     * @param outputDir        临时文件所在的文件夹 , 最好和最终输出文件在同一个分区 , 这样 finish() 时只需要重命名
+     * @param moovReserveBytes 为 faststart 预留的 moov 空间 , 0 表示不预留 (不需要 faststart)
+     */
+    IncrementalPartMerger(File outputDir, int moovReserveBytes) {
+        mOutputDir = outputDir;
+        mMoovReserveBytes = moovReserveBytes;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 在后台追加一个已经录制完成的视频块
+     */
+    synchronized void append(final File part) {
+        if (mBroken || mExecutor.isShutdown()) return;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mBroken || mMergedFiles.contains(part)) return;
+                try {
+                    appendInternal(part);
+                } catch (Exception e) {
+                    onError("append " + part, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 在后台删除一个视频块 , 截断到它追加之前的状态 , 并重新追加它后面的视频块
+     */
+    synchronized void remove(final File part) {
+        if (mBroken || mExecutor.isShutdown()) return;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mBroken) return;
+                int index = mMergedFiles.indexOf(part);
+                if (index < 0) return;
+                try {
+                    List<File> rest = new ArrayList<>(mMergedFiles.subList(index + 1, mMergedFiles.size()));
+                    rollbackTo(index);
+                    for (File file : rest) {
+                        appendInternal(file);
+                    }
+                } catch (Exception e) {
+                    onError("remove " + part, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 等待后台的追加任务完成 , 补齐缺少的视频块 , 写入索引并把临时文件重命名为 output
+     * 调用之后这个对象不能再使用
+     *
+     * @param parts     最终要合并的视频块 , 按顺序
+     * @param fastStart 是否把 moov 放在 mdat 之前 , 写入预留的空间 , 放不下时在原文件上移动
+     * @return 是否成功 , 失败时需要重新完整合并
+     */
+    boolean finish(final List<File> parts, final File output, final boolean fastStart) {
+        if (mBroken || mExecutor.isShutdown()) {
+            release();
+            return false;
+        }
+        try {
+            return mExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    if (mBroken) return false;
+                    try {
+                        return finishInternal(parts, output, fastStart);
+                    } catch (Exception e) {
+                        onError("finish", e);
+                        return false;
+                    }
+                }
+            }).get();
+        } catch (InterruptedException | ExecutionException e) {
+            LogUtil.loge(TAG, "finish error " + e);
+            return false;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * 放弃增量合并 , 删除临时文件
+     */
+    synchronized void release() {
+        if (mExecutor.isShutdown()) return;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeQuietly();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    private boolean finishInternal(List<File> parts, File output, boolean fastStart) throws IOException {
+        //找到已经合并的视频块和最终视频块的公共前缀 , 之后的部分截断重新追加
+        int common = 0;
+        while (common < parts.size() && common < mMergedFiles.size() && parts.get(common).equals(mMergedFiles.get(common))) {
+            common++;
+        }
+        if (common < mMergedFiles.size()) rollbackTo(common);
+        for (int i = common; i < parts.size(); i++) {
+            appendInternal(parts.get(i));
+        }
+        if (mConcatenator == null) return false;
+        mConcatenator.finish();
+        boolean moovAtFront = mConcatenator.isMoovAtFront();
+        mConcatenator = null;
+        if (fastStart && !moovAtFront) {
+            LogUtil.logw(TAG, "moov does not fit in " + mMoovReserveBytes + " reserved bytes , shift mdat in place");
+            Mp4FastStart.process(mTempFile);
+        }
+        if (output.exists() && !output.delete()) {
+            LogUtil.loge(TAG, "delete old output " + output + " failed");
+        }
+        if (!mTempFile.renameTo(output)) {
+            LogUtil.loge(TAG, "rename " + mTempFile + " to " + output + " failed");
+            return false;
+        }
+        mTempFile = null;
+        LogUtil.logd(TAG, "finish " + output + " , parts = " + parts.size());
+        return true;
+    }
+
+    private void appendInternal(File part) throws IOException {
+        if (mConcatenator == null) {
+            if (!mOutputDir.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                mOutputDir.mkdirs();
+            }
+            mTempFile = File.createTempFile("merge", ".mp4.tmp", mOutputDir);
+            mConcatenator = new Mp4Concatenator(mTempFile, mMoovReserveBytes);
+        }
+        Mp4Concatenator.Checkpoint checkpoint = mConcatenator.checkpoint();
+        mConcatenator.append(part);
+        mMergedFiles.add(part);
+        mCheckpoints.add(checkpoint);
+        LogUtil.logd(TAG, "append " + part + " , bytes = " + mConcatenator.getBytesWritten());
+    }
+
+    /**
+     * 截断到第 index 个视频块追加之前的状态
+     */
+    private void rollbackTo(int index) throws IOException {
+        mConcatenator.rollback(mCheckpoints.get(index));
+        mMergedFiles.subList(index, mMergedFiles.size()).clear();
+        mCheckpoints.subList(index, mCheckpoints.size()).clear();
+    }
+
+    private void onError(String action, Exception e) {
+        LogUtil.loge(TAG, action + " error , fallback to full merge " + e);
+        mBroken = true;
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        if (mConcatenator != null) {
+            try {
+                mConcatenator.close();
+            } catch (IOException e) {
+                LogUtil.loge(TAG, "close error " + e);
+            }
+            mConcatenator = null;
+        }
+        if (mTempFile != null) {
+            //noinspection ResultOfMethodCallIgnored
+            mTempFile.delete();
+            mTempFile = null;
+        }
+        mMergedFiles.clear();
+        mCheckpoints.clear();
+    }
+}
@@ -6,6 +6,10 @@ import android.os.AsyncTask;
 import android.os.Environment;
 import android.os.Message;
 
+import com.erlei.videorecorder.mp4.JournaledMp4Writer;
+import com.erlei.videorecorder.mp4.Mp4Probe;
+import com.erlei.videorecorder.mp4.Mp4Trimmer;
+import com.erlei.videorecorder.muxer.JournaledMp4Muxer;
 import com.erlei.videorecorder.recorder.CameraController;
 import com.erlei.videorecorder.recorder.IVideoRecorder;
 import com.erlei.videorecorder.recorder.VideoRecorder;
@@ -13,11 +17,15 @@ import com.erlei.videorecorder.recorder.VideoRecorderHandler;
 import com.erlei.videorecorder.util.LogUtil;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 多段录制
@@ -38,6 +46,11 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
     private List<VideoPartListener> mPartListeners;
     private boolean mDelPartEnable = true;
     private FileFilter mFileFilter;
+    private boolean mIncrementalMergeEnable;
+    private IncrementalPartMerger mPartMerger;
+    private boolean mFastStartEnable;
+    private int mMoovReserveBytes = IncrementalPartMerger.DEFAULT_MOOV_RESERVE_BYTES;
+    private int mMergeThreadCount = 1;
 
 
     private MultiPartRecorder(VideoRecorder.Builder builder) {
@@ -75,21 +88,76 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
 
     /**
      * @param delPartEnable 是否开启视频块删除
-     *                      初衷是考虑到把所有视频段放在录制结束的时候合并可能会存在过长的等待时间
-     *                      所以考虑过录制完一个分段 ,就合并, 避免最终合并时间过长 , 但是经过不完全测试 ,
-     *                      最后合并的时间消耗是可以接受的 , 暂时就这样处理吧 , 有需求再加
+     *                      开启增量合并 (setIncrementalMergeEnable) 时 , 删除视频块会把合并结果截断到这个视频块之前
      */
     public void setDelPartEnable(boolean delPartEnable) {
         mDelPartEnable = delPartEnable;
     }
 
+    /**
+     * @param incrementalMergeEnable 是否开启增量合并
+     *                               把所有视频块放在录制结束的时候合并 , 视频块较多时会有明显的等待时间 ,
+     *                               开启之后每录制完一个视频块就在后台线程把它追加到合并结果中 ,
+     *                               mergeVideoParts() 只需要写入索引
+     */
+    public void setIncrementalMergeEnable(boolean incrementalMergeEnable) {
+        mIncrementalMergeEnable = incrementalMergeEnable;
+        if (!incrementalMergeEnable && mPartMerger != null) {
+            mPartMerger.release();
+            mPartMerger = null;
+        }
+    }
+
+    public boolean isIncrementalMergeEnable() {
+        return mIncrementalMergeEnable;
+    }
+
+    /**
+     * @param fastStartEnable 合并后的视频是否把 moov 放在 mdat 之前 , 方便网络播放
+     * @see VideoPartMergeTask#setFastStart(boolean)
+     */
+    public void setFastStartEnable(boolean fastStartEnable) {
+        mFastStartEnable = fastStartEnable;
+    }
+
+    public boolean isFastStartEnable() {
+        return mFastStartEnable;
+    }
+
+    /**
+     * @param moovReserveBytes 增量合并并且开启 faststart 时 , 在合并结果的开头为 moov 预留的空间 , 默认 512KB
+     *                         moov 放得下时合并结束只需要写入 moov , 放不下时需要把所有样本数据向后移动一次 ,
+     *                         录制时间很长时可以增大 , 每秒视频的 moov 大约 1KB , 0 表示不预留
+     */
+    public void setMoovReserveBytes(int moovReserveBytes) {
+        if (moovReserveBytes < 0) throw new IllegalArgumentException("moovReserveBytes must >= 0");
+        mMoovReserveBytes = moovReserveBytes;
+    }
+
+    public int getMoovReserveBytes() {
+        return mMoovReserveBytes;
+    }
+
+    /**
+     * @param mergeThreadCount 合并视频块时使用的线程数
+     * @see VideoPartMergeTask#setMergeThreadCount(int)
+     */
+    public void setMergeThreadCount(int mergeThreadCount) {
+        if (mergeThreadCount < 1) throw new IllegalArgumentException("mergeThreadCount must > 0");
+        mMergeThreadCount = mergeThreadCount;
+    }
+
+    public int getMergeThreadCount() {
+        return mMergeThreadCount;
+    }
+
     /**
      * 根据文件路径删除视频块
      */
     public Part removePart(String path) {
         if (!mDelPartEnable || mParts.isEmpty()) return null;
         int index = mParts.indexOf(new Part(path));
-        if (index >= 0) return mParts.remove(index);
+        if (index >= 0) return onPartRemoved(mParts.remove(index));
         return null;
 
     }
@@ -101,7 +169,31 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
      */
     public Part removeLastPart() {
         if (!mDelPartEnable || mParts.isEmpty()) return null;
-        return mParts.remove(mParts.size() - 1);
+        return onPartRemoved(mParts.remove(mParts.size() - 1));
+    }
+
+    /**
+     * 无损裁剪一个已经录制完成的视频块 , 开始位置向前对齐到关键帧 , 只重写索引和拷贝保留的数据 , 不重新编码
+     * 已经增量合并的部分会在最终合并时重新追加
+     *
+     * @param startUs 开始时间 , <= 0 表示从头开始
+     * @param endUs   结束时间 , < 0 表示到结尾 , 例如 part.duration * 1000 - 1000000 表示去掉最后一秒
+     * @return 实际保留的时间范围 , 视频块不存在或者正在录制时返回 null
+     * @see Part#trim(long, long)
+     */
+    public Mp4Trimmer.Result trimPart(Part part, long startUs, long endUs) throws IOException {
+        int index = mParts.indexOf(part);
+        if (index < 0) return null;
+        part = mParts.get(index);
+        if (part.isRecording()) return null;
+        Mp4Trimmer.Result result = part.trim(startUs, endUs);
+        if (mPartMerger != null) mPartMerger.remove(part.file);
+        return result;
+    }
+
+    private Part onPartRemoved(Part part) {
+        if (mPartMerger != null) mPartMerger.remove(part.file);
+        return part;
     }
 
     public VideoMergeListener getMergeListener() {
@@ -156,6 +248,37 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
         return new File(path, format.format(new Date()) + ".mp4");
     }
 
+    /**
+     * 按样本索引日志恢复上一次崩溃 (或者被系统杀死) 时还没有结束录制的视频块 ,
+     * 需要开启 VideoRecorder.Builder#setJournalEnable , 耗时操作 , 不要在主线程调用
+     * 恢复失败的视频块和日志会被删除
+     *
+     * @return 恢复成功的视频块文件 , 按文件名 (录制时间) 排序
+     */
+    public List<File> recoverParts() {
+        List<File> recovered = new ArrayList<>();
+        File[] files = new File(mConfig.getOutputPath()).listFiles();
+        if (files == null) return recovered;
+        File current = mRecorder.getOutputFile();
+        for (File journal : files) {
+            if (!JournaledMp4Writer.isJournalFile(journal)) continue;
+            File part = JournaledMp4Writer.getOutputFile(journal);
+            if (part.equals(current) && mRecorder.isMuxerRunning()) continue;
+            if (JournaledMp4Muxer.recover(part.getAbsolutePath())) {
+                LogUtil.logd(TAG, "recover part " + part);
+                recovered.add(part);
+            } else {
+                LogUtil.loge(TAG, "recover part " + part + " failed");
+                //noinspection ResultOfMethodCallIgnored
+                journal.delete();
+                //noinspection ResultOfMethodCallIgnored
+                part.delete();
+            }
+        }
+        Collections.sort(recovered);
+        return recovered;
+    }
+
     /**
      * 合并视频片段
      */
@@ -163,8 +286,14 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
         if (mParts == null || mParts.isEmpty()) return null;
         Part[] parts = new Part[mParts.size()];
         parts = mParts.toArray(parts);
+        IncrementalPartMerger partMerger = mPartMerger;
+        mPartMerger = null;
         removeAllPart();
-        return new VideoPartMergeTask(mOutputFile, mMergeListener, false, 2000).execute(parts);
+        VideoPartMergeTask task = new VideoPartMergeTask(mOutputFile, mMergeListener, false, 2000);
+        task.setPartMerger(partMerger);
+        task.setFastStart(mFastStartEnable);
+        task.setMergeThreadCount(mMergeThreadCount);
+        return task.execute(parts);
     }
 
     @Override
@@ -204,6 +333,15 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
         return mRecorder.isMuxerRunning();
     }
 
+    /**
+     * 写入定时元数据 , 写入当前正在录制的视频块
+     *
+     * @see VideoRecorder#writeMetadata(long, byte[])
+     */
+    public boolean writeMetadata(long timeUs, byte[] data) {
+        return mRecorder.writeMetadata(timeUs, data);
+    }
+
     @Override
     public void onSizeChanged(int width, int height) {
         mRecorder.onSizeChanged(width, height);
@@ -217,6 +355,10 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
     @Override
     public void release() {
         if (mPartListeners != null) mPartListeners.clear();
+        if (mPartMerger != null) {
+            mPartMerger.release();
+            mPartMerger = null;
+        }
     }
 
 
@@ -259,6 +401,11 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
         if (i < 0) return;
         Part part = mParts.get(i);
         part.end();
+        if (mIncrementalMergeEnable && part.file.exists()) {
+            if (mPartMerger == null)
+                mPartMerger = new IncrementalPartMerger(mOutputFile.getParentFile(), mFastStartEnable && mMoovReserveBytes >= 8 ? mMoovReserveBytes : 0);
+            mPartMerger.append(part.file);
+        }
         handleMuxerEnd(part);
     }
 
@@ -298,6 +445,10 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
 
     public void removeAllPart() {
         mParts.clear();
+        if (mPartMerger != null) {
+            mPartMerger.release();
+            mPartMerger = null;
+        }
     }
 
     public interface VideoMergeListener {
@@ -333,11 +484,9 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
          * 完成一个视频块的录制
          *
          * @param part 视频块
-         *             判断是否完成是根据最终生成的文件大小 , 和录制时间决定的
-         *             由于我没有找到一个好的判断条件 , 所以粗略的使用
-         *             part.file.exists() && part.duration > 300 && part.file.length() > 1000
-         *             判断了下 , 如果要求比较高可以自行使用
-         *             MediaUtil.getVideoDuration(file.getAbsolutePath()); 但是获取这个信息大概耗时100毫秒
+         *             判断是否完成是根据最终生成的文件大小 , 和视频时长决定的
+         *             part.file.exists() && part.duration > 1000 && part.file.length() > 1000
+         *             part.duration 是 Mp4Probe 从文件头读取的实际时长 , 读取失败时才是录制的时间差
          */
         void onRecordVideoPartSuccess(Part part);
 
@@ -355,6 +504,10 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
         private final List<VideoPartListener> mVideoPartListeners = new ArrayList<>();
         private VideoMergeListener mMergeListener;
         private FileFilter mFileFilter;
+        private boolean mIncrementalMergeEnable;
+        private boolean mFastStartEnable;
+        private int mMoovReserveBytes = IncrementalPartMerger.DEFAULT_MOOV_RESERVE_BYTES;
+        private int mMergeThreadCount = 1;
 
         public Builder(VideoRecorder.Builder builder) {
             mBuilder = builder;
@@ -367,9 +520,45 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
             }
             recorder.setMergeListener(mMergeListener);
             recorder.setFileFilter(mFileFilter);
+            recorder.setIncrementalMergeEnable(mIncrementalMergeEnable);
+            recorder.setFastStartEnable(mFastStartEnable);
+            recorder.setMoovReserveBytes(mMoovReserveBytes);
+            recorder.setMergeThreadCount(mMergeThreadCount);
             return recorder;
         }
 
+        /**
+         * @see MultiPartRecorder#setIncrementalMergeEnable(boolean)
+         */
+        public Builder setIncrementalMergeEnable(boolean incrementalMergeEnable) {
+            mIncrementalMergeEnable = incrementalMergeEnable;
+            return this;
+        }
+
+        /**
+         * @see MultiPartRecorder#setFastStartEnable(boolean)
+         */
+        public Builder setFastStartEnable(boolean fastStartEnable) {
+            mFastStartEnable = fastStartEnable;
+            return this;
+        }
+
+        /**
+         * @see MultiPartRecorder#setMoovReserveBytes(int)
+         */
+        public Builder setMoovReserveBytes(int moovReserveBytes) {
+            mMoovReserveBytes = moovReserveBytes;
+            return this;
+        }
+
+        /**
+         * @see MultiPartRecorder#setMergeThreadCount(int)
+         */
+        public Builder setMergeThreadCount(int mergeThreadCount) {
+            mMergeThreadCount = mergeThreadCount;
+            return this;
+        }
+
         public Builder addPartListener(VideoPartListener videoPartListener) {
             mVideoPartListeners.add(videoPartListener);
             return this;
@@ -393,12 +582,17 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
 
     public static class Part {
         /**
-         * 视频段的大致时长 , 是用开始录制时间 , 结束录制时间来计算的 , 包含误差(编码性能),
+         * 视频段的时长 (毫秒) , 录制结束后从文件头读取 (Mp4Probe , 不到 1 毫秒) ,
+         * 读取失败时是用开始录制时间 , 结束录制时间来计算的 , 包含误差(编码性能)
          */
         public long duration;
         public long startTimeMillis;
         public long endTimeMillis = -1;
         public final File file;
+        /**
+         * end() 完成时 (文件已经写完 , duration 已经更新) 释放
+         */
+        private final CountDownLatch mEndLatch = new CountDownLatch(1);
 
         public Part(String output) {
             file = new File(output);
@@ -406,16 +600,62 @@ public class MultiPartRecorder extends VideoRecorderHandler implements IVideoRec
         }
 
         public void end() {
-            endTimeMillis = System.currentTimeMillis();
-            duration = endTimeMillis - startTimeMillis;
-//            duration = MediaUtil.getVideoDuration(file.getAbsolutePath()); 耗时100毫秒
+            try {
+                endTimeMillis = System.currentTimeMillis();
+                duration = endTimeMillis - startTimeMillis;
+                if (!file.exists()) return;
+                try {
+                    duration = Mp4Probe.probe(file).getDurationMs();
+                } catch (IOException | RuntimeException e) {
+                    LogUtil.loge("probe " + file + " failed " + e);
+                }
+            } finally {
+                mEndLatch.countDown();
+            }
         }
 
         /**
          * @return 是否正在录制中
          */
         public boolean isRecording() {
-            return endTimeMillis == -1;
+            return mEndLatch.getCount() > 0;
+        }
+
+        /**
+         * 等待视频块结束录制 (handleVideoMuxerStopped) , 结束时立即返回 , 不需要轮询 isRecording()
+         *
+         * @return false 表示超时 , 视频块还在录制中
+         */
+        public boolean awaitEnd(long timeout, TimeUnit unit) throws InterruptedException {
+            return mEndLatch.await(timeout, unit);
+        }
+
+        /**
+         * 无损裁剪视频块 , 先写入临时文件再替换原文件 , duration 更新为实际保留的时长
+         *
+         * @param startUs 开始时间 , 会向前对齐到关键帧 , <= 0 表示从头开始
+         * @param endUs   结束时间 , < 0 表示到结尾
+         * @return 实际保留的时间范围
+         * @see Mp4Trimmer
+         */
+        public Mp4Trimmer.Result trim(long startUs, long endUs) throws IOException {
+            if (isRecording()) throw new IllegalStateException("part is recording");
+            File temp = new File(file.getPath() + ".trim");
+            Mp4Trimmer.Result result;
+            try {
+                result = Mp4Trimmer.trim(file, temp, startUs, endUs);
+            } catch (IOException | RuntimeException e) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+                throw e;
+            }
+            if (!temp.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+                throw new IOException("rename " + temp + " to " + file + " failed");
+            }
+            duration = result.getDurationUs() / 1000;
+            return result;
         }
 
         @Override
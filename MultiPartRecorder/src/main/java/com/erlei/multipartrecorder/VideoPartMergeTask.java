@@ -4,7 +4,12 @@ import android.os.AsyncTask;
 import android.os.SystemClock;
 
 import com.coremedia.iso.boxes.Container;
+import com.erlei.videorecorder.mp4.Mp4Concatenator;
+import com.erlei.videorecorder.mp4.Mp4FastStart;
+import com.erlei.videorecorder.util.CountingByteChannel;
+import com.erlei.videorecorder.util.FileMover;
 import com.erlei.videorecorder.util.LogUtil;
+import com.erlei.videorecorder.util.ProgressReporter;
 import com.googlecode.mp4parser.authoring.Movie;
 import com.googlecode.mp4parser.authoring.Track;
 import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
@@ -12,18 +17,29 @@ import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
 import com.googlecode.mp4parser.authoring.tracks.AppendTrack;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class VideoPartMergeTask extends AsyncTask<MultiPartRecorder.Part, Float, File> {
 
+    private static final String TAG = "VideoPartMergeTask";
+
     private MultiPartRecorder.VideoMergeListener mMergeListener;
     private File mOutPutFile;
     private boolean mDeletePartFile;
     private final long mTimeout;
+    private IncrementalPartMerger mPartMerger;
+    private float mProgressMinStep = ProgressReporter.DEFAULT_MIN_STEP;
+    private long mProgressMinIntervalMs = ProgressReporter.DEFAULT_MIN_INTERVAL_MS;
+    private boolean mFastStart;
+    private int mMergeThreadCount = 1;
+    private volatile long[] mPartWaitMillis;
 
     public VideoPartMergeTask(File outPutFile) {
         this(outPutFile, null, false, 2000);
@@ -38,7 +54,8 @@ public class VideoPartMergeTask extends AsyncTask<MultiPartRecorder.Part, Float,
      * @param timeout        由于从调用 stopRecord 到视频录制成功需要一段时间.这取决于编码速度 ,文件读写速度
      *                       如果用户在点击结束录制之后立即进行合并 , 那么可能由于最后一个视频块还没有编码完成 (handleVideoMuxerStopped) ,
      *                       有一定可能导致合并失败
-     *                       设置超时时间会等待编码器完成视频块的编码工作 (最后一个视频块 , 通常不会太久)
+     *                       设置超时时间会等待编码器完成视频块的编码工作 (最后一个视频块 , 通常不会太久) ,
+     *                       视频块结束时立即开始合并 , 超时后 onError
      */
     public VideoPartMergeTask(File outPutFile, MultiPartRecorder.VideoMergeListener mergeListener, boolean deletePartFile, long timeout) {
         mOutPutFile = outPutFile;
@@ -48,6 +65,41 @@ public class VideoPartMergeTask extends AsyncTask<MultiPartRecorder.Part, Float,
     }
 
 
+    /**
+     * 设置合并进度的回调频率 , 默认进度每增加 1% 或者每隔 100 毫秒回调一次 onProgress
+     *
+     * @param minStep       两次回调之间最小的进度变化 (0 - 1)
+     * @param minIntervalMs 两次回调之间最小的时间间隔
+     */
+    public void setProgressInterval(float minStep, long minIntervalMs) {
+        mProgressMinStep = minStep;
+        mProgressMinIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * @param fastStart 是否把 moov 放在 mdat 之前 , 播放器 (特别是网络播放) 不需要先读取文件末尾就可以开始播放
+     *                  多个视频块合并时直接写出这个结构 , 只有一个视频块时在原文件上移动 moov
+     */
+    public void setFastStart(boolean fastStart) {
+        mFastStart = fastStart;
+    }
+
+    /**
+     * @param threadCount 合并时使用的线程数 , 大于 1 时并行读取视频块的索引 , 并行拷贝不同视频块的样本数据 ,
+     *                    适合视频块很多的情况 , 默认为 1 (按顺序合并)
+     */
+    public void setMergeThreadCount(int threadCount) {
+        if (threadCount < 1) throw new IllegalArgumentException("threadCount must > 0");
+        mMergeThreadCount = threadCount;
+    }
+
+    /**
+     * @param partMerger 增量合并的结果 , 合并时只需要写入索引 , 失败时重新完整合并
+     */
+    void setPartMerger(IncrementalPartMerger partMerger) {
+        mPartMerger = partMerger;
+    }
+
     @Override
     protected void onProgressUpdate(Float... values) {
         super.onProgressUpdate(values);
@@ -60,73 +112,39 @@ public class VideoPartMergeTask extends AsyncTask<MultiPartRecorder.Part, Float,
     protected File doInBackground(MultiPartRecorder.Part... lists) {
         if (LogUtil.LOG_ENABLE) {
             for (MultiPartRecorder.Part list : lists) {
-                LogUtil.logd("VideoPartMergeTask", list.toString());
+                LogUtil.logd(TAG, list.toString());
             }
         }
         try {
             if (lists.length == 0) throw new IllegalArgumentException("传入的视频块列表是空的");
 
             if (mMergeListener != null) mMergeListener.onStart();
-            //检查视频块是否全都录制结束了
-            int timeout = 0;
-            while (!checkVideoPartRecordFinish(lists) && timeout < mTimeout) {
-                timeout += 50;
-                SystemClock.sleep(50);
-            }
-            if (timeout > mTimeout) {
-                throw new IllegalStateException("有视频块还没有结束录制 , 不能开始合并视频");
-            }
-
-            if (lists.length == 1) {//只有一个视频片段
-                if (lists[0].file.renameTo(mOutPutFile)) {
-                    if (mMergeListener != null) mMergeListener.onSuccess(mOutPutFile);
-                } else {
-                    if (mMergeListener != null)
-                        mMergeListener.onError(new IllegalStateException("只有一个视频片段,在将这个视频片段移动到目标位置时出现了错误"));
-                }
+            //等待视频块全都录制结束
+            awaitPartsEnd(lists);
 
+            if (mPartMerger != null && mergeByPartMerger(lists)) {
+                if (mMergeListener != null) mMergeListener.onSuccess(mOutPutFile);
+            } else if (lists.length == 1) {//只有一个视频片段
+                if (mFastStart) Mp4FastStart.process(lists[0].file);
+                //输出目录和视频块不在同一个分区时 renameTo() 会失败 , FileMover 退回到拷贝
+                boolean renamed = FileMover.move(lists[0].file, mOutPutFile, createProgressReporter(lists[0].file.length()));
+                LogUtil.logd(TAG, "move single part " + (renamed ? "renamed" : "copied") + " to " + mOutPutFile);
+                if (mMergeListener != null) mMergeListener.onSuccess(mOutPutFile);
             } else {
-                String[] videoUris = new String[lists.length];
-                for (int i = 0; i < lists.length; i++) {
-                    videoUris[i] = lists[i].file.getAbsolutePath();
-                }
-
-                List<Movie> inMovies = new ArrayList<>(videoUris.length);
-                for (String videoUri : videoUris) {
-                    inMovies.add(MovieCreator.build(videoUri));
-                }
-
-                List<Track> videoTracks = new LinkedList<Track>();
-                List<Track> audioTracks = new LinkedList<Track>();
-
-                for (Movie m : inMovies) {
-                    for (Track t : m.getTracks()) {
-                        if (t.getHandler().equals("soun")) {
-                            audioTracks.add(t);
-                        }
-                        if (t.getHandler().equals("vide")) {
-                            videoTracks.add(t);
-                        }
-                    }
-                }
-
-                Movie result = new Movie();
-                if (!audioTracks.isEmpty()) {
-                    result.addTrack(new AppendTrack(audioTracks.toArray(new Track[audioTracks.size()])));
+                try {
+                    mergeByConcatenator(lists);
+                } catch (Exception e) {
+                    //例如视频块中有不支持的 box , 使用 isoparser 重新合并
+                    LogUtil.loge(TAG, "streaming merge error , fallback to isoparser " + e);
+                    mergeByIsoParser(lists);
                 }
-                if (!videoTracks.isEmpty()) {
-                    result.addTrack(new AppendTrack(videoTracks.toArray(new Track[videoTracks.size()])));
-                }
-                Container out = new DefaultMp4Builder().build(result);
-
-                startCheckProgressThread(out);
-
-                FileChannel fc = new RandomAccessFile(mOutPutFile, "rw").getChannel();
-                out.writeContainer(fc);
-                fc.close();
                 if (mMergeListener != null) mMergeListener.onSuccess(mOutPutFile);
             }
         } catch (Exception e) {
+            if (mPartMerger != null) {
+                mPartMerger.release();
+                mPartMerger = null;
+            }
             mDeletePartFile = false;//发生错误时不删除视频
             if (mMergeListener != null) mMergeListener.onError(e);
         }
@@ -134,27 +152,118 @@ public class VideoPartMergeTask extends AsyncTask<MultiPartRecorder.Part, Float,
         return mOutPutFile;
     }
 
-    private void startCheckProgressThread(Container out) {
-        long finalVideoFileSize = 0;
+    private boolean mergeByPartMerger(MultiPartRecorder.Part[] parts) {
+        List<File> files = new ArrayList<>(parts.length);
+        for (MultiPartRecorder.Part part : parts) {
+            files.add(part.file);
+        }
+        boolean success = mPartMerger.finish(files, mOutPutFile, mFastStart);
+        mPartMerger = null;
+        if (success) publishProgress(1f);
+        return success;
+    }
+
+    /**
+     * 流式合并 , 只读取每个视频块的索引 , 样本数据直接在文件之间拷贝 , 内存占用与视频大小无关
+     */
+    private void mergeByConcatenator(MultiPartRecorder.Part[] parts) throws IOException {
+        long totalBytes = 0;
+        for (MultiPartRecorder.Part part : parts) {
+            totalBytes += part.file.length();
+        }
+        ProgressReporter reporter = createProgressReporter(totalBytes);
+        Mp4Concatenator concatenator = new Mp4Concatenator(mOutPutFile, mFastStart);
+        concatenator.setProgressReporter(reporter);
+        ExecutorService executor = null;
+        if (mMergeThreadCount > 1 && parts.length > 1) {
+            executor = Executors.newFixedThreadPool(Math.min(mMergeThreadCount, parts.length));
+            concatenator.setExecutor(executor);
+        }
+        boolean finished = false;
+        try {
+            List<File> files = new ArrayList<>(parts.length);
+            for (MultiPartRecorder.Part part : parts) {
+                files.add(part.file);
+            }
+            concatenator.appendAll(files);
+            concatenator.finish();
+            finished = true;
+            reporter.finish();
+        } finally {
+            if (!finished) concatenator.close();
+            if (executor != null) executor.shutdownNow();
+        }
+    }
+
+    private void mergeByIsoParser(MultiPartRecorder.Part[] lists) throws IOException {
+        List<File> files = new ArrayList<>(lists.length);
+        for (MultiPartRecorder.Part part : lists) {
+            files.add(part.file);
+        }
+        Container out = buildByIsoParser(files);
+
+        long totalBytes = 0;
         for (int i = 0; i < out.getBoxes().size(); i++) {
-            finalVideoFileSize += out.getBoxes().get(i).getSize();
+            totalBytes += out.getBoxes().get(i).getSize();
         }
-        final long finalVideoFileSize1 = finalVideoFileSize;
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                long currentFileSize = 0;
-                if (mOutPutFile.exists())
-                    currentFileSize = mOutPutFile.length();
-                while (finalVideoFileSize1 != currentFileSize && !isCancelled() && getStatus() == Status.RUNNING) {
-                    if (mOutPutFile.exists()) {
-                        currentFileSize = mOutPutFile.length();
-                        publishProgress((float) currentFileSize / (float) finalVideoFileSize1);
-                    }
-                    SystemClock.sleep(10);
+        ProgressReporter reporter = createProgressReporter(totalBytes);
+        writeContainer(out, mOutPutFile, reporter);
+        reporter.finish();
+    }
+
+    /**
+     * 使用 isoparser 拼接 , 只在流式合并失败时使用
+     */
+    static Container buildByIsoParser(List<File> parts) throws IOException {
+        List<Movie> inMovies = new ArrayList<>(parts.size());
+        for (File part : parts) {
+            inMovies.add(MovieCreator.build(part.getAbsolutePath()));
+        }
+
+        List<Track> videoTracks = new LinkedList<Track>();
+        List<Track> audioTracks = new LinkedList<Track>();
+
+        for (Movie m : inMovies) {
+            for (Track t : m.getTracks()) {
+                if (t.getHandler().equals("soun")) {
+                    audioTracks.add(t);
+                }
+                if (t.getHandler().equals("vide")) {
+                    videoTracks.add(t);
                 }
             }
-        }).start();
+        }
+
+        Movie result = new Movie();
+        if (!audioTracks.isEmpty()) {
+            result.addTrack(new AppendTrack(audioTracks.toArray(new Track[audioTracks.size()])));
+        }
+        if (!videoTracks.isEmpty()) {
+            result.addTrack(new AppendTrack(videoTracks.toArray(new Track[videoTracks.size()])));
+        }
+        return new DefaultMp4Builder().build(result);
+    }
+
+    /**
+     * 把 out 写入 output , 先截断 output , 流式合并失败时 output 中已经写入了一部分数据
+     */
+    static void writeContainer(Container out, File output, ProgressReporter reporter) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(output, "rw");
+        try {
+            raf.setLength(0);
+            out.writeContainer(new CountingByteChannel(raf.getChannel(), reporter));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private ProgressReporter createProgressReporter(long totalBytes) {
+        return new ProgressReporter(totalBytes, mProgressMinStep, mProgressMinIntervalMs, new ProgressReporter.Listener() {
+            @Override
+            public void onProgress(float progress) {
+                publishProgress(progress);
+            }
+        });
     }
 
     private void deleteTempPartFile(MultiPartRecorder.Part[] lists) {
@@ -166,11 +275,29 @@ public class VideoPartMergeTask extends AsyncTask<MultiPartRecorder.Part, Float,
         }
     }
 
-    private boolean checkVideoPartRecordFinish(MultiPartRecorder.Part[] lists) {
-        for (MultiPartRecorder.Part list : lists) {
-            if (list.isRecording()) return false;
+    /**
+     * 等待所有视频块结束录制 , 最后一个视频块结束时立即开始合并 , 总的等待时间不超过 timeout
+     */
+    private void awaitPartsEnd(MultiPartRecorder.Part[] parts) throws InterruptedException {
+        long start = SystemClock.elapsedRealtime();
+        long deadline = start + mTimeout;
+        mPartWaitMillis = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            long remaining = Math.max(0, deadline - SystemClock.elapsedRealtime());
+            if (!parts[i].awaitEnd(remaining, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("视频块 " + parts[i].file + " 在 " + mTimeout + " 毫秒内没有结束录制 , 不能开始合并视频");
+            }
+            mPartWaitMillis[i] = SystemClock.elapsedRealtime() - start;
+            if (mPartWaitMillis[i] > 0) LogUtil.logd(TAG, "wait part " + i + " end " + mPartWaitMillis[i] + "ms");
         }
-        return true;
+    }
+
+    /**
+     * @return 开始合并之前等待每个视频块结束录制的时间 (毫秒 , 从合并开始计算) , 0 表示已经结束 ,
+     * 最后一个元素就是合并开始前的等待时间 ; 还没有开始合并时返回 null
+     */
+    public long[] getPartWaitMillis() {
+        return mPartWaitMillis;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+package com.erlei.multipartrecorder;
+
+import com.erlei.videorecorder.mp4.MovieIndex;
+import com.erlei.videorecorder.mp4.Mp4Concatenator;
+import com.erlei.videorecorder.mp4.Mp4Reader;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalPartMergerTest {
+
+    private static final int FTYP_SIZE = 32;
+    private static final int MDAT_HEADER_SIZE = 16;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private List<File> mParts;
+    private File mExpected;
+
+    @Before
+    public void setUp() throws IOException {
+        mParts = PartFixtures.writeParts(mFolder.newFolder("parts"), 4, 60, 2048);
+        mExpected = mFolder.newFile("expected.mp4");
+        Mp4Concatenator concatenator = new Mp4Concatenator(mExpected);
+        concatenator.appendAll(mParts);
+        concatenator.finish();
+    }
+
+    /**
+     * moov 写入预留的空间 , 样本数据还在追加时写入的位置 , 没有被移动
+     */
+    @Test
+    public void fastStartWritesMoovIntoReservedSpace() throws IOException {
+        int reserve = 64 * 1024;
+        File output = merge(reserve, true);
+
+        MovieIndex index = Mp4Reader.read(output);
+        assertEquals(FTYP_SIZE, index.moovOffset);
+        assertTrue(index.moovSize < reserve);
+        assertEquals(FTYP_SIZE + reserve + MDAT_HEADER_SIZE, index.getDataExtents()[0]);
+        PartFixtures.assertSameSamples(mExpected, output);
+    }
+
+    @Test
+    public void fastStartFallsBackWhenReserveIsTooSmall() throws IOException {
+        File output = merge(64, true);
+
+        MovieIndex index = Mp4Reader.read(output);
+        assertEquals(FTYP_SIZE, index.moovOffset);
+        assertTrue(index.moovOffset < index.getDataExtents()[0]);
+        PartFixtures.assertSameSamples(mExpected, output);
+    }
+
+    @Test
+    public void withoutFastStartMoovIsAtTheEnd() throws IOException {
+        File output = merge(0, false);
+
+        MovieIndex index = Mp4Reader.read(output);
+        assertEquals(output.length(), index.moovOffset + index.moovSize);
+        PartFixtures.assertSameSamples(mExpected, output);
+    }
+
+    @Test
+    public void removedPartIsTruncatedBeforeReservedFinish() throws IOException {
+        File removed = mParts.get(1);
+        IncrementalPartMerger merger = new IncrementalPartMerger(mFolder.newFolder("merge"), 64 * 1024);
+        for (File part : mParts) {
+            merger.append(part);
+        }
+        merger.remove(removed);
+        mParts.remove(removed);
+        File output = new File(mFolder.getRoot(), "merged.mp4");
+        assertTrue(merger.finish(mParts, output, true));
+
+        File expected = mFolder.newFile("expected-removed.mp4");
+        Mp4Concatenator concatenator = new Mp4Concatenator(expected);
+        concatenator.appendAll(mParts);
+        concatenator.finish();
+        assertEquals(FTYP_SIZE, Mp4Reader.read(output).moovOffset);
+        PartFixtures.assertSameSamples(expected, output);
+    }
+
+    private File merge(int moovReserveBytes, boolean fastStart) throws IOException {
+        IncrementalPartMerger merger = new IncrementalPartMerger(mFolder.newFolder("merge"), moovReserveBytes);
+        for (File part : mParts) {
+            merger.append(part);
+        }
+        File output = new File(mFolder.getRoot(), "merged.mp4");
+        assertTrue(merger.finish(mParts, output, fastStart));
+        return output;
+    }
+}
@@ -0,0 +1,178 @@
+package com.erlei.multipartrecorder;
+
+import com.erlei.videorecorder.mp4.Mp4Concatenator;
+import com.erlei.videorecorder.mp4.Mp4FastStart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 合并的性能基准 , 默认跳过 , 使用 ./gradlew :MultiPartRecorder:testDebugUnitTest -Pbenchmark 或者直接运行 main()
+ * 吞吐量 = 视频块的总字节数 / 耗时 , 视频块刚刚生成 , 都在页缓存中 , 结果反映的是拷贝的次数和方式 , 不是存储的速度
+ */
+public class MergeBenchmark {
+
+    private static final int PART_COUNT = 8;
+    /**
+     * 所有视频块一共 88 秒 , 2640 帧 * 48KB , 大约 130MB , 按视频块的个数平分
+     */
+    private static final int TOTAL_FRAMES = 2640;
+    private static final int FRAME_SIZE = 48 * 1024;
+    private static final int ROUNDS = 3;
+    private static final int[] SCALABILITY_PART_COUNTS = {2, 4, 8, 16, 32, 64};
+    private static final int[] SCALABILITY_THREAD_COUNTS = {1, 2, 4, 8};
+
+    private File mDir;
+    private List<File> mParts;
+    private long mTotalBytes;
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("benchmark", "true");
+        MergeBenchmark benchmark = new MergeBenchmark();
+        benchmark.setUp();
+        try {
+            benchmark.runIncrementalFinish();
+            benchmark.runParallelScalability();
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue("run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+        mDir = Files.createTempDirectory("merge-benchmark").toFile();
+    }
+
+    /**
+     * 生成 count 个视频块 , 替换之前生成的视频块
+     */
+    private void createParts(int count) throws IOException {
+        if (mParts != null) {
+            for (File part : mParts) {
+                //noinspection ResultOfMethodCallIgnored
+                part.delete();
+            }
+        }
+        mParts = PartFixtures.writeParts(mDir, count, TOTAL_FRAMES / count, FRAME_SIZE);
+        mTotalBytes = 0;
+        for (File part : mParts) {
+            mTotalBytes += part.length();
+        }
+        log("fixtures : %d parts , %.1f MB", mParts.size(), mTotalBytes / 1048576d);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir == null ? null : mDir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDir.delete();
+    }
+
+    /**
+     * 增量合并结束时的耗时 , 视频块已经在录制时追加到临时文件中 :
+     * reserved 把 moov 写入预留的空间 , shift 是之前的做法 (moov 写在末尾 , 再用 Mp4FastStart 移动 mdat) ,
+     * full 是不使用增量合并时 faststart 模式的完整合并
+     */
+    @Test
+    public void incrementalFinish() throws IOException {
+        runIncrementalFinish();
+    }
+
+    private void runIncrementalFinish() throws IOException {
+        createParts(PART_COUNT);
+        for (int round = 0; round < ROUNDS; round++) {
+            File output = new File(mDir, "merged.mp4");
+
+            Mp4Concatenator reserved = new Mp4Concatenator(output, IncrementalPartMerger.DEFAULT_MOOV_RESERVE_BYTES);
+            long appendNs = appendAll(reserved);
+            long start = System.nanoTime();
+            reserved.finish();
+            long reservedNs = System.nanoTime() - start;
+            if (!reserved.isMoovAtFront()) throw new IllegalStateException("moov does not fit in the reserved space");
+
+            Mp4Concatenator shifted = new Mp4Concatenator(output);
+            appendAll(shifted);
+            start = System.nanoTime();
+            shifted.finish();
+            Mp4FastStart.process(output);
+            long shiftNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Mp4Concatenator full = new Mp4Concatenator(output, true);
+            full.appendAll(mParts);
+            full.finish();
+            long fullNs = System.nanoTime() - start;
+
+            log("round %d : append %s , finish reserved %s , finish shift %s , full faststart merge %s",
+                    round, rate(appendNs), rate(reservedNs), rate(shiftNs), rate(fullNs));
+        }
+    }
+
+    /**
+     * Mp4Concatenator 并行合并的扩展性 : 2 - 64 个视频块 (总大小不变) , 1 - 8 个线程 , 1 个线程时按顺序合并 (不设置线程池)
+     * 每种组合取 ROUNDS 次中最快的一次
+     */
+    @Test
+    public void parallelScalability() throws IOException {
+        runParallelScalability();
+    }
+
+    private void runParallelScalability() throws IOException {
+        File output = new File(mDir, "merged.mp4");
+        for (int partCount : SCALABILITY_PART_COUNTS) {
+            createParts(partCount);
+            StringBuilder line = new StringBuilder(String.format(Locale.US, "%2d parts :", partCount));
+            for (int threads : SCALABILITY_THREAD_COUNTS) {
+                long best = Long.MAX_VALUE;
+                for (int round = 0; round < ROUNDS; round++) {
+                    ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+                    try {
+                        long start = System.nanoTime();
+                        Mp4Concatenator concatenator = new Mp4Concatenator(output);
+                        concatenator.setExecutor(executor);
+                        concatenator.appendAll(mParts);
+                        concatenator.finish();
+                        best = Math.min(best, System.nanoTime() - start);
+                    } finally {
+                        if (executor != null) executor.shutdownNow();
+                    }
+                }
+                line.append(String.format(Locale.US, " %d thread%s %s ,", threads, threads > 1 ? "s" : "", rate(best)));
+            }
+            log("%s", line.substring(0, line.length() - 2));
+        }
+    }
+
+    private long appendAll(Mp4Concatenator concatenator) throws IOException {
+        long start = System.nanoTime();
+        for (File part : mParts) {
+            concatenator.append(part);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private String rate(long nanos) {
+        return String.format(Locale.US, "%.1fms (%.0f MB/s)", nanos / 1e6, mTotalBytes / 1048576d / (nanos / 1e9));
+    }
+
+    private static void log(String format, Object... args) {
+        System.out.println(String.format(Locale.US, format, args));
+    }
+}
@@ -0,0 +1,144 @@
+package com.erlei.multipartrecorder;
+
+import com.erlei.videorecorder.mp4.JournaledMp4Writer;
+import com.erlei.videorecorder.mp4.MovieIndex;
+import com.erlei.videorecorder.mp4.Mp4Reader;
+import com.erlei.videorecorder.mp4.SampleFlags;
+import com.erlei.videorecorder.mp4.TrackFormat;
+import com.erlei.videorecorder.mp4.TrackIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * 生成测试用的视频块 , 与录制时一样的 ftyp + mdat + moov 结构 , 一个 H.264 轨道和一个 AAC 轨道 ,
+ * 样本数据是随机字节 , 同一个 seed 生成的文件完全相同
+ */
+final class PartFixtures {
+
+    static final int FRAME_RATE = 30;
+    static final int SAMPLE_RATE = 44100;
+    private static final long FRAME_US = 1000000L / FRAME_RATE;
+    private static final long AAC_FRAME_US = 1024 * 1000000L / SAMPLE_RATE;
+    private static final int AAC_FRAME_SIZE = 372;
+    /**
+     * 不带起始码 , 样本是长度前缀格式
+     */
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+
+    private PartFixtures() {
+    }
+
+    /**
+     * @param frames    视频帧数 , 每秒一个关键帧
+     * @param frameSize 每个视频帧的字节数
+     */
+    static File writePart(File file, long seed, int frames, int frameSize) throws IOException {
+        Random random = new Random(seed);
+        JournaledMp4Writer writer = new JournaledMp4Writer(file);
+        int video = writer.addTrack(TrackFormat.createVideoFormat(TrackFormat.MIME_AVC, 1280, 720, SPS, PPS));
+        int audio = writer.addTrack(TrackFormat.createAudioFormat(TrackFormat.MIME_AAC, SAMPLE_RATE, 1, new byte[]{0x12, 0x08}));
+        writer.start();
+        byte[] frame = new byte[frameSize];
+        byte[] aac = new byte[AAC_FRAME_SIZE];
+        long audioUs = 0;
+        for (int i = 0; i < frames; i++) {
+            long videoUs = i * FRAME_US;
+            boolean key = i % FRAME_RATE == 0;
+            random.nextBytes(frame);
+            //长度前缀格式的 NAL
+            ByteBuffer.wrap(frame).putInt(frameSize - 4).put((byte) (key ? 0x65 : 0x41));
+            writer.writeSample(video, ByteBuffer.wrap(frame), videoUs, key ? SampleFlags.FLAG_SYNC : 0);
+            while (audioUs <= videoUs) {
+                random.nextBytes(aac);
+                writer.writeSample(audio, ByteBuffer.wrap(aac), audioUs, SampleFlags.FLAG_SYNC);
+                audioUs += AAC_FRAME_US;
+            }
+        }
+        writer.stop();
+        return file;
+    }
+
+    static List<File> writeParts(File dir, int count, int frames, int frameSize) throws IOException {
+        List<File> parts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            parts.add(writePart(new File(dir, "part" + i + ".mp4"), i, frames, frameSize));
+        }
+        return parts;
+    }
+
+    /**
+     * @return 每个样本数据的 CRC32 , 按解码顺序
+     */
+    static long[] sampleChecksums(File file, TrackIndex track) throws IOException {
+        long[] checksums = new long[track.getSampleCount()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            CRC32 crc = new CRC32();
+            int sample = 0;
+            for (int c = 0; c < track.getChunkCount(); c++) {
+                long offset = track.chunkOffsets.get(c);
+                for (int i = 0; i < track.chunkSampleCounts.get(c); i++) {
+                    int size = track.sampleSizes.get(sample);
+                    ByteBuffer buffer = ByteBuffer.allocate(size);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, offset + buffer.position()) < 0) throw new IOException("file is truncated");
+                    }
+                    crc.reset();
+                    crc.update(buffer.array(), 0, size);
+                    checksums[sample++] = crc.getValue();
+                    offset += size;
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        return checksums;
+    }
+
+    /**
+     * 两个文件的每个轨道的样本数 , 大小 , 时长 , 关键帧和样本数据都相同
+     */
+    static void assertSameSamples(File expected, File actual) throws IOException {
+        MovieIndex expectedIndex = Mp4Reader.read(expected);
+        MovieIndex actualIndex = Mp4Reader.read(actual);
+        assertFalse(expectedIndex.fragmented);
+        assertFalse(actualIndex.fragmented);
+        assertEquals(expectedIndex.tracks.size(), actualIndex.tracks.size());
+        for (String handlerType : new String[]{"vide", "soun"}) {
+            TrackIndex e = expectedIndex.getTrack(handlerType);
+            TrackIndex a = actualIndex.getTrack(handlerType);
+            assertNotNull(handlerType, e);
+            assertNotNull(handlerType, a);
+            assertEquals(handlerType, e.getSampleCount(), a.getSampleCount());
+            assertArrayEquals(handlerType, e.sampleSizes.toArray(), a.sampleSizes.toArray());
+            assertArrayEquals(handlerType, toMicros(e), toMicros(a));
+            for (int i = 0; i < e.getSampleCount(); i++) {
+                assertEquals(handlerType + " sync " + i, e.isSync(i), a.isSync(i));
+            }
+            assertArrayEquals(handlerType, sampleChecksums(expected, e), sampleChecksums(actual, a));
+        }
+    }
+
+    private static long[] toMicros(TrackIndex track) {
+        long[] durations = new long[track.getSampleCount()];
+        for (int i = 0; i < durations.length; i++) {
+            durations[i] = track.sampleDurations.get(i) * 1000000L / track.timescale;
+        }
+        return durations;
+    }
+}
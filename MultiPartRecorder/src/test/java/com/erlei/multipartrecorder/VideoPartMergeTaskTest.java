@@ -0,0 +1,90 @@
+package com.erlei.multipartrecorder;
+
+import com.coremedia.iso.boxes.Container;
+import com.erlei.videorecorder.mp4.MovieIndex;
+import com.erlei.videorecorder.mp4.Mp4Concatenator;
+import com.erlei.videorecorder.mp4.Mp4Reader;
+import com.erlei.videorecorder.util.ProgressReporter;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 流式合并 (Mp4Concatenator) 与 isoparser 合并的结果在结构上一致 : 每个轨道的样本数 , 大小 , 时长 , 关键帧和样本数据都相同
+ */
+public class VideoPartMergeTaskTest {
+
+    private static final ProgressReporter.Listener IGNORE_PROGRESS = new ProgressReporter.Listener() {
+        @Override
+        public void onProgress(float progress) {
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private List<File> mParts;
+
+    @Before
+    public void setUp() throws IOException {
+        mParts = PartFixtures.writeParts(mFolder.newFolder("parts"), 3, 75, 4096);
+    }
+
+    @Test
+    public void concatenatorMatchesIsoParser() throws IOException {
+        PartFixtures.assertSameSamples(concatenate(false), mergeByIsoParser(mFolder.newFile("iso.mp4")));
+    }
+
+    @Test
+    public void fastStartConcatenatorMatchesIsoParser() throws IOException {
+        File merged = concatenate(true);
+        MovieIndex index = Mp4Reader.read(merged);
+        assertTrue("moov before mdat", index.moovOffset < index.getDataExtents()[0]);
+        PartFixtures.assertSameSamples(merged, mergeByIsoParser(mFolder.newFile("iso.mp4")));
+    }
+
+    /**
+     * isoparser 是流式合并失败之后的后备方案 , 输出文件中已经有流式合并写入的数据 , 必须先截断
+     */
+    @Test
+    public void isoParserFallbackTruncatesPartialOutput() throws IOException {
+        File output = mFolder.newFile("merged.mp4");
+        long expected = mergeByIsoParser(mFolder.newFile("iso.mp4")).length();
+        RandomAccessFile raf = new RandomAccessFile(output, "rw");
+        try {
+            raf.setLength(expected * 2);
+            raf.write(new byte[]{1, 2, 3, 4});
+        } finally {
+            raf.close();
+        }
+
+        mergeByIsoParser(output);
+
+        assertEquals(expected, output.length());
+        PartFixtures.assertSameSamples(concatenate(false), output);
+    }
+
+    private File concatenate(boolean fastStart) throws IOException {
+        File output = mFolder.newFile(fastStart ? "faststart.mp4" : "streaming.mp4");
+        Mp4Concatenator concatenator = new Mp4Concatenator(output, fastStart);
+        concatenator.appendAll(mParts);
+        concatenator.finish();
+        return output;
+    }
+
+    private File mergeByIsoParser(File output) throws IOException {
+        Container container = VideoPartMergeTask.buildByIsoParser(mParts);
+        VideoPartMergeTask.writeContainer(container, output, new ProgressReporter(1, IGNORE_PROGRESS));
+        return output;
+    }
+}
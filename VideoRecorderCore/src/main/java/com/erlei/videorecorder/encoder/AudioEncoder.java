@@ -34,35 +34,16 @@ public class AudioEncoder extends MediaEncoder {
         mChannelCount = channelCount;
     }
 
+    /**
+     * 显示时间由 AudioCapture / AudioCaptureThread 中的 AudioClock 按读取的样本数计算 , 这里只保证单调递增
+     */
     @Override
     protected long getSafePTSUs(long presentationTimeUs) {
-//        return getJitterFreePTS(presentationTimeUs,3552);
-        long result = System.nanoTime() / 1000L;
+        long result = presentationTimeUs;
         if (result < mPrevOutputPTSUs)
             result = (mPrevOutputPTSUs - result) + result;
         return result;
     }
-    long startPTS = 0;
-    long totalSamplesNum = 0;
-    private long getJitterFreePTS(long bufferPts, long bufferSamplesNum) {
-        long correctedPts = 0;
-        long bufferDuration = (1000000 * bufferSamplesNum) / (mSampleRate);
-        bufferPts -= bufferDuration; // accounts for the delay of acquiring the audio buffer
-        if (totalSamplesNum == 0) {
-            // reset
-            startPTS = bufferPts;
-            totalSamplesNum = 0;
-        }
-        correctedPts = startPTS +  (1000000 * totalSamplesNum) / (mSampleRate);
-        if(bufferPts - correctedPts >= 2*bufferDuration) {
-            // reset
-            startPTS = bufferPts;
-            totalSamplesNum = 0;
-            correctedPts = startPTS;
-        }
-        totalSamplesNum += bufferSamplesNum;
-        return correctedPts;
-    }
 
     @Override
     protected synchronized MediaEncoderHandler initHandler(Looper looper, MediaEncoder encoder) {
@@ -2,47 +2,60 @@ package com.erlei.videorecorder.encoder;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.os.SystemClock;
 import android.text.TextUtils;
-import android.util.SparseArray;
 
+import com.erlei.videorecorder.muxer.AndroidMediaMuxer;
+import com.erlei.videorecorder.muxer.IMediaMuxer;
+import com.erlei.videorecorder.util.DirectBufferPool;
 import com.erlei.videorecorder.util.LogUtil;
+import com.erlei.videorecorder.util.SampleQueue;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MediaMuxerWarpper extends HandlerThread {
 
     private static final String TAG = "MediaMuxerWarpper";
+    private static final boolean DEBUG = false;
 
     private MediaMuxerHandler mHandler;
     private int mTrackCount;
-    private MediaMuxer mMediaMuxer;
+    private IMediaMuxer mMediaMuxer;
     private String mOutPutPath;
     private MuxerCallback mCallBack;
     private volatile boolean mIsStarted;
+    private final SampleQueue mSampleQueue = new SampleQueue(SampleQueue.DEFAULT_CAPACITY, SampleQueue.Policy.BLOCK, DirectBufferPool.getDefault());
 
     public MediaMuxerWarpper(String output) {
         super(TAG);
         if (TextUtils.isEmpty(output)) throw new IllegalArgumentException("output must not null");
         mOutPutPath = output;
         try {
-            mMediaMuxer = new MediaMuxer(mOutPutPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mMediaMuxer = new AndroidMediaMuxer(mOutPutPath);
         } catch (IOException e) {
             e.printStackTrace();
             LogUtil.loge(TAG, "create MediaMuxer error " + e);
         }
     }
 
+    /**
+     * @param output 输出文件路径
+     * @param muxer  实际写入样本的混合器 , 例如 FragmentedMp4Muxer
+     */
+    public MediaMuxerWarpper(String output, IMediaMuxer muxer) {
+        super(TAG);
+        if (TextUtils.isEmpty(output)) throw new IllegalArgumentException("output must not null");
+        if (muxer == null) throw new IllegalArgumentException("muxer must not null");
+        mOutPutPath = output;
+        mMediaMuxer = muxer;
+    }
+
     public String getOutPutPath() {
         return mOutPutPath;
     }
@@ -74,7 +87,10 @@ public class MediaMuxerWarpper extends HandlerThread {
     public synchronized int addMediaTrack(MediaFormat format) {
         ++mTrackCount;
         LogUtil.loge(TAG, "OutputFormat = " + format.toString());
-        return mMediaMuxer.addTrack(format);
+        int trackIndex = mMediaMuxer.addTrack(format);
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        mSampleQueue.addTrack(trackIndex, mime != null && mime.startsWith("video/"));
+        return trackIndex;
     }
 
 
@@ -86,6 +102,8 @@ public class MediaMuxerWarpper extends HandlerThread {
         } catch (Exception e) {
             e.printStackTrace();
             LogUtil.loge(TAG, "startMuxer error " + e);
+            //混合器启动失败 , 样本永远不会被写入 , 关闭队列避免阻塞编码线程
+            mSampleQueue.close();
         }
         if (mCallBack != null) {
             mCallBack.onMuxerStarted(mOutPutPath);
@@ -93,7 +111,7 @@ public class MediaMuxerWarpper extends HandlerThread {
     }
 
     private void stopMuxer() {
-        LogUtil.logd(TAG, TAG + " stopMuxer");
+        LogUtil.logd(TAG, TAG + " stopMuxer " + mSampleQueue);
         try {
             mMediaMuxer.stop();
         } catch (Exception e) {
@@ -118,23 +136,38 @@ public class MediaMuxerWarpper extends HandlerThread {
 
 
     /**
-     * 如果混合器未启动 , 那么返回false ,(重新发送到消息队列 , 并且保持原有顺序, 等待混合器启动 , 通常不会等待太久)
-     * 如果去掉重新重新发送到消息队列的逻辑 , 在某些手机上生成视频会有问题 , 比如华为 Honor 9 ,
-     * 因为第一帧的关键帧丢失 , 如果第一帧视频帧不是关键帧 , 会卡顿 , 直到播放到下一个关键帧 , 并且关键帧间隔时间小于录制的时间会导致混合器无法停止而崩溃
+     * 把队列中的样本写入混合器 , 混合器未启动时样本留在队列中 , 等启动之后再写入 (保持顺序)
+     * 以前的实现是把消息重新发送到消息队列 , 并且在关键帧时 sleep , 会阻塞混合器线程上的其他消息 ,
+     * 如果丢失第一帧关键帧 , 在某些手机上生成的视频会有问题 , 比如华为 Honor 9
      */
-    private boolean writeSampleData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
-        LogUtil.logd(TAG,"IFrame = "+((bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0)+"\t\t size = "+bufferInfo.size);
-        if (isMuxerStarted()) {
-            mMediaMuxer.writeSampleData(trackIndex, encodedData, bufferInfo);
-            return true;
-        } else {
-            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
-                SystemClock.sleep(10);
+    private void drainSampleQueue(MediaCodec.BufferInfo bufferInfo) {
+        if (!isMuxerStarted()) return;
+        SampleQueue.Slot slot;
+        while ((slot = mSampleQueue.peek()) != null) {
+            bufferInfo.set(0, slot.getSize(), slot.getPresentationTimeUs(), slot.getFlags());
+            if (DEBUG) LogUtil.logd(TAG, "IFrame = " + ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) + "\t\t size = " + bufferInfo.size);
+            try {
+                mMediaMuxer.writeSampleData(slot.getTrackIndex(), slot.getData(), bufferInfo);
+            } finally {
+                mSampleQueue.remove(slot);
             }
-            return false;
         }
     }
 
+    /**
+     * @return 编码器和混合器之间的样本队列 , 可以读取队列深度 , 丢弃次数和延迟等统计
+     */
+    public SampleQueue getSampleQueue() {
+        return mSampleQueue;
+    }
+
+    /**
+     * @param policy 样本队列满时的处理方式 , 默认阻塞编码线程
+     */
+    public void setBackpressurePolicy(SampleQueue.Policy policy) {
+        mSampleQueue.setPolicy(policy);
+    }
+
     public boolean isMuxerStarted() {
         return mIsStarted;
     }
@@ -142,15 +175,19 @@ public class MediaMuxerWarpper extends HandlerThread {
     public static class MediaMuxerHandler extends Handler {
         private static final int MSG_START = 4;
         private static final int MSG_STOP = 3;
-        private static final int MSG_WRITE_SAMPLE_DATA = 5;
+        private static final int MSG_DRAIN = 5;
         private final WeakReference<MediaMuxerWarpper> mReference;
-
-        private final List<SampleData> mCache;
+        private final SampleQueue mSampleQueue;
+        /**
+         * 是否已经发送了 MSG_DRAIN 还没有处理 , 避免每个样本都发送一个消息
+         */
+        private final AtomicBoolean mDrainPending = new AtomicBoolean();
+        private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
 
         MediaMuxerHandler(Looper looper, MediaMuxerWarpper mediaMuxerWarpper) {
             super(looper);
             mReference = new WeakReference<>(mediaMuxerWarpper);
-            mCache = Collections.synchronizedList(new ArrayList<SampleData>());
+            mSampleQueue = mediaMuxerWarpper.mSampleQueue;
         }
 
         @Override
@@ -164,33 +201,40 @@ public class MediaMuxerWarpper extends HandlerThread {
             switch (msg.what) {
                 case MSG_START:
                     muxer.startMuxer();
+                    drain(muxer);
                     break;
                 case MSG_STOP:
+                    drain(muxer);
                     muxer.stopMuxer();
                     release();
                     muxer.release();
                     break;
-                case MSG_WRITE_SAMPLE_DATA:
-                    SampleData sampleData = (SampleData) msg.obj;
-                    if (muxer.writeSampleData(sampleData.trackIndex, sampleData.encodedData, sampleData.bufferInfo)) {
-                        LogUtil.logd(TAG, "mCache.add(sampleData);");
-                        mCache.add(sampleData);
-                    } else {
-                        //重新发送到消息队列 ,保持消息队列的顺序
-                        sendMessageAtTime(obtainMessage(MSG_WRITE_SAMPLE_DATA, sampleData), msg.getWhen());
-                    }
+                case MSG_DRAIN:
+                    drain(muxer);
                     break;
 
             }
 
         }
 
-        private void release() {
-            for (SampleData sampleData : mCache) {
-                sampleData.release();
+        private void drain(MediaMuxerWarpper muxer) {
+            mDrainPending.set(false);
+            try {
+                muxer.drainSampleQueue(mBufferInfo);
+            } catch (Exception e) {
+                e.printStackTrace();
+                LogUtil.loge(TAG, "writeSampleData error " + e);
             }
         }
 
+        private void release() {
+            mSampleQueue.close();
+            mSampleQueue.clear();
+            //释放池中空闲的 native 内存
+            LogUtil.logd(TAG, "release " + DirectBufferPool.getDefault());
+            DirectBufferPool.getDefault().trim();
+        }
+
         public void start() {
             sendMessageAtFrontOfQueue(obtainMessage(MSG_START));
         }
@@ -199,63 +243,24 @@ public class MediaMuxerWarpper extends HandlerThread {
             sendMessage(obtainMessage(MSG_STOP));
         }
 
+        /**
+         * 编码线程调用 , 拷贝样本到队列中 , 队列满时按 SampleQueue.Policy 处理
+         */
         public void sendEncodedData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
-            sendMessage(obtainMessage(MSG_WRITE_SAMPLE_DATA, obtainSampleData(trackIndex, encodedData, bufferInfo)));
-        }
-
-        private synchronized SampleData obtainSampleData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
-            if (mCache.isEmpty()) {
-                LogUtil.logd(TAG, "new SampleData");
-                return new SampleData(trackIndex, encodedData, bufferInfo);
-            } else {
-                LogUtil.logd(TAG, "mCache = " + mCache.size());
-                SampleData sampleData = mCache.remove(mCache.size() - 1);
-                sampleData.trackIndex = trackIndex;
-                sampleData.setEncodedData(trackIndex, encodedData);
-                sampleData.bufferInfo.set(bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
-                return sampleData;
-            }
-        }
-
-
-        private static class SampleData {
-
-            int trackIndex;
-            ByteBuffer encodedData;
-            MediaCodec.BufferInfo bufferInfo;
-            // TODO: 2018/6/21 可以优化 ， 存在内存浪费
-            SparseArray<ByteBuffer> mCacheBuffer = new SparseArray<>();
-
-            SampleData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
-                this.trackIndex = trackIndex;
-                this.bufferInfo = new MediaCodec.BufferInfo();
-                this.bufferInfo.set(bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
-                setEncodedData(trackIndex, encodedData);
+            ByteBuffer src = encodedData.duplicate();
+            src.limit(bufferInfo.offset + bufferInfo.size);
+            src.position(bufferInfo.offset);
+            if (!mSampleQueue.offer(trackIndex, src, bufferInfo.presentationTimeUs, bufferInfo.flags)) {
+                LogUtil.loge(TAG, "sample dropped , track = " + trackIndex + " , " + mSampleQueue);
+                return;
             }
-
-            void setEncodedData(int trackIndex, ByteBuffer encodedData) {
-                ByteBuffer byteBuffer = mCacheBuffer.get(trackIndex);
-                if (byteBuffer == null) {
-                    byteBuffer = ByteBuffer.allocateDirect(encodedData.capacity());
-                    mCacheBuffer.put(trackIndex, byteBuffer);
-                }
-                byteBuffer.limit(encodedData.limit());
-                byteBuffer.position(encodedData.position());
-                byteBuffer.put(encodedData);
-                this.encodedData = byteBuffer;
+            if (mDrainPending.compareAndSet(false, true)) {
+                sendEmptyMessage(MSG_DRAIN);
             }
+        }
 
-            public void release() {
-                bufferInfo = null;
-                for (int i = 0; i < mCacheBuffer.size(); i++) {
-                    ByteBuffer byteBuffer = mCacheBuffer.get(i);
-                    if (byteBuffer != null) byteBuffer.clear();
-                }
-                encodedData.clear();
-                encodedData = null;
-                mCacheBuffer.clear();
-                mCacheBuffer = null;
-            }
+        public DirectBufferPool getBufferPool() {
+            return DirectBufferPool.getDefault();
         }
     }
 }
@@ -0,0 +1,267 @@
+package com.erlei.videorecorder.encoder1;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Base64;
+import android.util.Range;
+
+import com.erlei.videorecorder.util.LogUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 编码器能力缓存 , 每个设备指纹 (Build.FINGERPRINT) 只查询一次
+ * <p>
+ * 遍历 MediaCodecList 和 getCapabilitiesForType() 都是跨进程调用 , 每次开始录制都查询要多花几十毫秒 ;
+ * 第一次使用时查询所有编码器 , 序列化成紧凑的二进制 (Base64) 保存在 SharedPreferences 中 , 之后从内存读取 ;
+ * 系统升级之后设备指纹变化 , 重新查询
+ * 记录每个编码器的名称 , 类型 , 颜色格式 , profile / level , 码率和尺寸范围 (API 21 以上 , 否则为 0)
+ * 线程安全
+ */
+public class CodecCapabilityCache {
+
+    private static final String TAG = LogUtil.TAG;
+    private static final String PREFERENCES_NAME = "codec_capabilities";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_DATA = "data";
+    private static final int VERSION = 1;
+
+    private static volatile CodecCapabilityCache sInstance;
+
+    private final List<Codec> mCodecs;
+
+    private CodecCapabilityCache(List<Codec> codecs) {
+        mCodecs = Collections.unmodifiableList(codecs);
+    }
+
+    /**
+     * 依次从内存 , SharedPreferences , MediaCodecList 获取 , 第一次调用可能比较慢
+     *
+     * @param context 为 null 时不读取和保存 SharedPreferences
+     */
+    public static CodecCapabilityCache get(Context context) {
+        CodecCapabilityCache cache = sInstance;
+        if (cache != null) return cache;
+        synchronized (CodecCapabilityCache.class) {
+            if (sInstance == null) sInstance = load(context);
+            return sInstance;
+        }
+    }
+
+    /**
+     * 在后台线程提前准备缓存 , 开始录制时直接从内存读取
+     */
+    public static void preload(final Context context) {
+        if (sInstance != null) return;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                get(context);
+            }
+        }, "CodecCapabilityCache").start();
+    }
+
+    private static CodecCapabilityCache load(Context context) {
+        final SharedPreferences preferences = context == null ? null
+                : context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        if (preferences != null && Build.FINGERPRINT.equals(preferences.getString(KEY_FINGERPRINT, null))) {
+            final String data = preferences.getString(KEY_DATA, null);
+            if (data != null) {
+                try {
+                    return decode(Base64.decode(data, Base64.NO_WRAP));
+                } catch (IOException | IllegalArgumentException e) {
+                    LogUtil.loge(TAG, "decode codec capabilities error " + e);
+                }
+            }
+        }
+        final long start = System.currentTimeMillis();
+        final CodecCapabilityCache cache = query();
+        LogUtil.logd(TAG, "query codec capabilities " + cache.mCodecs.size() + " in " + (System.currentTimeMillis() - start) + "ms");
+        if (preferences != null) {
+            preferences.edit()
+                    .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+                    .putString(KEY_DATA, Base64.encodeToString(cache.encode(), Base64.NO_WRAP))
+                    .apply();
+        }
+        return cache;
+    }
+
+    private static CodecCapabilityCache query() {
+        final List<Codec> codecs = new ArrayList<>();
+        final int numCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < numCodecs; i++) {
+            final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+            if (!codecInfo.isEncoder()) continue;
+            for (String type : codecInfo.getSupportedTypes()) {
+                final MediaCodecInfo.CodecCapabilities caps;
+                try {
+                    caps = codecInfo.getCapabilitiesForType(type);
+                } catch (IllegalArgumentException e) {
+                    LogUtil.loge(TAG, "getCapabilitiesForType " + codecInfo.getName() + " / " + type + " error " + e);
+                    continue;
+                }
+                codecs.add(toCodec(codecInfo.getName(), type, caps));
+            }
+        }
+        return new CodecCapabilityCache(codecs);
+    }
+
+    private static Codec toCodec(String name, String type, MediaCodecInfo.CodecCapabilities caps) {
+        final int[] colorFormats = caps.colorFormats != null ? caps.colorFormats : new int[0];
+        final MediaCodecInfo.CodecProfileLevel[] levels = caps.profileLevels != null
+                ? caps.profileLevels : new MediaCodecInfo.CodecProfileLevel[0];
+        final int[] profileLevels = new int[levels.length * 2];
+        for (int i = 0; i < levels.length; i++) {
+            profileLevels[i * 2] = levels[i].profile;
+            profileLevels[i * 2 + 1] = levels[i].level;
+        }
+        final int[] ranges = new int[6];
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            final MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+            final MediaCodecInfo.AudioCapabilities audio = caps.getAudioCapabilities();
+            if (video != null) {
+                putRange(ranges, 0, video.getBitrateRange());
+                putRange(ranges, 2, video.getSupportedWidths());
+                putRange(ranges, 4, video.getSupportedHeights());
+            } else if (audio != null) {
+                putRange(ranges, 0, audio.getBitrateRange());
+            }
+        }
+        return new Codec(name, type, colorFormats, profileLevels, ranges);
+    }
+
+    /**
+     * Range 需要 API 21 , 只在 API 21 以上调用
+     */
+    private static void putRange(int[] ranges, int index, Range<Integer> range) {
+        if (range == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return;
+        ranges[index] = range.getLower();
+        ranges[index + 1] = range.getUpper();
+    }
+
+    /**
+     * @return 支持 mimeType 的编码器 , 按 MediaCodecList 的顺序
+     */
+    public List<Codec> getEncoders(String mimeType) {
+        final List<Codec> result = new ArrayList<>();
+        for (Codec codec : mCodecs) {
+            if (codec.mime.equalsIgnoreCase(mimeType)) result.add(codec);
+        }
+        return result;
+    }
+
+    public List<Codec> getCodecs() {
+        return mCodecs;
+    }
+
+    byte[] encode() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(mCodecs.size() * 64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeShort(mCodecs.size());
+            for (Codec codec : mCodecs) {
+                out.writeUTF(codec.name);
+                out.writeUTF(codec.mime);
+                writeInts(out, codec.colorFormats);
+                writeInts(out, codec.profileLevels);
+                out.writeInt(codec.minBitRate);
+                out.writeInt(codec.maxBitRate);
+                out.writeInt(codec.minWidth);
+                out.writeInt(codec.maxWidth);
+                out.writeInt(codec.minHeight);
+                out.writeInt(codec.maxHeight);
+            }
+            out.flush();
+        } catch (IOException e) {
+            //ByteArrayOutputStream 不会抛出 IOException
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static CodecCapabilityCache decode(byte[] data) throws IOException {
+        if (data == null) throw new IOException("data is null");
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        final int version = in.readUnsignedByte();
+        if (version != VERSION) throw new IOException("unsupported version " + version);
+        final int count = in.readUnsignedShort();
+        final List<Codec> codecs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final String name = in.readUTF();
+            final String mime = in.readUTF();
+            final int[] colorFormats = readInts(in);
+            final int[] profileLevels = readInts(in);
+            final int[] ranges = new int[6];
+            for (int j = 0; j < ranges.length; j++) {
+                ranges[j] = in.readInt();
+            }
+            codecs.add(new Codec(name, mime, colorFormats, profileLevels, ranges));
+        }
+        return new CodecCapabilityCache(codecs);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeShort(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        final int[] values = new int[in.readUnsignedShort()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    public static final class Codec {
+        public final String name;
+        public final String mime;
+        public final int[] colorFormats;
+        /**
+         * profile , level 交替排列
+         */
+        public final int[] profileLevels;
+        /**
+         * 范围未知 (API 21 以下) 时为 0
+         */
+        public final int minBitRate, maxBitRate, minWidth, maxWidth, minHeight, maxHeight;
+
+        Codec(String name, String mime, int[] colorFormats, int[] profileLevels, int[] ranges) {
+            this.name = name;
+            this.mime = mime;
+            this.colorFormats = colorFormats;
+            this.profileLevels = profileLevels;
+            this.minBitRate = ranges[0];
+            this.maxBitRate = ranges[1];
+            this.minWidth = ranges[2];
+            this.maxWidth = ranges[3];
+            this.minHeight = ranges[4];
+            this.maxHeight = ranges[5];
+        }
+
+        public boolean hasColorFormat(int colorFormat) {
+            for (int format : colorFormats) {
+                if (format == colorFormat) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "Codec{" + name + ", " + mime + "}";
+        }
+    }
+}
@@ -26,16 +26,18 @@ import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.util.Log;
 
 import com.erlei.videorecorder.recorder.VideoRecorder;
+import com.erlei.videorecorder.util.AudioClock;
 import com.erlei.videorecorder.util.LogUtil;
+import com.erlei.videorecorder.util.MediaClock;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 public class MediaAudioEncoder extends MediaEncoder {
     private static final boolean DEBUG = LogUtil.LOG_ENABLE;    // TODO set false on release
@@ -48,6 +50,10 @@ public class MediaAudioEncoder extends MediaEncoder {
     private int mBitRate;
     private int mChannelCount;
     private AudioThread mAudioThread = null;
+    /**
+     * 按读取的样本数计算显示时间 , 在 AudioThread 中创建和使用
+     */
+    private volatile AudioClock mAudioClock;
     private VideoRecorder.Config mConfig;
 
     public MediaAudioEncoder(MediaMuxerWrapper muxer, VideoRecorder.Config config) {
@@ -64,12 +70,12 @@ public class MediaAudioEncoder extends MediaEncoder {
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
         // prepare MediaCodec for AAC encoding of audio data from inernal mic.
-        final MediaCodecInfo audioCodecInfo = selectAudioCodec(MIME_TYPE);
-        if (audioCodecInfo == null) {
+        final CodecCapabilityCache.Codec audioCodec = selectAudioCodec(MIME_TYPE);
+        if (audioCodec == null) {
             LogUtil.loge(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
             return;
         }
-        if (DEBUG) LogUtil.loge(TAG, "selected codec: " + audioCodecInfo.getName());
+        if (DEBUG) LogUtil.loge(TAG, "selected codec: " + audioCodec.name);
 
         final MediaFormat audioFormat = MediaFormat.createAudioFormat(MIME_TYPE, mSampleRate, mChannelCount);
         audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
@@ -77,7 +83,7 @@ public class MediaAudioEncoder extends MediaEncoder {
         audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
         audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, mChannelCount);
         if (DEBUG) LogUtil.loge(TAG, "format: " + audioFormat);
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        mMediaCodec = createEncoder(MIME_TYPE, audioCodec.name);
         mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mMediaCodec.start();
         if (DEBUG) LogUtil.loge(TAG, "prepare finishing");
@@ -93,8 +99,16 @@ public class MediaAudioEncoder extends MediaEncoder {
         }
     }
 
+    /**
+     * @return 音频时钟 , 可以获取音频相对视频时钟的漂移 , 还没有开始读取时返回 null
+     */
+    public AudioClock getAudioClock() {
+        return mAudioClock;
+    }
+
     @Override
     protected void release() {
+        if (DEBUG && mAudioClock != null) LogUtil.logd(TAG, "release:" + mAudioClock);
         mAudioThread = null;
         super.release();
     }
@@ -141,6 +155,8 @@ public class MediaAudioEncoder extends MediaEncoder {
                             if (DEBUG) Log.v(TAG, "AudioThread:start audio recording");
                             final ByteBuffer buf = ByteBuffer.allocateDirect(minBufferSize / 2);
                             int readBytes;
+                            final AudioClock clock = new AudioClock(mSampleRate, audioRecord.getChannelCount(), minBufferSize * 2);
+                            mAudioClock = clock;
                             audioRecord.startRecording();
                             try {
                                 for (; mIsCapturing && !mRequestStop && !mIsEOS; ) {
@@ -151,7 +167,7 @@ public class MediaAudioEncoder extends MediaEncoder {
                                         // set audio data to encoder
                                         buf.position(readBytes);
                                         buf.flip();
-                                        encode(buf, readBytes, getPTSUs());
+                                        encode(buf, readBytes, clock.onRead(readBytes, MediaClock.nowUs()));
                                         frameAvailableSoon();
                                     }
                                 }
@@ -175,35 +191,16 @@ public class MediaAudioEncoder extends MediaEncoder {
 
     /**
      * select the first codec that match a specific MIME type
+     * 编码器能力从 CodecCapabilityCache 读取 , 不再每次遍历 MediaCodecList
      *
      * @param mimeType
      * @return
      */
-    private static final MediaCodecInfo selectAudioCodec(final String mimeType) {
+    private CodecCapabilityCache.Codec selectAudioCodec(final String mimeType) {
         if (DEBUG) Log.v(TAG, "selectAudioCodec:");
-
-        MediaCodecInfo result = null;
-        // get the list of available codecs
-        final int numCodecs = MediaCodecList.getCodecCount();
-        LOOP:
-        for (int i = 0; i < numCodecs; i++) {
-            final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-            if (!codecInfo.isEncoder()) {    // skipp decoder
-                continue;
-            }
-            final String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (DEBUG)
-                    LogUtil.loge(TAG, "supportedType:" + codecInfo.getName() + ",MIME=" + types[j]);
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                    if (result == null) {
-                        result = codecInfo;
-                        break LOOP;
-                    }
-                }
-            }
-        }
-        return result;
+        final List<CodecCapabilityCache.Codec> codecs = CodecCapabilityCache.get(mConfig.getContext()).getEncoders(mimeType);
+        if (DEBUG) LogUtil.loge(TAG, "supported codecs:" + codecs);
+        return codecs.isEmpty() ? null : codecs.get(0);
     }
 
 }
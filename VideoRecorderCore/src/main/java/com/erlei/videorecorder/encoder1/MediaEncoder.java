@@ -24,13 +24,23 @@ package com.erlei.videorecorder.encoder1;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 
 import com.erlei.videorecorder.recorder.VideoRecorder;
+import com.erlei.videorecorder.util.LatencyHistogram;
 import com.erlei.videorecorder.util.LogUtil;
+import com.erlei.videorecorder.util.MediaClock;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public abstract class MediaEncoder implements Runnable {
     private static final boolean DEBUG = LogUtil.LOG_ENABLE;    // TODO set false on release
@@ -39,6 +49,10 @@ public abstract class MediaEncoder implements Runnable {
     protected static final int TIMEOUT_USEC = 10000;    // 10[msec]
     protected static final int MSG_FRAME_AVAILABLE = 1;
     protected static final int MSG_STOP_RECORDING = 9;
+    /**
+     * 异步模式下等待编码器输出 EOS 的最长时间
+     */
+    private static final long EOS_TIMEOUT_MS = 2000;
 
     protected final Object mSync = new Object();
     private final VideoRecorder.Config mConfig;
@@ -61,11 +75,15 @@ public abstract class MediaEncoder implements Runnable {
     /**
      * Flag the indicate the muxer is running
      */
-    protected boolean mMuxerStarted;
+    protected volatile boolean mMuxerStarted;
     /**
      * Track Number
      */
     protected int mTrackIndex;
+    /**
+     * 输出格式是否是视频 , 在 addTrack() 时确定
+     */
+    private boolean mIsVideo;
     /**
      * MediaCodec instance for encoding
      */
@@ -78,10 +96,32 @@ public abstract class MediaEncoder implements Runnable {
      * BufferInfo instance for dequeuing
      */
     private MediaCodec.BufferInfo mBufferInfo;        // API >= 16(Android4.1.2)
+    /**
+     * 是否使用 MediaCodec 异步回调模式 (API >= 21) , 否则由编码线程轮询 drain()
+     */
+    protected final boolean mAsync;
+    /**
+     * 异步模式的回调线程 , 编码器在这个线程创建 , 回调都在这个线程执行
+     */
+    private HandlerThread mCallbackThread;
+    /**
+     * 异步模式下编码器空闲的输入缓冲区 , 由 onInputBufferAvailable 放入 , encode() 取出
+     */
+    private final LinkedBlockingQueue<Integer> mInputIndexes = new LinkedBlockingQueue<>();
+    /**
+     * 异步模式下编码器已经输出 EOS
+     */
+    private volatile boolean mOutputEOS;
+    /**
+     * 每个样本从输入 (显示时间) 到输出的延迟
+     */
+    private final LatencyHistogram mEncodeLatency;
 
     public MediaEncoder(MediaMuxerWrapper muxer, VideoRecorder.Config config) {
         if (muxer == null) throw new NullPointerException("MediaMuxerWrapper is null");
         mConfig = config;
+        mAsync = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && (config == null || config.isAsyncEncoder());
+        mEncodeLatency = new LatencyHistogram(getClass().getSimpleName());
         mWeakMuxer = new WeakReference<MediaMuxerWrapper>(muxer);
         muxer.addEncoder(this);
         synchronized (mSync) {
@@ -101,6 +141,20 @@ public abstract class MediaEncoder implements Runnable {
         return muxer != null ? muxer.getOutputPath() : null;
     }
 
+    /**
+     * @return 是否使用 MediaCodec 异步回调模式
+     */
+    public boolean isAsync() {
+        return mAsync;
+    }
+
+    /**
+     * @return 每个样本的编码延迟 , 输出时间减去输入的显示时间
+     */
+    public LatencyHistogram getEncodeLatency() {
+        return mEncodeLatency;
+    }
+
     /**
      * the method to indicate frame data is soon available or already available
      *
@@ -112,6 +166,8 @@ public abstract class MediaEncoder implements Runnable {
             if (!mIsCapturing || mRequestStop) {
                 return false;
             }
+            //异步模式下输出由回调处理 , 不需要唤醒编码线程
+            if (mAsync) return true;
             mRequestDrain++;
             mSync.notifyAll();
         }
@@ -139,6 +195,15 @@ public abstract class MediaEncoder implements Runnable {
                 if (localRequestDrain)
                     mRequestDrain--;
             }
+            if (localRequestStop && mAsync) {
+                //编码器出错时已经结束 , 不需要再发送 EOS
+                if (!mOutputEOS) {
+                    signalEndOfInputStream();
+                    awaitOutputEOS();
+                }
+                release();
+                break;
+            }
             if (localRequestStop) {
                 drain();
                 // request stop recording
@@ -176,6 +241,89 @@ public abstract class MediaEncoder implements Runnable {
     /*package*/
     abstract void prepare() throws IOException;
 
+    /**
+     * 创建编码器 , 子类在 prepare() 中调用 , 之后再 configure()
+     * 异步模式下编码器在回调线程创建并设置回调 , API 21 , 22 的 setCallback(Callback) 在创建编码器的线程回调
+     */
+    protected MediaCodec createEncoder(final String mime) throws IOException {
+        return createEncoder(mime, null);
+    }
+
+    /**
+     * @param codecName 编码器名称 , 为 null 时按 mime 创建
+     */
+    protected MediaCodec createEncoder(final String mime, final String codecName) throws IOException {
+        if (!mAsync) return newEncoder(mime, codecName);
+        mCallbackThread = new HandlerThread(getClass().getSimpleName() + "-callback");
+        mCallbackThread.start();
+        FutureTask<MediaCodec> task = new FutureTask<>(new Callable<MediaCodec>() {
+            @Override
+            public MediaCodec call() throws Exception {
+                MediaCodec codec = newEncoder(mime, codecName);
+                setCallback(codec);
+                return codec;
+            }
+        });
+        new Handler(mCallbackThread.getLooper()).post(task);
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while creating encoder " + mime);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static MediaCodec newEncoder(String mime, String codecName) throws IOException {
+        return codecName != null ? MediaCodec.createByCodecName(codecName) : MediaCodec.createEncoderByType(mime);
+    }
+
+    private void setCallback(MediaCodec codec) {
+        codec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                mInputIndexes.offer(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                final MediaMuxerWrapper muxer = mWeakMuxer.get();
+                boolean eos;
+                try {
+                    if (muxer == null) {
+                        LogUtil.logw(TAG, "muxer is unexpectedly null");
+                        codec.releaseOutputBuffer(index, false);
+                        eos = true;
+                    } else {
+                        eos = writeOutput(muxer, codec.getOutputBuffer(index), info);
+                        codec.releaseOutputBuffer(index, false);
+                    }
+                } catch (IllegalStateException e) {
+                    //release() 之后到达的回调
+                    LogUtil.logw(TAG, "onOutputBufferAvailable after codec stopped " + e);
+                    return;
+                }
+                if (eos) onOutputEOS();
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                LogUtil.loge(TAG, "encoder error " + e.getDiagnosticInfo() + " " + e);
+                onOutputEOS();
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                final MediaMuxerWrapper muxer = mWeakMuxer.get();
+                if (muxer != null) addTrack(muxer, format);
+            }
+        });
+    }
+
     /*package*/ void startRecording() {
         if (DEBUG) LogUtil.logi(TAG, "startRecording");
         synchronized (mSync) {
@@ -220,6 +368,12 @@ public abstract class MediaEncoder implements Runnable {
                 mMediaCodec = null;
             }
         }
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+            mCallbackThread = null;
+        }
+        mInputIndexes.clear();
+        if (DEBUG) LogUtil.logd(TAG, "encode latency " + mEncodeLatency);
         if (mMuxerStarted) {
             final MediaMuxerWrapper muxer = mWeakMuxer != null ? mWeakMuxer.get() : null;
             if (muxer != null) {
@@ -246,6 +400,10 @@ public abstract class MediaEncoder implements Runnable {
      */
     protected void encode(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
         if (!mIsCapturing) return;
+        if (mAsync) {
+            encodeAsync(buffer, length, presentationTimeUs);
+            return;
+        }
         final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
         while (mIsCapturing) {
             final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
@@ -276,11 +434,134 @@ public abstract class MediaEncoder implements Runnable {
         }
     }
 
+    /**
+     * 异步模式下不能调用 dequeueInputBuffer() , 等待回调放入空闲的输入缓冲区
+     */
+    private void encodeAsync(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
+        while (mIsCapturing) {
+            final Integer inputBufferIndex;
+            try {
+                inputBufferIndex = mInputIndexes.poll(TIMEOUT_USEC, TimeUnit.MICROSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (inputBufferIndex == null) continue;
+            final MediaCodec codec = mMediaCodec;
+            if (codec == null) return;
+            final ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferIndex);
+            if (inputBuffer == null) continue;
+            inputBuffer.clear();
+            if (buffer != null) {
+                inputBuffer.put(buffer);
+            }
+            if (length <= 0) {
+                mIsEOS = true;
+                if (DEBUG) LogUtil.logi(TAG, "send BUFFER_FLAG_END_OF_STREAM");
+                codec.queueInputBuffer(inputBufferIndex, 0, 0,
+                        presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            } else {
+                codec.queueInputBuffer(inputBufferIndex, 0, length, presentationTimeUs, 0);
+            }
+            break;
+        }
+    }
+
+    /**
+     * 异步模式下等待回调线程收到 EOS , 超时后直接释放编码器
+     */
+    private void awaitOutputEOS() {
+        final long deadline = System.currentTimeMillis() + EOS_TIMEOUT_MS;
+        synchronized (mSync) {
+            while (!mOutputEOS) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    LogUtil.logw(TAG, "timeout waiting for encoder EOS");
+                    break;
+                }
+                try {
+                    mSync.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 收到 EOS 或者编码器出错 , 唤醒编码线程释放编码器
+     */
+    private void onOutputEOS() {
+        synchronized (mSync) {
+            mOutputEOS = true;
+            mRequestStop = true;
+            mSync.notifyAll();
+        }
+    }
+
+    /**
+     * 把编码器的输出格式添加到混合器 , 同步模式在 drain() 中调用 , 异步模式在回调线程调用
+     */
+    private void addTrack(MediaMuxerWrapper muxer, MediaFormat format) {
+        if (mMuxerStarted) {    // second time request is error
+            throw new RuntimeException("format changed twice");
+        }
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        mIsVideo = mime != null && mime.startsWith("video/");
+        mTrackIndex = muxer.addTrack(format);
+        mMuxerStarted = true;
+        // 不需要等待其他编码器添加轨道 , 混合器启动之前的样本由 MediaMuxerWrapper 暂存
+        muxer.start();
+    }
+
+    /**
+     * 把一个输出样本写入混合器 , 同步模式在 drain() 中调用 , 异步模式在回调线程调用
+     *
+     * @return 是否是最后一个样本 (EOS)
+     */
+    private boolean writeOutput(MediaMuxerWrapper muxer, ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        if (encodedData == null) {
+            // this never should come...may be a MediaCodec internal error
+            throw new RuntimeException("encoderOutputBuffer was null");
+        }
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // You shoud set output format to muxer here when you target Android4.3 or less
+            // but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
+            // therefor we should expand and prepare output format from buffer data.
+            // This sample is for API>=18(>=Android 4.3), just ignore this flag here
+            if (DEBUG) LogUtil.logd(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
+            info.size = 0;
+        }
+        if (info.size != 0) {
+            if (!mMuxerStarted) {
+                // muxer is not ready...this will prrograming failure.
+                throw new RuntimeException("drain:muxer hasn't started");
+            }
+            //保留编码器输出的显示时间 (视频是相机采集时间 , 音频是读取时间) , 都是 MediaClock 的时间基准
+            final long outputUs = MediaClock.nowUs();
+            mEncodeLatency.record(outputUs - info.presentationTimeUs);
+            muxer.getDriftReport().record(mIsVideo, info.presentationTimeUs, outputUs);
+            // presentationTimeUs should be monotonic
+            if (info.presentationTimeUs <= prevOutputPTSUs) info.presentationTimeUs = prevOutputPTSUs + 1;
+            muxer.writeSampleData(mTrackIndex, encodedData, info);
+            prevOutputPTSUs = info.presentationTimeUs;
+            onSampleWritten(muxer, info);
+        }
+        return (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+
+    /**
+     * 一个样本 (不包括 codec config) 写入混合器之后调用 , 在编码线程或者回调线程
+     */
+    protected void onSampleWritten(MediaMuxerWrapper muxer, MediaCodec.BufferInfo info) {
+    }
+
     /**
      * drain encoded data and write them to muxer
      */
     protected void drain() {
-        if (mMediaCodec == null) return;
+        if (mMediaCodec == null || mAsync) return;
         ByteBuffer[] encoderOutputBuffers = mMediaCodec.getOutputBuffers();
         int encoderStatus, count = 0;
         final MediaMuxerWrapper muxer = mWeakMuxer.get();
@@ -309,59 +590,21 @@ public abstract class MediaEncoder implements Runnable {
                 // this should come only once before actual encoded data
                 // but this status never come on Android4.3 or less
                 // and in that case, you should treat when MediaCodec.BUFFER_FLAG_CODEC_CONFIG come.
-                if (mMuxerStarted) {    // second time request is error
-                    throw new RuntimeException("format changed twice");
-                }
                 // get output format from codec and pass them to muxer
                 // getOutputFormat should be called after INFO_OUTPUT_FORMAT_CHANGED otherwise crash.
                 final MediaFormat format = mMediaCodec.getOutputFormat(); // API >= 16
-                mTrackIndex = muxer.addTrack(format);
-                mMuxerStarted = true;
-                if (!muxer.start()) {
-                    // we should wait until muxer is ready
-                    synchronized (muxer) {
-                        while (!muxer.isStarted())
-                            try {
-                                muxer.wait(100);
-                            } catch (final InterruptedException e) {
-                                break LOOP;
-                            }
-                    }
-                }
+                addTrack(muxer, format);
             } else if (encoderStatus < 0) {
                 // unexpected status
                 if (DEBUG)
                     LogUtil.logw(TAG, "drain:unexpected result from encoder#dequeueOutputBuffer: " + encoderStatus);
             } else {
-                final ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                if (encodedData == null) {
-                    // this never should come...may be a MediaCodec internal error
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
-                }
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // You shoud set output format to muxer here when you target Android4.3 or less
-                    // but MediaCodec#getOutputFormat can not call here(because INFO_OUTPUT_FORMAT_CHANGED don't come yet)
-                    // therefor we should expand and prepare output format from buffer data.
-                    // This sample is for API>=18(>=Android 4.3), just ignore this flag here
-                    if (DEBUG) LogUtil.logd(TAG, "drain:BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
-
-                if (mBufferInfo.size != 0) {
-                    // encoded data is ready, clear waiting counter
-                    count = 0;
-                    if (!mMuxerStarted) {
-                        // muxer is not ready...this will prrograming failure.
-                        throw new RuntimeException("drain:muxer hasn't started");
-                    }
-                    // write encoded data to muxer(need to adjust presentationTimeUs.
-                    mBufferInfo.presentationTimeUs = getPTSUs();
-                    muxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    prevOutputPTSUs = mBufferInfo.presentationTimeUs;
-                }
+                // encoded data is ready, clear waiting counter
+                if (mBufferInfo.size != 0) count = 0;
+                final boolean eos = writeOutput(muxer, encoderOutputBuffers[encoderStatus], mBufferInfo);
                 // return buffer to encoder
                 mMediaCodec.releaseOutputBuffer(encoderStatus, false);
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (eos) {
                     // when EOS come.
                     mIsCapturing = false;
                     break;      // out of while
@@ -381,7 +624,7 @@ public abstract class MediaEncoder implements Runnable {
      * @return
      */
     protected long getPTSUs() {
-        long result = System.nanoTime() / 1000L;
+        long result = MediaClock.nowUs();
         // presentationTimeUs should be monotonic
         // otherwise muxer fail to write
         if (result < prevOutputPTSUs)
@@ -24,16 +24,25 @@ package com.erlei.videorecorder.encoder1;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.text.TextUtils;
 
+import com.erlei.videorecorder.muxer.AndroidMediaMuxer;
+import com.erlei.videorecorder.muxer.IMediaMuxer;
 import com.erlei.videorecorder.recorder.VideoRecorderHandler;
+import com.erlei.videorecorder.util.DirectBufferPool;
 import com.erlei.videorecorder.util.LogUtil;
+import com.erlei.videorecorder.util.PreRollBuffer;
+import com.erlei.videorecorder.util.PtsDriftReport;
+import com.erlei.videorecorder.util.SampleStaging;
+import com.erlei.videorecorder.util.TimedMetadataQueue;
+import com.erlei.videorecorder.util.WriteMeter;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Locale;
 
 public class MediaMuxerWrapper {
@@ -44,10 +53,48 @@ public class MediaMuxerWrapper {
     private final VideoRecorderHandler mViewHandler;
 
     private String mOutputPath;
-    private final MediaMuxer mMediaMuxer;    // API >= 18
+    /**
+     * 预录制模式下没有输出时为 null
+     */
+    private IMediaMuxer mMediaMuxer;
+    private boolean mMuxerAttached;
+    private final List<MediaFormat> mFormats = new ArrayList<>();
+    private final PreRollBuffer mPreRoll;
     private int mEncoderCount, mStatredCount;
     private boolean mIsStarted;
     private MediaEncoder mVideoEncoder, mAudioEncoder;
+    /**
+     * 混合器启动之前的样本 , 先添加轨道的编码器不需要等待其他编码器
+     */
+    private final SampleStaging mStaging = new SampleStaging(SampleStaging.DEFAULT_MAX_BYTES, DirectBufferPool.getDefault());
+    private final MediaCodec.BufferInfo mStagedBufferInfo = new MediaCodec.BufferInfo();
+    private final PtsDriftReport mDriftReport = new PtsDriftReport();
+    /**
+     * 启动之后直接写入输出的字节数和耗时 , 码率控制用来判断存储是否跟得上
+     */
+    private final WriteMeter mWriteMeter = new WriteMeter();
+    /**
+     * 定时元数据轨道 , 在编码器的轨道之后添加 , 没有开启或者混合器不支持时 mMetadataTrack < 0
+     */
+    private MediaFormat mMetadataFormat;
+    private volatile TimedMetadataQueue mMetadata;
+    private int mMetadataTrack = -1;
+    private boolean mMetadataAligned;
+    private final MediaCodec.BufferInfo mMetadataBufferInfo = new MediaCodec.BufferInfo();
+    private final SampleStaging.SampleWriter mMetadataWriter = new SampleStaging.SampleWriter() {
+        @Override
+        public void writeSample(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+            mMetadataBufferInfo.set(data.position(), data.remaining(), presentationTimeUs, flags);
+            mMediaMuxer.writeSampleData(trackIndex, data, mMetadataBufferInfo);
+        }
+    };
+    private final SampleStaging.SampleWriter mStagedSampleWriter = new SampleStaging.SampleWriter() {
+        @Override
+        public void writeSample(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+            mStagedBufferInfo.set(data.position(), data.remaining(), presentationTimeUs, flags);
+            writeToOutput(trackIndex, data, mStagedBufferInfo);
+        }
+    };
 
     /**
      * Constructor
@@ -57,9 +104,38 @@ public class MediaMuxerWrapper {
      * @throws IOException
      */
     public MediaMuxerWrapper(String output, VideoRecorderHandler viewHandler) throws IOException {
+        this(output, viewHandler, new AndroidMediaMuxer(output));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param output      output file
+     * @param viewHandler
+     * @param muxer       muxer which actually writes the samples to output
+     */
+    public MediaMuxerWrapper(String output, VideoRecorderHandler viewHandler, IMediaMuxer muxer) {
         mViewHandler = viewHandler;
         if (TextUtils.isEmpty(output)) throw new IllegalArgumentException("output must not null");
-        mMediaMuxer = new MediaMuxer(mOutputPath = output, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        if (muxer == null) throw new IllegalArgumentException("muxer must not null");
+        mOutputPath = output;
+        mMediaMuxer = muxer;
+        mPreRoll = null;
+        mEncoderCount = mStatredCount = 0;
+        mIsStarted = false;
+    }
+
+    /**
+     * 预录制模式 , 编码器在预览时就开始运行 , 没有输出时样本写入 preRoll ,
+     * attachOutput() 之后先写入 preRoll 中的样本再继续写入新的输出
+     *
+     * @param viewHandler
+     * @param preRoll     预录制缓冲区
+     */
+    public MediaMuxerWrapper(VideoRecorderHandler viewHandler, PreRollBuffer preRoll) {
+        if (preRoll == null) throw new IllegalArgumentException("preRoll must not null");
+        mViewHandler = viewHandler;
+        mPreRoll = preRoll;
         mEncoderCount = mStatredCount = 0;
         mIsStarted = false;
     }
@@ -95,6 +171,91 @@ public class MediaMuxerWrapper {
         return mIsStarted;
     }
 
+    /**
+     * 预录制模式下开始输出 , 预录制缓冲区中的样本会先写入 muxer
+     * 如果编码器还没有全部添加轨道 , 会在 start() 时写入
+     */
+    public synchronized void attachOutput(String output, IMediaMuxer muxer) {
+        if (TextUtils.isEmpty(output)) throw new IllegalArgumentException("output must not null");
+        if (muxer == null) throw new IllegalArgumentException("muxer must not null");
+        if (mMediaMuxer != null) throw new IllegalStateException("output already attached");
+        mOutputPath = output;
+        mMediaMuxer = muxer;
+        if (mIsStarted) startMuxer();
+    }
+
+    /**
+     * 预录制模式下停止输出 , 编码器继续运行 , 之后的样本重新写入预录制缓冲区
+     */
+    public synchronized void detachOutput() {
+        if (mMediaMuxer == null) return;
+        stopMuxer();
+        mMediaMuxer = null;
+        mMuxerAttached = false;
+    }
+
+    public boolean isPreRollMode() {
+        return mPreRoll != null;
+    }
+
+    /**
+     * @param maxBytes 混合器启动之前最多暂存的样本字节数 , 默认 4MB , 超过时丢弃最早的样本
+     */
+    public synchronized void setStagingMaxBytes(long maxBytes) {
+        mStaging.setMaxBytes(maxBytes);
+    }
+
+    /**
+     * @return 混合器启动之前因为超过暂存上限被丢弃的样本数
+     */
+    public synchronized long getStagingDroppedCount() {
+        return mStaging.getDroppedCount();
+    }
+
+    /**
+     * 开启定时元数据轨道 , 必须在混合器启动之前调用 , 之后通过 writeMetadata() 写入
+     * 系统 MediaMuxer 需要 API 26 , 更低的版本不会添加这个轨道 , 写入的数据被丢弃
+     *
+     * @param mime 以 application/ 开头 , 例如 TrackFormat.MIME_METADATA_JSON
+     */
+    public synchronized void setMetadataTrack(String mime) {
+        if (TextUtils.isEmpty(mime)) throw new IllegalArgumentException("mime must not null");
+        if (mIsStarted) throw new IllegalStateException("muxer already started");
+        mMetadataFormat = new MediaFormat();
+        mMetadataFormat.setString(MediaFormat.KEY_MIME, mime);
+        if (mMetadata == null) mMetadata = new TimedMetadataQueue(TimedMetadataQueue.DEFAULT_MAX_SAMPLES, DirectBufferPool.getDefault());
+    }
+
+    /**
+     * 写入一个定时元数据样本 , 可以在任意线程调用 , 数据拷贝到队列之后立即返回 ,
+     * 混合器线程写入音视频样本时按时间顺序批量写入
+     *
+     * @param timeUs 与编码器一致的时间戳 , MediaClock.nowUs()
+     * @return 是否加入了队列 , 没有开启元数据轨道或者时间戳没有递增时返回 false
+     */
+    public boolean writeMetadata(long timeUs, byte[] data) {
+        TimedMetadataQueue metadata = mMetadata;
+        return metadata != null && metadata.offer(timeUs, data);
+    }
+
+    /**
+     * @return 定时元数据队列 , 没有开启时返回 null
+     */
+    public TimedMetadataQueue getMetadataQueue() {
+        return mMetadata;
+    }
+
+    /**
+     * @return 编码器输出样本的显示时间与输出时间的统计 , 所有编码器停止时输出到日志
+     */
+    public PtsDriftReport getDriftReport() {
+        return mDriftReport;
+    }
+
+    public WriteMeter getWriteMeter() {
+        return mWriteMeter;
+    }
+
 //**********************************************************************
 //**********************************************************************
 
@@ -127,15 +288,93 @@ public class MediaMuxerWrapper {
         if (DEBUG) LogUtil.logd(TAG, "start:");
         mStatredCount++;
         if ((mEncoderCount > 0) && (mStatredCount == mEncoderCount)) {
-            mMediaMuxer.start();
             mIsStarted = true;
+            if (mMediaMuxer != null) startMuxer();
+            if (DEBUG) LogUtil.logd(TAG, "MediaMuxer started: staged bytes = " + mStaging.getBytes() + " , dropped = " + mStaging.getDroppedCount());
+            mStaging.flush(mStagedSampleWriter);
             notifyAll();
-            mViewHandler.onMuxerStarted(mOutputPath);
-            if (DEBUG) LogUtil.logd(TAG, "MediaMuxer started:");
         }
         return mIsStarted;
     }
 
+    /**
+     * 按添加的顺序把轨道添加到 mMediaMuxer 并启动 , 预录制模式下先写入缓冲区中的样本
+     */
+    private void startMuxer() {
+        for (int i = 0; i < mFormats.size(); i++) {
+            if (mMediaMuxer.addTrack(mFormats.get(i)) != i)
+                throw new IllegalStateException("unexpected track index from " + mMediaMuxer);
+        }
+        addMetadataTrack();
+        mMediaMuxer.start();
+        mMuxerAttached = true;
+        if (mPreRoll != null) {
+            long durationUs = mPreRoll.getDurationUs();
+            int count = mPreRoll.flush(mStagedSampleWriter);
+            if (DEBUG) LogUtil.logd(TAG, "pre-roll flushed: samples = " + count + " , duration = " + durationUs + "us");
+        }
+        if (mViewHandler != null) mViewHandler.onMuxerStarted(mOutputPath);
+    }
+
+    /**
+     * 在编码器的轨道之后添加元数据轨道 , 不影响编码器的轨道索引
+     */
+    private void addMetadataTrack() {
+        mMetadataTrack = -1;
+        mMetadataAligned = false;
+        if (mMetadataFormat == null) return;
+        try {
+            mMetadataTrack = mMediaMuxer.addTrack(mMetadataFormat);
+        } catch (Exception e) {
+            //系统 MediaMuxer 在 API 26 以下不支持 application/* 轨道
+            LogUtil.loge(TAG, "add metadata track error " + e);
+        }
+    }
+
+    /**
+     * 写入显示时间已经到达的元数据 , 第一次写入时丢弃输出开始之前的旧数据 (保留最后一个)
+     * 预录制模式下没有输出时只保留预录制窗口内的数据
+     */
+    private void drainMetadata(long presentationTimeUs) {
+        if (mMetadata == null) return;
+        if (mMediaMuxer == null) {
+            mMetadata.trimBefore(presentationTimeUs - (mPreRoll == null ? 0 : mPreRoll.getWindowUs()));
+            return;
+        }
+        if (mMetadataTrack < 0) {
+            mMetadata.trimBefore(presentationTimeUs);
+            return;
+        }
+        if (!mMetadataAligned) {
+            mMetadata.trimBefore(presentationTimeUs);
+            mMetadataAligned = true;
+        }
+        mMetadata.drain(presentationTimeUs, mMetadataTrack, mMetadataWriter);
+    }
+
+    private void stopMuxer() {
+        try {
+            //没有启动的混合器 (比如还没有添加全部轨道就停止了) 只需要释放
+            if (mMuxerAttached) {
+                if (mMetadata != null && mMetadataTrack >= 0 && DEBUG)
+                    LogUtil.logd(TAG, "metadata written = " + mMetadata.getWrittenCount() + " , dropped = " + mMetadata.getDroppedCount());
+                mMediaMuxer.stop();
+            }
+        } catch (Exception e) {
+            LogUtil.loge(TAG, "MediaMuxer stopped: error" + e);
+            e.printStackTrace();
+        } finally {
+            if (mViewHandler != null) {
+                mViewHandler.onMuxerStopped(getOutputPath());
+            }
+            try {
+                mMediaMuxer.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * request stop recording from encoder when encoder received EOS
      */
@@ -144,23 +383,13 @@ public class MediaMuxerWrapper {
         if (DEBUG) LogUtil.logd(TAG, "stop:mStatredCount=" + mStatredCount);
         mStatredCount--;
         if ((mEncoderCount > 0) && (mStatredCount <= 0)) {
-            try {
-                mMediaMuxer.stop();
-            } catch (Exception e) {
-                LogUtil.loge(TAG, "MediaMuxer stopped: error" + e);
-                e.printStackTrace();
-            } finally {
-                if (mViewHandler != null) {
-                    mViewHandler.onMuxerStopped(getOutputPath());
-                }
-                try {
-                    mMediaMuxer.release();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
+            mStaging.clear();
+            if (mPreRoll != null) mPreRoll.clear();
+            if (mMetadata != null) mMetadata.clear();
+            if (mMediaMuxer != null) stopMuxer();
+            mMuxerAttached = false;
             mIsStarted = false;
-            if (DEBUG) LogUtil.logd(TAG, "MediaMuxer stopped:");
+            if (DEBUG) LogUtil.logd(TAG, "MediaMuxer stopped:" + mDriftReport);
         }
     }
 
@@ -174,7 +403,13 @@ public class MediaMuxerWrapper {
     synchronized int addTrack(final MediaFormat format) {
         if (mIsStarted)
             throw new IllegalStateException("muxer already started");
-        final int trackIx = mMediaMuxer.addTrack(format);
+        //轨道在混合器启动时按顺序添加 , 预录制模式下添加轨道时还没有混合器
+        mFormats.add(format);
+        final int trackIx = mFormats.size() - 1;
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        boolean video = mime != null && mime.startsWith("video/");
+        mStaging.addTrack(trackIx, video);
+        if (video && mPreRoll != null) mPreRoll.setVideoTrack(trackIx);
         if (DEBUG)
             LogUtil.logi(TAG, "addTrack:trackNum=" + mEncoderCount + ",trackIx=" + trackIx + ",format=" + format);
         return trackIx;
@@ -182,6 +417,7 @@ public class MediaMuxerWrapper {
 
     /**
      * write encoded data to muxer
+     * 混合器启动之前 (还有编码器没有添加轨道) 样本会暂存在 SampleStaging 中 , 启动时按显示时间顺序写入
      *
      * @param trackIndex
      * @param byteBuf
@@ -189,8 +425,33 @@ public class MediaMuxerWrapper {
      */
     /*package*/
     synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-        if (mStatredCount > 0)
+        if (mStatredCount <= 0) return;
+        if (mIsStarted) {
+            final long startNs = System.nanoTime();
+            writeToOutput(trackIndex, byteBuf, bufferInfo);
+            mWriteMeter.record(bufferInfo.size, (System.nanoTime() - startNs) / 1000L);
+        } else {
+            ByteBuffer data = byteBuf.duplicate();
+            data.limit(bufferInfo.offset + bufferInfo.size);
+            data.position(bufferInfo.offset);
+            mStaging.stage(trackIndex, data, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        }
+    }
+
+    /**
+     * 写入混合器 , 预录制模式下没有输出时写入预录制缓冲区
+     * 音视频样本写入之后再写入显示时间已经到达的元数据 , 文件的第一个样本总是音视频样本
+     */
+    private void writeToOutput(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+        if (mMediaMuxer != null) {
             mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+        } else if (mPreRoll != null) {
+            ByteBuffer data = byteBuf.duplicate();
+            data.limit(bufferInfo.offset + bufferInfo.size);
+            data.position(bufferInfo.offset);
+            mPreRoll.write(trackIndex, data, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        }
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) drainMetadata(bufferInfo.presentationTimeUs);
     }
 
 //**********************************************************************
@@ -22,18 +22,24 @@ package com.erlei.videorecorder.encoder1;
  * All files in the folder are under this Apache License, Version 2.0.
  */
 
+import android.content.Context;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
 import android.view.Surface;
 
 import com.erlei.videorecorder.camera.Size;
 import com.erlei.videorecorder.recorder.VideoRecorder;
+import com.erlei.videorecorder.util.BitrateController;
 import com.erlei.videorecorder.util.LogUtil;
+import com.erlei.videorecorder.util.MediaClock;
+import com.erlei.videorecorder.util.WriteMeter;
 
 import java.io.IOException;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MediaVideoEncoder extends MediaEncoder {
     private static final boolean DEBUG = false;    // TODO set false on release
@@ -42,18 +48,45 @@ public class MediaVideoEncoder extends MediaEncoder {
     private static final String MIME_TYPE = "video/avc";
     // parameters for recording
     private static final int FRAME_RATE = 30;
+    private final Context mContext;
     private final Size mVideoSize;
     private final int mBitRate;
     private final int mIFrameInterval;
     private final int mFrameRate;
     private Surface mSurface;
+    /**
+     * 自适应码率 , 没有开启或者低于 API 19 (不能修改码率) 时为 null
+     */
+    private final BitrateController mBitrateController;
+    /**
+     * 提交给编码器的帧数 (frameAvailableSoon)
+     */
+    private final AtomicLong mSubmittedFrames = new AtomicLong();
+    /**
+     * 窗口开始时提交的帧数和窗口内输出的帧数 , 每个窗口重新计数 :
+     * 编码器丢弃的帧 , 混合器启动之前的帧 , 预录分离时还在编码的帧都不会输出 , 累计计数会让排队的帧数一直偏大
+     */
+    private long mWindowSubmittedFrames;
+    private int mWindowOutputFrames;
+    private long mWindowStartUs;
+    private long mWindowVideoBytes;
 
     public MediaVideoEncoder(MediaMuxerWrapper muxer, VideoRecorder.Config config) {
         super(muxer,config);
+        mContext = config.getContext();
         mVideoSize = config.getCameraController().getSurfaceSize();
         mIFrameInterval = config.getIFrameInterval();
-        mBitRate = config.getVideoBitRate() <= 0 ? calcBitRate() : config.getVideoBitRate();
+        final int bitRate = config.getVideoBitRate() <= 0 ? calcBitRate() : config.getVideoBitRate();
         mFrameRate = config.getFrameRate() <= 0 ? FRAME_RATE : config.getFrameRate();
+        if (config.isAdaptiveBitRate() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            final int max = config.getMaxVideoBitRate() > 0 ? config.getMaxVideoBitRate() : bitRate;
+            final int min = config.getMinVideoBitRate() > 0 ? Math.min(config.getMinVideoBitRate(), max) : Math.max(1, max / 8);
+            mBitrateController = new BitrateController(bitRate, min, max);
+            mBitRate = mBitrateController.getBitRate();
+        } else {
+            mBitrateController = null;
+            mBitRate = bitRate;
+        }
     }
 
     @Override
@@ -62,12 +95,12 @@ public class MediaVideoEncoder extends MediaEncoder {
         mTrackIndex = -1;
         mMuxerStarted = mIsEOS = false;
 
-        final MediaCodecInfo videoCodecInfo = selectVideoCodec(MIME_TYPE);
-        if (videoCodecInfo == null) {
+        final CodecCapabilityCache.Codec videoCodec = selectVideoCodec(MIME_TYPE);
+        if (videoCodec == null) {
             LogUtil.loge(TAG, "Unable to find an appropriate codec for " + MIME_TYPE);
             return;
         }
-        if (DEBUG) LogUtil.logi(TAG, "selected codec: " + videoCodecInfo.getName());
+        if (DEBUG) LogUtil.logi(TAG, "selected codec: " + videoCodec.name);
 
         final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mVideoSize.getWidth(), mVideoSize.getHeight());
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);    // API >= 18
@@ -76,7 +109,7 @@ public class MediaVideoEncoder extends MediaEncoder {
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameInterval);
         if (DEBUG) LogUtil.logi(TAG, "format: " + format);
 
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        mMediaCodec = createEncoder(MIME_TYPE, videoCodec.name);
         mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         // get Surface for encoder input
         // this method only can call between #configure and #start
@@ -92,12 +125,90 @@ public class MediaVideoEncoder extends MediaEncoder {
 
     @Override
     public boolean frameAvailableSoon() {
-        return super.frameAvailableSoon();
+        final boolean result = super.frameAvailableSoon();
+        if (result) mSubmittedFrames.incrementAndGet();
+        return result;
+    }
+
+    /**
+     * @return 自适应码率控制 , 没有开启时返回 null
+     */
+    public BitrateController getBitrateController() {
+        return mBitrateController;
+    }
+
+    /**
+     * 每个统计窗口把输出的字节数 , 窗口内排队增加的帧数 , 混合器的写入统计交给码率控制 , 码率变化时通知编码器
+     */
+    @Override
+    protected void onSampleWritten(MediaMuxerWrapper muxer, MediaCodec.BufferInfo info) {
+        if (mBitrateController == null) return;
+        final long nowUs = MediaClock.nowUs();
+        if (mWindowStartUs == 0) {
+            startWindow(nowUs);
+            muxer.getWriteMeter().poll();
+            return;
+        }
+        mWindowOutputFrames++;
+        mWindowVideoBytes += info.size;
+        final long windowUs = nowUs - mWindowStartUs;
+        if (windowUs < BitrateController.DEFAULT_WINDOW_US) return;
+        final WriteMeter.Snapshot writes = muxer.getWriteMeter().poll();
+        final long submitted = mSubmittedFrames.get() - mWindowSubmittedFrames;
+        final int queueDepth = (int) Math.max(0, submitted - mWindowOutputFrames);
+        final int previous = mBitrateController.getBitRate();
+        final int bitRate = mBitrateController.update(windowUs, mWindowVideoBytes, writes.bytes, writes.busyUs, writes.maxUs, queueDepth);
+        startWindow(nowUs);
+        if (bitRate != previous) setVideoBitRate(bitRate);
+    }
+
+    /**
+     * 窗口开始时已经提交的帧都不计入这个窗口 , 之前积压或者丢弃的帧不会累计到后面的窗口
+     */
+    private void startWindow(long nowUs) {
+        mWindowStartUs = nowUs;
+        mWindowSubmittedFrames = mSubmittedFrames.get();
+        mWindowOutputFrames = 0;
+        mWindowVideoBytes = 0;
+    }
+
+    /**
+     * 录制过程中修改码率 , 需要 API 19
+     */
+    private void setVideoBitRate(int bitRate) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return;
+        final MediaCodec codec = mMediaCodec;
+        if (codec == null) return;
+        final Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        try {
+            codec.setParameters(params);
+            if (DEBUG) LogUtil.logi(TAG, "setVideoBitRate " + mBitrateController);
+        } catch (IllegalStateException e) {
+            LogUtil.loge(TAG, "setVideoBitRate error " + e);
+        }
+    }
+
+    /**
+     * 请求编码器立即输出一个关键帧 , 需要 API 19 , 更低的版本只能等待下一个关键帧间隔
+     */
+    public void requestSyncFrame() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return;
+        final MediaCodec codec = mMediaCodec;
+        if (codec == null) return;
+        final Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            codec.setParameters(params);
+        } catch (IllegalStateException e) {
+            LogUtil.loge(TAG, "requestSyncFrame error " + e);
+        }
     }
 
     @Override
     protected void release() {
         if (DEBUG) LogUtil.logi(TAG, "release:");
+        if (mBitrateController != null) LogUtil.logd(TAG, "release:" + mBitrateController);
         if (mSurface != null) {
             mSurface.release();
             mSurface = null;
@@ -113,32 +224,19 @@ public class MediaVideoEncoder extends MediaEncoder {
 
     /**
      * select the first codec that match a specific MIME type
+     * 编码器能力从 CodecCapabilityCache 读取 , 不再每次遍历 MediaCodecList
      *
      * @param mimeType
      * @return null if no codec matched
      */
-    protected static final MediaCodecInfo selectVideoCodec(final String mimeType) {
+    protected final CodecCapabilityCache.Codec selectVideoCodec(final String mimeType) {
         if (DEBUG) LogUtil.logi(TAG, "selectVideoCodec:");
-
-        // get the list of available codecs
-        final int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) {
-            final MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
-
-            if (!codecInfo.isEncoder()) {    // skipp decoder
-                continue;
-            }
+        for (CodecCapabilityCache.Codec codec : CodecCapabilityCache.get(mContext).getEncoders(mimeType)) {
+            if (DEBUG) LogUtil.logi(TAG, "codec:" + codec.name + ",MIME=" + codec.mime);
             // select first codec that match a specific MIME type and color format
-            final String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                    if (DEBUG)
-                        LogUtil.logi(TAG, "codec:" + codecInfo.getName() + ",MIME=" + types[j]);
-                    final int format = selectColorFormat(codecInfo, mimeType);
-                    if (format > 0) {
-                        return codecInfo;
-                    }
-                }
+            final int format = selectColorFormat(codec);
+            if (format > 0) {
+                return codec;
             }
         }
         return null;
@@ -149,27 +247,17 @@ public class MediaVideoEncoder extends MediaEncoder {
      *
      * @return 0 if no colorFormat is matched
      */
-    protected static final int selectColorFormat(final MediaCodecInfo codecInfo, final String mimeType) {
+    protected static final int selectColorFormat(final CodecCapabilityCache.Codec codec) {
         if (DEBUG) LogUtil.logi(TAG, "selectColorFormat: ");
         int result = 0;
-        final MediaCodecInfo.CodecCapabilities caps;
-        try {
-            Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-            caps = codecInfo.getCapabilitiesForType(mimeType);
-        } finally {
-            Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
-        }
-        int colorFormat;
-        for (int i = 0; i < caps.colorFormats.length; i++) {
-            colorFormat = caps.colorFormats[i];
+        for (int colorFormat : codec.colorFormats) {
             if (isRecognizedViewoFormat(colorFormat)) {
-                if (result == 0)
-                    result = colorFormat;
+                result = colorFormat;
                 break;
             }
         }
         if (result == 0)
-            LogUtil.loge(TAG, "couldn't find a good color format for " + codecInfo.getName() + " / " + mimeType);
+            LogUtil.loge(TAG, "couldn't find a good color format for " + codec.name + " / " + codec.mime);
         return result;
     }
 
@@ -0,0 +1,157 @@
+package com.erlei.videorecorder.mp4;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * MP4 box 序列化工具 , 按大端字节序写入 , 容量不足时自动扩容
+ * begin() 先写入一个 size 占位 , end() 时回填真实大小 , 所以 box 可以任意嵌套
+ * 非线程安全 , 可以通过 clear() 重复使用 , 避免频繁分配
+ */
+public class BoxWriter {
+
+    private ByteBuffer mBuffer;
+
+    public BoxWriter(int capacity) {
+        mBuffer = ByteBuffer.allocate(capacity).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * 开始一个 box
+     *
+     * @param type fourcc
+     * @return box 的起始位置 , 用于 end()
+     */
+    public int begin(String type) {
+        int start = mBuffer.position();
+        u32(0);
+        fourcc(type);
+        return start;
+    }
+
+    /**
+     * 开始一个 FullBox (带 version 和 flags)
+     */
+    public int beginFull(String type, int version, int flags) {
+        int start = begin(type);
+        u32((version << 24) | (flags & 0xFFFFFF));
+        return start;
+    }
+
+    /**
+     * 结束一个 box , 回填 size
+     */
+    public void end(int start) {
+        mBuffer.putInt(start, mBuffer.position() - start);
+    }
+
+    public BoxWriter u8(int value) {
+        ensure(1);
+        mBuffer.put((byte) value);
+        return this;
+    }
+
+    public BoxWriter u16(int value) {
+        ensure(2);
+        mBuffer.putShort((short) value);
+        return this;
+    }
+
+    public BoxWriter u24(int value) {
+        ensure(3);
+        mBuffer.put((byte) (value >> 16));
+        mBuffer.putShort((short) value);
+        return this;
+    }
+
+    public BoxWriter u32(long value) {
+        ensure(4);
+        mBuffer.putInt((int) value);
+        return this;
+    }
+
+    public BoxWriter u64(long value) {
+        ensure(8);
+        mBuffer.putLong(value);
+        return this;
+    }
+
+    public BoxWriter fourcc(String type) {
+        ensure(4);
+        for (int i = 0; i < 4; i++) {
+            mBuffer.put((byte) type.charAt(i));
+        }
+        return this;
+    }
+
+    public BoxWriter bytes(byte[] data) {
+        return bytes(data, 0, data.length);
+    }
+
+    public BoxWriter bytes(byte[] data, int offset, int length) {
+        ensure(length);
+        mBuffer.put(data, offset, length);
+        return this;
+    }
+
+    /**
+     * 写入 data 中 position 到 limit 的数据 , 不改变 data 的 position
+     */
+    public BoxWriter bytes(ByteBuffer data) {
+        ensure(data.remaining());
+        mBuffer.put(data.duplicate());
+        return this;
+    }
+
+    public BoxWriter zeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            mBuffer.put((byte) 0);
+        }
+        return this;
+    }
+
+    /**
+     * 回填一个 32 位整数 , 用于写入时还不知道的值 (例如 trun 的 data_offset)
+     */
+    public void patchU32(int position, long value) {
+        mBuffer.putInt(position, (int) value);
+    }
+
+    public void patchU64(int position, long value) {
+        mBuffer.putLong(position, value);
+    }
+
+    public int position() {
+        return mBuffer.position();
+    }
+
+    public void clear() {
+        mBuffer.clear();
+    }
+
+    /**
+     * @return 已写入数据的只读视图 , position = 0 , limit = 已写入的长度
+     */
+    public ByteBuffer toBuffer() {
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.flip();
+        return buffer;
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[mBuffer.position()];
+        ByteBuffer buffer = toBuffer();
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private void ensure(int count) {
+        if (mBuffer.remaining() >= count) return;
+        int capacity = Math.max(mBuffer.capacity() * 2, mBuffer.position() + count);
+        ByteBuffer buffer = ByteBuffer.allocate(capacity).order(ByteOrder.BIG_ENDIAN);
+        mBuffer.flip();
+        buffer.put(mBuffer);
+        mBuffer = buffer;
+    }
+}
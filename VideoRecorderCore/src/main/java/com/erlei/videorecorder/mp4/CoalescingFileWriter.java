@@ -0,0 +1,231 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * 顺序写入文件的缓冲层 , 纯 Java 实现
+ * <p>
+ * 小块数据先拷贝到一个复用的堆外缓冲区 , 凑满一个 chunk 之后一次写入 , 写入位置按 chunk 大小对齐 ,
+ * 避免 SD 卡 / FUSE 存储上大量的小 IO
+ * 设置了 Preallocator 时按 extent 提前为文件分配空间 , 减少碎片 , close() 时截断到实际大小
+ * <p>
+ * 记录每次写入的耗时 (最近 LATENCY_SAMPLES 次) , 可以查询写入速度和耗时的百分位数
+ * 缓冲区中还没有写入的数据在进程崩溃时会丢失 , 最多一个 chunk
+ * 非线程安全
+ */
+public class CoalescingFileWriter {
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    private static final int LATENCY_SAMPLES = 1024;
+
+    /**
+     * 为文件分配 [0 , length) 的空间
+     */
+    public interface Preallocator {
+        void preallocate(RandomAccessFile file, long length) throws IOException;
+    }
+
+    /**
+     * 只修改文件长度 , 大部分文件系统上不会真正分配磁盘空间
+     */
+    public static final Preallocator SET_LENGTH = new Preallocator() {
+        @Override
+        public void preallocate(RandomAccessFile file, long length) throws IOException {
+            file.setLength(length);
+        }
+    };
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final int mChunkSize;
+    /**
+     * mBuffer 中数据在文件中的起始位置
+     */
+    private long mBufferPosition;
+    private Preallocator mPreallocator;
+    private long mInitialAllocation;
+    private long mExtentSize;
+    private long mAllocated;
+    private boolean mClosed;
+
+    private final long[] mLatenciesNs = new long[LATENCY_SAMPLES];
+    private long mWriteCount;
+    private long mWriteBytes;
+    private long mWriteNs;
+
+    /**
+     * @param position  开始写入的位置 , 之前的内容不变
+     * @param chunkSize 每次写入的字节数
+     */
+    public CoalescingFileWriter(RandomAccessFile file, long position, int chunkSize) {
+        if (file == null) throw new IllegalArgumentException("file must not null");
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize must > 0");
+        mFile = file;
+        mChannel = file.getChannel();
+        mChunkSize = chunkSize;
+        mBuffer = ByteBuffer.allocateDirect(chunkSize);
+        mBufferPosition = position;
+        limitToChunkBoundary();
+    }
+
+    /**
+     * 开启预分配 , 必须在第一次 write() 之前调用
+     *
+     * @param preallocator 分配方式
+     * @param initialBytes 第一次分配的大小 , 一般为 码率 x 预计时长
+     * @param extentBytes  写满之后每次追加分配的大小
+     */
+    public void setPreallocation(Preallocator preallocator, long initialBytes, long extentBytes) {
+        mPreallocator = preallocator;
+        mInitialAllocation = Math.max(initialBytes, mChunkSize);
+        mExtentSize = Math.max(extentBytes, mChunkSize);
+    }
+
+    /**
+     * 追加写入 src 中 position 到 limit 的数据
+     */
+    public void write(ByteBuffer src) throws IOException {
+        if (mClosed) throw new IllegalStateException("writer closed");
+        int limit = src.limit();
+        while (src.hasRemaining()) {
+            if (!mBuffer.hasRemaining()) flushBuffer();
+            int count = Math.min(src.remaining(), mBuffer.remaining());
+            src.limit(src.position() + count);
+            mBuffer.put(src);
+            src.limit(limit);
+        }
+        if (!mBuffer.hasRemaining()) flushBuffer();
+    }
+
+    /**
+     * 在已经写入的位置覆盖写入 (例如回填 box 大小) , 位置在缓冲区中时直接修改缓冲区
+     */
+    public void writeAt(ByteBuffer src, long position) throws IOException {
+        if (position + src.remaining() > getPosition()) throw new IllegalArgumentException("writeAt beyond end " + position);
+        if (position >= mBufferPosition) {
+            ByteBuffer view = mBuffer.duplicate();
+            view.position((int) (position - mBufferPosition));
+            view.put(src);
+            return;
+        }
+        if (position + src.remaining() > mBufferPosition) flush();
+        while (src.hasRemaining()) {
+            position += mChannel.write(src, position);
+        }
+    }
+
+    /**
+     * 写入缓冲区中的数据 , 之后可以直接通过 FileChannel 读写已经写入的部分
+     */
+    public void flush() throws IOException {
+        if (mBuffer.position() > 0) flushBuffer();
+    }
+
+    /**
+     * @return 逻辑上的文件末尾 , 包括缓冲区中还没有写入的数据
+     */
+    public long getPosition() {
+        return mBufferPosition + mBuffer.position();
+    }
+
+    /**
+     * @return 已经写入文件的位置 , 之前的数据在进程崩溃时不会丢失
+     */
+    public long getFlushedPosition() {
+        return mBufferPosition;
+    }
+
+    /**
+     * 写入剩余的数据 , 截断预分配的空间 , 不关闭文件
+     */
+    public void close() throws IOException {
+        if (mClosed) return;
+        flush();
+        mClosed = true;
+        if (mAllocated > mBufferPosition || mChannel.size() > mBufferPosition) {
+            mChannel.truncate(mBufferPosition);
+        }
+    }
+
+    public FileChannel getChannel() {
+        return mChannel;
+    }
+
+    public long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * @return 写入速度 (字节 / 秒) , 只计算写入调用的耗时
+     */
+    public long getBytesPerSecond() {
+        return mWriteNs == 0 ? 0 : mWriteBytes * 1000000000L / mWriteNs;
+    }
+
+    /**
+     * @param percentile 0 - 100 , 例如 50 , 99
+     * @return 最近 LATENCY_SAMPLES 次写入耗时的百分位数 (微秒)
+     */
+    public long getLatencyPercentileUs(double percentile) {
+        int count = (int) Math.min(mWriteCount, LATENCY_SAMPLES);
+        if (count == 0) return 0;
+        long[] sorted = Arrays.copyOf(mLatenciesNs, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))] / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "CoalescingFileWriter{" +
+                "position=" + getPosition() +
+                ", allocated=" + mAllocated +
+                ", writes=" + mWriteCount +
+                ", bytesPerSecond=" + getBytesPerSecond() +
+                ", p50Us=" + getLatencyPercentileUs(50) +
+                ", p99Us=" + getLatencyPercentileUs(99) +
+                '}';
+    }
+
+    private void flushBuffer() throws IOException {
+        mBuffer.flip();
+        int count = mBuffer.remaining();
+        ensureAllocated(mBufferPosition + count);
+        long start = System.nanoTime();
+        long position = mBufferPosition;
+        while (mBuffer.hasRemaining()) {
+            position += mChannel.write(mBuffer, position);
+        }
+        long latency = System.nanoTime() - start;
+        mLatenciesNs[(int) (mWriteCount % LATENCY_SAMPLES)] = latency;
+        mWriteCount++;
+        mWriteBytes += count;
+        mWriteNs += latency;
+        mBufferPosition = position;
+        mBuffer.clear();
+        limitToChunkBoundary();
+    }
+
+    /**
+     * 缓冲区的结尾对齐到 chunk 边界 , 之后的每次写入都是完整对齐的 chunk
+     */
+    private void limitToChunkBoundary() {
+        int offset = (int) (mBufferPosition % mChunkSize);
+        mBuffer.limit(mChunkSize - offset);
+    }
+
+    private void ensureAllocated(long end) throws IOException {
+        if (mPreallocator == null || end <= mAllocated) return;
+        long length = mAllocated == 0 ? Math.max(mInitialAllocation, end) : mAllocated;
+        while (length < end) {
+            length += mExtentSize;
+        }
+        mPreallocator.preallocate(mFile, length);
+        mAllocated = length;
+    }
+}
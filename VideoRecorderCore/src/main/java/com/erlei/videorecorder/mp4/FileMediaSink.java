@@ -0,0 +1,74 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * 写入文件 , 通过 CoalescingFileWriter 合并一个分片内的小块写入 ;
+ * 每个分片结束时把缓冲区写入文件 , 进程被杀死时文件保留到最后一个完整的分片
+ */
+public class FileMediaSink implements MediaSink {
+
+    private final RandomAccessFile mFile;
+    private final CoalescingFileWriter mOut;
+    private boolean mSyncOnFragment;
+    private boolean mClosed;
+
+    /**
+     * @param output 输出文件 , 如果已存在会被覆盖
+     */
+    public FileMediaSink(File output) throws IOException {
+        if (output == null) throw new IllegalArgumentException("output must not null");
+        mFile = new RandomAccessFile(output, "rw");
+        mFile.setLength(0);
+        mOut = new CoalescingFileWriter(mFile, 0, CoalescingFileWriter.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param syncOnFragment 每写入一个分片之后是否调用 FileChannel.force() ,
+     *                       默认关闭 , 分片结束时数据已经从缓冲区写入页缓存 , 进程崩溃不会丢失 , 只有掉电才需要开启
+     */
+    public void setSyncOnFragment(boolean syncOnFragment) {
+        mSyncOnFragment = syncOnFragment;
+    }
+
+    /**
+     * @return 文件写入层 , 用于设置预分配和查询写入速度
+     */
+    public CoalescingFileWriter getFileWriter() {
+        return mOut;
+    }
+
+    @Override
+    public void writeHeader(ByteBuffer header) throws IOException {
+        mOut.write(header);
+    }
+
+    @Override
+    public void writeFragment(ByteBuffer[] buffers, long startUs, boolean sync) throws IOException {
+        for (ByteBuffer buffer : buffers) {
+            mOut.write(buffer);
+        }
+        //只合并同一个分片内的写入 , 完整的分片不能留在缓冲区中
+        mOut.flush();
+        if (mSyncOnFragment) mOut.getChannel().force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            mOut.close();
+        } finally {
+            mFile.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FileMediaSink{" + mOut + '}';
+    }
+}
@@ -0,0 +1,400 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 分片 MP4 (fMP4) 写入器 , 纯 Java 实现
+ * <p>
+ * 文件结构为 ftyp + moov(空样本表 + mvex) + [moof + mdat] * N
+ * 与 MediaMuxer 在 stop() 时才写入 moov 不同 , 这里每个分片都是自描述的 , 样本数据按分片直接写入文件 ,
+ * 即使进程在录制过程中被杀死 , 文件依然可以播放到最后一个写完的分片 ,
+ * 并且结束录制时不需要重写索引 , stop() 只需要写入最后一个分片
+ * <p>
+ * 分片在视频关键帧处切分 (没有视频轨道时按时长切分) , 单个分片的缓存大小不超过 maxFragmentBytes
+ * 输出到 MediaSink , 默认是文件 , 也可以是内存 , 网络或者 LiveStreamServer
+ * 非线程安全 , 调用方需要保证在同一个线程 (或者加锁) 调用
+ */
+public class FragmentedMp4Writer {
+
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 1000 * 1000L;
+    public static final int DEFAULT_MAX_FRAGMENT_BYTES = 4 * 1024 * 1024;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    //data-offset-present | sample-duration-present | sample-size-present | sample-flags-present
+    private static final int TRUN_FLAGS = 0x000701;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+
+    private final MediaSink mSink;
+    /**
+     * 输出到文件时的 mSink , 否则为 null
+     */
+    private final FileMediaSink mFileSink;
+    private final List<Track> mTracks = new ArrayList<>();
+    private final BoxWriter mBoxWriter = new BoxWriter(4096);
+    private final ByteBuffer mMdatHeader = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+    private final long mFragmentDurationUs;
+    private final int mMaxFragmentBytes;
+    private boolean mStarted, mStopped;
+    private int mSequenceNumber;
+    private long mOriginUs = -1;
+    private long mFragmentStartUs = -1;
+    private int mFragmentBytes;
+    private int mAnchorTrack = -1;
+    private long mBytesWritten;
+    /**
+     * 音视频样本最晚的显示时间 , 最后一个分片中元数据的最后一个样本持续到这个时间
+     */
+    private long mLastMediaUs = -1;
+    private boolean mFinalFragment;
+
+    public FragmentedMp4Writer(File output) throws IOException {
+        this(output, DEFAULT_FRAGMENT_DURATION_US, DEFAULT_MAX_FRAGMENT_BYTES);
+    }
+
+    /**
+     * @param output             输出文件 , 如果已存在会被覆盖
+     * @param fragmentDurationUs 分片时长 , 越短崩溃时丢失的数据越少 , 但是 moof 的开销越大
+     * @param maxFragmentBytes   单个分片最多缓存的样本字节数 , 超过后会立即写入
+     */
+    public FragmentedMp4Writer(File output, long fragmentDurationUs, int maxFragmentBytes) throws IOException {
+        this(new FileMediaSink(output), fragmentDurationUs, maxFragmentBytes);
+    }
+
+    /**
+     * @param sink 输出目标 , stop() 时调用 sink.close()
+     */
+    public FragmentedMp4Writer(MediaSink sink, long fragmentDurationUs, int maxFragmentBytes) {
+        if (sink == null) throw new IllegalArgumentException("sink must not null");
+        mSink = sink;
+        mFileSink = sink instanceof FileMediaSink ? (FileMediaSink) sink : null;
+        mFragmentDurationUs = fragmentDurationUs > 0 ? fragmentDurationUs : DEFAULT_FRAGMENT_DURATION_US;
+        mMaxFragmentBytes = maxFragmentBytes > 0 ? maxFragmentBytes : DEFAULT_MAX_FRAGMENT_BYTES;
+    }
+
+    /**
+     * @param syncOnFlush 每写入一个分片之后是否调用 FileChannel.force() ,
+     *                    默认关闭 , 分片结束时数据已经写入页缓存 , 进程崩溃不会丢失 , 只有掉电才需要开启
+     */
+    public void setSyncOnFlush(boolean syncOnFlush) {
+        if (mFileSink != null) mFileSink.setSyncOnFragment(syncOnFlush);
+    }
+
+    /**
+     * 按 extent 预分配文件空间 , 必须在 start() 之前调用 , stop() 时截断到实际大小 , 不是输出到文件时不起作用
+     *
+     * @see CoalescingFileWriter#setPreallocation(CoalescingFileWriter.Preallocator, long, long)
+     */
+    public void setPreallocation(CoalescingFileWriter.Preallocator preallocator, long initialBytes, long extentBytes) {
+        if (mStarted) throw new IllegalStateException("writer already started");
+        if (mFileSink != null) mFileSink.getFileWriter().setPreallocation(preallocator, initialBytes, extentBytes);
+    }
+
+    /**
+     * @return 文件写入层 , 用于查询写入速度和耗时 , 不是输出到文件时返回 null
+     */
+    public CoalescingFileWriter getFileWriter() {
+        return mFileSink == null ? null : mFileSink.getFileWriter();
+    }
+
+    public MediaSink getSink() {
+        return mSink;
+    }
+
+    /**
+     * 添加轨道 , 必须在 start() 之前调用
+     *
+     * @return 轨道索引 , 用于 writeSample()
+     */
+    public int addTrack(TrackFormat format) {
+        if (mStarted) throw new IllegalStateException("writer already started");
+        Track track = new Track(mTracks.size() + 1, format);
+        mTracks.add(track);
+        if (mAnchorTrack < 0 && format.isVideo()) mAnchorTrack = mTracks.size() - 1;
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * 写入 ftyp 和 moov
+     */
+    public void start() throws IOException {
+        if (mStarted) throw new IllegalStateException("writer already started");
+        if (mTracks.isEmpty()) throw new IllegalStateException("no track added");
+        if (mAnchorTrack < 0) mAnchorTrack = 0;
+        mBoxWriter.clear();
+        Mp4Boxes.writeFtyp(mBoxWriter, true);
+        writeMoov(mBoxWriter);
+        ByteBuffer header = mBoxWriter.toBuffer();
+        mBytesWritten += header.remaining();
+        mSink.writeHeader(header);
+        mStarted = true;
+    }
+
+    /**
+     * 写入一个样本 , data 中 position 到 limit 之间的数据会被拷贝 , 调用返回后即可复用 data
+     * 元数据轨道的第一个样本之前会写入一个空样本 , 轨道从文件开始计时 , 转换为普通 MP4 (Mp4Reader) 之后时间不会偏移
+     *
+     * @param trackIndex         addTrack() 的返回值
+     * @param data               编码后的数据 , H.264 可以是 Annex-B 格式 , 会被转换为长度前缀格式
+     * @param presentationTimeUs 显示时间 (微秒)
+     * @param flags              SampleFlags , 与 MediaCodec.BufferInfo.flags 相同
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) throws IOException {
+        if (!mStarted || mStopped) throw new IllegalStateException("writer not started");
+        if ((flags & SampleFlags.FLAG_CODEC_CONFIG) != 0 || data.remaining() == 0) return;
+        Track track = mTracks.get(trackIndex);
+        if (shouldFlush(trackIndex, presentationTimeUs, flags, data.remaining())) {
+            flushFragment();
+        }
+        if (mOriginUs < 0) mOriginUs = presentationTimeUs;
+        if (mFragmentStartUs < 0) mFragmentStartUs = presentationTimeUs;
+        if (track.format.isMetadata()) {
+            if (!track.started && presentationTimeUs > mOriginUs) track.append(ByteBuffer.allocate(0), mOriginUs, 0);
+            presentationTimeUs = Math.max(presentationTimeUs, mOriginUs);
+        } else {
+            mLastMediaUs = Math.max(mLastMediaUs, presentationTimeUs);
+        }
+        track.started = true;
+        mFragmentBytes += track.append(data, presentationTimeUs, flags);
+    }
+
+    /**
+     * 写入剩余的分片并关闭 MediaSink
+     */
+    public void stop() throws IOException {
+        if (mStopped) return;
+        mStopped = true;
+        try {
+            mFinalFragment = true;
+            if (mStarted) flushFragment();
+        } finally {
+            mSink.close();
+        }
+    }
+
+    /**
+     * @return 已写入 MediaSink 的字节数
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return 已写入的分片数
+     */
+    public int getFragmentCount() {
+        return mSequenceNumber;
+    }
+
+    private boolean shouldFlush(int trackIndex, long presentationTimeUs, int flags, int size) {
+        if (mFragmentStartUs < 0) return false;
+        if (mFragmentBytes + size > mMaxFragmentBytes) return true;
+        return trackIndex == mAnchorTrack
+                && SampleFlags.isSync(flags)
+                && presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs;
+    }
+
+    /**
+     * 把缓存的样本作为一个 moof + mdat 写入 MediaSink
+     */
+    private void flushFragment() throws IOException {
+        if (mFragmentBytes == 0) return;
+        BoxWriter w = mBoxWriter;
+        w.clear();
+        int[] dataOffsetPositions = new int[mTracks.size()];
+        int moof = w.begin("moof");
+        int mfhd = w.beginFull("mfhd", 0, 0);
+        w.u32(++mSequenceNumber);
+        w.end(mfhd);
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            dataOffsetPositions[i] = track.count == 0 ? -1 : writeTraf(w, track);
+        }
+        w.end(moof);
+
+        long dataOffset = w.position() + 8;
+        for (int i = 0; i < mTracks.size(); i++) {
+            if (dataOffsetPositions[i] < 0) continue;
+            w.patchU32(dataOffsetPositions[i], dataOffset);
+            dataOffset += mTracks.get(i).data.position();
+        }
+
+        mMdatHeader.clear();
+        mMdatHeader.putInt(8 + mFragmentBytes);
+        mMdatHeader.put((byte) 'm').put((byte) 'd').put((byte) 'a').put((byte) 't');
+        mMdatHeader.flip();
+
+        ByteBuffer[] buffers = new ByteBuffer[2 + mTracks.size()];
+        buffers[0] = w.toBuffer();
+        buffers[1] = mMdatHeader;
+        for (int i = 0; i < mTracks.size(); i++) {
+            ByteBuffer data = mTracks.get(i).data;
+            data.flip();
+            buffers[2 + i] = data;
+            mBytesWritten += data.remaining();
+        }
+        mBytesWritten += buffers[0].remaining() + buffers[1].remaining();
+        Track anchor = mTracks.get(mAnchorTrack);
+        boolean sync = anchor.count > 0 && (!anchor.format.isVideo() || SampleFlags.isSync(anchor.flags[0]));
+        mSink.writeFragment(buffers, Math.max(0, mFragmentStartUs - mOriginUs), sync);
+
+        for (Track track : mTracks) {
+            track.reset();
+        }
+        mFragmentBytes = 0;
+        mFragmentStartUs = -1;
+    }
+
+    /**
+     * @return trun 中 data_offset 的位置 , 写完 moof 之后回填
+     */
+    private int writeTraf(BoxWriter w, Track track) {
+        int timescale = track.timescale;
+        int traf = w.begin("traf");
+        int tfhd = w.beginFull("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+        w.u32(track.trackId);
+        w.end(tfhd);
+
+        int tfdt = w.beginFull("tfdt", 1, 0);
+        w.u64(toTimescale(Math.max(0, track.presentationTimeUs[0] - mOriginUs), timescale));
+        w.end(tfdt);
+
+        int trun = w.beginFull("trun", 0, TRUN_FLAGS);
+        w.u32(track.count);
+        int dataOffsetPosition = w.position();
+        w.u32(0);
+        for (int i = 0; i < track.count; i++) {
+            //分片最后一个样本的时长未知 , 使用上一个样本的时长 , 下一个分片的 tfdt 会重新对齐
+            long duration = track.lastDuration > 0 ? track.lastDuration : track.getDefaultDuration();
+            if (i + 1 < track.count) {
+                long delta = toTimescale(track.presentationTimeUs[i + 1], timescale) - toTimescale(track.presentationTimeUs[i], timescale);
+                if (delta > 0) duration = delta;
+                track.lastDuration = duration;
+            }
+            if (i + 1 == track.count && mFinalFragment && track.format.isMetadata() && mLastMediaUs > track.presentationTimeUs[i]) {
+                duration = toTimescale(mLastMediaUs - mOriginUs, timescale) - toTimescale(track.presentationTimeUs[i] - mOriginUs, timescale);
+            }
+            w.u32(duration);
+            w.u32(track.sizes[i]);
+            w.u32(SampleFlags.isSync(track.flags[i]) || !track.format.isVideo() ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        w.end(trun);
+        w.end(traf);
+        return dataOffsetPosition;
+    }
+
+    private void writeMoov(BoxWriter w) {
+        int moov = w.begin("moov");
+        Mp4Boxes.writeMvhd(w, 0, mTracks.size() + 1);
+        for (Track track : mTracks) {
+            TrackFormat format = track.format;
+            int trak = w.begin("trak");
+            Mp4Boxes.writeTkhd(w, track.trackId, 0, format);
+            int mdia = w.begin("mdia");
+            Mp4Boxes.writeMdhd(w, track.timescale, 0);
+            Mp4Boxes.writeHdlr(w, format.getHandlerType(), Mp4Boxes.getHandlerName(format));
+            int minf = w.begin("minf");
+            Mp4Boxes.writeMediaHeader(w, format);
+            int stbl = w.begin("stbl");
+            Mp4Boxes.writeStsd(w, format);
+            Mp4Boxes.writeEmptySampleTables(w);
+            w.end(stbl);
+            w.end(minf);
+            w.end(mdia);
+            w.end(trak);
+        }
+        int mvex = w.begin("mvex");
+        for (Track track : mTracks) {
+            int trex = w.beginFull("trex", 0, 0);
+            w.u32(track.trackId).u32(1).u32(0).u32(0).u32(0);
+            w.end(trex);
+        }
+        w.end(mvex);
+        w.end(moov);
+    }
+
+    static long toTimescale(long timeUs, int timescale) {
+        return timeUs * timescale / 1000000L;
+    }
+
+    private static class Track {
+        private static final int INITIAL_SAMPLES = 64;
+
+        final int trackId;
+        final TrackFormat format;
+        final int timescale;
+        final boolean convertAnnexB;
+        ByteBuffer data = ByteBuffer.allocateDirect(64 * 1024);
+        int[] sizes = new int[INITIAL_SAMPLES];
+        int[] flags = new int[INITIAL_SAMPLES];
+        long[] presentationTimeUs = new long[INITIAL_SAMPLES];
+        int count;
+        long lastDuration;
+        /**
+         * 是否已经写入过样本 (包括之前的分片)
+         */
+        boolean started;
+
+        Track(int trackId, TrackFormat format) {
+            this.trackId = trackId;
+            this.format = format;
+            this.timescale = format.getTimescale();
+            this.convertAnnexB = format.isAnnexB();
+        }
+
+        /**
+         * @return 写入的字节数
+         */
+        int append(ByteBuffer sample, long ptsUs, int sampleFlags) {
+            int size = convertAnnexB ? NalUnitUtil.lengthPrefixedSize(sample) : sample.remaining();
+            ensureData(size);
+            if (convertAnnexB) {
+                NalUnitUtil.toLengthPrefixed(sample, data);
+            } else {
+                data.put(sample.duplicate());
+            }
+            if (count == sizes.length) {
+                int capacity = count * 2;
+                sizes = copyOf(sizes, capacity);
+                flags = copyOf(flags, capacity);
+                long[] pts = new long[capacity];
+                System.arraycopy(presentationTimeUs, 0, pts, 0, count);
+                presentationTimeUs = pts;
+            }
+            sizes[count] = size;
+            flags[count] = sampleFlags;
+            presentationTimeUs[count] = ptsUs;
+            count++;
+            return size;
+        }
+
+        long getDefaultDuration() {
+            //AAC 每帧 1024 个采样 , 视频按 30 fps 估算
+            return format.isAudio() ? 1024 : timescale / 30;
+        }
+
+        void reset() {
+            data.clear();
+            count = 0;
+        }
+
+        private void ensureData(int size) {
+            if (data.remaining() >= size) return;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(data.capacity() * 2, data.position() + size));
+            data.flip();
+            buffer.put(data);
+            data = buffer;
+        }
+
+        private static int[] copyOf(int[] src, int capacity) {
+            int[] dst = new int[capacity];
+            System.arraycopy(src, 0, dst, 0, src.length);
+            return dst;
+        }
+    }
+}
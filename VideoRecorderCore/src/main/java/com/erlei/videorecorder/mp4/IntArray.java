@@ -0,0 +1,75 @@
+package com.erlei.videorecorder.mp4;
+
+import java.util.Arrays;
+
+/**
+ * 可增长的 int 数组 , 用于保存样本表 , 避免装箱
+ */
+public final class IntArray {
+
+    private int[] mValues;
+    private int mSize;
+
+    public IntArray() {
+        this(16);
+    }
+
+    public IntArray(int capacity) {
+        mValues = new int[Math.max(capacity, 1)];
+    }
+
+    public void add(int value) {
+        if (mSize == mValues.length) grow(mSize + 1);
+        mValues[mSize++] = value;
+    }
+
+    public int get(int index) {
+        if (index >= mSize) throw new ArrayIndexOutOfBoundsException(index);
+        return mValues[index];
+    }
+
+    public void set(int index, int value) {
+        if (index >= mSize) throw new ArrayIndexOutOfBoundsException(index);
+        mValues[index] = value;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * 截断到 size 个元素 , 容量不变
+     */
+    public void truncate(int size) {
+        if (size < mSize) mSize = Math.max(size, 0);
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * 在升序数组中查找 value
+     *
+     * @return 与 Arrays.binarySearch() 相同
+     */
+    public int binarySearch(int value) {
+        return Arrays.binarySearch(mValues, 0, mSize, value);
+    }
+
+    public int[] toArray() {
+        int[] values = new int[mSize];
+        System.arraycopy(mValues, 0, values, 0, mSize);
+        return values;
+    }
+
+    private void grow(int minCapacity) {
+        int[] values = new int[Math.max(mValues.length * 2, minCapacity)];
+        System.arraycopy(mValues, 0, values, 0, mSize);
+        mValues = values;
+    }
+}
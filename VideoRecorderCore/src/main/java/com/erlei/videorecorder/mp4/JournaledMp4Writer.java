@@ -0,0 +1,404 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 普通 MP4 写入器 , 纯 Java 实现 , 同时把每个样本的位置写入 SampleJournal
+ * <p>
+ * 文件结构为 ftyp + mdat (64 位长度) + moov , 样本按写入顺序直接追加到 mdat , stop() 时写入 moov
+ * 与 MediaMuxer 一样 , 录制过程中文件没有 moov 是不能播放的 ,
+ * 但是进程崩溃之后可以通过 recover() 按日志重新生成 moov , 只会丢失日志中还没有记录的最后几个样本
+ * 正常 stop() 之后日志会被删除
+ * 非线程安全 , 调用方需要保证在同一个线程 (或者加锁) 调用
+ *
+ * @see SampleJournal
+ */
+public class JournaledMp4Writer {
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final int MDAT_HEADER_SIZE = 16;
+
+    private final File mOutput;
+    private final File mJournalFile;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final CoalescingFileWriter mOut;
+    /**
+     * 样本数据还在 mOut 的缓冲区中 , 等写入文件之后才能写入日志的样本记录
+     */
+    private final IntArray mPendingTracks = new IntArray(64);
+    private final LongArray mPendingOffsets = new LongArray(64);
+    private final IntArray mPendingSizes = new IntArray(64);
+    private final LongArray mPendingTimes = new LongArray(64);
+    private final IntArray mPendingFlags = new IntArray(64);
+    private int mPendingHead;
+    private final List<TrackFormat> mFormats = new ArrayList<>();
+    private final List<SampleTableBuilder> mTracks = new ArrayList<>();
+    private final BoxWriter mBoxWriter = new BoxWriter(4096);
+    private SampleJournal mJournal;
+    private ByteBuffer mConvertBuffer;
+    private long mMdatOffset;
+    private long mPosition;
+    /**
+     * 第一个样本的显示时间 , 元数据轨道以这个时间为起点
+     */
+    private long mOriginUs = -1;
+    private boolean mStarted, mStopped;
+
+    /**
+     * @param output 输出文件 , 如果已存在会被覆盖 , 日志文件为 getJournalFile(output)
+     */
+    public JournaledMp4Writer(File output) throws IOException {
+        if (output == null) throw new IllegalArgumentException("output must not null");
+        mOutput = output;
+        mJournalFile = getJournalFile(output);
+        mFile = new RandomAccessFile(output, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mOut = new CoalescingFileWriter(mFile, 0, CoalescingFileWriter.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * 按 extent 预分配文件空间 , 必须在 start() 之前调用 , stop() 时截断到实际大小
+     *
+     * @see CoalescingFileWriter#setPreallocation(CoalescingFileWriter.Preallocator, long, long)
+     */
+    public void setPreallocation(CoalescingFileWriter.Preallocator preallocator, long initialBytes, long extentBytes) {
+        if (mStarted) throw new IllegalStateException("writer already started");
+        mOut.setPreallocation(preallocator, initialBytes, extentBytes);
+    }
+
+    /**
+     * @return 文件写入层 , 用于查询写入速度和耗时
+     */
+    public CoalescingFileWriter getFileWriter() {
+        return mOut;
+    }
+
+    /**
+     * @return 输出文件对应的日志文件
+     */
+    public static File getJournalFile(File output) {
+        return new File(output.getPath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * @return file 是否是日志文件
+     */
+    public static boolean isJournalFile(File file) {
+        return file.getName().endsWith(JOURNAL_SUFFIX);
+    }
+
+    /**
+     * @return 日志文件对应的输出文件
+     */
+    public static File getOutputFile(File journal) {
+        String path = journal.getPath();
+        return new File(path.substring(0, path.length() - JOURNAL_SUFFIX.length()));
+    }
+
+    /**
+     * 添加轨道 , 必须在 start() 之前调用
+     *
+     * @return 轨道索引 , 用于 writeSample()
+     */
+    public int addTrack(TrackFormat format) {
+        if (mStarted) throw new IllegalStateException("writer already started");
+        mFormats.add(format);
+        mTracks.add(new SampleTableBuilder(format, mTracks.size() + 1));
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * 写入 ftyp 和 mdat 头 , 创建日志
+     */
+    public void start() throws IOException {
+        if (mStarted) throw new IllegalStateException("writer already started");
+        if (mTracks.isEmpty()) throw new IllegalStateException("no track added");
+        BoxWriter w = mBoxWriter;
+        w.clear();
+        Mp4Boxes.writeFtyp(w, false);
+        mMdatOffset = w.position();
+        w.u32(1).fourcc("mdat").u64(0);
+        mOut.write(w.toBuffer());
+        mPosition = w.position();
+        mJournal = new SampleJournal(mJournalFile, mPosition, mFormats);
+        mStarted = true;
+    }
+
+    /**
+     * 写入一个样本 , 样本数据写入文件之后才写入日志 , 所以日志中的样本一定已经在文件中
+     * 元数据轨道的时间从文件的第一个样本开始计算 , 第一个元数据样本之前写入一个空样本占位 ,
+     * 早于第一个样本的元数据对齐到文件开始
+     *
+     * @param trackIndex         addTrack() 的返回值
+     * @param data               编码后的数据 , H.264 可以是 Annex-B 格式 , 会被转换为长度前缀格式
+     * @param presentationTimeUs 显示时间 (微秒)
+     * @param flags              SampleFlags , 与 MediaCodec.BufferInfo.flags 相同
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) throws IOException {
+        if (!mStarted || mStopped) throw new IllegalStateException("writer not started");
+        if ((flags & SampleFlags.FLAG_CODEC_CONFIG) != 0 || data.remaining() == 0) return;
+        SampleTableBuilder track = mTracks.get(trackIndex);
+        if (mOriginUs < 0) mOriginUs = presentationTimeUs;
+        if (track.format.isMetadata()) {
+            if (track.isEmpty() && presentationTimeUs > mOriginUs) {
+                appendSample(trackIndex, track, ByteBuffer.allocate(0), mOriginUs, 0);
+            }
+            presentationTimeUs = Math.max(presentationTimeUs, mOriginUs);
+        }
+        ByteBuffer sample = data;
+        if (track.convertAnnexB) sample = convert(data);
+        appendSample(trackIndex, track, sample, presentationTimeUs, flags);
+    }
+
+    private void appendSample(int trackIndex, SampleTableBuilder track, ByteBuffer sample, long presentationTimeUs, int flags) throws IOException {
+        int size = sample.remaining();
+        mOut.write(sample);
+        mPendingTracks.add(trackIndex);
+        mPendingOffsets.add(mPosition);
+        mPendingSizes.add(size);
+        mPendingTimes.add(presentationTimeUs);
+        mPendingFlags.add(flags);
+        track.add(mPosition, size, presentationTimeUs, flags);
+        mPosition += size;
+        appendJournal();
+    }
+
+    /**
+     * 把数据已经写入文件的样本记录写入日志
+     */
+    private void appendJournal() throws IOException {
+        long flushed = mOut.getFlushedPosition();
+        int count = mPendingSizes.size();
+        while (mPendingHead < count && mPendingOffsets.get(mPendingHead) + mPendingSizes.get(mPendingHead) <= flushed) {
+            mJournal.append(mPendingTracks.get(mPendingHead), mPendingOffsets.get(mPendingHead),
+                    mPendingSizes.get(mPendingHead), mPendingTimes.get(mPendingHead), mPendingFlags.get(mPendingHead));
+            mPendingHead++;
+        }
+        if (mPendingHead == count) {
+            mPendingTracks.clear();
+            mPendingOffsets.clear();
+            mPendingSizes.clear();
+            mPendingTimes.clear();
+            mPendingFlags.clear();
+            mPendingHead = 0;
+        }
+    }
+
+    /**
+     * 写入 moov 并关闭文件 , 删除日志
+     */
+    public void stop() throws IOException {
+        if (mStopped) return;
+        mStopped = true;
+        try {
+            if (mStarted) {
+                mOut.flush();
+                mJournal.close();
+                writeIndex(mChannel, mMdatOffset, mPosition, mTracks);
+                //noinspection ResultOfMethodCallIgnored
+                mJournalFile.delete();
+            }
+        } finally {
+            mChannel.close();
+            mFile.close();
+        }
+    }
+
+    /**
+     * 把日志写回磁盘 , 只有需要防止掉电丢失数据时才需要调用
+     */
+    public void sync() throws IOException {
+        mOut.flush();
+        mChannel.force(false);
+        if (mJournal != null) {
+            appendJournal();
+            mJournal.sync();
+        }
+    }
+
+    /**
+     * @return 已写入文件的字节数 (不包括 moov)
+     */
+    public long getBytesWritten() {
+        return mPosition;
+    }
+
+    public File getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * 按日志重新生成 output 的 moov , 在文件长度或者样本位置与日志不一致的地方截断
+     * 恢复成功后删除日志
+     *
+     * @return 是否恢复成功 , 日志不存在或者没有任何完整的样本时返回 false
+     */
+    public static boolean recover(File output) throws IOException {
+        File journalFile = getJournalFile(output);
+        if (!journalFile.exists() || !output.exists()) return false;
+        SampleJournal.Content content = SampleJournal.read(journalFile);
+        List<SampleTableBuilder> tracks = new ArrayList<>(content.formats.size());
+        for (int i = 0; i < content.formats.size(); i++) {
+            tracks.add(new SampleTableBuilder(content.formats.get(i), i + 1));
+        }
+        RandomAccessFile raf = new RandomAccessFile(output, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            long fileSize = channel.size();
+            long position = content.dataOffset;
+            int count = 0;
+            for (int i = 0; i < content.getRecordCount(); i++) {
+                long offset = content.offsets.get(i);
+                int size = content.sizes.get(i);
+                if (offset != position || offset + size > fileSize) break;
+                tracks.get(content.trackIndexes.get(i)).add(offset, size, content.presentationTimesUs.get(i), content.flags.get(i));
+                position += size;
+                count++;
+            }
+            if (count == 0) return false;
+            writeIndex(channel, content.dataOffset - MDAT_HEADER_SIZE, position, tracks);
+        } finally {
+            raf.close();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        journalFile.delete();
+        return true;
+    }
+
+    /**
+     * 在 dataEnd 处写入 moov , 回填 mdat 的大小并截断文件
+     */
+    private static void writeIndex(FileChannel channel, long mdatOffset, long dataEnd, List<SampleTableBuilder> builders) throws IOException {
+        List<TrackIndex> tracks = new ArrayList<>(builders.size());
+        long endUs = 0;
+        for (SampleTableBuilder builder : builders) {
+            if (builder.format.isMetadata()) continue;
+            TrackIndex track = builder.finish(-1);
+            if (track.timescale > 0) endUs = Math.max(endUs, track.getDuration() * 1000000L / track.timescale);
+        }
+        for (SampleTableBuilder builder : builders) {
+            //元数据的最后一个样本持续到音视频结束 , 合并多个文件时元数据不会偏移
+            TrackIndex track = builder.finish(endUs);
+            if (track.getSampleCount() > 0) tracks.add(track);
+        }
+        if (tracks.isEmpty()) throw new IllegalStateException("no sample written");
+        BoxWriter w = new BoxWriter(64 * 1024);
+        MovieIndexWriter.writeMoov(w, tracks, 0);
+        int moovSize = w.position();
+        write(channel, w.toBuffer(), dataEnd);
+        channel.truncate(dataEnd + moovSize);
+        w.clear();
+        w.u32(1).fourcc("mdat").u64(dataEnd - mdatOffset);
+        write(channel, w.toBuffer(), mdatOffset);
+    }
+
+    private ByteBuffer convert(ByteBuffer data) {
+        int size = NalUnitUtil.lengthPrefixedSize(data);
+        if (mConvertBuffer == null || mConvertBuffer.capacity() < size) {
+            mConvertBuffer = ByteBuffer.allocateDirect(Math.max(size, 64 * 1024));
+        }
+        mConvertBuffer.clear();
+        NalUnitUtil.toLengthPrefixed(data, mConvertBuffer);
+        mConvertBuffer.flip();
+        return mConvertBuffer;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * 按写入顺序把样本添加到 TrackIndex , 连续写入的样本合并为一个 chunk
+     * 样本时长要等到下一个样本才能确定 , 所以最后一个样本在 finish() 时才添加
+     */
+    private static class SampleTableBuilder {
+        final TrackIndex track = new TrackIndex();
+        final TrackFormat format;
+        final boolean convertAnnexB;
+        long originUs = -1;
+        long chunkEnd = -1;
+        int pendingSize = -1;
+        long pendingTime;
+        boolean pendingSync;
+        int lastDuration;
+
+        SampleTableBuilder(TrackFormat format, int trackId) {
+            this.format = format;
+            this.convertAnnexB = format.isAnnexB();
+            BoxWriter w = new BoxWriter(512);
+            track.trackId = trackId;
+            track.handlerType = format.getHandlerType();
+            track.timescale = format.getTimescale();
+            Mp4Boxes.writeTkhd(w, trackId, 0, format);
+            track.tkhd = w.toByteArray();
+            w.clear();
+            Mp4Boxes.writeMdhd(w, track.timescale, 0);
+            track.mdhd = w.toByteArray();
+            w.clear();
+            Mp4Boxes.writeHdlr(w, track.handlerType, Mp4Boxes.getHandlerName(format));
+            track.hdlr = w.toByteArray();
+            w.clear();
+            Mp4Boxes.writeMediaInformationHeader(w, format);
+            track.mediaHeader = w.toByteArray();
+            w.clear();
+            Mp4Boxes.writeSampleEntry(w, format);
+            track.sampleEntries.add(w.toByteArray());
+        }
+
+        boolean isEmpty() {
+            return originUs < 0;
+        }
+
+        void add(long offset, int size, long presentationTimeUs, int flags) {
+            if (originUs < 0) originUs = presentationTimeUs;
+            long time = FragmentedMp4Writer.toTimescale(Math.max(0, presentationTimeUs - originUs), track.timescale);
+            if (pendingSize >= 0) {
+                long duration = time - pendingTime;
+                appendPending(duration > 0 ? (int) duration : getDefaultDuration());
+            }
+            pendingSize = size;
+            pendingTime = time;
+            pendingSync = SampleFlags.isSync(flags) || !format.isVideo();
+            int chunks = track.getChunkCount();
+            if (chunks > 0 && offset == chunkEnd) {
+                track.chunkSampleCounts.set(chunks - 1, track.chunkSampleCounts.get(chunks - 1) + 1);
+            } else {
+                track.appendChunk(offset, 1, 1);
+            }
+            chunkEnd = offset + size;
+        }
+
+        /**
+         * @param endUs 元数据轨道的结束时间 (相对于第一个样本) , -1 表示按上一个样本的时长估算
+         */
+        TrackIndex finish(long endUs) {
+            if (pendingSize >= 0) {
+                long duration = endUs < 0 ? 0 : FragmentedMp4Writer.toTimescale(endUs, track.timescale) - pendingTime;
+                appendPending(duration > 0 ? (int) duration : getDefaultDuration());
+            }
+            pendingSize = -1;
+            return track;
+        }
+
+        private void appendPending(int duration) {
+            track.appendSample(pendingSize, duration, 0, pendingSync);
+            lastDuration = duration;
+        }
+
+        private int getDefaultDuration() {
+            if (lastDuration > 0) return lastDuration;
+            //AAC 每帧 1024 个采样 , 视频按 30 fps 估算
+            return format.isAudio() ? 1024 : track.timescale / 30;
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 本地回环 (127.0.0.1) HTTP 直播服务 , 录制过程中把分片 MP4 推送给其他进程预览或者转推 , 不需要等待录制结束
+ * <p>
+ * 每个 GET 请求返回一个 video/mp4 的 chunked 响应 : 初始化段 , 然后是最近一个关键帧分片开始的缓存分片 ,
+ * 之后是新写入的分片 , close() 时响应结束 ; 没有正在录制的流时请求会等待下一个流开始
+ * 一个流结束之后服务继续运行 , 下一次录制的 writeHeader() 开始新的流 , 直到 stop()
+ * <p>
+ * 写入方法只拷贝一次分片数据并放入每个客户端的队列 , 不会阻塞混合器线程 ;
+ * 每个客户端一个发送线程 , 队列满了 (客户端读取太慢) 时断开这个客户端
+ * 在 Android 上使用需要应用声明 android.permission.INTERNET 权限
+ */
+public class LiveStreamServer implements MediaSink {
+
+    public static final int DEFAULT_CLIENT_QUEUE_SIZE = 64;
+    /**
+     * 缓存的最近一个关键帧开始的分片的最大字节数 , 超过后新的客户端需要等待下一个关键帧分片
+     */
+    public static final int DEFAULT_MAX_GOP_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_REQUEST_HEADER_BYTES = 8 * 1024;
+    private static final int REQUEST_TIMEOUT_MS = 5000;
+    /**
+     * accept() 连续失败 (例如文件描述符用完) 时的重试间隔 , 每次失败翻倍
+     */
+    private static final long ACCEPT_RETRY_MIN_MS = 10;
+    private static final long ACCEPT_RETRY_MAX_MS = 1000;
+    private static final byte[] END_OF_STREAM = new byte[0];
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final int mPort;
+    private final int mClientQueueSize;
+    private final int mMaxGopBytes;
+    private final List<Client> mClients = new ArrayList<>();
+    private final List<byte[]> mGop = new ArrayList<>();
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+    private byte[] mHeader;
+    private int mGopBytes;
+    private volatile boolean mRunning;
+    private long mDroppedClientCount;
+
+    /**
+     * @param port 监听端口 , 0 表示由系统分配 , 通过 getPort() 获取
+     */
+    public LiveStreamServer(int port) {
+        this(port, DEFAULT_CLIENT_QUEUE_SIZE, DEFAULT_MAX_GOP_BYTES);
+    }
+
+    /**
+     * @param clientQueueSize 每个客户端最多排队的分片数
+     * @param maxGopBytes     缓存的关键帧分片的最大字节数 , 0 表示不缓存 , 新的客户端从下一个关键帧分片开始
+     */
+    public LiveStreamServer(int port, int clientQueueSize, int maxGopBytes) {
+        if (clientQueueSize <= 0) throw new IllegalArgumentException("clientQueueSize must > 0");
+        mPort = port;
+        mClientQueueSize = clientQueueSize;
+        mMaxGopBytes = maxGopBytes;
+    }
+
+    /**
+     * 绑定端口并开始接受连接
+     */
+    public synchronized void start() throws IOException {
+        if (mRunning) return;
+        mServerSocket = new ServerSocket(mPort, 8, InetAddress.getByName("127.0.0.1"));
+        mRunning = true;
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "LiveStreamServer-accept");
+        mAcceptThread.start();
+    }
+
+    /**
+     * 停止服务并断开所有客户端
+     */
+    public void stop() {
+        List<Client> clients;
+        synchronized (this) {
+            if (!mRunning) return;
+            mRunning = false;
+            try {
+                mServerSocket.close();
+            } catch (IOException ignored) {
+            }
+            clients = new ArrayList<>(mClients);
+            mClients.clear();
+            resetStream();
+        }
+        for (Client client : clients) {
+            client.close();
+        }
+        try {
+            mAcceptThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return 实际监听的端口 , start() 之前返回构造时的端口
+     */
+    public synchronized int getPort() {
+        return mServerSocket == null ? mPort : mServerSocket.getLocalPort();
+    }
+
+    /**
+     * @return 播放地址 , 例如 http://127.0.0.1:8080/live.mp4 , 路径可以是任意值
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + getPort() + "/live.mp4";
+    }
+
+    public synchronized int getClientCount() {
+        return mClients.size();
+    }
+
+    /**
+     * @return 因为读取太慢被断开的客户端数
+     */
+    public synchronized long getDroppedClientCount() {
+        return mDroppedClientCount;
+    }
+
+    @Override
+    public synchronized void writeHeader(ByteBuffer header) {
+        resetStream();
+        mHeader = toBytes(header);
+        for (int i = mClients.size() - 1; i >= 0; i--) {
+            Client client = mClients.get(i);
+            client.waitingSync = true;
+            offer(client, mHeader);
+        }
+    }
+
+    @Override
+    public synchronized void writeFragment(ByteBuffer[] buffers, long startUs, boolean sync) {
+        if (mHeader == null) return;
+        byte[] fragment = toBytes(buffers);
+        if (sync) {
+            mGop.clear();
+            mGopBytes = 0;
+        }
+        if (sync || !mGop.isEmpty()) {
+            if (mGopBytes + fragment.length <= mMaxGopBytes) {
+                mGop.add(fragment);
+                mGopBytes += fragment.length;
+            } else {
+                mGop.clear();
+                mGopBytes = 0;
+            }
+        }
+        for (int i = mClients.size() - 1; i >= 0; i--) {
+            Client client = mClients.get(i);
+            if (client.waitingSync) {
+                if (!sync) continue;
+                client.waitingSync = false;
+            }
+            offer(client, fragment);
+        }
+    }
+
+    /**
+     * 结束当前的流 , 所有客户端的响应结束 , 服务继续运行
+     * 队列已满的客户端放不下结束标记 , 直接断开
+     */
+    @Override
+    public synchronized void close() {
+        if (mHeader == null) return;
+        for (Client client : mClients) {
+            if (client.queue.offer(END_OF_STREAM)) continue;
+            mDroppedClientCount++;
+            client.close();
+        }
+        mClients.clear();
+        resetStream();
+    }
+
+    private void resetStream() {
+        mHeader = null;
+        mGop.clear();
+        mGopBytes = 0;
+    }
+
+    /**
+     * 新的客户端 : 有正在录制的流时发送初始化段和缓存的分片 , 否则等待 writeHeader()
+     */
+    private synchronized void addClient(Client client) {
+        if (!mRunning) {
+            client.close();
+            return;
+        }
+        mClients.add(client);
+        if (mHeader == null) return;
+        offer(client, mHeader);
+        if (mGop.isEmpty()) {
+            client.waitingSync = true;
+            return;
+        }
+        for (byte[] fragment : mGop) {
+            offer(client, fragment);
+        }
+    }
+
+    private synchronized void removeClient(Client client) {
+        mClients.remove(client);
+    }
+
+    private void offer(Client client, byte[] data) {
+        if (client.queue.offer(data)) return;
+        mClients.remove(client);
+        mDroppedClientCount++;
+        client.close();
+    }
+
+    private void acceptLoop() {
+        long retryMs = ACCEPT_RETRY_MIN_MS;
+        while (mRunning) {
+            Socket socket;
+            try {
+                socket = mServerSocket.accept();
+                retryMs = ACCEPT_RETRY_MIN_MS;
+            } catch (IOException e) {
+                //stop() 关闭了 ServerSocket , 或者 ServerSocket 已经不能使用
+                if (!mRunning || mServerSocket.isClosed()) break;
+                try {
+                    Thread.sleep(retryMs);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                retryMs = Math.min(retryMs * 2, ACCEPT_RETRY_MAX_MS);
+                continue;
+            }
+            final Client client = new Client(socket, mClientQueueSize);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        client.serve();
+                    } finally {
+                        removeClient(client);
+                        client.close();
+                    }
+                }
+            }, "LiveStreamServer-client");
+            thread.start();
+        }
+    }
+
+    private static byte[] toBytes(ByteBuffer... buffers) {
+        int size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        byte[] bytes = new byte[size];
+        int offset = 0;
+        for (ByteBuffer buffer : buffers) {
+            int count = buffer.remaining();
+            buffer.get(bytes, offset, count);
+            offset += count;
+        }
+        return bytes;
+    }
+
+    private class Client {
+        final Socket socket;
+        final BlockingQueue<byte[]> queue;
+        /**
+         * 加入时没有缓存的关键帧分片 , 需要跳过分片直到下一个关键帧分片
+         */
+        boolean waitingSync;
+
+        Client(Socket socket, int queueSize) {
+            this.socket = socket;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        void serve() {
+            try {
+                socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+                if (!readRequest(socket.getInputStream())) {
+                    respond("405 Method Not Allowed");
+                    return;
+                }
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                out.write(("HTTP/1.1 200 OK\r\n" +
+                        "Content-Type: video/mp4\r\n" +
+                        "Transfer-Encoding: chunked\r\n" +
+                        "Cache-Control: no-cache\r\n" +
+                        "Connection: close\r\n\r\n").getBytes(ASCII));
+                out.flush();
+                socket.setSoTimeout(0);
+                addClient(this);
+                while (true) {
+                    byte[] data = queue.take();
+                    if (data == END_OF_STREAM) break;
+                    out.write((Integer.toHexString(data.length) + "\r\n").getBytes(ASCII));
+                    out.write(data);
+                    out.write("\r\n".getBytes(ASCII));
+                    if (queue.isEmpty()) out.flush();
+                }
+                out.write("0\r\n\r\n".getBytes(ASCII));
+                out.flush();
+            } catch (SocketException ignored) {
+                //客户端断开或者被 close()
+            } catch (IOException ignored) {
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * 读取请求头 , 只支持 GET
+         */
+        private boolean readRequest(InputStream in) throws IOException {
+            StringBuilder request = new StringBuilder();
+            int c;
+            while (request.length() < MAX_REQUEST_HEADER_BYTES && (c = in.read()) != -1) {
+                request.append((char) c);
+                int length = request.length();
+                if (length >= 4 && request.lastIndexOf("\r\n\r\n") == length - 4) break;
+            }
+            return request.indexOf("GET ") == 0;
+        }
+
+        private void respond(String status) throws IOException {
+            OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(ASCII));
+            out.flush();
+        }
+
+        /**
+         * 唤醒等待队列的发送线程并断开连接
+         */
+        void close() {
+            queue.offer(END_OF_STREAM);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
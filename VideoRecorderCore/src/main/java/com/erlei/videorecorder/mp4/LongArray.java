@@ -0,0 +1,64 @@
+package com.erlei.videorecorder.mp4;
+
+/**
+ * 可增长的 long 数组 , 用于保存 chunk 偏移 , 避免装箱
+ */
+public final class LongArray {
+
+    private long[] mValues;
+    private int mSize;
+
+    public LongArray() {
+        this(16);
+    }
+
+    public LongArray(int capacity) {
+        mValues = new long[Math.max(capacity, 1)];
+    }
+
+    public void add(long value) {
+        if (mSize == mValues.length) grow(mSize + 1);
+        mValues[mSize++] = value;
+    }
+
+    public long get(int index) {
+        if (index >= mSize) throw new ArrayIndexOutOfBoundsException(index);
+        return mValues[index];
+    }
+
+    public void set(int index, long value) {
+        if (index >= mSize) throw new ArrayIndexOutOfBoundsException(index);
+        mValues[index] = value;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * 截断到 size 个元素 , 容量不变
+     */
+    public void truncate(int size) {
+        if (size < mSize) mSize = Math.max(size, 0);
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    public long[] toArray() {
+        long[] values = new long[mSize];
+        System.arraycopy(mValues, 0, values, 0, mSize);
+        return values;
+    }
+
+    private void grow(int minCapacity) {
+        long[] values = new long[Math.max(mValues.length * 2, minCapacity)];
+        System.arraycopy(mValues, 0, values, 0, mSize);
+        mValues = values;
+    }
+}
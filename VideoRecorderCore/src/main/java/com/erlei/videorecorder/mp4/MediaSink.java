@@ -0,0 +1,38 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 分片 MP4 的输出目标 , FragmentedMp4Writer 按 初始化段 + 分片 的顺序写入
+ * <p>
+ * 初始化段为 ftyp + moov , 每个分片为 moof + mdat , 分片可以单独解析 ,
+ * 所以输出目标可以是文件 , 内存 , 网络或者同时有多个客户端的直播服务
+ * 写入方法在混合器线程调用 , 传入的 ByteBuffer 在调用返回后会被复用 , 需要保存时必须拷贝
+ *
+ * @see FileMediaSink
+ * @see MemoryMediaSink
+ * @see SocketMediaSink
+ * @see LiveStreamServer
+ */
+public interface MediaSink {
+
+    /**
+     * 写入初始化段 , 每个流只调用一次 , 在所有分片之前
+     */
+    void writeHeader(ByteBuffer header) throws IOException;
+
+    /**
+     * 写入一个完整的分片
+     *
+     * @param buffers 依次为 moof , mdat 头 , 各个轨道的样本数据
+     * @param startUs 分片的开始时间 , 相对于第一个样本
+     * @param sync    分片是否从视频关键帧开始 (没有视频轨道时总是 true) , 新的播放端应该从这样的分片开始
+     */
+    void writeFragment(ByteBuffer[] buffers, long startUs, boolean sync) throws IOException;
+
+    /**
+     * 流结束 , 写入剩余的数据
+     */
+    void close() throws IOException;
+}
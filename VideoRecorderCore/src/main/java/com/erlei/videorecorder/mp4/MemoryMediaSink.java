@@ -0,0 +1,93 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 保存在内存中 , 适合时长很短的录制 (例如直接上传) 或者测试
+ * 线程安全 , 可以在录制过程中读取已经写入的数据
+ */
+public class MemoryMediaSink implements MediaSink {
+
+    private final int mMaxBytes;
+    private ByteBuffer mData;
+    private int mHeaderSize;
+    private int mFragmentCount;
+    private boolean mClosed;
+
+    public MemoryMediaSink() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxBytes 最多保存的字节数 , 超过时抛出 IOException
+     */
+    public MemoryMediaSink(int maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must > 0");
+        mMaxBytes = maxBytes;
+        mData = ByteBuffer.allocate(Math.min(maxBytes, 256 * 1024));
+    }
+
+    @Override
+    public synchronized void writeHeader(ByteBuffer header) throws IOException {
+        put(header);
+        mHeaderSize = mData.position();
+    }
+
+    @Override
+    public synchronized void writeFragment(ByteBuffer[] buffers, long startUs, boolean sync) throws IOException {
+        for (ByteBuffer buffer : buffers) {
+            put(buffer);
+        }
+        mFragmentCount++;
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * @return 已经写入的字节数
+     */
+    public synchronized int size() {
+        return mData.position();
+    }
+
+    /**
+     * @return 初始化段 (ftyp + moov) 的字节数
+     */
+    public synchronized int getHeaderSize() {
+        return mHeaderSize;
+    }
+
+    public synchronized int getFragmentCount() {
+        return mFragmentCount;
+    }
+
+    /**
+     * @return 已经写入的数据的拷贝 , 是一个完整的分片 MP4 文件
+     */
+    public synchronized byte[] toByteArray() {
+        byte[] bytes = new byte[mData.position()];
+        System.arraycopy(mData.array(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    private void put(ByteBuffer buffer) throws IOException {
+        int size = buffer.remaining();
+        if (mData.remaining() < size) {
+            long required = (long) mData.position() + size;
+            if (required > mMaxBytes) throw new IOException("MemoryMediaSink full , maxBytes = " + mMaxBytes);
+            ByteBuffer data = ByteBuffer.allocate((int) Math.min(mMaxBytes, Math.max(required, mData.capacity() * 2L)));
+            mData.flip();
+            data.put(mData);
+            mData = data;
+        }
+        mData.put(buffer);
+    }
+}
@@ -0,0 +1,122 @@
+package com.erlei.videorecorder.mp4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一个 MP4 文件的索引 , 由 Mp4Reader 从 moov (和 moof) 中解析得到 , 不包含样本数据
+ */
+public class MovieIndex {
+
+    public final List<TrackIndex> tracks = new ArrayList<>();
+    public int movieTimescale = Mp4Boxes.MOVIE_TIMESCALE;
+    /**
+     * 是否是分片 MP4 , 分片 MP4 的每个 trun 作为一个 chunk
+     */
+    public boolean fragmented;
+    public long fileSize;
+    /**
+     * moov 在文件中的位置和大小
+     */
+    public long moovOffset = -1;
+    public long moovSize;
+
+    /**
+     * @return 第一个 handlerType 类型的轨道 , 没有返回 null
+     */
+    public TrackIndex getTrack(String handlerType) {
+        for (TrackIndex track : tracks) {
+            if (track.handlerType.equals(handlerType)) return track;
+        }
+        return null;
+    }
+
+    public TrackIndex getTrackById(int trackId) {
+        for (TrackIndex track : tracks) {
+            if (track.trackId == trackId) return track;
+        }
+        return null;
+    }
+
+    /**
+     * @return 所有轨道中最长的时长 , 单位是微秒
+     */
+    public long getDurationUs() {
+        long duration = 0;
+        for (TrackIndex track : tracks) {
+            if (track.timescale <= 0) continue;
+            duration = Math.max(duration, track.getDuration() * 1000000L / track.timescale);
+        }
+        return duration;
+    }
+
+    public int getSampleCount() {
+        int count = 0;
+        for (TrackIndex track : tracks) {
+            count += track.getSampleCount();
+        }
+        return count;
+    }
+
+    /**
+     * 计算样本数据在文件中占用的连续区间 , 相邻或重叠的 chunk 合并为一个区间
+     * 普通 MP4 通常只有一个区间 (mdat 的内容) , 分片 MP4 每个 mdat 一个区间
+     *
+     * @return 升序排列的区间 , 偶数位置是起点 , 奇数位置是终点 (不含)
+     */
+    public long[] getDataExtents() {
+        int trackCount = tracks.size();
+        int[] chunk = new int[trackCount];
+        int[] sample = new int[trackCount];
+        LongArray extents = new LongArray(8);
+        long lastOffset = -1;
+        boolean sorted = true;
+        while (true) {
+            //按偏移从小到大依次取出各个轨道的 chunk
+            int next = -1;
+            for (int t = 0; t < trackCount; t++) {
+                TrackIndex track = tracks.get(t);
+                if (chunk[t] >= track.getChunkCount()) continue;
+                if (next < 0 || track.chunkOffsets.get(chunk[t]) < tracks.get(next).chunkOffsets.get(chunk[next]))
+                    next = t;
+            }
+            if (next < 0) break;
+            TrackIndex track = tracks.get(next);
+            int c = chunk[next]++;
+            long start = track.chunkOffsets.get(c);
+            long end = start;
+            int count = track.chunkSampleCounts.get(c);
+            for (int i = 0; i < count; i++) {
+                end += track.sampleSizes.get(sample[next]++);
+            }
+            if (start < lastOffset) sorted = false;
+            lastOffset = start;
+            int size = extents.size();
+            if (size > 0 && start <= extents.get(size - 1)) {
+                if (end > extents.get(size - 1)) extents.set(size - 1, end);
+            } else {
+                extents.add(start);
+                extents.add(end);
+            }
+        }
+        if (!sorted && extents.size() > 2) {
+            //轨道内的 chunk 不是升序的 (一般不会出现) , 退化为一个区间
+            long min = Long.MAX_VALUE, max = 0;
+            for (int i = 0; i < extents.size(); i += 2) {
+                min = Math.min(min, extents.get(i));
+                max = Math.max(max, extents.get(i + 1));
+            }
+            return new long[]{min, max};
+        }
+        return extents.toArray();
+    }
+
+    @Override
+    public String toString() {
+        return "MovieIndex{" +
+                "tracks=" + tracks +
+                ", fragmented=" + fragmented +
+                ", fileSize=" + fileSize +
+                '}';
+    }
+}
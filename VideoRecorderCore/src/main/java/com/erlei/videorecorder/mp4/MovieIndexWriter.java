@@ -0,0 +1,214 @@
+package com.erlei.videorecorder.mp4;
+
+import java.util.List;
+
+/**
+ * 把 TrackIndex 写为普通 MP4 的 moov , 样本表压缩为游程编码
+ */
+public final class MovieIndexWriter {
+
+    private static final long MAX_U32 = 0xFFFFFFFFL;
+
+    private MovieIndexWriter() {
+    }
+
+    /**
+     * @param tracks            轨道 , track_ID 按顺序重新编号为 1 , 2 ...
+     * @param chunkOffsetDelta  写入时给所有 chunk 偏移加上的值 , 例如 moov 放在 mdat 之前时等于 moov 的大小
+     */
+    public static void writeMoov(BoxWriter w, List<TrackIndex> tracks, long chunkOffsetDelta) {
+        long movieDuration = 0;
+        for (TrackIndex track : tracks) {
+            movieDuration = Math.max(movieDuration, toMovieTimescale(track));
+        }
+        int moov = w.begin("moov");
+        Mp4Boxes.writeMvhd(w, movieDuration, tracks.size() + 1);
+        for (int i = 0; i < tracks.size(); i++) {
+            writeTrak(w, tracks.get(i), i + 1, chunkOffsetDelta);
+        }
+        w.end(moov);
+    }
+
+    /**
+     * @return writeMoov() 写入的字节数
+     */
+    public static int measureMoov(List<TrackIndex> tracks, long chunkOffsetDelta) {
+        BoxWriter w = new BoxWriter(64 * 1024);
+        writeMoov(w, tracks, chunkOffsetDelta);
+        return w.position();
+    }
+
+    private static void writeTrak(BoxWriter w, TrackIndex track, int trackId, long chunkOffsetDelta) {
+        int trak = w.begin("trak");
+        writeTkhd(w, track.tkhd, trackId, toMovieTimescale(track));
+        int mdia = w.begin("mdia");
+        writeMdhd(w, track.mdhd, track.getDuration());
+        if (track.hdlr != null) {
+            w.bytes(track.hdlr);
+        } else {
+            Mp4Boxes.writeHdlr(w, track.handlerType, "");
+        }
+        int minf = w.begin("minf");
+        if (track.mediaHeader != null) {
+            w.bytes(track.mediaHeader);
+        } else {
+            int nmhd = w.beginFull("nmhd", 0, 0);
+            w.end(nmhd);
+        }
+        Mp4Boxes.writeDinf(w);
+        int stbl = w.begin("stbl");
+        writeStsd(w, track);
+        writeStts(w, track);
+        if (track.hasCompositionOffsets()) writeCtts(w, track);
+        if (!track.isAllSync()) writeStss(w, track);
+        writeStsc(w, track);
+        writeStsz(w, track);
+        writeChunkOffsets(w, track, chunkOffsetDelta);
+        w.end(stbl);
+        w.end(minf);
+        w.end(mdia);
+        w.end(trak);
+    }
+
+    /**
+     * 写入原始的 tkhd , 回填 track_ID 和 duration
+     */
+    private static void writeTkhd(BoxWriter w, byte[] tkhd, int trackId, long duration) {
+        int start = w.position();
+        w.bytes(tkhd);
+        if (tkhd[8] == 1) {
+            w.patchU32(start + 28, trackId);
+            w.patchU64(start + 36, duration);
+        } else {
+            w.patchU32(start + 20, trackId);
+            w.patchU32(start + 28, Math.min(duration, MAX_U32));
+        }
+    }
+
+    private static void writeMdhd(BoxWriter w, byte[] mdhd, long duration) {
+        int start = w.position();
+        w.bytes(mdhd);
+        if (mdhd[8] == 1) {
+            w.patchU64(start + 32, duration);
+        } else {
+            w.patchU32(start + 24, Math.min(duration, MAX_U32));
+        }
+    }
+
+    private static void writeStsd(BoxWriter w, TrackIndex track) {
+        int stsd = w.beginFull("stsd", 0, 0);
+        w.u32(track.sampleEntries.size());
+        for (byte[] entry : track.sampleEntries) {
+            w.bytes(entry);
+        }
+        w.end(stsd);
+    }
+
+    private static void writeStts(BoxWriter w, TrackIndex track) {
+        IntArray durations = track.sampleDurations;
+        int stts = w.beginFull("stts", 0, 0);
+        int countPosition = w.position();
+        w.u32(0);
+        int entries = 0;
+        for (int i = 0; i < durations.size(); ) {
+            int delta = durations.get(i);
+            int run = 1;
+            while (i + run < durations.size() && durations.get(i + run) == delta) run++;
+            w.u32(run).u32(delta);
+            entries++;
+            i += run;
+        }
+        w.patchU32(countPosition, entries);
+        w.end(stts);
+    }
+
+    private static void writeCtts(BoxWriter w, TrackIndex track) {
+        IntArray offsets = track.compositionOffsets;
+        int version = 0;
+        for (int i = 0; i < offsets.size(); i++) {
+            if (offsets.get(i) < 0) {
+                version = 1;
+                break;
+            }
+        }
+        int ctts = w.beginFull("ctts", version, 0);
+        int countPosition = w.position();
+        w.u32(0);
+        int entries = 0;
+        for (int i = 0; i < offsets.size(); ) {
+            int offset = offsets.get(i);
+            int run = 1;
+            while (i + run < offsets.size() && offsets.get(i + run) == offset) run++;
+            w.u32(run).u32(offset);
+            entries++;
+            i += run;
+        }
+        w.patchU32(countPosition, entries);
+        w.end(ctts);
+    }
+
+    private static void writeStss(BoxWriter w, TrackIndex track) {
+        IntArray syncSamples = track.syncSamples;
+        int stss = w.beginFull("stss", 0, 0);
+        w.u32(syncSamples.size());
+        for (int i = 0; i < syncSamples.size(); i++) {
+            w.u32(syncSamples.get(i) + 1);
+        }
+        w.end(stss);
+    }
+
+    private static void writeStsc(BoxWriter w, TrackIndex track) {
+        IntArray counts = track.chunkSampleCounts;
+        IntArray descriptions = track.chunkDescriptionIndexes;
+        int stsc = w.beginFull("stsc", 0, 0);
+        int countPosition = w.position();
+        w.u32(0);
+        int entries = 0;
+        for (int i = 0; i < counts.size(); i++) {
+            if (i > 0 && counts.get(i) == counts.get(i - 1) && descriptions.get(i) == descriptions.get(i - 1)) continue;
+            w.u32(i + 1).u32(counts.get(i)).u32(descriptions.get(i));
+            entries++;
+        }
+        w.patchU32(countPosition, entries);
+        w.end(stsc);
+    }
+
+    private static void writeStsz(BoxWriter w, TrackIndex track) {
+        IntArray sizes = track.sampleSizes;
+        boolean uniform = sizes.size() > 0;
+        for (int i = 1; i < sizes.size() && uniform; i++) {
+            uniform = sizes.get(i) == sizes.get(0);
+        }
+        int stsz = w.beginFull("stsz", 0, 0);
+        w.u32(uniform ? sizes.get(0) : 0).u32(sizes.size());
+        if (!uniform) {
+            for (int i = 0; i < sizes.size(); i++) {
+                w.u32(sizes.get(i));
+            }
+        }
+        w.end(stsz);
+    }
+
+    private static void writeChunkOffsets(BoxWriter w, TrackIndex track, long delta) {
+        LongArray offsets = track.chunkOffsets;
+        boolean large = false;
+        for (int i = 0; i < offsets.size() && !large; i++) {
+            large = offsets.get(i) + delta > MAX_U32;
+        }
+        int box = w.beginFull(large ? "co64" : "stco", 0, 0);
+        w.u32(offsets.size());
+        for (int i = 0; i < offsets.size(); i++) {
+            if (large) {
+                w.u64(offsets.get(i) + delta);
+            } else {
+                w.u32(offsets.get(i) + delta);
+            }
+        }
+        w.end(box);
+    }
+
+    private static long toMovieTimescale(TrackIndex track) {
+        if (track.timescale <= 0) return 0;
+        return track.getDuration() * Mp4Boxes.MOVIE_TIMESCALE / track.timescale;
+    }
+}
@@ -0,0 +1,253 @@
+package com.erlei.videorecorder.mp4;
+
+import java.util.List;
+
+/**
+ * 常用 box 的写入方法 , 普通 MP4 和分片 MP4 共用
+ * 时长参数的单位都是对应 box 的时间刻度
+ */
+public final class Mp4Boxes {
+
+    public static final int MOVIE_TIMESCALE = 1000;
+    /**
+     * ISO-639-2/T 'und' 的压缩编码
+     */
+    private static final int LANGUAGE_UNDETERMINED = 0x55C4;
+    private static final int FIXED_ONE = 0x00010000;
+
+    private Mp4Boxes() {
+    }
+
+    public static void writeFtyp(BoxWriter w, boolean fragmented) {
+        int ftyp = w.begin("ftyp");
+        w.fourcc("isom").u32(512);
+        w.fourcc("isom").fourcc(fragmented ? "iso6" : "iso2").fourcc("avc1").fourcc("mp41");
+        w.end(ftyp);
+    }
+
+    public static void writeMvhd(BoxWriter w, long duration, int nextTrackId) {
+        int mvhd = w.beginFull("mvhd", 0, 0);
+        w.u32(0).u32(0);
+        w.u32(MOVIE_TIMESCALE).u32(duration);
+        w.u32(FIXED_ONE).u16(0x0100).u16(0).u32(0).u32(0);
+        writeMatrix(w, 0);
+        w.zeros(24);
+        w.u32(nextTrackId);
+        w.end(mvhd);
+    }
+
+    /**
+     * @param duration 以 MOVIE_TIMESCALE 为单位
+     */
+    public static void writeTkhd(BoxWriter w, int trackId, long duration, TrackFormat format) {
+        //flags : track_enabled | track_in_movie
+        int tkhd = w.beginFull("tkhd", 0, 0x3);
+        w.u32(0).u32(0);
+        w.u32(trackId).u32(0).u32(duration);
+        w.u32(0).u32(0);
+        w.u16(0).u16(0).u16(format.isAudio() ? 0x0100 : 0).u16(0);
+        writeMatrix(w, format.rotation);
+        w.u32((long) format.width << 16).u32((long) format.height << 16);
+        w.end(tkhd);
+    }
+
+    public static void writeMdhd(BoxWriter w, int timescale, long duration) {
+        int mdhd = w.beginFull("mdhd", 0, 0);
+        w.u32(0).u32(0);
+        w.u32(timescale).u32(duration);
+        w.u16(LANGUAGE_UNDETERMINED).u16(0);
+        w.end(mdhd);
+    }
+
+    /**
+     * @return hdlr 中的名称 , 与 MediaMuxer 保持一致
+     */
+    public static String getHandlerName(TrackFormat format) {
+        if (format.isVideo()) return "VideoHandle";
+        return format.isMetadata() ? "MetaHandle" : "SoundHandle";
+    }
+
+    public static void writeHdlr(BoxWriter w, String handlerType, String name) {
+        int hdlr = w.beginFull("hdlr", 0, 0);
+        w.u32(0).fourcc(handlerType).u32(0).u32(0).u32(0);
+        for (int i = 0; i < name.length(); i++) {
+            w.u8(name.charAt(i));
+        }
+        w.u8(0);
+        w.end(hdlr);
+    }
+
+    /**
+     * 写入 minf 中 stbl 之前的部分 : vmhd / smhd / nmhd 和 dinf
+     */
+    public static void writeMediaHeader(BoxWriter w, TrackFormat format) {
+        writeMediaInformationHeader(w, format);
+        writeDinf(w);
+    }
+
+    /**
+     * 只写入 vmhd / smhd / nmhd
+     */
+    public static void writeMediaInformationHeader(BoxWriter w, TrackFormat format) {
+        if (format.isVideo()) {
+            int vmhd = w.beginFull("vmhd", 0, 1);
+            w.u16(0).u16(0).u16(0).u16(0);
+            w.end(vmhd);
+        } else if (format.isAudio()) {
+            int smhd = w.beginFull("smhd", 0, 0);
+            w.u16(0).u16(0);
+            w.end(smhd);
+        } else {
+            int nmhd = w.beginFull("nmhd", 0, 0);
+            w.end(nmhd);
+        }
+    }
+
+    /**
+     * 写入 dinf , 数据在本文件中
+     */
+    public static void writeDinf(BoxWriter w) {
+        int dinf = w.begin("dinf");
+        int dref = w.beginFull("dref", 0, 0);
+        w.u32(1);
+        //flags = 1 表示数据就在本文件中
+        int url = w.beginFull("url ", 0, 1);
+        w.end(url);
+        w.end(dref);
+        w.end(dinf);
+    }
+
+    public static void writeStsd(BoxWriter w, TrackFormat format) {
+        int stsd = w.beginFull("stsd", 0, 0);
+        w.u32(1);
+        writeSampleEntry(w, format);
+        w.end(stsd);
+    }
+
+    /**
+     * 写入 stsd 中的样本描述 (avc1 / mp4a / mett)
+     */
+    public static void writeSampleEntry(BoxWriter w, TrackFormat format) {
+        if (TrackFormat.MIME_AVC.equals(format.mime)) {
+            writeAvc1(w, format);
+        } else if (TrackFormat.MIME_AAC.equals(format.mime)) {
+            writeMp4a(w, format);
+        } else if (format.isMetadata()) {
+            writeMett(w, format);
+        } else {
+            throw new IllegalArgumentException("unsupported mime " + format.mime);
+        }
+    }
+
+    /**
+     * 写入空的样本表 , 用于分片 MP4 的 moov
+     */
+    public static void writeEmptySampleTables(BoxWriter w) {
+        int stts = w.beginFull("stts", 0, 0);
+        w.u32(0);
+        w.end(stts);
+        int stsc = w.beginFull("stsc", 0, 0);
+        w.u32(0);
+        w.end(stsc);
+        int stsz = w.beginFull("stsz", 0, 0);
+        w.u32(0).u32(0);
+        w.end(stsz);
+        int stco = w.beginFull("stco", 0, 0);
+        w.u32(0);
+        w.end(stco);
+    }
+
+    public static void writeMatrix(BoxWriter w, int rotation) {
+        int a = FIXED_ONE, b = 0, c = 0, d = FIXED_ONE;
+        switch (((rotation % 360) + 360) % 360) {
+            case 90:
+                a = 0;
+                b = FIXED_ONE;
+                c = -FIXED_ONE;
+                d = 0;
+                break;
+            case 180:
+                a = -FIXED_ONE;
+                d = -FIXED_ONE;
+                break;
+            case 270:
+                a = 0;
+                b = -FIXED_ONE;
+                c = FIXED_ONE;
+                d = 0;
+                break;
+        }
+        w.u32(a).u32(b).u32(0);
+        w.u32(c).u32(d).u32(0);
+        w.u32(0).u32(0).u32(0x40000000);
+    }
+
+    private static void writeAvc1(BoxWriter w, TrackFormat format) {
+        byte[] sps = null, pps = null;
+        List<byte[]> units = NalUnitUtil.split(format.csd0);
+        units.addAll(NalUnitUtil.split(format.csd1));
+        for (byte[] unit : units) {
+            int type = NalUnitUtil.getNalType(unit);
+            if (type == NalUnitUtil.NAL_TYPE_SPS && sps == null) sps = unit;
+            if (type == NalUnitUtil.NAL_TYPE_PPS && pps == null) pps = unit;
+        }
+        if (sps == null || sps.length < 4 || pps == null)
+            throw new IllegalArgumentException("avc track requires sps and pps");
+
+        int avc1 = w.begin("avc1");
+        w.zeros(6).u16(1);
+        w.u16(0).u16(0).zeros(12);
+        w.u16(format.width).u16(format.height);
+        w.u32(0x00480000).u32(0x00480000);
+        w.u32(0).u16(1);
+        w.zeros(32);
+        w.u16(0x0018).u16(0xFFFF);
+
+        int avcC = w.begin("avcC");
+        w.u8(1).u8(sps[1]).u8(sps[2]).u8(sps[3]);
+        //lengthSizeMinusOne = 3 , 即 4 字节长度前缀
+        w.u8(0xFF);
+        w.u8(0xE1).u16(sps.length).bytes(sps);
+        w.u8(1).u16(pps.length).bytes(pps);
+        w.end(avcC);
+        w.end(avc1);
+    }
+
+    private static void writeMp4a(BoxWriter w, TrackFormat format) {
+        byte[] asc = format.csd0 == null ? new byte[0] : format.csd0;
+        int mp4a = w.begin("mp4a");
+        w.zeros(6).u16(1);
+        w.u32(0).u32(0);
+        w.u16(format.channelCount).u16(16).u16(0).u16(0);
+        w.u32((long) format.sampleRate << 16);
+
+        int esds = w.beginFull("esds", 0, 0);
+        //ES_Descriptor
+        w.u8(0x03).u8(3 + 2 + 13 + 2 + asc.length + 3);
+        w.u16(0).u8(0);
+        //DecoderConfigDescriptor , objectTypeIndication = 0x40 (AAC) , streamType = audio
+        w.u8(0x04).u8(13 + 2 + asc.length);
+        w.u8(0x40).u8(0x15).u24(0);
+        w.u32(format.bitRate).u32(format.bitRate);
+        //DecoderSpecificInfo
+        w.u8(0x05).u8(asc.length).bytes(asc);
+        //SLConfigDescriptor
+        w.u8(0x06).u8(1).u8(0x02);
+        w.end(esds);
+        w.end(mp4a);
+    }
+
+    /**
+     * TextMetaDataSampleEntry , content_encoding 为空 , mime_format 为轨道的 mime
+     */
+    private static void writeMett(BoxWriter w, TrackFormat format) {
+        int mett = w.begin("mett");
+        w.zeros(6).u16(1);
+        w.u8(0);
+        for (int i = 0; i < format.mime.length(); i++) {
+            w.u8(format.mime.charAt(i));
+        }
+        w.u8(0);
+        w.end(mett);
+    }
+}
@@ -0,0 +1,581 @@
+package com.erlei.videorecorder.mp4;
+
+import com.erlei.videorecorder.util.ProgressReporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 流式拼接多个 MP4 文件 , 内存占用只与样本数有关 (基本类型数组) , 与文件大小无关
+ * <p>
+ * 每个文件只读取索引 (Mp4Reader) , 样本数据通过 FileChannel.transferTo() 直接拷贝到输出文件 ,
+ * 合并后的样本表在 finish() 时写入
+ * 输出文件结构为 ftyp + mdat (64 位长度) + moov
+ * faststart 模式下输出 ftyp + moov + mdat , append() 只记录需要拷贝的数据 , finish() 时先写入 moov 再拷贝 ,
+ * 不需要在合并之后再移动一次 mdat
+ * 预留 moov 空间时输出 ftyp + free + mdat , 样本数据立即拷贝 , finish() 时 moov 放得下就写入 free 的位置 ,
+ * 结构为 ftyp + moov + free + mdat , 放不下时写在文件末尾 , 适合增量合并这种 finish() 之前数据已经写完的情况
+ * <p>
+ * 轨道按 handler 类型对应 (第 n 个视频轨道对应第 n 个视频轨道) , 以第一个文件的轨道为准 ,
+ * 样本描述 (SPS / PPS 等) 不同时会添加新的样本描述 , 时间刻度不同时会换算样本时长
+ * <p>
+ * 设置了 ExecutorService 时 , appendAll() 并行读取各个文件的索引 , 按顺序计算每个文件在输出文件中的位置之后 ,
+ * 再并行地把各个文件的样本数据写入各自的位置 (FileChannel 的带位置读写可以并发执行)
+ * 非线程安全
+ */
+public class Mp4Concatenator {
+
+    /**
+     * 每次 transferTo 最多拷贝的字节数 , 用于计算进度
+     */
+    private static final long TRANSFER_CHUNK_BYTES = 4 * 1024 * 1024;
+    private static final int MDAT_HEADER_SIZE = 16;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final List<TrackIndex> mTracks = new ArrayList<>();
+    private final long mMdatOffset;
+    private final boolean mFastStart;
+    private final long mMoovReserveOffset;
+    private final int mMoovReserve;
+    private boolean mMoovAtFront;
+    /**
+     * faststart 模式下还没有拷贝的数据
+     */
+    private final List<PendingCopy> mPendingCopies = new ArrayList<>();
+    /**
+     * 按 ftyp + mdat + moov 结构计算的写入位置 , 非 faststart 模式下就是文件的长度
+     */
+    private long mPosition;
+    private int mPartCount;
+    private boolean mFinished;
+    private ProgressReporter mProgressReporter;
+    private ExecutorService mExecutor;
+    /**
+     * append() 是否只记录需要拷贝的数据 , 由 appendAll() 统一拷贝
+     */
+    private boolean mDeferCopy;
+
+    public Mp4Concatenator(File output) throws IOException {
+        this(output, false);
+    }
+
+    /**
+     * @param fastStart 是否把 moov 写在 mdat 之前 , 播放器不需要读取文件末尾就可以开始播放
+     */
+    public Mp4Concatenator(File output, boolean fastStart) throws IOException {
+        this(output, fastStart, 0);
+    }
+
+    /**
+     * 在 ftyp 之后预留 moov 的空间 , 样本数据立即拷贝 , finish() 时 moov 放得下就写入预留的空间
+     *
+     * @param moovReserveBytes 预留的字节数 , 0 表示不预留 , 否则至少为 8 (free 的头)
+     * @see #isMoovAtFront()
+     */
+    public Mp4Concatenator(File output, int moovReserveBytes) throws IOException {
+        this(output, false, moovReserveBytes);
+    }
+
+    private Mp4Concatenator(File output, boolean fastStart, int moovReserveBytes) throws IOException {
+        if (output == null) throw new IllegalArgumentException("output must not null");
+        if (moovReserveBytes < 0 || (moovReserveBytes > 0 && moovReserveBytes < 8))
+            throw new IllegalArgumentException("moovReserveBytes must be 0 or >= 8");
+        mFastStart = fastStart;
+        mMoovReserve = moovReserveBytes;
+        mFile = new RandomAccessFile(output, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        BoxWriter w = new BoxWriter(64);
+        Mp4Boxes.writeFtyp(w, false);
+        mMoovReserveOffset = w.position();
+        write(w);
+        if (moovReserveBytes > 0) {
+            //free 的内容不需要写入 , 文件中间没有写入的部分都是 0
+            write(freeHeader(w, moovReserveBytes));
+            mPosition = mMoovReserveOffset + moovReserveBytes;
+        }
+        mMdatOffset = mPosition;
+        if (fastStart) {
+            mPosition += MDAT_HEADER_SIZE;
+        } else {
+            write(mdatHeader(w, 0));
+        }
+    }
+
+    /**
+     * 追加一个文件
+     */
+    public void append(File part) throws IOException {
+        append(part, Mp4Reader.read(part));
+    }
+
+    /**
+     * 追加一个文件 , index 必须是这个文件的索引
+     */
+    public void append(File part, MovieIndex index) throws IOException {
+        if (mFinished) throw new IllegalStateException("concatenator already finished");
+        if (index.getSampleCount() == 0) return;
+        if (mTracks.isEmpty()) {
+            for (TrackIndex track : index.tracks) {
+                mTracks.add(track.copyDescription());
+            }
+        }
+        long[] extents = index.getDataExtents();
+        long[] targets = new long[extents.length / 2];
+        if (mFastStart || mDeferCopy) {
+            for (int i = 0; i < extents.length; i += 2) {
+                targets[i / 2] = mPosition;
+                long count = extents[i + 1] - extents[i];
+                mPendingCopies.add(new PendingCopy(part, extents[i], mPosition, count));
+                mPosition += count;
+            }
+        } else {
+            RandomAccessFile raf = new RandomAccessFile(part, "r");
+            try {
+                FileChannel source = raf.getChannel();
+                for (int i = 0; i < extents.length; i += 2) {
+                    targets[i / 2] = mPosition;
+                    transfer(source, extents[i], extents[i + 1] - extents[i]);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        for (int i = 0; i < mTracks.size(); i++) {
+            TrackIndex source = findMatchingTrack(index, i);
+            if (source != null) appendTrack(mTracks.get(i), source, extents, targets);
+        }
+        mPartCount++;
+    }
+
+    /**
+     * 按顺序追加多个文件 , 设置了 ExecutorService 时并行读取索引和拷贝样本数据 , 否则与逐个调用 append() 相同
+     * 发生错误时输出文件的内容是不完整的 , 只能 close() , 不能 rollback()
+     */
+    public void appendAll(List<File> parts) throws IOException {
+        if (mExecutor == null) {
+            for (File part : parts) {
+                append(part);
+            }
+            return;
+        }
+        if (mFinished) throw new IllegalStateException("concatenator already finished");
+        List<Future<MovieIndex>> indexes = new ArrayList<>(parts.size());
+        for (final File part : parts) {
+            indexes.add(mExecutor.submit(new Callable<MovieIndex>() {
+                @Override
+                public MovieIndex call() throws Exception {
+                    return Mp4Reader.read(part);
+                }
+            }));
+        }
+        int pendingStart = mPendingCopies.size();
+        mDeferCopy = true;
+        try {
+            for (int i = 0; i < parts.size(); i++) {
+                append(parts.get(i), await(indexes.get(i)));
+            }
+        } finally {
+            mDeferCopy = false;
+            cancel(indexes);
+        }
+        if (!mFastStart) {
+            List<PendingCopy> copies = mPendingCopies.subList(pendingStart, mPendingCopies.size());
+            copyParallel(copies, 0);
+            copies.clear();
+        }
+    }
+
+    /**
+     * @param executor appendAll() 和 faststart 模式下 finish() 使用的线程池 , null 表示在当前线程中按顺序执行
+     */
+    public void setExecutor(ExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * 记录当前的状态 , 之后可以通过 rollback() 撤销在这之后追加的文件
+     */
+    public Checkpoint checkpoint() {
+        int trackCount = mTracks.size();
+        Checkpoint checkpoint = new Checkpoint(mPosition, mPartCount, mPendingCopies.size(), trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            TrackIndex track = mTracks.get(i);
+            checkpoint.sampleCounts[i] = track.getSampleCount();
+            checkpoint.chunkCounts[i] = track.getChunkCount();
+            checkpoint.sampleEntryCounts[i] = track.sampleEntries.size();
+        }
+        return checkpoint;
+    }
+
+    /**
+     * 撤销 checkpoint 之后追加的文件 , 截断输出文件和索引
+     */
+    public void rollback(Checkpoint checkpoint) throws IOException {
+        if (mFinished) throw new IllegalStateException("concatenator already finished");
+        if (checkpoint.position > mPosition) throw new IllegalArgumentException("invalid checkpoint");
+        if (checkpoint.sampleCounts.length == 0) {
+            mTracks.clear();
+        } else {
+            for (int i = 0; i < mTracks.size(); i++) {
+                TrackIndex track = mTracks.get(i);
+                track.truncate(checkpoint.sampleCounts[i], checkpoint.chunkCounts[i]);
+                List<byte[]> entries = track.sampleEntries;
+                entries.subList(checkpoint.sampleEntryCounts[i], entries.size()).clear();
+            }
+        }
+        mPosition = checkpoint.position;
+        mPartCount = checkpoint.partCount;
+        if (mFastStart) {
+            mPendingCopies.subList(checkpoint.pendingCopyCount, mPendingCopies.size()).clear();
+        } else {
+            mChannel.truncate(mPosition);
+        }
+    }
+
+    /**
+     * 写入 moov , 回填 mdat 大小并关闭文件
+     */
+    public void finish() throws IOException {
+        if (mFinished) return;
+        mFinished = true;
+        try {
+            if (mTracks.isEmpty()) throw new IllegalStateException("no sample appended");
+            long mdatSize = mPosition - mMdatOffset;
+            BoxWriter w = new BoxWriter(64 * 1024);
+            if (mFastStart) {
+                finishFastStart(w, mdatSize);
+                mMoovAtFront = true;
+            } else {
+                MovieIndexWriter.writeMoov(w, mTracks, 0);
+                int freeSize = mMoovReserve - w.position();
+                if (mMoovReserve > 0 && (freeSize == 0 || freeSize >= 8)) {
+                    writeAt(w, mMoovReserveOffset);
+                    if (freeSize > 0) writeAt(freeHeader(w, freeSize), mMoovReserveOffset + mMoovReserve - freeSize);
+                    mMoovAtFront = true;
+                } else {
+                    write(w);
+                }
+                mChannel.write(mdatHeader(w, mdatSize).toBuffer(), mMdatOffset);
+                mFile.setLength(mPosition);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * 先写入 moov , 再按顺序拷贝样本数据
+     * chunk 偏移是按 moov 在末尾计算的 , 需要加上 moov 的大小 , 而 moov 的大小又取决于是否需要 co64 , 所以迭代到大小不变
+     */
+    private void finishFastStart(BoxWriter w, long mdatSize) throws IOException {
+        long moovSize = MovieIndexWriter.measureMoov(mTracks, 0);
+        while (true) {
+            long size = MovieIndexWriter.measureMoov(mTracks, moovSize);
+            if (size == moovSize) break;
+            moovSize = size;
+        }
+        long end = mPosition + moovSize;
+        mPosition = mMdatOffset;
+        MovieIndexWriter.writeMoov(w, mTracks, moovSize);
+        write(w);
+        write(mdatHeader(w, mdatSize));
+        if (mExecutor != null) {
+            copyParallel(mPendingCopies, moovSize);
+            mPosition = end;
+        } else {
+            for (PendingCopy copy : mPendingCopies) {
+                RandomAccessFile raf = new RandomAccessFile(copy.file, "r");
+                try {
+                    transfer(raf.getChannel(), copy.position, copy.count);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+        mPendingCopies.clear();
+        mFile.setLength(mPosition);
+    }
+
+    /**
+     * size = 1 表示使用 64 位的 largesize
+     */
+    private static BoxWriter mdatHeader(BoxWriter w, long mdatSize) {
+        w.clear();
+        w.u32(1).fourcc("mdat").u64(mdatSize);
+        return w;
+    }
+
+    private static BoxWriter freeHeader(BoxWriter w, int size) {
+        w.clear();
+        w.u32(size).fourcc("free");
+        return w;
+    }
+
+    /**
+     * @return finish() 之后 moov 是否在 mdat 之前 , 预留的空间放不下 moov 时返回 false
+     */
+    public boolean isMoovAtFront() {
+        return mMoovAtFront;
+    }
+
+    /**
+     * 放弃拼接 , 关闭文件 , 不会删除输出文件
+     */
+    public void close() throws IOException {
+        mFinished = true;
+        mChannel.close();
+        mFile.close();
+    }
+
+    /**
+     * @param reporter 按写入的字节数计算进度 , 包括样本数据和 moov
+     */
+    public void setProgressReporter(ProgressReporter reporter) {
+        mProgressReporter = reporter;
+    }
+
+    public List<TrackIndex> getTracks() {
+        return mTracks;
+    }
+
+    public int getPartCount() {
+        return mPartCount;
+    }
+
+    /**
+     * @return 已经写入的字节数 (不包括 finish() 写入的 moov)
+     */
+    public long getBytesWritten() {
+        return mPosition;
+    }
+
+    /**
+     * 拼接状态的快照 , 只能用于创建它的 Mp4Concatenator
+     */
+    public static final class Checkpoint {
+        final long position;
+        final int partCount;
+        final int pendingCopyCount;
+        final int[] sampleCounts;
+        final int[] chunkCounts;
+        final int[] sampleEntryCounts;
+
+        Checkpoint(long position, int partCount, int pendingCopyCount, int trackCount) {
+            this.position = position;
+            this.partCount = partCount;
+            this.pendingCopyCount = pendingCopyCount;
+            sampleCounts = new int[trackCount];
+            chunkCounts = new int[trackCount];
+            sampleEntryCounts = new int[trackCount];
+        }
+
+        /**
+         * @return 这个状态下输出文件的长度
+         */
+        public long getPosition() {
+            return position;
+        }
+    }
+
+    private static final class PendingCopy {
+        final File file;
+        final long position;
+        /**
+         * 按 ftyp + mdat + moov 结构计算的写入位置
+         */
+        final long target;
+        final long count;
+
+        PendingCopy(File file, long position, long target, long count) {
+            this.file = file;
+            this.position = position;
+            this.target = target;
+            this.count = count;
+        }
+    }
+
+    /**
+     * 第 n 个轨道对应 index 中相同 handler 类型的第 n 个轨道
+     */
+    private TrackIndex findMatchingTrack(MovieIndex index, int trackIndex) {
+        String handlerType = mTracks.get(trackIndex).handlerType;
+        int ordinal = 0;
+        for (int i = 0; i < trackIndex; i++) {
+            if (mTracks.get(i).handlerType.equals(handlerType)) ordinal++;
+        }
+        for (TrackIndex track : index.tracks) {
+            if (track.handlerType.equals(handlerType) && ordinal-- == 0) return track;
+        }
+        return null;
+    }
+
+    private static void appendTrack(TrackIndex target, TrackIndex source, long[] extents, long[] targets) {
+        int[] descriptionIndexes = new int[source.sampleEntries.size() + 1];
+        for (int i = 0; i < source.sampleEntries.size(); i++) {
+            descriptionIndexes[i + 1] = target.findOrAddSampleEntry(source.sampleEntries.get(i));
+        }
+
+        boolean rescale = source.timescale != target.timescale && source.timescale > 0;
+        long sourceTime = 0, targetTime = 0;
+        for (int i = 0; i < source.getSampleCount(); i++) {
+            int duration = source.sampleDurations.get(i);
+            int compositionOffset = source.hasCompositionOffsets() ? source.compositionOffsets.get(i) : 0;
+            if (rescale) {
+                sourceTime += duration;
+                long end = sourceTime * target.timescale / source.timescale;
+                duration = (int) (end - targetTime);
+                targetTime = end;
+                compositionOffset = (int) ((long) compositionOffset * target.timescale / source.timescale);
+            }
+            target.appendSample(source.sampleSizes.get(i), duration, compositionOffset, source.isSync(i));
+        }
+
+        for (int c = 0; c < source.getChunkCount(); c++) {
+            long offset = source.chunkOffsets.get(c);
+            int extent = findExtent(extents, offset);
+            int descriptionIndex = source.chunkDescriptionIndexes.get(c);
+            if (descriptionIndex <= 0 || descriptionIndex >= descriptionIndexes.length) descriptionIndex = 1;
+            target.appendChunk(targets[extent] + offset - extents[extent * 2], source.chunkSampleCounts.get(c), descriptionIndexes[descriptionIndex]);
+        }
+    }
+
+    /**
+     * @return offset 所在区间的序号
+     */
+    private static int findExtent(long[] extents, long offset) {
+        int low = 0, high = extents.length / 2 - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (extents[mid * 2] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private void transfer(FileChannel source, long position, long count) throws IOException {
+        mChannel.position(mPosition);
+        while (count > 0) {
+            long transferred = source.transferTo(position, Math.min(count, TRANSFER_CHUNK_BYTES), mChannel);
+            if (transferred <= 0) throw new IOException("source is truncated at " + position);
+            position += transferred;
+            count -= transferred;
+            mPosition += transferred;
+            if (mProgressReporter != null) mProgressReporter.add(transferred);
+        }
+    }
+
+    /**
+     * 同一个文件的数据在一个任务中拷贝 , 不同文件的数据并行拷贝
+     *
+     * @param delta 写入位置的偏移 , faststart 模式下等于 moov 的大小
+     */
+    private void copyParallel(List<PendingCopy> copies, final long delta) throws IOException {
+        if (copies.isEmpty()) return;
+        //transferFrom() 不会写入超过文件长度的位置 , 先把文件扩展到最终的长度
+        PendingCopy last = copies.get(copies.size() - 1);
+        long length = last.target + last.count + delta;
+        if (mChannel.size() < length) mFile.setLength(length);
+        List<Future<Void>> tasks = new ArrayList<>();
+        int start = 0;
+        while (start < copies.size()) {
+            int end = start + 1;
+            while (end < copies.size() && copies.get(end).file.equals(copies.get(start).file)) end++;
+            final List<PendingCopy> group = copies.subList(start, end);
+            tasks.add(mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    copyPositional(group, delta);
+                    return null;
+                }
+            }));
+            start = end;
+        }
+        try {
+            for (Future<Void> task : tasks) {
+                await(task);
+            }
+        } finally {
+            cancel(tasks);
+        }
+    }
+
+    private void copyPositional(List<PendingCopy> copies, long delta) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(copies.get(0).file, "r");
+        try {
+            FileChannel source = raf.getChannel();
+            for (PendingCopy copy : copies) {
+                long position = copy.position;
+                long target = copy.target + delta;
+                long count = copy.count;
+                while (count > 0) {
+                    source.position(position);
+                    long transferred = mChannel.transferFrom(source, target, Math.min(count, TRANSFER_CHUNK_BYTES));
+                    if (transferred <= 0) throw new IOException("source is truncated at " + position);
+                    position += transferred;
+                    target += transferred;
+                    count -= transferred;
+                    ProgressReporter reporter = mProgressReporter;
+                    if (reporter != null) {
+                        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                        synchronized (reporter) {
+                            reporter.add(transferred);
+                        }
+                    }
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(String.valueOf(cause));
+        }
+    }
+
+    private static void cancel(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(false);
+        }
+    }
+
+    private void write(BoxWriter w) throws IOException {
+        mPosition = writeAt(w, mPosition);
+    }
+
+    /**
+     * @return 写入之后的位置
+     */
+    private long writeAt(BoxWriter w, long position) throws IOException {
+        ByteBuffer buffer = w.toBuffer();
+        while (buffer.hasRemaining()) {
+            int written = mChannel.write(buffer, position);
+            position += written;
+            if (mProgressReporter != null) mProgressReporter.add(written);
+        }
+        return position;
+    }
+}
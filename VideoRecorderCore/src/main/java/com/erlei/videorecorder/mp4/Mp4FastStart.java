@@ -0,0 +1,167 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * faststart 处理 , 把文件末尾的 moov 移动到 ftyp 之后 , 播放器不需要额外读取文件末尾就可以开始播放
+ * <p>
+ * 在原文件上完成 , 不需要额外的磁盘空间 : 从后往前分块把 ftyp 和 moov 之间的数据向后移动 moov 的大小 ,
+ * 再把修正了 stco / co64 偏移的 moov 写入空出来的位置
+ * 处理过程中进程被杀死会导致文件损坏 , 所以只应该用于还没有交给用户的文件 ,
+ * 合并视频块时优先使用 Mp4Concatenator 的 faststart 模式 , 直接写出最终的结构
+ */
+public final class Mp4FastStart {
+
+    private static final int SHIFT_BUFFER_SIZE = 1024 * 1024;
+    private static final int TYPE_FTYP = Mp4Reader.fourcc("ftyp");
+    private static final int TYPE_TRAK = Mp4Reader.fourcc("trak");
+    private static final int TYPE_MDIA = Mp4Reader.fourcc("mdia");
+    private static final int TYPE_MINF = Mp4Reader.fourcc("minf");
+    private static final int TYPE_STBL = Mp4Reader.fourcc("stbl");
+    private static final int TYPE_STCO = Mp4Reader.fourcc("stco");
+    private static final int TYPE_CO64 = Mp4Reader.fourcc("co64");
+
+    private Mp4FastStart() {
+    }
+
+    /**
+     * @return 是否移动了 moov , moov 已经在 mdat 之前或者是分片 MP4 时返回 false
+     */
+    public static boolean process(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return process(raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static boolean process(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        long ftypEnd = 0, moovOffset = -1, moovSize = 0, mdatOffset = -1;
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long position = 0;
+        while (position + 8 <= fileSize) {
+            header.clear();
+            header.limit(8);
+            Mp4Reader.readFully(channel, header, position);
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            int type = header.getInt(4);
+            if (size == 1) {
+                header.limit(16);
+                Mp4Reader.readFully(channel, header, position + 8);
+                size = header.getLong(8);
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < 8 || position + size > fileSize) throw new IOException("invalid box at " + position);
+            if (type == TYPE_FTYP && position == 0) {
+                ftypEnd = size;
+            } else if (type == Mp4Reader.TYPE_MOOV) {
+                moovOffset = position;
+                moovSize = size;
+            } else if (type == Mp4Reader.TYPE_MOOF) {
+                return false;
+            } else if (type == Mp4Reader.TYPE_MDAT && mdatOffset < 0) {
+                mdatOffset = position;
+            }
+            position += size;
+        }
+        if (moovOffset < 0) throw new IOException("moov not found");
+        if (mdatOffset < 0 || moovOffset < mdatOffset) return false;
+
+        ByteBuffer moov = Mp4Reader.readBox(channel, moovOffset, moovSize);
+        if (!patchChunkOffsets(moov, ftypEnd, moovOffset, moovSize)) {
+            //偏移超过 32 位 , stco 需要换成 co64 , 按索引重新生成 moov
+            moov = rebuildMoov(channel);
+        }
+        long shift = moov.remaining();
+        if (shift != moovSize && moovOffset + moovSize != fileSize) {
+            throw new IOException("moov size changed and it is not the last box");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SHIFT_BUFFER_SIZE);
+        long end = moovOffset;
+        while (end > ftypEnd) {
+            int length = (int) Math.min(SHIFT_BUFFER_SIZE, end - ftypEnd);
+            end -= length;
+            buffer.clear();
+            buffer.limit(length);
+            Mp4Reader.readFully(channel, buffer, end);
+            buffer.flip();
+            writeFully(channel, buffer, end + shift);
+        }
+        writeFully(channel, moov, ftypEnd);
+        if (shift < moovSize) channel.truncate(moovOffset + shift);
+        return true;
+    }
+
+    /**
+     * 给 [start , end) 范围内的 chunk 偏移加上 moov 的大小
+     *
+     * @return false 表示有 stco 的偏移超过了 32 位
+     */
+    private static boolean patchChunkOffsets(ByteBuffer moov, long start, long end, long shift) throws IOException {
+        Mp4Reader.BoxCursor traks = new Mp4Reader.BoxCursor(moov, 8, moov.limit());
+        while (traks.next()) {
+            if (traks.type != TYPE_TRAK) continue;
+            Mp4Reader.BoxCursor mdia = find(traks.children(), TYPE_MDIA);
+            Mp4Reader.BoxCursor minf = mdia == null ? null : find(mdia.children(), TYPE_MINF);
+            Mp4Reader.BoxCursor stbl = minf == null ? null : find(minf.children(), TYPE_STBL);
+            if (stbl == null) continue;
+            Mp4Reader.BoxCursor box = stbl.children();
+            while (box.next()) {
+                if (box.type == TYPE_STCO) {
+                    int count = moov.getInt(box.payload + 4);
+                    for (int i = 0; i < count; i++) {
+                        int p = box.payload + 8 + 4 * i;
+                        long offset = moov.getInt(p) & 0xFFFFFFFFL;
+                        if (offset < start || offset >= end) continue;
+                        offset += shift;
+                        if (offset > 0xFFFFFFFFL) return false;
+                        moov.putInt(p, (int) offset);
+                    }
+                } else if (box.type == TYPE_CO64) {
+                    int count = moov.getInt(box.payload + 4);
+                    for (int i = 0; i < count; i++) {
+                        int p = box.payload + 8 + 8 * i;
+                        long offset = moov.getLong(p);
+                        if (offset >= start && offset < end) moov.putLong(p, offset + shift);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer rebuildMoov(FileChannel channel) throws IOException {
+        List<TrackIndex> tracks = Mp4Reader.read(channel).tracks;
+        long moovSize = MovieIndexWriter.measureMoov(tracks, 0);
+        while (true) {
+            long size = MovieIndexWriter.measureMoov(tracks, moovSize);
+            if (size == moovSize) break;
+            moovSize = size;
+        }
+        BoxWriter w = new BoxWriter((int) moovSize);
+        MovieIndexWriter.writeMoov(w, tracks, moovSize);
+        return w.toBuffer();
+    }
+
+    private static Mp4Reader.BoxCursor find(Mp4Reader.BoxCursor cursor, int type) throws IOException {
+        while (cursor.next()) {
+            if (cursor.type == type) return cursor;
+        }
+        return null;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
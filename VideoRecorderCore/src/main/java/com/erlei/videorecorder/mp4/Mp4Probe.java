@@ -0,0 +1,583 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 只读取 MP4 头部信息 (时长 , 分辨率 , 旋转角度 , 编码格式 , 码率) , 纯 Java 实现
+ * <p>
+ * 与 Mp4Reader 不同 , 这里不读取整个 moov , 只读取 box 头和需要的小 box (mvhd , tkhd , mdhd , hdlr , stsd , trex) ,
+ * 样本表 (stts , stsz , stco 等) 直接跳过 , 所以读取的数据量与视频时长无关 ;
+ * 比 MediaMetadataRetriever 快得多 , 也不需要解码视频帧
+ * 分片 MP4 的 moov 中没有时长 , 时长由最后一个完整的分片 (moof 之后的 mdat 写完整) 计算 ,
+ * 需要遍历文件中所有顶层 box 的头部 , 每个分片两次读取
+ * <p>
+ * readMetadata() 读取定时元数据轨道的样本 , 需要读取完整的索引 , 但不会读取音视频样本
+ *
+ * @see Mp4Reader
+ */
+public final class Mp4Probe {
+
+    /**
+     * 单个需要读取的 box 的最大字节数 , 超过时认为文件损坏
+     */
+    private static final int MAX_LEAF_BYTES = 64 * 1024;
+    /**
+     * 单个元数据样本的最大字节数 , 超过时认为文件损坏
+     */
+    private static final int MAX_METADATA_SAMPLE_BYTES = 1024 * 1024;
+
+    private static final int TYPE_MVHD = Mp4Reader.fourcc("mvhd");
+    private static final int TYPE_TRAK = Mp4Reader.fourcc("trak");
+    private static final int TYPE_TKHD = Mp4Reader.fourcc("tkhd");
+    private static final int TYPE_MDIA = Mp4Reader.fourcc("mdia");
+    private static final int TYPE_MDHD = Mp4Reader.fourcc("mdhd");
+    private static final int TYPE_HDLR = Mp4Reader.fourcc("hdlr");
+    private static final int TYPE_MINF = Mp4Reader.fourcc("minf");
+    private static final int TYPE_STBL = Mp4Reader.fourcc("stbl");
+    private static final int TYPE_STSD = Mp4Reader.fourcc("stsd");
+    private static final int TYPE_MVEX = Mp4Reader.fourcc("mvex");
+    private static final int TYPE_TREX = Mp4Reader.fourcc("trex");
+    private static final int TYPE_TRAF = Mp4Reader.fourcc("traf");
+    private static final int TYPE_TFHD = Mp4Reader.fourcc("tfhd");
+    private static final int TYPE_TFDT = Mp4Reader.fourcc("tfdt");
+    private static final int TYPE_TRUN = Mp4Reader.fourcc("trun");
+    private static final int TYPE_AVC1 = Mp4Reader.fourcc("avc1");
+    private static final int TYPE_AVC3 = Mp4Reader.fourcc("avc3");
+    private static final int TYPE_HVC1 = Mp4Reader.fourcc("hvc1");
+    private static final int TYPE_HEV1 = Mp4Reader.fourcc("hev1");
+    private static final int TYPE_MP4V = Mp4Reader.fourcc("mp4v");
+    private static final int TYPE_MP4A = Mp4Reader.fourcc("mp4a");
+    private static final int TYPE_AVCC = Mp4Reader.fourcc("avcC");
+    private static final int TYPE_ESDS = Mp4Reader.fourcc("esds");
+    private static final int TYPE_METT = Mp4Reader.fourcc("mett");
+
+    private Mp4Probe() {
+    }
+
+    /**
+     * 头部信息 , 没有对应的轨道时相应的字段为 0 或者 null
+     */
+    public static class Result {
+        public long durationUs;
+        public long fileSize;
+        /**
+         * 样本数据的平均码率 (bit/s) , 按 mdat 大小和时长计算
+         */
+        public int bitRate;
+        public boolean fragmented;
+        /**
+         * 视频编码后的宽高 , 不考虑旋转
+         */
+        public int width;
+        public int height;
+        /**
+         * 视频顺时针旋转角度 , 0 , 90 , 180 , 270
+         */
+        public int rotation;
+        public String videoMime;
+        /**
+         * RFC 6381 格式 , 例如 avc1.42801f
+         */
+        public String videoCodec;
+        public String audioMime;
+        public String audioCodec;
+        public int sampleRate;
+        public int channelCount;
+        public int audioBitRate;
+        /**
+         * 定时元数据轨道的 mime , 例如 application/json
+         */
+        public String metadataMime;
+
+        public boolean hasVideo() {
+            return videoMime != null;
+        }
+
+        public boolean hasAudio() {
+            return audioMime != null;
+        }
+
+        public boolean hasMetadata() {
+            return metadataMime != null;
+        }
+
+        public long getDurationMs() {
+            return durationUs / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "durationUs=" + durationUs +
+                    ", fileSize=" + fileSize +
+                    ", bitRate=" + bitRate +
+                    ", fragmented=" + fragmented +
+                    ", width=" + width +
+                    ", height=" + height +
+                    ", rotation=" + rotation +
+                    ", videoCodec='" + videoCodec + '\'' +
+                    ", audioCodec='" + audioCodec + '\'' +
+                    ", sampleRate=" + sampleRate +
+                    ", channelCount=" + channelCount +
+                    ", metadataMime='" + metadataMime + '\'' +
+                    '}';
+        }
+    }
+
+    /**
+     * 定时元数据样本
+     */
+    public static class MetadataSample {
+        /**
+         * 相对于文件开始的时间 (微秒)
+         */
+        public final long timeUs;
+        public final byte[] data;
+
+        public MetadataSample(long timeUs, byte[] data) {
+            this.timeUs = timeUs;
+            this.data = data;
+        }
+
+        @Override
+        public String toString() {
+            return "MetadataSample{" +
+                    "timeUs=" + timeUs +
+                    ", size=" + data.length +
+                    '}';
+        }
+    }
+
+    public static Result probe(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return probe(raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static Result probe(FileChannel channel) throws IOException {
+        Result result = new Result();
+        long fileSize = channel.size();
+        result.fileSize = fileSize;
+        Map<Integer, Track> tracks = new HashMap<>();
+        Track anchor = null;
+        long movieTimescale = 0, movieDuration = 0;
+        long mdatBytes = 0;
+        long pendingMoof = -1, pendingMoofSize = 0;
+        long firstMoof = -1, firstMoofSize = 0, lastMoof = -1, lastMoofSize = 0;
+        boolean moovFound = false;
+
+        Cursor top = new Cursor(channel, 0, fileSize);
+        while (top.next()) {
+            if (top.end > fileSize) {
+                //最后一个 box 不完整 , 例如录制过程中进程被杀死
+                if (top.type == Mp4Reader.TYPE_MOOV) throw new IOException("moov is truncated");
+                break;
+            }
+            if (top.type == Mp4Reader.TYPE_MOOV) {
+                moovFound = true;
+                Cursor moov = top.children();
+                while (moov.next()) {
+                    if (moov.type == TYPE_MVHD) {
+                        ByteBuffer b = moov.read();
+                        int version = b.get(0) & 0xFF;
+                        movieTimescale = b.getInt(version == 1 ? 20 : 12) & 0xFFFFFFFFL;
+                        movieDuration = version == 1 ? b.getLong(24) : b.getInt(16) & 0xFFFFFFFFL;
+                    } else if (moov.type == TYPE_TRAK) {
+                        Track track = parseTrak(moov.children(), result);
+                        if (track == null) continue;
+                        tracks.put(track.trackId, track);
+                        if (track.video && (anchor == null || !anchor.video)) anchor = track;
+                        if (anchor == null) anchor = track;
+                    } else if (moov.type == TYPE_MVEX) {
+                        result.fragmented = true;
+                        Cursor mvex = moov.children();
+                        while (mvex.next()) {
+                            if (mvex.type != TYPE_TREX) continue;
+                            ByteBuffer b = mvex.read();
+                            Track track = tracks.get(b.getInt(4));
+                            if (track != null) track.defaultDuration = b.getInt(12) & 0xFFFFFFFFL;
+                        }
+                    }
+                }
+            } else if (top.type == Mp4Reader.TYPE_MOOF) {
+                pendingMoof = top.start;
+                pendingMoofSize = top.end - top.start;
+            } else if (top.type == Mp4Reader.TYPE_MDAT) {
+                mdatBytes += top.end - top.payload;
+                if (pendingMoof >= 0) {
+                    if (firstMoof < 0) {
+                        firstMoof = pendingMoof;
+                        firstMoofSize = pendingMoofSize;
+                    }
+                    lastMoof = pendingMoof;
+                    lastMoofSize = pendingMoofSize;
+                    pendingMoof = -1;
+                }
+            }
+        }
+        if (!moovFound) throw new IOException("moov not found");
+
+        if (result.fragmented && lastMoof >= 0) {
+            parseMoof(new Cursor(channel, firstMoof, firstMoof + firstMoofSize), tracks, true);
+            parseMoof(new Cursor(channel, lastMoof, lastMoof + lastMoofSize), tracks, false);
+        }
+        long durationUs = 0;
+        if (anchor != null) durationUs = anchor.getDurationUs();
+        if (durationUs <= 0 && movieTimescale > 0) durationUs = movieDuration * 1000000L / movieTimescale;
+        if (durationUs <= 0) {
+            for (Track track : tracks.values()) {
+                durationUs = Math.max(durationUs, track.getDurationUs());
+            }
+        }
+        result.durationUs = durationUs;
+        if (durationUs > 0) result.bitRate = (int) Math.min(Integer.MAX_VALUE, mdatBytes * 8 * 1000000L / durationUs);
+        return result;
+    }
+
+    /**
+     * 读取第一个定时元数据轨道的样本 , 普通 MP4 和分片 MP4 都支持 , 空样本 (第一个样本之前的占位) 会被跳过
+     *
+     * @return 按时间排序的样本 , 没有元数据轨道时返回空列表
+     */
+    public static List<MetadataSample> readMetadata(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return readMetadata(raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static List<MetadataSample> readMetadata(FileChannel channel) throws IOException {
+        List<MetadataSample> samples = new ArrayList<>();
+        TrackIndex track = Mp4Reader.read(channel).getTrack(TrackFormat.HANDLER_METADATA);
+        if (track == null || track.timescale <= 0) return samples;
+        int sample = 0;
+        long time = 0;
+        for (int chunk = 0; chunk < track.getChunkCount(); chunk++) {
+            long offset = track.chunkOffsets.get(chunk);
+            int count = track.chunkSampleCounts.get(chunk);
+            for (int i = 0; i < count && sample < track.getSampleCount(); i++, sample++) {
+                int size = track.sampleSizes.get(sample);
+                if (size < 0 || size > MAX_METADATA_SAMPLE_BYTES) throw new IOException("invalid metadata sample size " + size);
+                if (size > 0) {
+                    ByteBuffer buffer = ByteBuffer.allocate(size);
+                    Mp4Reader.readFully(channel, buffer, offset);
+                    samples.add(new MetadataSample(time * 1000000L / track.timescale, buffer.array()));
+                }
+                offset += size;
+                time += track.sampleDurations.get(sample);
+            }
+        }
+        return samples;
+    }
+
+    private static Track parseTrak(Cursor trak, Result result) throws IOException {
+        Track track = new Track();
+        int rotation = 0;
+        Cursor stsd = null;
+        String handler = null;
+        while (trak.next()) {
+            if (trak.type == TYPE_TKHD) {
+                ByteBuffer b = trak.read();
+                int version = b.get(0) & 0xFF;
+                track.trackId = b.getInt(version == 1 ? 20 : 12);
+                int matrix = version == 1 ? 52 : 40;
+                rotation = getRotation(b.getInt(matrix), b.getInt(matrix + 4));
+            } else if (trak.type == TYPE_MDIA) {
+                Cursor mdia = trak.children();
+                while (mdia.next()) {
+                    if (mdia.type == TYPE_MDHD) {
+                        ByteBuffer b = mdia.read();
+                        int version = b.get(0) & 0xFF;
+                        track.timescale = b.getInt(version == 1 ? 20 : 12) & 0xFFFFFFFFL;
+                        track.duration = version == 1 ? b.getLong(24) : b.getInt(16) & 0xFFFFFFFFL;
+                    } else if (mdia.type == TYPE_HDLR) {
+                        handler = Mp4Reader.fourccToString(mdia.read().getInt(8));
+                    } else if (mdia.type == TYPE_MINF) {
+                        Cursor minf = mdia.children();
+                        while (minf.next()) {
+                            if (minf.type != TYPE_STBL) continue;
+                            Cursor stbl = minf.children();
+                            while (stbl.next()) {
+                                if (stbl.type == TYPE_STSD) stsd = stbl.copy();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        if (handler == null || track.timescale <= 0) return null;
+        track.video = TrackFormat.HANDLER_VIDEO.equals(handler);
+        if (stsd == null) return track;
+        ByteBuffer b = stsd.read();
+        //第一个样本描述 , 跳过 version , flags 和 entry_count
+        if (b.limit() < 16) return track;
+        int entrySize = b.getInt(8);
+        int entryType = b.getInt(12);
+        if (entrySize < 8 || 8 + entrySize > b.limit()) return track;
+        int entry = 16, entryEnd = 8 + entrySize;
+        if (track.video && !result.hasVideo()) {
+            result.rotation = rotation;
+            if (entryEnd - entry >= 28) {
+                result.width = b.getShort(entry + 24) & 0xFFFF;
+                result.height = b.getShort(entry + 26) & 0xFFFF;
+            }
+            result.videoMime = getVideoMime(entryType);
+            result.videoCodec = Mp4Reader.fourccToString(entryType);
+            ByteBuffer avcC = findChild(b, entry + 78, entryEnd, TYPE_AVCC);
+            if (avcC != null && avcC.remaining() >= 4) {
+                result.videoCodec += String.format(Locale.US, ".%02x%02x%02x",
+                        avcC.get(avcC.position() + 1) & 0xFF, avcC.get(avcC.position() + 2) & 0xFF, avcC.get(avcC.position() + 3) & 0xFF);
+            }
+        } else if (TrackFormat.HANDLER_AUDIO.equals(handler) && !result.hasAudio()) {
+            if (entryEnd - entry >= 28) {
+                result.channelCount = b.getShort(entry + 16) & 0xFFFF;
+                result.sampleRate = b.getInt(entry + 24) >>> 16;
+            }
+            result.audioMime = entryType == TYPE_MP4A ? TrackFormat.MIME_AAC : "audio/" + Mp4Reader.fourccToString(entryType);
+            result.audioCodec = Mp4Reader.fourccToString(entryType);
+            ByteBuffer esds = findChild(b, entry + 28, entryEnd, TYPE_ESDS);
+            if (esds != null) parseEsds(esds, result);
+        } else if (TrackFormat.HANDLER_METADATA.equals(handler) && entryType == TYPE_METT && !result.hasMetadata()) {
+            //跳过 reserved , data_reference_index 和 content_encoding
+            int p = entry + 8;
+            while (p < entryEnd && b.get(p) != 0) p++;
+            result.metadataMime = readString(b, p + 1, entryEnd);
+        }
+        return track;
+    }
+
+    /**
+     * 分片 MP4 每个轨道的时长 : 最后一个完整分片的 tfdt + 分片中样本时长的和 - 第一个分片的 tfdt
+     * (从直播中途开始保存的文件 , 第一个分片的 tfdt 不是 0)
+     *
+     * @param first 是否是第一个分片 , 是时只读取 tfdt
+     */
+    private static void parseMoof(Cursor moof, Map<Integer, Track> tracks, boolean first) throws IOException {
+        if (!moof.next()) return;
+        ByteBuffer b = moof.read();
+        Mp4Reader.BoxCursor cursor = new Mp4Reader.BoxCursor(b, 0, b.limit());
+        while (cursor.next()) {
+            if (cursor.type != TYPE_TRAF) continue;
+            Mp4Reader.BoxCursor traf = cursor.children();
+            Track track = null;
+            long decodeTime = -1, defaultDuration = 0, durations = 0;
+            while (traf.next()) {
+                int p = traf.payload;
+                if (traf.type == TYPE_TFHD) {
+                    int flags = b.getInt(p) & 0xFFFFFF;
+                    track = tracks.get(b.getInt(p + 4));
+                    if (track == null) break;
+                    defaultDuration = track.defaultDuration;
+                    p += 8;
+                    if ((flags & 0x1) != 0) p += 8;
+                    if ((flags & 0x2) != 0) p += 4;
+                    if ((flags & 0x8) != 0) defaultDuration = b.getInt(p) & 0xFFFFFFFFL;
+                } else if (track == null) {
+                    break;
+                } else if (traf.type == TYPE_TFDT) {
+                    int version = b.get(p) & 0xFF;
+                    decodeTime = version == 1 ? b.getLong(p + 4) : b.getInt(p + 4) & 0xFFFFFFFFL;
+                } else if (traf.type == TYPE_TRUN) {
+                    int flags = b.getInt(p) & 0xFFFFFF;
+                    int count = b.getInt(p + 4);
+                    p += 8;
+                    if ((flags & 0x1) != 0) p += 4;
+                    if ((flags & 0x4) != 0) p += 4;
+                    int fieldCount = Integer.bitCount(flags & 0xF00);
+                    for (int i = 0; i < count; i++) {
+                        durations += (flags & 0x100) != 0 ? b.getInt(p) & 0xFFFFFFFFL : defaultDuration;
+                        p += 4 * fieldCount;
+                    }
+                }
+            }
+            if (track == null || decodeTime < 0) continue;
+            if (first) {
+                track.startTime = decodeTime;
+            } else {
+                track.duration = decodeTime + durations - track.startTime;
+            }
+        }
+    }
+
+    private static void parseEsds(ByteBuffer esds, Result result) {
+        //跳过 version 和 flags
+        int p = esds.position() + 4;
+        int end = esds.limit();
+        while (p + 2 <= end) {
+            int tag = esds.get(p++) & 0xFF;
+            int length = 0;
+            for (int i = 0; i < 4 && p < end; i++) {
+                int value = esds.get(p++) & 0xFF;
+                length = (length << 7) | (value & 0x7F);
+                if ((value & 0x80) == 0) break;
+            }
+            if (tag == 0x03) {
+                //ES_Descriptor : ES_ID , flags , 以及 flags 表示的可选字段 , 之后是子描述符
+                int flags = esds.get(p + 2) & 0xFF;
+                p += 3;
+                if ((flags & 0x80) != 0) p += 2;
+                if ((flags & 0x40) != 0 && p < end) p += 1 + (esds.get(p) & 0xFF);
+                if ((flags & 0x20) != 0) p += 2;
+            } else if (tag == 0x04) {
+                //DecoderConfigDescriptor
+                if (p + 13 > end) return;
+                result.audioBitRate = esds.getInt(p + 9);
+                p += 13;
+            } else if (tag == 0x05) {
+                //DecoderSpecificInfo , AudioSpecificConfig 的前 5 位是 audioObjectType
+                if (length > 0 && p < end) {
+                    result.audioCodec = String.format(Locale.US, "%s.40.%d", result.audioCodec, (esds.get(p) & 0xFF) >> 3);
+                }
+                return;
+            } else {
+                p += length;
+            }
+        }
+    }
+
+    /**
+     * @return [start , end) 中 type 类型的子 box 的 payload , position 为 payload 开始 , limit 为结尾
+     */
+    private static ByteBuffer findChild(ByteBuffer b, int start, int end, int type) throws IOException {
+        if (start >= end) return null;
+        Mp4Reader.BoxCursor cursor = new Mp4Reader.BoxCursor(b, start, end);
+        while (cursor.next()) {
+            if (cursor.type != type) continue;
+            ByteBuffer view = b.duplicate().order(ByteOrder.BIG_ENDIAN);
+            view.limit(cursor.end);
+            view.position(cursor.payload);
+            return view;
+        }
+        return null;
+    }
+
+    /**
+     * @return 以 0 结尾的字符串 , 没有结尾时读取到 end
+     */
+    private static String readString(ByteBuffer b, int start, int end) {
+        StringBuilder builder = new StringBuilder();
+        for (int p = start; p < end && b.get(p) != 0; p++) {
+            builder.append((char) (b.get(p) & 0xFF));
+        }
+        return builder.toString();
+    }
+
+    private static int getRotation(int a, int b) {
+        if (a == 0 && b > 0) return 90;
+        if (a < 0 && b == 0) return 180;
+        if (a == 0 && b < 0) return 270;
+        return 0;
+    }
+
+    private static String getVideoMime(int type) {
+        if (type == TYPE_AVC1 || type == TYPE_AVC3) return TrackFormat.MIME_AVC;
+        if (type == TYPE_HVC1 || type == TYPE_HEV1) return "video/hevc";
+        if (type == TYPE_MP4V) return "video/mp4v-es";
+        return "video/" + Mp4Reader.fourccToString(type);
+    }
+
+    private static class Track {
+        int trackId;
+        boolean video;
+        long timescale;
+        long duration;
+        long defaultDuration;
+        /**
+         * 分片 MP4 第一个分片的解码时间
+         */
+        long startTime;
+
+        long getDurationUs() {
+            return timescale <= 0 ? 0 : duration * 1000000L / timescale;
+        }
+    }
+
+    /**
+     * 直接在文件上遍历 [start , end) 范围内的 box , 只读取 box 头 , 需要时再读取 box 内容
+     */
+    private static final class Cursor {
+        private final FileChannel mChannel;
+        private final ByteBuffer mHeader = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
+        private final long mEnd;
+        private long mNext;
+        long start;
+        int type;
+        long payload;
+        /**
+         * box 的结尾 , 顶层的最后一个 box 可能超过文件大小 (不完整)
+         */
+        long end;
+
+        Cursor(FileChannel channel, long start, long end) {
+            mChannel = channel;
+            mNext = start;
+            mEnd = end;
+        }
+
+        boolean next() throws IOException {
+            if (mNext + 8 > mEnd) return false;
+            start = mNext;
+            mHeader.clear();
+            mHeader.limit(8);
+            Mp4Reader.readFully(mChannel, mHeader, start);
+            long size = mHeader.getInt(0) & 0xFFFFFFFFL;
+            type = mHeader.getInt(4);
+            payload = start + 8;
+            if (size == 1) {
+                if (start + 16 > mEnd) return false;
+                mHeader.limit(16);
+                Mp4Reader.readFully(mChannel, mHeader, start + 8);
+                size = mHeader.getLong(8);
+                payload = start + 16;
+            } else if (size == 0) {
+                size = mEnd - start;
+            }
+            if (size < payload - start) throw new IOException("invalid box " + Mp4Reader.fourccToString(type) + " size " + size);
+            end = start + size;
+            mNext = end;
+            return true;
+        }
+
+        Cursor children() {
+            return new Cursor(mChannel, payload, Math.min(end, mEnd));
+        }
+
+        Cursor copy() {
+            Cursor cursor = new Cursor(mChannel, start, end);
+            cursor.start = start;
+            cursor.type = type;
+            cursor.payload = payload;
+            cursor.end = end;
+            return cursor;
+        }
+
+        /**
+         * @return box 的内容 (不包括 box 头) , position 为 0
+         */
+        ByteBuffer read() throws IOException {
+            long size = end - payload;
+            if (size > MAX_LEAF_BYTES || end > mEnd) {
+                throw new IOException("box " + Mp4Reader.fourccToString(type) + " too large or truncated " + size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.BIG_ENDIAN);
+            Mp4Reader.readFully(mChannel, buffer, payload);
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
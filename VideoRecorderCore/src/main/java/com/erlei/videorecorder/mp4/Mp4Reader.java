@@ -0,0 +1,462 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MP4 索引读取器 , 只读取 moov (分片 MP4 还会读取 moof) , 不读取样本数据
+ * <p>
+ * 支持 MediaMuxer 生成的普通 MP4 和 FragmentedMp4Writer 生成的分片 MP4 ,
+ * 分片 MP4 末尾不完整的分片 (例如录制过程中进程被杀死) 会被忽略
+ */
+public final class Mp4Reader {
+
+    static final int TYPE_MOOV = fourcc("moov");
+    static final int TYPE_MOOF = fourcc("moof");
+    static final int TYPE_MDAT = fourcc("mdat");
+    private static final int TYPE_MVHD = fourcc("mvhd");
+    private static final int TYPE_MVEX = fourcc("mvex");
+    private static final int TYPE_TREX = fourcc("trex");
+    private static final int TYPE_TRAK = fourcc("trak");
+    private static final int TYPE_TKHD = fourcc("tkhd");
+    private static final int TYPE_MDIA = fourcc("mdia");
+    private static final int TYPE_MDHD = fourcc("mdhd");
+    private static final int TYPE_HDLR = fourcc("hdlr");
+    private static final int TYPE_MINF = fourcc("minf");
+    private static final int TYPE_VMHD = fourcc("vmhd");
+    private static final int TYPE_SMHD = fourcc("smhd");
+    private static final int TYPE_NMHD = fourcc("nmhd");
+    private static final int TYPE_STBL = fourcc("stbl");
+    private static final int TYPE_STSD = fourcc("stsd");
+    private static final int TYPE_STTS = fourcc("stts");
+    private static final int TYPE_CTTS = fourcc("ctts");
+    private static final int TYPE_STSS = fourcc("stss");
+    private static final int TYPE_STSZ = fourcc("stsz");
+    private static final int TYPE_STZ2 = fourcc("stz2");
+    private static final int TYPE_STSC = fourcc("stsc");
+    private static final int TYPE_STCO = fourcc("stco");
+    private static final int TYPE_CO64 = fourcc("co64");
+    private static final int TYPE_TRAF = fourcc("traf");
+    private static final int TYPE_TFHD = fourcc("tfhd");
+    private static final int TYPE_TFDT = fourcc("tfdt");
+    private static final int TYPE_TRUN = fourcc("trun");
+
+    private static final int SAMPLE_IS_NON_SYNC = 0x00010000;
+
+    private Mp4Reader() {
+    }
+
+    public static MovieIndex read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return read(raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static MovieIndex read(FileChannel channel) throws IOException {
+        MovieIndex index = new MovieIndex();
+        long fileSize = channel.size();
+        index.fileSize = fileSize;
+        LongArray moofs = new LongArray(16);
+        Map<Integer, int[]> trackExtends = new HashMap<>();
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
+        long position = 0;
+        while (position + 8 <= fileSize) {
+            header.clear();
+            header.limit(8);
+            readFully(channel, header, position);
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            int type = header.getInt(4);
+            int headerSize = 8;
+            if (size == 1) {
+                header.limit(16);
+                readFully(channel, header, position + 8);
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerSize) throw new IOException("invalid box size " + size + " at " + position);
+            if (position + size > fileSize) {
+                //最后一个 box 不完整
+                if (type == TYPE_MOOV) throw new IOException("moov is truncated");
+                break;
+            }
+            if (type == TYPE_MOOV) {
+                index.moovOffset = position;
+                index.moovSize = size;
+                parseMoov(readBox(channel, position, size), index, trackExtends);
+            } else if (type == TYPE_MOOF) {
+                moofs.add(position);
+                moofs.add(size);
+            }
+            position += size;
+        }
+        if (index.moovOffset < 0) throw new IOException("moov not found");
+        if (!moofs.isEmpty()) {
+            index.fragmented = true;
+            Map<Integer, Long> baseDecodeTimes = new HashMap<>();
+            for (int i = 0; i < moofs.size(); i += 2) {
+                ByteBuffer moof = readBox(channel, moofs.get(i), moofs.get(i + 1));
+                if (!parseMoof(moof, moofs.get(i), index, trackExtends, baseDecodeTimes)) break;
+            }
+        }
+        return index;
+    }
+
+    private static void parseMoov(ByteBuffer moov, MovieIndex index, Map<Integer, int[]> trackExtends) throws IOException {
+        BoxCursor cursor = new BoxCursor(moov, 8, moov.limit());
+        while (cursor.next()) {
+            if (cursor.type == TYPE_MVHD) {
+                int version = moov.get(cursor.payload) & 0xFF;
+                index.movieTimescale = moov.getInt(cursor.payload + (version == 1 ? 20 : 12));
+            } else if (cursor.type == TYPE_TRAK) {
+                TrackIndex track = parseTrak(moov, cursor.payload, cursor.end);
+                if (track != null) index.tracks.add(track);
+            } else if (cursor.type == TYPE_MVEX) {
+                BoxCursor mvex = cursor.children();
+                while (mvex.next()) {
+                    if (mvex.type != TYPE_TREX) continue;
+                    int p = mvex.payload + 4;
+                    //default_sample_description_index , default_sample_duration , default_sample_size , default_sample_flags
+                    trackExtends.put(moov.getInt(p), new int[]{moov.getInt(p + 4), moov.getInt(p + 8), moov.getInt(p + 12), moov.getInt(p + 16)});
+                }
+            }
+        }
+    }
+
+    private static TrackIndex parseTrak(ByteBuffer b, int start, int end) throws IOException {
+        TrackIndex track = new TrackIndex();
+        int stbl = -1, stblEnd = -1;
+        BoxCursor trak = new BoxCursor(b, start, end);
+        while (trak.next()) {
+            if (trak.type == TYPE_TKHD) {
+                track.tkhd = trak.bytes();
+                int version = b.get(trak.payload) & 0xFF;
+                track.trackId = b.getInt(trak.payload + (version == 1 ? 20 : 12));
+            } else if (trak.type == TYPE_MDIA) {
+                BoxCursor mdia = trak.children();
+                while (mdia.next()) {
+                    if (mdia.type == TYPE_MDHD) {
+                        track.mdhd = mdia.bytes();
+                        int version = b.get(mdia.payload) & 0xFF;
+                        track.timescale = b.getInt(mdia.payload + (version == 1 ? 20 : 12));
+                    } else if (mdia.type == TYPE_HDLR) {
+                        track.hdlr = mdia.bytes();
+                        track.handlerType = fourccToString(b.getInt(mdia.payload + 8));
+                    } else if (mdia.type == TYPE_MINF) {
+                        BoxCursor minf = mdia.children();
+                        while (minf.next()) {
+                            if (minf.type == TYPE_VMHD || minf.type == TYPE_SMHD || minf.type == TYPE_NMHD) {
+                                track.mediaHeader = minf.bytes();
+                            } else if (minf.type == TYPE_STBL) {
+                                stbl = minf.payload;
+                                stblEnd = minf.end;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        if (track.tkhd == null || track.mdhd == null || track.handlerType == null || stbl < 0) return null;
+        parseStbl(b, stbl, stblEnd, track);
+        return track;
+    }
+
+    private static void parseStbl(ByteBuffer b, int start, int end, TrackIndex track) throws IOException {
+        int stts = -1, ctts = -1, stss = -1, stsz = -1, stz2 = -1, stsc = -1, stco = -1, co64 = -1;
+        BoxCursor stbl = new BoxCursor(b, start, end);
+        while (stbl.next()) {
+            int type = stbl.type;
+            if (type == TYPE_STSD) {
+                BoxCursor entries = new BoxCursor(b, stbl.payload + 8, stbl.end);
+                while (entries.next()) {
+                    track.sampleEntries.add(entries.bytes());
+                }
+            } else if (type == TYPE_STTS) {
+                stts = stbl.payload;
+            } else if (type == TYPE_CTTS) {
+                ctts = stbl.payload;
+            } else if (type == TYPE_STSS) {
+                stss = stbl.payload;
+            } else if (type == TYPE_STSZ) {
+                stsz = stbl.payload;
+            } else if (type == TYPE_STZ2) {
+                stz2 = stbl.payload;
+            } else if (type == TYPE_STSC) {
+                stsc = stbl.payload;
+            } else if (type == TYPE_STCO) {
+                stco = stbl.payload;
+            } else if (type == TYPE_CO64) {
+                co64 = stbl.payload;
+            }
+        }
+
+        int sampleCount = stsz >= 0 ? b.getInt(stsz + 8) : stz2 >= 0 ? b.getInt(stz2 + 8) : 0;
+        int uniformSize = stsz >= 0 ? b.getInt(stsz + 4) : 0;
+        int fieldSize = stz2 >= 0 ? b.get(stz2 + 7) & 0xFF : 32;
+
+        int sttsEntries = stts >= 0 ? b.getInt(stts + 4) : 0;
+        int sttsEntry = 0, sttsRemaining = 0, delta = 0;
+        int cttsEntries = ctts >= 0 ? b.getInt(ctts + 4) : 0;
+        int cttsEntry = 0, cttsRemaining = 0, compositionOffset = 0;
+        int stssEntries = stss >= 0 ? b.getInt(stss + 4) : 0;
+        int stssEntry = 0;
+
+        for (int i = 0; i < sampleCount; i++) {
+            int size;
+            if (stsz >= 0) {
+                size = uniformSize != 0 ? uniformSize : b.getInt(stsz + 12 + 4 * i);
+            } else if (fieldSize == 16) {
+                size = b.getShort(stz2 + 12 + 2 * i) & 0xFFFF;
+            } else if (fieldSize == 8) {
+                size = b.get(stz2 + 12 + i) & 0xFF;
+            } else {
+                int value = b.get(stz2 + 12 + i / 2) & 0xFF;
+                size = (i & 1) == 0 ? value >> 4 : value & 0x0F;
+            }
+            while (sttsRemaining == 0 && sttsEntry < sttsEntries) {
+                sttsRemaining = b.getInt(stts + 8 + 8 * sttsEntry);
+                delta = b.getInt(stts + 12 + 8 * sttsEntry);
+                sttsEntry++;
+            }
+            sttsRemaining--;
+            while (cttsRemaining == 0 && cttsEntry < cttsEntries) {
+                cttsRemaining = b.getInt(ctts + 8 + 8 * cttsEntry);
+                compositionOffset = b.getInt(ctts + 12 + 8 * cttsEntry);
+                cttsEntry++;
+            }
+            if (cttsRemaining > 0) {
+                cttsRemaining--;
+            } else {
+                compositionOffset = 0;
+            }
+            boolean sync = true;
+            if (stss >= 0) {
+                sync = stssEntry < stssEntries && b.getInt(stss + 8 + 4 * stssEntry) == i + 1;
+                if (sync) stssEntry++;
+            }
+            track.appendSample(size, delta, compositionOffset, sync);
+        }
+
+        int chunkCount = stco >= 0 ? b.getInt(stco + 4) : co64 >= 0 ? b.getInt(co64 + 4) : 0;
+        int stscEntries = stsc >= 0 ? b.getInt(stsc + 4) : 0;
+        int stscEntry = -1, samplesPerChunk = 0, descriptionIndex = 1;
+        int remaining = sampleCount;
+        for (int c = 0; c < chunkCount && remaining > 0; c++) {
+            while (stscEntry + 1 < stscEntries && b.getInt(stsc + 8 + 12 * (stscEntry + 1)) <= c + 1) {
+                stscEntry++;
+                samplesPerChunk = b.getInt(stsc + 12 + 12 * stscEntry);
+                descriptionIndex = b.getInt(stsc + 16 + 12 * stscEntry);
+            }
+            long offset = stco >= 0 ? b.getInt(stco + 8 + 4 * c) & 0xFFFFFFFFL : b.getLong(co64 + 8 + 8 * c);
+            int count = Math.min(samplesPerChunk, remaining);
+            track.appendChunk(offset, count, descriptionIndex);
+            remaining -= count;
+        }
+        if (remaining > 0) {
+            throw new IOException("chunk table of track " + track.trackId + " is missing " + remaining + " samples");
+        }
+    }
+
+    /**
+     * @return false 表示遇到了不完整的分片 , 后面的分片不再解析
+     */
+    private static boolean parseMoof(ByteBuffer moof, long moofOffset, MovieIndex index,
+                                     Map<Integer, int[]> trackExtends, Map<Integer, Long> baseDecodeTimes) throws IOException {
+        long dataEnd = moofOffset;
+        BoxCursor cursor = new BoxCursor(moof, 8, moof.limit());
+        while (cursor.next()) {
+            if (cursor.type != TYPE_TRAF) continue;
+            TrackIndex track = null;
+            int[] defaults = null;
+            long base = 0;
+            int descriptionIndex = 1, defaultDuration = 0, defaultSize = 0, defaultFlags = 0;
+            BoxCursor traf = cursor.children();
+            while (traf.next()) {
+                int p = traf.payload;
+                if (traf.type == TYPE_TFHD) {
+                    int flags = moof.getInt(p) & 0xFFFFFF;
+                    int trackId = moof.getInt(p + 4);
+                    track = index.getTrackById(trackId);
+                    defaults = trackExtends.get(trackId);
+                    if (defaults != null) {
+                        descriptionIndex = defaults[0];
+                        defaultDuration = defaults[1];
+                        defaultSize = defaults[2];
+                        defaultFlags = defaults[3];
+                    }
+                    p += 8;
+                    if ((flags & 0x1) != 0) {
+                        base = moof.getLong(p);
+                        p += 8;
+                    } else {
+                        base = (flags & 0x20000) != 0 ? moofOffset : dataEnd;
+                    }
+                    if ((flags & 0x2) != 0) {
+                        descriptionIndex = moof.getInt(p);
+                        p += 4;
+                    }
+                    if ((flags & 0x8) != 0) {
+                        defaultDuration = moof.getInt(p);
+                        p += 4;
+                    }
+                    if ((flags & 0x10) != 0) {
+                        defaultSize = moof.getInt(p);
+                        p += 4;
+                    }
+                    if ((flags & 0x20) != 0) {
+                        defaultFlags = moof.getInt(p);
+                    }
+                    dataEnd = base;
+                } else if (track == null) {
+                    continue;
+                } else if (traf.type == TYPE_TFDT) {
+                    int version = moof.get(p) & 0xFF;
+                    long decodeTime = version == 1 ? moof.getLong(p + 4) : moof.getInt(p + 4) & 0xFFFFFFFFL;
+                    Long baseDecodeTime = baseDecodeTimes.get(track.trackId);
+                    if (baseDecodeTime == null) {
+                        baseDecodeTimes.put(track.trackId, decodeTime - track.getDuration());
+                    } else {
+                        //上一个分片最后一个样本的时长是估算的 , 按这个分片的解码时间修正
+                        track.adjustLastDuration((int) (decodeTime - baseDecodeTime - track.getDuration()));
+                    }
+                } else if (traf.type == TYPE_TRUN) {
+                    int flags = moof.getInt(p) & 0xFFFFFF;
+                    int count = moof.getInt(p + 4);
+                    p += 8;
+                    long chunkOffset = dataEnd;
+                    if ((flags & 0x1) != 0) {
+                        chunkOffset = base + moof.getInt(p);
+                        p += 4;
+                    }
+                    int firstFlags = defaultFlags;
+                    if ((flags & 0x4) != 0) {
+                        firstFlags = moof.getInt(p);
+                        p += 4;
+                    }
+                    int sampleCount = track.getSampleCount();
+                    int chunkCount = track.getChunkCount();
+                    long bytes = 0;
+                    for (int i = 0; i < count; i++) {
+                        int duration = defaultDuration, size = defaultSize;
+                        int sampleFlags = i == 0 ? firstFlags : defaultFlags, compositionOffset = 0;
+                        if ((flags & 0x100) != 0) {
+                            duration = moof.getInt(p);
+                            p += 4;
+                        }
+                        if ((flags & 0x200) != 0) {
+                            size = moof.getInt(p);
+                            p += 4;
+                        }
+                        if ((flags & 0x400) != 0) {
+                            sampleFlags = moof.getInt(p);
+                            p += 4;
+                        }
+                        if ((flags & 0x800) != 0) {
+                            compositionOffset = moof.getInt(p);
+                            p += 4;
+                        }
+                        track.appendSample(size, duration, compositionOffset, (sampleFlags & SAMPLE_IS_NON_SYNC) == 0);
+                        bytes += size;
+                    }
+                    if (chunkOffset + bytes > index.fileSize) {
+                        //样本数据没有写完整
+                        track.truncate(sampleCount, chunkCount);
+                        return false;
+                    }
+                    if (count > 0) track.appendChunk(chunkOffset, count, descriptionIndex);
+                    dataEnd = chunkOffset + bytes;
+                }
+            }
+        }
+        return true;
+    }
+
+    static ByteBuffer readBox(FileChannel channel, long position, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) throw new IOException("box too large " + size);
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.BIG_ENDIAN);
+        readFully(channel, buffer, position);
+        buffer.flip();
+        return buffer;
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("unexpected end of file at " + position);
+            position += read;
+        }
+    }
+
+    static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    static String fourccToString(int type) {
+        return new String(new char[]{(char) ((type >> 24) & 0xFF), (char) ((type >> 16) & 0xFF), (char) ((type >> 8) & 0xFF), (char) (type & 0xFF)});
+    }
+
+    /**
+     * 遍历 [start , end) 范围内的子 box
+     */
+    static final class BoxCursor {
+        private final ByteBuffer mBuffer;
+        private final int mEnd;
+        private int mNext;
+        int start;
+        int type;
+        /**
+         * box 头之后的位置 , FullBox 的 version 和 flags 也算在 payload 里
+         */
+        int payload;
+        int end;
+
+        BoxCursor(ByteBuffer buffer, int start, int end) {
+            mBuffer = buffer;
+            mNext = start;
+            mEnd = end;
+        }
+
+        boolean next() throws IOException {
+            if (mNext + 8 > mEnd) return false;
+            start = mNext;
+            long size = mBuffer.getInt(start) & 0xFFFFFFFFL;
+            type = mBuffer.getInt(start + 4);
+            payload = start + 8;
+            if (size == 1) {
+                size = mBuffer.getLong(start + 8);
+                payload = start + 16;
+            } else if (size == 0) {
+                size = mEnd - start;
+            }
+            if (size < payload - start || start + size > mEnd) {
+                throw new IOException("invalid box " + fourccToString(type) + " size " + size);
+            }
+            end = (int) (start + size);
+            mNext = end;
+            return true;
+        }
+
+        BoxCursor children() {
+            return new BoxCursor(mBuffer, payload, end);
+        }
+
+        byte[] bytes() {
+            byte[] bytes = new byte[end - start];
+            ByteBuffer view = mBuffer.duplicate();
+            view.limit(end);
+            view.position(start);
+            view.get(bytes);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 无损裁剪 MP4 , 不解码也不重新编码 , 只重写样本表并拷贝保留的 mdat 数据 , 纯 Java 实现
+ * <p>
+ * 以视频轨道 (没有视频时为第一个轨道) 为准 : 开始位置向前对齐到关键帧 , 结束位置对齐到样本边界
+ * (有 B 帧 (ctts) 时向后对齐到下一个关键帧 , 避免最后几帧缺少参考帧) ,
+ * 其他轨道保留解码时间在 [开始 , 结束) 之间的样本
+ * 保留的样本按原来在文件中的顺序拷贝 , 相邻的样本合并为一次拷贝
+ * 输出文件结构为 ftyp + mdat (64 位长度) + moov
+ *
+ * @see Mp4Reader
+ */
+public final class Mp4Trimmer {
+
+    private static final int MDAT_HEADER_SIZE = 16;
+
+    private Mp4Trimmer() {
+    }
+
+    /**
+     * 裁剪结果 , 实际保留的时间范围 (对齐到关键帧之后)
+     */
+    public static class Result {
+        public final long startUs;
+        public final long endUs;
+        public final int sampleCount;
+
+        Result(long startUs, long endUs, int sampleCount) {
+            this.startUs = startUs;
+            this.endUs = endUs;
+            this.sampleCount = sampleCount;
+        }
+
+        public long getDurationUs() {
+            return endUs - startUs;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "startUs=" + startUs +
+                    ", endUs=" + endUs +
+                    ", sampleCount=" + sampleCount +
+                    '}';
+        }
+    }
+
+    /**
+     * @param input   输入文件
+     * @param output  输出文件 , 不能与 input 相同 , 如果已存在会被覆盖
+     * @param startUs 开始时间 , 会向前对齐到关键帧 , <= 0 表示从头开始
+     * @param endUs   结束时间 (不包括) , < 0 表示到结尾
+     * @return 实际保留的时间范围
+     */
+    public static Result trim(File input, File output, long startUs, long endUs) throws IOException {
+        if (input == null) throw new IllegalArgumentException("input must not null");
+        if (output == null) throw new IllegalArgumentException("output must not null");
+        if (input.equals(output)) throw new IllegalArgumentException("output must not be input");
+        return trim(input, Mp4Reader.read(input), output, startUs, endUs);
+    }
+
+    /**
+     * @param index input 的索引
+     */
+    public static Result trim(File input, MovieIndex index, File output, long startUs, long endUs) throws IOException {
+        if (index.tracks.isEmpty()) throw new IOException("no track in " + input);
+        TrackIndex reference = index.getTrack("vide");
+        if (reference == null) reference = index.tracks.get(0);
+
+        //参考轨道的裁剪范围
+        SampleTimes times = new SampleTimes(reference);
+        int count = reference.getSampleCount();
+        int first = startUs <= 0 ? 0 : times.indexAtOrBefore(toTimescale(startUs, reference.timescale));
+        while (first > 0 && !reference.isSync(first)) first--;
+        int last = endUs < 0 ? count : times.indexAtOrAfter(toTimescale(endUs, reference.timescale));
+        if (reference.hasCompositionOffsets()) {
+            while (last < count && !reference.isSync(last)) last++;
+        }
+        if (last <= first) throw new IllegalArgumentException("empty trim range " + startUs + " - " + endUs);
+        long keepStartUs = toUs(times.get(first), reference.timescale);
+        long keepEndUs = toUs(times.get(last), reference.timescale);
+
+        //每个轨道保留的样本 , 以及样本在输入文件中的位置
+        List<Selection> selections = new ArrayList<>(index.tracks.size());
+        for (TrackIndex track : index.tracks) {
+            Selection selection;
+            if (track == reference) {
+                selection = new Selection(track, first, last);
+            } else {
+                SampleTimes t = new SampleTimes(track);
+                int from = t.indexAtOrAfter(toTimescale(keepStartUs, track.timescale));
+                int to = t.indexAtOrAfter(toTimescale(keepEndUs, track.timescale));
+                selection = new Selection(track, from, to);
+            }
+            if (selection.isEmpty()) continue;
+            selection.resolveOffsets();
+            selections.add(selection);
+        }
+
+        RandomAccessFile in = new RandomAccessFile(input, "r");
+        RandomAccessFile out = new RandomAccessFile(output, "rw");
+        try {
+            out.setLength(0);
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+            BoxWriter w = new BoxWriter(64 * 1024);
+            Mp4Boxes.writeFtyp(w, false);
+            long mdatOffset = w.position();
+            w.u32(1).fourcc("mdat").u64(0);
+            write(target, w.toBuffer(), 0);
+            long position = mdatOffset + MDAT_HEADER_SIZE;
+
+            //按输入文件中的位置归并所有轨道的样本 , 连续的样本一次拷贝
+            int total = 0;
+            long copyStart = -1, copyEnd = -1, copyTarget = 0;
+            while (true) {
+                Selection next = null;
+                for (Selection selection : selections) {
+                    if (selection.hasNext() && (next == null || selection.nextOffset() < next.nextOffset())) {
+                        next = selection;
+                    }
+                }
+                if (next == null) break;
+                long offset = next.nextOffset();
+                int size = next.nextSize();
+                if (offset != copyEnd) {
+                    if (copyStart >= 0) transfer(source, copyStart, copyEnd - copyStart, target, copyTarget);
+                    copyStart = offset;
+                    copyTarget = position;
+                }
+                copyEnd = offset + size;
+                next.emit(position);
+                position += size;
+                total++;
+            }
+            if (copyStart >= 0) transfer(source, copyStart, copyEnd - copyStart, target, copyTarget);
+
+            List<TrackIndex> tracks = new ArrayList<>(selections.size());
+            for (Selection selection : selections) {
+                tracks.add(selection.output);
+            }
+            w.clear();
+            MovieIndexWriter.writeMoov(w, tracks, 0);
+            write(target, w.toBuffer(), position);
+            target.truncate(position + w.position());
+            w.clear();
+            w.u32(1).fourcc("mdat").u64(position - mdatOffset);
+            write(target, w.toBuffer(), mdatOffset);
+            return new Result(keepStartUs, keepEndUs, total);
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    private static long toTimescale(long us, int timescale) {
+        return FragmentedMp4Writer.toTimescale(us, timescale);
+    }
+
+    private static long toUs(long time, int timescale) {
+        return time * 1000000L / timescale;
+    }
+
+    private static void transfer(FileChannel source, long position, long count, FileChannel target, long targetPosition) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long n = target.transferFrom(source.position(position + done), targetPosition + done, count - done);
+            if (n <= 0) throw new IOException("transfer failed at " + (position + done));
+            done += n;
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * 样本的解码时间 (轨道时间刻度) , times[i] 是第 i 个样本的开始时间 , times[count] 是轨道时长
+     */
+    private static class SampleTimes {
+        final LongArray times;
+
+        SampleTimes(TrackIndex track) {
+            int count = track.getSampleCount();
+            times = new LongArray(count + 1);
+            long time = 0;
+            for (int i = 0; i < count; i++) {
+                times.add(time);
+                time += track.sampleDurations.get(i);
+            }
+            times.add(time);
+        }
+
+        long get(int index) {
+            return times.get(index);
+        }
+
+        /**
+         * @return 开始时间 <= time 的最后一个样本
+         */
+        int indexAtOrBefore(long time) {
+            int index = indexAtOrAfter(time);
+            if (index < times.size() - 1 && times.get(index) == time) return index;
+            return Math.max(0, index - 1);
+        }
+
+        /**
+         * @return 开始时间 >= time 的第一个样本 , 没有时返回样本数
+         */
+        int indexAtOrAfter(long time) {
+            int low = 0, high = times.size() - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times.get(mid) < time) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+    }
+
+    /**
+     * 一个轨道保留的样本 [from , to) , 按文件中的顺序输出到新的 TrackIndex
+     */
+    private static class Selection {
+        final TrackIndex source;
+        final TrackIndex output;
+        final int from, to;
+        final LongArray offsets;
+        final IntArray descriptions;
+        int next;
+        long chunkEnd = -1;
+        int chunkDescription;
+
+        Selection(TrackIndex source, int from, int to) {
+            this.source = source;
+            this.from = from;
+            this.to = to;
+            this.next = from;
+            this.output = source.copyDescription();
+            output.sampleEntries.addAll(source.sampleEntries);
+            offsets = new LongArray(Math.max(0, to - from));
+            descriptions = new IntArray(Math.max(0, to - from));
+        }
+
+        boolean isEmpty() {
+            return to <= from;
+        }
+
+        /**
+         * 遍历 chunk 计算保留的样本在输入文件中的位置
+         */
+        void resolveOffsets() {
+            int sample = 0;
+            for (int c = 0; c < source.getChunkCount() && sample < to; c++) {
+                long offset = source.chunkOffsets.get(c);
+                int samples = source.chunkSampleCounts.get(c);
+                int description = source.chunkDescriptionIndexes.get(c);
+                for (int i = 0; i < samples && sample < to; i++, sample++) {
+                    if (sample >= from) {
+                        offsets.add(offset);
+                        descriptions.add(description);
+                    }
+                    offset += source.sampleSizes.get(sample);
+                }
+            }
+            if (offsets.size() < to - from) throw new IllegalStateException("chunk table shorter than sample table");
+        }
+
+        boolean hasNext() {
+            return next < to;
+        }
+
+        long nextOffset() {
+            return offsets.get(next - from);
+        }
+
+        int nextSize() {
+            return source.sampleSizes.get(next);
+        }
+
+        /**
+         * 把下一个样本添加到输出的样本表 , 写入位置连续并且样本描述相同时合并到上一个 chunk
+         */
+        void emit(long position) {
+            int size = nextSize();
+            int description = descriptions.get(next - from);
+            int composition = source.hasCompositionOffsets() ? source.compositionOffsets.get(next) : 0;
+            output.appendSample(size, source.sampleDurations.get(next), composition, source.isSync(next));
+            int chunks = output.getChunkCount();
+            if (chunks > 0 && position == chunkEnd && description == chunkDescription) {
+                output.chunkSampleCounts.set(chunks - 1, output.chunkSampleCounts.get(chunks - 1) + 1);
+            } else {
+                output.appendChunk(position, 1, description);
+            }
+            chunkEnd = position + size;
+            chunkDescription = description;
+            next++;
+        }
+    }
+}
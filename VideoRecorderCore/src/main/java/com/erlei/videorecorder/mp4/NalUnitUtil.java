@@ -0,0 +1,144 @@
+package com.erlei.videorecorder.mp4;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * H.264 NAL 单元工具
+ * MediaCodec 输出的是 Annex-B 格式 (00 00 00 01 起始码) , MP4 里要求的是 4 字节长度前缀格式 ,
+ * MediaMuxer 内部会做这个转换 , 自己写 MP4 的时候需要在这里完成
+ */
+public final class NalUnitUtil {
+
+    public static final int NAL_TYPE_IDR = 5;
+    public static final int NAL_TYPE_SPS = 7;
+    public static final int NAL_TYPE_PPS = 8;
+
+    private NalUnitUtil() {
+    }
+
+    /**
+     * @return buffer 从 position 开始是否是 Annex-B 起始码
+     */
+    public static boolean isAnnexB(ByteBuffer buffer) {
+        int p = buffer.position();
+        if (buffer.limit() - p < 4) return false;
+        if (buffer.get(p) != 0 || buffer.get(p + 1) != 0) return false;
+        return buffer.get(p + 2) == 1 || (buffer.get(p + 2) == 0 && buffer.get(p + 3) == 1);
+    }
+
+    /**
+     * @return [from , to) 范围内下一个 00 00 01 的位置 , 没有找到返回 -1
+     */
+    public static int findStartCode(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i + 2 < to; i++) {
+            if ((buffer.get(i + 2) & 0xFF) > 1) {
+                i += 2;
+                continue;
+            }
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 计算 Annex-B 数据转换为长度前缀格式之后的字节数
+     */
+    public static int lengthPrefixedSize(ByteBuffer src) {
+        int limit = src.limit();
+        int size = 0;
+        int startCode = findStartCode(src, src.position(), limit);
+        while (startCode >= 0) {
+            int nalStart = startCode + 3;
+            int next = findStartCode(src, nalStart, limit);
+            int nalEnd = nalEnd(src, nalStart, next, limit);
+            if (nalEnd > nalStart) size += 4 + nalEnd - nalStart;
+            startCode = next;
+        }
+        return size;
+    }
+
+    /**
+     * 把 src 中 position 到 limit 的 Annex-B 数据以 4 字节长度前缀格式写入 dst
+     * 不改变 src 的 position , dst 的剩余空间需要大于等于 lengthPrefixedSize(src)
+     *
+     * @return 写入的字节数
+     */
+    public static int toLengthPrefixed(ByteBuffer src, ByteBuffer dst) {
+        int begin = dst.position();
+        int limit = src.limit();
+        ByteBuffer view = src.duplicate();
+        int startCode = findStartCode(src, src.position(), limit);
+        while (startCode >= 0) {
+            int nalStart = startCode + 3;
+            int next = findStartCode(src, nalStart, limit);
+            int nalEnd = nalEnd(src, nalStart, next, limit);
+            if (nalEnd > nalStart) {
+                dst.putInt(nalEnd - nalStart);
+                view.limit(nalEnd);
+                view.position(nalStart);
+                dst.put(view);
+            }
+            startCode = next;
+        }
+        return dst.position() - begin;
+    }
+
+    /**
+     * 把 Annex-B 数据拆分为 NAL 单元 (不含起始码) , 用于解析 csd-0 / csd-1
+     * 如果数据不是 Annex-B 格式 , 则整体作为一个 NAL 单元返回
+     */
+    public static List<byte[]> split(byte[] data) {
+        List<byte[]> units = new ArrayList<>();
+        if (data == null || data.length == 0) return units;
+        ByteBuffer src = ByteBuffer.wrap(data);
+        if (!isAnnexB(src)) {
+            units.add(data);
+            return units;
+        }
+        int startCode = findStartCode(src, 0, data.length);
+        while (startCode >= 0) {
+            int nalStart = startCode + 3;
+            int next = findStartCode(src, nalStart, data.length);
+            int nalEnd = nalEnd(src, nalStart, next, data.length);
+            if (nalEnd > nalStart) {
+                byte[] unit = new byte[nalEnd - nalStart];
+                System.arraycopy(data, nalStart, unit, 0, unit.length);
+                units.add(unit);
+            }
+            startCode = next;
+        }
+        return units;
+    }
+
+    /**
+     * @return buffer 中的 Annex-B 数据是否只包含非参考帧 (所有 NAL 单元的 nal_ref_idc 都是 0) ,
+     * 丢弃这样的帧不会影响其他帧的解码 , 不是 Annex-B 格式时返回 false
+     */
+    public static boolean isNonReference(ByteBuffer buffer) {
+        if (!isAnnexB(buffer)) return false;
+        int limit = buffer.limit();
+        int startCode = findStartCode(buffer, buffer.position(), limit);
+        boolean found = false;
+        while (startCode >= 0) {
+            int header = startCode + 3;
+            if (header >= limit) break;
+            if ((buffer.get(header) & 0x60) != 0) return false;
+            found = true;
+            startCode = findStartCode(buffer, header, limit);
+        }
+        return found;
+    }
+
+    public static int getNalType(byte[] unit) {
+        return unit == null || unit.length == 0 ? -1 : unit[0] & 0x1F;
+    }
+
+    private static int nalEnd(ByteBuffer src, int nalStart, int nextStartCode, int limit) {
+        if (nextStartCode < 0) return limit;
+        //4 字节起始码的第一个 0 不属于当前 NAL
+        if (nextStartCode > nalStart && src.get(nextStartCode - 1) == 0) return nextStartCode - 1;
+        return nextStartCode;
+    }
+}
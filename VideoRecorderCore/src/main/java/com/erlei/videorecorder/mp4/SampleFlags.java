@@ -0,0 +1,28 @@
+package com.erlei.videorecorder.mp4;
+
+/**
+ * 样本标志位 , 取值与 android.media.MediaCodec.BUFFER_FLAG_* 保持一致 ,
+ * 所以 BufferInfo.flags 可以直接传入
+ */
+public final class SampleFlags {
+
+    /**
+     * 关键帧 , 同 MediaCodec.BUFFER_FLAG_SYNC_FRAME
+     */
+    public static final int FLAG_SYNC = 1;
+    /**
+     * 编码器配置数据 , 同 MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+     */
+    public static final int FLAG_CODEC_CONFIG = 2;
+    /**
+     * 流结束 , 同 MediaCodec.BUFFER_FLAG_END_OF_STREAM
+     */
+    public static final int FLAG_END_OF_STREAM = 4;
+
+    private SampleFlags() {
+    }
+
+    public static boolean isSync(int flags) {
+        return (flags & FLAG_SYNC) != 0;
+    }
+}
@@ -0,0 +1,251 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 样本索引日志 , 只追加写入 , 用于在进程崩溃后恢复还没有写入 moov 的 MP4 文件
+ * <p>
+ * 文件结构 : 文件头 (魔数 , 版本 , 数据起始位置 , 轨道格式) + 固定 32 字节的样本记录
+ * 样本记录 : 文件偏移 (8) + 显示时间 (8) + 大小 (4) + 标志 (4) + 轨道索引 (4) + 校验值 (4)
+ * <p>
+ * 记录通过内存映射的窗口写入 , 写满一个窗口后再映射下一个窗口 , 每个样本只是几次 putXxx() , 没有内存分配和系统调用
+ * 映射的页由内核负责写回 , 进程被杀死不会丢失已经写入的记录 , 只有掉电才需要调用 sync()
+ * 窗口中还没有写入的部分是 0 , 校验值不匹配 , 读取时会在第一条无效的记录处停止
+ * 非线程安全
+ */
+public class SampleJournal {
+
+    public static final int RECORD_SIZE = 32;
+    private static final int MAGIC = 0x56524A4C;//VRJL
+    private static final int VERSION = 1;
+    private static final int WINDOW_RECORDS = 2048;
+    private static final int WINDOW_SIZE = WINDOW_RECORDS * RECORD_SIZE;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mRecordsOffset;
+    private MappedByteBuffer mWindow;
+    private long mWindowOffset;
+    private int mRecordCount;
+
+    /**
+     * 创建日志文件并写入文件头 , 如果已存在会被覆盖
+     *
+     * @param dataOffset 样本数据在 MP4 文件中的起始位置 (mdat 的数据部分)
+     * @param formats    轨道格式 , 样本记录中的轨道索引与它的顺序对应
+     */
+    public SampleJournal(File file, long dataOffset, List<TrackFormat> formats) throws IOException {
+        if (file == null) throw new IllegalArgumentException("file must not null");
+        byte[] header = writeHeader(dataOffset, formats);
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate(12 + header.length);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(header.length).put(header);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+        mRecordsOffset = alignRecord(12 + header.length);
+        mWindowOffset = mRecordsOffset;
+        mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, mWindowOffset, WINDOW_SIZE);
+    }
+
+    /**
+     * 追加一条样本记录
+     */
+    public void append(int trackIndex, long offset, int size, long presentationTimeUs, int flags) throws IOException {
+        if (!mWindow.hasRemaining()) {
+            mWindowOffset += WINDOW_SIZE;
+            mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, mWindowOffset, WINDOW_SIZE);
+        }
+        mWindow.putLong(offset);
+        mWindow.putLong(presentationTimeUs);
+        mWindow.putInt(size);
+        mWindow.putInt(flags);
+        mWindow.putInt(trackIndex);
+        mWindow.putInt(checksum(offset, presentationTimeUs, size, flags, trackIndex));
+        mRecordCount++;
+    }
+
+    /**
+     * 把映射的窗口写回磁盘 , 只有需要防止掉电丢失数据时才需要调用
+     */
+    public void sync() {
+        mWindow.force();
+    }
+
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * 关闭日志 , 截断未使用的部分
+     */
+    public void close() throws IOException {
+        try {
+            mChannel.truncate(mRecordsOffset + (long) mRecordCount * RECORD_SIZE);
+        } finally {
+            mChannel.close();
+            mFile.close();
+        }
+    }
+
+    /**
+     * 读取日志 , 在第一条无效的记录处停止
+     */
+    public static Content read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer head = ByteBuffer.allocate(12);
+            Mp4Reader.readFully(channel, head, 0);
+            if (head.getInt(0) != MAGIC) throw new IOException("not a sample journal " + file);
+            if (head.getInt(4) != VERSION) throw new IOException("unsupported journal version " + head.getInt(4));
+            int headerLength = head.getInt(8);
+            if (headerLength < 0 || 12L + headerLength > channel.size()) throw new IOException("invalid journal header");
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            Mp4Reader.readFully(channel, header, 12);
+            Content content = readHeader(header.array());
+
+            long position = alignRecord(12 + headerLength);
+            long end = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(WINDOW_SIZE);
+            while (position + RECORD_SIZE <= end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(WINDOW_SIZE, (end - position) / RECORD_SIZE * RECORD_SIZE));
+                Mp4Reader.readFully(channel, buffer, position);
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    long offset = buffer.getLong();
+                    long presentationTimeUs = buffer.getLong();
+                    int size = buffer.getInt();
+                    int flags = buffer.getInt();
+                    int trackIndex = buffer.getInt();
+                    int checksum = buffer.getInt();
+                    if (checksum != checksum(offset, presentationTimeUs, size, flags, trackIndex)
+                            || trackIndex < 0 || trackIndex >= content.formats.size() || size < 0) {
+                        return content;
+                    }
+                    content.addRecord(trackIndex, offset, size, presentationTimeUs, flags);
+                }
+                position += buffer.limit();
+            }
+            return content;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long alignRecord(long position) {
+        return (position + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE;
+    }
+
+    private static int checksum(long offset, long presentationTimeUs, int size, int flags, int trackIndex) {
+        int h = MAGIC;
+        h = 31 * h + (int) (offset ^ (offset >>> 32));
+        h = 31 * h + (int) (presentationTimeUs ^ (presentationTimeUs >>> 32));
+        h = 31 * h + size;
+        h = 31 * h + flags;
+        h = 31 * h + trackIndex;
+        return h;
+    }
+
+    private static byte[] writeHeader(long dataOffset, List<TrackFormat> formats) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(dataOffset);
+        out.writeInt(formats.size());
+        for (TrackFormat format : formats) {
+            out.writeUTF(format.mime);
+            out.writeInt(format.width);
+            out.writeInt(format.height);
+            out.writeInt(format.rotation);
+            out.writeInt(format.sampleRate);
+            out.writeInt(format.channelCount);
+            out.writeInt(format.bitRate);
+            writeBytes(out, format.csd0);
+            writeBytes(out, format.csd1);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Content readHeader(byte[] header) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+        long dataOffset = in.readLong();
+        int trackCount = in.readInt();
+        List<TrackFormat> formats = new ArrayList<>(trackCount);
+        for (int i = 0; i < trackCount; i++) {
+            TrackFormat format = new TrackFormat(in.readUTF());
+            format.width = in.readInt();
+            format.height = in.readInt();
+            format.rotation = in.readInt();
+            format.sampleRate = in.readInt();
+            format.channelCount = in.readInt();
+            format.bitRate = in.readInt();
+            format.csd0 = readBytes(in);
+            format.csd1 = readBytes(in);
+            formats.add(format);
+        }
+        return new Content(dataOffset, formats);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+        if (data == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+
+    /**
+     * 日志的内容 , 样本记录按写入顺序保存在基本类型数组中
+     */
+    public static class Content {
+        public final long dataOffset;
+        public final List<TrackFormat> formats;
+        public final IntArray trackIndexes = new IntArray(256);
+        public final LongArray offsets = new LongArray(256);
+        public final IntArray sizes = new IntArray(256);
+        public final LongArray presentationTimesUs = new LongArray(256);
+        public final IntArray flags = new IntArray(256);
+
+        Content(long dataOffset, List<TrackFormat> formats) {
+            this.dataOffset = dataOffset;
+            this.formats = formats;
+        }
+
+        void addRecord(int trackIndex, long offset, int size, long presentationTimeUs, int flag) {
+            trackIndexes.add(trackIndex);
+            offsets.add(offset);
+            sizes.add(size);
+            presentationTimesUs.add(presentationTimeUs);
+            flags.add(flag);
+        }
+
+        public int getRecordCount() {
+            return sizes.size();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 通过 TCP 连接直接发送分片 MP4 字节流 , 例如推送到另一个进程的接收端
+ * 写入会阻塞混合器线程直到数据进入发送缓冲区 , 对端读取很慢时会拖慢编码 ,
+ * 需要多个客户端或者不希望阻塞时使用 LiveStreamServer
+ */
+public class SocketMediaSink implements MediaSink {
+
+    private final SocketChannel mChannel;
+    private long mBytesSent;
+
+    public SocketMediaSink(String host, int port) throws IOException {
+        this(SocketChannel.open(new InetSocketAddress(host, port)));
+    }
+
+    /**
+     * @param channel 已经连接的阻塞模式的 SocketChannel , close() 时关闭
+     */
+    public SocketMediaSink(SocketChannel channel) {
+        if (channel == null) throw new IllegalArgumentException("channel must not null");
+        mChannel = channel;
+    }
+
+    @Override
+    public void writeHeader(ByteBuffer header) throws IOException {
+        write(header);
+    }
+
+    @Override
+    public void writeFragment(ByteBuffer[] buffers, long startUs, boolean sync) throws IOException {
+        write(buffers);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    private void write(ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            long written = mChannel.write(buffers);
+            remaining -= written;
+            mBytesSent += written;
+        }
+    }
+}
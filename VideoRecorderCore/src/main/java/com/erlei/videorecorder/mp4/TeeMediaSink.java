@@ -0,0 +1,69 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 同时写入多个 MediaSink , 例如一边写入文件一边通过 LiveStreamServer 直播
+ * 每个 sink 拿到的是 ByteBuffer 的副本 (duplicate) , 互不影响读取位置
+ * 某个 sink 出错时依然写入其他 sink , 最后抛出第一个异常
+ */
+public class TeeMediaSink implements MediaSink {
+
+    private final MediaSink[] mSinks;
+
+    public TeeMediaSink(MediaSink... sinks) {
+        if (sinks == null || sinks.length == 0) throw new IllegalArgumentException("sinks must not null");
+        for (MediaSink sink : sinks) {
+            if (sink == null) throw new IllegalArgumentException("sink must not null");
+        }
+        mSinks = sinks.clone();
+    }
+
+    @Override
+    public void writeHeader(ByteBuffer header) throws IOException {
+        IOException error = null;
+        for (MediaSink sink : mSinks) {
+            try {
+                sink.writeHeader(header.duplicate());
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+        }
+        header.position(header.limit());
+        if (error != null) throw error;
+    }
+
+    @Override
+    public void writeFragment(ByteBuffer[] buffers, long startUs, boolean sync) throws IOException {
+        IOException error = null;
+        for (MediaSink sink : mSinks) {
+            ByteBuffer[] copies = new ByteBuffer[buffers.length];
+            for (int i = 0; i < buffers.length; i++) {
+                copies[i] = buffers[i].duplicate();
+            }
+            try {
+                sink.writeFragment(copies, startUs, sync);
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+        }
+        for (ByteBuffer buffer : buffers) {
+            buffer.position(buffer.limit());
+        }
+        if (error != null) throw error;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (MediaSink sink : mSinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+        }
+        if (error != null) throw error;
+    }
+}
@@ -0,0 +1,126 @@
+package com.erlei.videorecorder.mp4;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 与平台无关的轨道格式描述 , 只包含写 MP4 所需要的字段
+ * 对应 android.media.MediaFormat , 但不依赖 Android , 可以在 JVM 上使用
+ */
+public class TrackFormat {
+
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_AAC = "audio/mp4a-latm";
+    /**
+     * 定时元数据 , 与 MediaMuxer (API 26) 一样 , mime 以 application/ 开头的轨道写为 mett 样本描述
+     */
+    public static final String MIME_METADATA_JSON = "application/json";
+    public static final String MIME_METADATA_BINARY = "application/octet-stream";
+
+    public static final String HANDLER_VIDEO = "vide";
+    public static final String HANDLER_AUDIO = "soun";
+    public static final String HANDLER_METADATA = "meta";
+
+    private static final int VIDEO_TIMESCALE = 90000;
+
+    public final String mime;
+    public int width;
+    public int height;
+    /**
+     * 旋转角度 0 , 90 , 180 , 270 , 写入 tkhd 的矩阵
+     */
+    public int rotation;
+    public int sampleRate;
+    public int channelCount;
+    public int bitRate;
+    /**
+     * 视频 : SPS , 带起始码 (MediaCodec 的 csd-0) 时这个轨道的样本都是 Annex-B 格式 ,
+     * 否则样本都是 4 字节长度前缀格式 ; 音频 : AudioSpecificConfig
+     */
+    public byte[] csd0;
+    /**
+     * 视频 : PPS , 格式与 csd0 相同
+     */
+    public byte[] csd1;
+
+    public TrackFormat(String mime) {
+        if (mime == null) throw new IllegalArgumentException("mime must not null");
+        this.mime = mime;
+    }
+
+    public static TrackFormat createVideoFormat(String mime, int width, int height, byte[] sps, byte[] pps) {
+        TrackFormat format = new TrackFormat(mime);
+        format.width = width;
+        format.height = height;
+        format.csd0 = sps;
+        format.csd1 = pps;
+        return format;
+    }
+
+    public static TrackFormat createAudioFormat(String mime, int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        TrackFormat format = new TrackFormat(mime);
+        format.sampleRate = sampleRate;
+        format.channelCount = channelCount;
+        format.csd0 = audioSpecificConfig;
+        return format;
+    }
+
+    /**
+     * @param mime 以 application/ 开头 , 例如 MIME_METADATA_JSON
+     */
+    public static TrackFormat createMetadataFormat(String mime) {
+        TrackFormat format = new TrackFormat(mime);
+        if (!format.isMetadata()) throw new IllegalArgumentException("metadata mime must start with application/ " + mime);
+        return format;
+    }
+
+    public boolean isVideo() {
+        return mime.startsWith("video/");
+    }
+
+    public boolean isAudio() {
+        return mime.startsWith("audio/");
+    }
+
+    /**
+     * @return 是否是定时元数据轨道 , 每个样本是应用写入的一段数据 , 有效时间到下一个样本为止
+     */
+    public boolean isMetadata() {
+        return mime.startsWith("application/");
+    }
+
+    /**
+     * 样本格式按轨道确定一次 , 不能逐个样本判断 : 256 到 511 字节的长度前缀 NAL 以 00 00 01 开头 , 会被误认为起始码
+     *
+     * @return 是否是需要转换为长度前缀格式的 Annex-B H.264 轨道 , 按 csd0 是否以起始码开始判断 , 没有 csd0 时按 MediaCodec 的输出处理
+     */
+    public boolean isAnnexB() {
+        if (!MIME_AVC.equals(mime)) return false;
+        return csd0 == null || NalUnitUtil.isAnnexB(ByteBuffer.wrap(csd0));
+    }
+
+    public String getHandlerType() {
+        if (isVideo()) return HANDLER_VIDEO;
+        return isMetadata() ? HANDLER_METADATA : HANDLER_AUDIO;
+    }
+
+    /**
+     * @return 轨道的时间刻度 , 视频和元数据固定为 90000 , 音频为采样率
+     */
+    public int getTimescale() {
+        if (isAudio() && sampleRate > 0) return sampleRate;
+        return VIDEO_TIMESCALE;
+    }
+
+    @Override
+    public String toString() {
+        return "TrackFormat{" +
+                "mime='" + mime + '\'' +
+                ", width=" + width +
+                ", height=" + height +
+                ", rotation=" + rotation +
+                ", sampleRate=" + sampleRate +
+                ", channelCount=" + channelCount +
+                ", bitRate=" + bitRate +
+                '}';
+    }
+}
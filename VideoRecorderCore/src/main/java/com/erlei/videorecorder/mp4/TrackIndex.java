@@ -0,0 +1,194 @@
+package com.erlei.videorecorder.mp4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 一个轨道的样本索引 , 全部以基本类型数组保存 , 内存占用与样本数成正比
+ * <p>
+ * 样本表 (stts / ctts / stsz / stss) 按样本展开保存 , chunk 表 (stco / stsc) 按 chunk 展开保存 ,
+ * 写入时再压缩为游程编码 , 这样多个文件的索引可以直接拼接
+ * tkhd / mdhd / hdlr / 媒体头 (vmhd , smhd) 和 stsd 中的样本描述保存原始字节 , 写入时只回填 track_ID 和时长
+ */
+public class TrackIndex {
+
+    public int trackId;
+    public String handlerType;
+    public int timescale;
+    public byte[] tkhd;
+    public byte[] mdhd;
+    public byte[] hdlr;
+    /**
+     * vmhd / smhd / nmhd 的原始字节
+     */
+    public byte[] mediaHeader;
+    /**
+     * stsd 中的样本描述 (avc1 , mp4a ...) 的原始字节 , chunk 的描述索引从 1 开始
+     */
+    public final List<byte[]> sampleEntries = new ArrayList<>();
+
+    public final IntArray sampleSizes = new IntArray(256);
+    public final IntArray sampleDurations = new IntArray(256);
+    /**
+     * 只有存在 ctts 时才有数据 , 见 hasCompositionOffsets()
+     */
+    public final IntArray compositionOffsets = new IntArray(1);
+    /**
+     * 关键帧的样本索引 (从 0 开始) , 只有存在 stss 时才有数据 , 见 isAllSync()
+     */
+    public final IntArray syncSamples = new IntArray(16);
+
+    public final LongArray chunkOffsets = new LongArray(64);
+    public final IntArray chunkSampleCounts = new IntArray(64);
+    public final IntArray chunkDescriptionIndexes = new IntArray(64);
+
+    private boolean mHasCompositionOffsets;
+    private boolean mAllSync = true;
+    private long mDuration;
+
+    public boolean isVideo() {
+        return TrackFormat.HANDLER_VIDEO.equals(handlerType);
+    }
+
+    public boolean isAudio() {
+        return TrackFormat.HANDLER_AUDIO.equals(handlerType);
+    }
+
+    public boolean isMetadata() {
+        return TrackFormat.HANDLER_METADATA.equals(handlerType);
+    }
+
+    public int getSampleCount() {
+        return sampleSizes.size();
+    }
+
+    public int getChunkCount() {
+        return chunkOffsets.size();
+    }
+
+    /**
+     * @return 所有样本时长之和 , 单位是 timescale
+     */
+    public long getDuration() {
+        return mDuration;
+    }
+
+    public boolean hasCompositionOffsets() {
+        return mHasCompositionOffsets;
+    }
+
+    /**
+     * @return 是否所有样本都是关键帧 (没有 stss)
+     */
+    public boolean isAllSync() {
+        return mAllSync;
+    }
+
+    public boolean isSync(int sampleIndex) {
+        return mAllSync || syncSamples.binarySearch(sampleIndex) >= 0;
+    }
+
+    public void appendSample(int size, int duration, int compositionOffset, boolean sync) {
+        int index = sampleSizes.size();
+        if (compositionOffset != 0 && !mHasCompositionOffsets) {
+            for (int i = 0; i < index; i++) {
+                compositionOffsets.add(0);
+            }
+            mHasCompositionOffsets = true;
+        }
+        if (!sync && mAllSync) {
+            for (int i = 0; i < index; i++) {
+                syncSamples.add(i);
+            }
+            mAllSync = false;
+        }
+        sampleSizes.add(size);
+        sampleDurations.add(duration);
+        mDuration += duration;
+        if (mHasCompositionOffsets) compositionOffsets.add(compositionOffset);
+        if (sync && !mAllSync) syncSamples.add(index);
+    }
+
+    /**
+     * 调整最后一个样本的时长 , 用于按 tfdt 对齐分片之间的时间
+     */
+    public void adjustLastDuration(int delta) {
+        int last = sampleDurations.size() - 1;
+        if (last < 0 || delta == 0) return;
+        int duration = sampleDurations.get(last) + delta;
+        if (duration <= 0) return;
+        sampleDurations.set(last, duration);
+        mDuration += delta;
+    }
+
+    /**
+     * 添加一个 chunk , chunk 中的样本必须已经通过 appendSample() 添加
+     *
+     * @param descriptionIndex 样本描述索引 , 从 1 开始
+     */
+    public void appendChunk(long offset, int sampleCount, int descriptionIndex) {
+        chunkOffsets.add(offset);
+        chunkSampleCounts.add(sampleCount);
+        chunkDescriptionIndexes.add(descriptionIndex);
+    }
+
+    /**
+     * @return 与 entry 相同的样本描述的索引 (从 1 开始) , 不存在时添加
+     */
+    public int findOrAddSampleEntry(byte[] entry) {
+        for (int i = 0; i < sampleEntries.size(); i++) {
+            if (Arrays.equals(sampleEntries.get(i), entry)) return i + 1;
+        }
+        sampleEntries.add(entry);
+        return sampleEntries.size();
+    }
+
+    /**
+     * 复制轨道的描述信息 , 不包括样本
+     */
+    public TrackIndex copyDescription() {
+        TrackIndex track = new TrackIndex();
+        track.trackId = trackId;
+        track.handlerType = handlerType;
+        track.timescale = timescale;
+        track.tkhd = tkhd;
+        track.mdhd = mdhd;
+        track.hdlr = hdlr;
+        track.mediaHeader = mediaHeader;
+        return track;
+    }
+
+    /**
+     * 截断到前 sampleCount 个样本和前 chunkCount 个 chunk
+     */
+    public void truncate(int sampleCount, int chunkCount) {
+        for (int i = sampleCount; i < sampleSizes.size(); i++) {
+            mDuration -= sampleDurations.get(i);
+        }
+        sampleSizes.truncate(sampleCount);
+        sampleDurations.truncate(sampleCount);
+        if (mHasCompositionOffsets) compositionOffsets.truncate(sampleCount);
+        if (!mAllSync) {
+            int syncCount = syncSamples.size();
+            while (syncCount > 0 && syncSamples.get(syncCount - 1) >= sampleCount) syncCount--;
+            syncSamples.truncate(syncCount);
+        }
+        chunkOffsets.truncate(chunkCount);
+        chunkSampleCounts.truncate(chunkCount);
+        chunkDescriptionIndexes.truncate(chunkCount);
+    }
+
+    @Override
+    public String toString() {
+        return "TrackIndex{" +
+                "trackId=" + trackId +
+                ", handlerType='" + handlerType + '\'' +
+                ", timescale=" + timescale +
+                ", samples=" + getSampleCount() +
+                ", chunks=" + getChunkCount() +
+                ", duration=" + mDuration +
+                ", allSync=" + mAllSync +
+                '}';
+    }
+}
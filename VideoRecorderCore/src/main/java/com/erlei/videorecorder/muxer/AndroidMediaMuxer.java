@@ -0,0 +1,47 @@
+package com.erlei.videorecorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.text.TextUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 使用系统 MediaMuxer 的实现 , moov 在 stop() 时才写入
+ */
+public class AndroidMediaMuxer implements IMediaMuxer {
+
+    private final MediaMuxer mMediaMuxer;
+
+    public AndroidMediaMuxer(String output) throws IOException {
+        if (TextUtils.isEmpty(output)) throw new IllegalArgumentException("output must not null");
+        mMediaMuxer = new MediaMuxer(output, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mMediaMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMediaMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMediaMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMediaMuxer.release();
+    }
+}
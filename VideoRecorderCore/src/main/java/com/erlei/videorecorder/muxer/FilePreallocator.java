@@ -0,0 +1,34 @@
+package com.erlei.videorecorder.muxer;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import com.erlei.videorecorder.mp4.CoalescingFileWriter;
+import com.erlei.videorecorder.util.LogUtil;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * 为输出文件预分配磁盘空间 , API 21 以上使用 posix_fallocate , 真正分配磁盘块 , 减少文件碎片
+ * 更低的版本或者文件系统不支持时不预分配 : FAT 上 setLength() 会在写入线程中把整个 extent 写零 , 在慢速 SD 卡上阻塞写入
+ */
+public class FilePreallocator implements CoalescingFileWriter.Preallocator {
+
+    private static final String TAG = "FilePreallocator";
+    private boolean mFallocateUnsupported;
+
+    @Override
+    public void preallocate(RandomAccessFile file, long length) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && !mFallocateUnsupported) {
+            try {
+                Os.posix_fallocate(file.getFD(), 0, length);
+            } catch (ErrnoException e) {
+                //例如 FAT 格式的 SD 卡不支持 fallocate
+                mFallocateUnsupported = true;
+                LogUtil.loge(TAG, "posix_fallocate error " + e + " , preallocation disabled");
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.erlei.videorecorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.text.TextUtils;
+
+import com.erlei.videorecorder.mp4.FragmentedMp4Writer;
+import com.erlei.videorecorder.mp4.MediaSink;
+import com.erlei.videorecorder.mp4.TrackFormat;
+import com.erlei.videorecorder.util.LogUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 输出分片 MP4 的混合器 , 录制过程中崩溃文件依然可以播放到最后一个分片
+ *
+ * @see FragmentedMp4Writer
+ */
+public class FragmentedMp4Muxer implements IMediaMuxer {
+
+    private static final String TAG = "FragmentedMp4Muxer";
+    private final FragmentedMp4Writer mWriter;
+
+    public FragmentedMp4Muxer(String output) throws IOException {
+        this(output, FragmentedMp4Writer.DEFAULT_FRAGMENT_DURATION_US);
+    }
+
+    public FragmentedMp4Muxer(String output, long fragmentDurationUs) throws IOException {
+        if (TextUtils.isEmpty(output)) throw new IllegalArgumentException("output must not null");
+        mWriter = new FragmentedMp4Writer(new File(output), fragmentDurationUs, FragmentedMp4Writer.DEFAULT_MAX_FRAGMENT_BYTES);
+    }
+
+    /**
+     * @param sink 输出目标 , 例如 TeeMediaSink 同时写入文件和 LiveStreamServer
+     */
+    public FragmentedMp4Muxer(MediaSink sink, long fragmentDurationUs) {
+        mWriter = new FragmentedMp4Writer(sink, fragmentDurationUs, FragmentedMp4Writer.DEFAULT_MAX_FRAGMENT_BYTES);
+    }
+
+    public FragmentedMp4Writer getWriter() {
+        return mWriter;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mWriter.addTrack(toTrackFormat(format));
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("start FragmentedMp4Writer error " + e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        byteBuf.position(bufferInfo.offset);
+        try {
+            mWriter.writeSample(trackIndex, byteBuf, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        } catch (IOException e) {
+            throw new IllegalStateException("writeSampleData error " + e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mWriter.stop();
+            LogUtil.logd(TAG, "stop " + mWriter.getSink());
+        } catch (IOException e) {
+            throw new IllegalStateException("stop FragmentedMp4Writer error " + e);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            mWriter.stop();
+        } catch (IOException e) {
+            LogUtil.loge(TAG, "release error " + e);
+        }
+    }
+
+    public static TrackFormat toTrackFormat(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        TrackFormat trackFormat = new TrackFormat(mime);
+        if (trackFormat.isVideo()) {
+            trackFormat.width = format.getInteger(MediaFormat.KEY_WIDTH);
+            trackFormat.height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        } else if (trackFormat.isAudio()) {
+            trackFormat.sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            trackFormat.channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        }
+        if (format.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            trackFormat.bitRate = format.getInteger(MediaFormat.KEY_BIT_RATE);
+        }
+        trackFormat.csd0 = getBytes(format, "csd-0");
+        trackFormat.csd1 = getBytes(format, "csd-1");
+        return trackFormat;
+    }
+
+    private static byte[] getBytes(MediaFormat format, String key) {
+        if (!format.containsKey(key)) return null;
+        ByteBuffer buffer = format.getByteBuffer(key);
+        if (buffer == null) return null;
+        buffer = buffer.duplicate();
+        buffer.rewind();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
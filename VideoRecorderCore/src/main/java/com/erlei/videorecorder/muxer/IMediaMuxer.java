@@ -0,0 +1,29 @@
+package com.erlei.videorecorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 混合器接口 , 方法与 android.media.MediaMuxer 保持一致 ,
+ * MediaMuxerWrapper 和 MediaMuxerWarpper 通过这个接口写入样本 , 而不是直接依赖 MediaMuxer
+ *
+ * @see AndroidMediaMuxer
+ * @see FragmentedMp4Muxer
+ */
+public interface IMediaMuxer {
+
+    /**
+     * @return 轨道索引
+     */
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    void stop();
+
+    void release();
+}
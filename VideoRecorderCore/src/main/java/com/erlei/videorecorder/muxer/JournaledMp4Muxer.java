@@ -0,0 +1,90 @@
+package com.erlei.videorecorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.text.TextUtils;
+
+import com.erlei.videorecorder.mp4.JournaledMp4Writer;
+import com.erlei.videorecorder.util.LogUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 输出普通 MP4 并记录样本索引日志的混合器 , 录制过程中崩溃后可以通过 recover() 恢复视频
+ *
+ * @see JournaledMp4Writer
+ */
+public class JournaledMp4Muxer implements IMediaMuxer {
+
+    private static final String TAG = "JournaledMp4Muxer";
+    private final JournaledMp4Writer mWriter;
+
+    public JournaledMp4Muxer(String output) throws IOException {
+        if (TextUtils.isEmpty(output)) throw new IllegalArgumentException("output must not null");
+        mWriter = new JournaledMp4Writer(new File(output));
+    }
+
+    /**
+     * 按日志恢复崩溃时还没有写入 moov 的视频 , 耗时操作 , 不要在主线程调用
+     *
+     * @return 是否恢复成功
+     */
+    public static boolean recover(String output) {
+        try {
+            return JournaledMp4Writer.recover(new File(output));
+        } catch (IOException e) {
+            LogUtil.loge(TAG, "recover " + output + " error " + e);
+            return false;
+        }
+    }
+
+    public JournaledMp4Writer getWriter() {
+        return mWriter;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mWriter.addTrack(FragmentedMp4Muxer.toTrackFormat(format));
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("start JournaledMp4Writer error " + e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        byteBuf.position(bufferInfo.offset);
+        try {
+            mWriter.writeSample(trackIndex, byteBuf, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        } catch (IOException e) {
+            throw new IllegalStateException("writeSampleData error " + e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mWriter.stop();
+            LogUtil.logd(TAG, "stop " + mWriter.getFileWriter());
+        } catch (IOException e) {
+            throw new IllegalStateException("stop JournaledMp4Writer error " + e);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            mWriter.stop();
+        } catch (IOException e) {
+            LogUtil.loge(TAG, "release error " + e);
+        }
+    }
+}
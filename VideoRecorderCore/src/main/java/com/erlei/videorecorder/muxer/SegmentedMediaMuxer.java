@@ -0,0 +1,254 @@
+package com.erlei.videorecorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.text.TextUtils;
+
+import com.erlei.videorecorder.util.LogUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按时长或者大小滚动输出多个文件的混合器 , 切换文件时不需要停止编码器
+ * <p>
+ * 当前文件达到时长或者大小上限之后请求编码器立即输出一个关键帧 (API 19 以上) ,
+ * 在下一个视频关键帧处切换到新的文件 , 所以每个文件都从关键帧开始 , 文件之间没有丢帧
+ * 切换时用相同的 MediaFormat 按相同的顺序重新添加轨道 , 所以轨道索引不变
+ * 旧文件的 stop() (MediaMuxer 需要写入 moov) 在后台线程执行 , 不阻塞编码线程
+ * <p>
+ * 第一个文件就是 output , 之后的文件为 getSegmentPath(output, index)
+ * 非线程安全 , 由 MediaMuxerWrapper / MediaMuxerWarpper 保证在同一个线程 (或者加锁) 调用
+ */
+public class SegmentedMediaMuxer implements IMediaMuxer {
+
+    private static final String TAG = "SegmentedMediaMuxer";
+
+    /**
+     * 创建每一个文件实际使用的混合器
+     */
+    public interface Factory {
+        IMediaMuxer create(String output) throws IOException;
+    }
+
+    /**
+     * 请求视频编码器立即输出一个关键帧
+     */
+    public interface SyncFrameRequester {
+        void requestSyncFrame();
+    }
+
+    /**
+     * 文件完成回调 , 在后台线程调用
+     */
+    public interface OnSegmentListener {
+        /**
+         * @param output     已经写完的文件
+         * @param index      文件序号 , 从 0 开始
+         * @param durationUs 文件中视频 (没有视频时为音频) 的时长
+         * @param bytes      写入的样本字节数
+         */
+        void onSegmentFinished(String output, int index, long durationUs, long bytes);
+    }
+
+    private final String mOutput;
+    private final Factory mFactory;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private final List<MediaFormat> mFormats = new ArrayList<>();
+    private final ExecutorService mFinishExecutor;
+    private SyncFrameRequester mSyncFrameRequester;
+    private OnSegmentListener mListener;
+    private int mVideoTrack = -1;
+
+    private IMediaMuxer mMuxer;
+    private String mSegmentPath;
+    private int mSegmentIndex;
+    private long mSegmentStartUs = -1;
+    private long mSegmentLastUs;
+    private long mSegmentBytes;
+    private boolean mRotatePending;
+    private boolean mStarted;
+
+    /**
+     * @param output        第一个文件的路径
+     * @param factory       创建每一个文件的混合器
+     * @param maxDurationUs 每个文件的最大时长 , <= 0 表示不限制
+     * @param maxBytes      每个文件的最大字节数 (按样本大小估算) , <= 0 表示不限制
+     */
+    public SegmentedMediaMuxer(String output, Factory factory, long maxDurationUs, long maxBytes) throws IOException {
+        if (TextUtils.isEmpty(output)) throw new IllegalArgumentException("output must not null");
+        if (factory == null) throw new IllegalArgumentException("factory must not null");
+        mOutput = output;
+        mFactory = factory;
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+        mSegmentPath = output;
+        mMuxer = factory.create(output);
+        mFinishExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, TAG);
+            }
+        });
+    }
+
+    /**
+     * @return 第 index 个文件的路径 , 在扩展名之前加上序号 , 例如 a.mp4 -> a_001.mp4
+     */
+    public static String getSegmentPath(String output, int index) {
+        if (index == 0) return output;
+        int dot = output.lastIndexOf('.');
+        int separator = output.lastIndexOf('/');
+        String suffix = String.format(Locale.US, "_%03d", index);
+        if (dot <= separator) return output + suffix;
+        return output.substring(0, dot) + suffix + output.substring(dot);
+    }
+
+    public void setSyncFrameRequester(SyncFrameRequester requester) {
+        mSyncFrameRequester = requester;
+    }
+
+    public void setOnSegmentListener(OnSegmentListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 不等待时长或者大小上限 , 在下一个视频关键帧处切换文件
+     */
+    public void requestRotate() {
+        if (!mStarted || mRotatePending) return;
+        mRotatePending = true;
+        if (mSyncFrameRequester != null && mVideoTrack >= 0) mSyncFrameRequester.requestSyncFrame();
+    }
+
+    /**
+     * @return 当前正在写入的文件
+     */
+    public String getSegmentPath() {
+        return mSegmentPath;
+    }
+
+    public int getSegmentIndex() {
+        return mSegmentIndex;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        int trackIndex = mMuxer.addTrack(format);
+        mFormats.add(format);
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mVideoTrack < 0 && mime != null && mime.startsWith("video/")) mVideoTrack = trackIndex;
+        return trackIndex;
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        boolean timeTrack = mVideoTrack < 0 || trackIndex == mVideoTrack;
+        if (mRotatePending && timeTrack && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0
+                && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            rotate();
+        }
+        mMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+        mSegmentBytes += bufferInfo.size;
+        if (timeTrack) {
+            if (mSegmentStartUs < 0) mSegmentStartUs = bufferInfo.presentationTimeUs;
+            mSegmentLastUs = bufferInfo.presentationTimeUs;
+        }
+        if (!mRotatePending && isSegmentFull()) requestRotate();
+    }
+
+    /**
+     * 停止当前文件 , 并等待后台还没有完成的文件
+     */
+    @Override
+    public void stop() {
+        mFinishExecutor.shutdown();
+        try {
+            mFinishExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            LogUtil.loge(TAG, "wait segments finish interrupted");
+        }
+        mStarted = false;
+        mMuxer.stop();
+        notifySegmentFinished(mSegmentPath, mSegmentIndex, getSegmentDurationUs(), mSegmentBytes);
+    }
+
+    @Override
+    public void release() {
+        mFinishExecutor.shutdown();
+        mMuxer.release();
+    }
+
+    private boolean isSegmentFull() {
+        return (mMaxDurationUs > 0 && mSegmentStartUs >= 0 && mSegmentLastUs - mSegmentStartUs >= mMaxDurationUs)
+                || (mMaxBytes > 0 && mSegmentBytes >= mMaxBytes);
+    }
+
+    private long getSegmentDurationUs() {
+        return mSegmentStartUs < 0 ? 0 : mSegmentLastUs - mSegmentStartUs;
+    }
+
+    /**
+     * 创建下一个文件的混合器 , 旧的混合器在后台线程停止
+     */
+    private void rotate() {
+        mRotatePending = false;
+        int index = mSegmentIndex + 1;
+        String path = getSegmentPath(mOutput, index);
+        IMediaMuxer next;
+        try {
+            next = mFactory.create(path);
+            for (MediaFormat format : mFormats) {
+                next.addTrack(format);
+            }
+            next.start();
+        } catch (Exception e) {
+            //继续写入当前文件 , 到达下一个关键帧时再重试
+            LogUtil.loge(TAG, "create segment " + path + " error " + e);
+            return;
+        }
+        final IMediaMuxer finished = mMuxer;
+        final String finishedPath = mSegmentPath;
+        final int finishedIndex = mSegmentIndex;
+        final long durationUs = getSegmentDurationUs();
+        final long bytes = mSegmentBytes;
+        mFinishExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    finished.stop();
+                    notifySegmentFinished(finishedPath, finishedIndex, durationUs, bytes);
+                } catch (Exception e) {
+                    LogUtil.loge(TAG, "stop segment " + finishedPath + " error " + e);
+                } finally {
+                    finished.release();
+                }
+            }
+        });
+        mMuxer = next;
+        mSegmentPath = path;
+        mSegmentIndex = index;
+        mSegmentStartUs = -1;
+        mSegmentBytes = 0;
+        LogUtil.logd(TAG, "segment " + finishedIndex + " finished , duration = " + durationUs + "us , bytes = " + bytes + " , next = " + path);
+    }
+
+    private void notifySegmentFinished(String output, int index, long durationUs, long bytes) {
+        OnSegmentListener listener = mListener;
+        if (listener != null) listener.onSegmentFinished(output, index, durationUs, bytes);
+    }
+}
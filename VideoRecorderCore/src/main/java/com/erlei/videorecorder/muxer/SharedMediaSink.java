@@ -0,0 +1,107 @@
+package com.erlei.videorecorder.muxer;
+
+import com.erlei.videorecorder.mp4.MediaSink;
+import com.erlei.videorecorder.util.LogUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 一次录制的所有分段共用的额外输出 (例如 LiveStreamServer) , 每个分段通过 newSegment() 得到自己的 MediaSink
+ * <p>
+ * 切换分段时新分段的 writeHeader() 在编码线程执行 , 旧分段的最后一个分片和 close() 在后台线程执行 ,
+ * 所以只转发最新的分段 : 旧分段之后的分片丢弃 , 旧分段的 close() 不关闭 sink ,
+ * 只有最新的分段 close() (录制结束) 时才关闭
+ * <p>
+ * sink 出错时记录日志并断开 , 这次录制之后的数据不再写入 , 不会把异常抛给文件的写入
+ * 线程安全
+ */
+public class SharedMediaSink {
+
+    private static final String TAG = "SharedMediaSink";
+
+    private final MediaSink mSink;
+    private int mSegmentCount;
+    /**
+     * 最后写入 header 的分段 , 0 表示还没有
+     */
+    private int mCurrentSegment;
+    private boolean mFailed;
+    private boolean mClosed;
+
+    public SharedMediaSink(MediaSink sink) {
+        if (sink == null) throw new IllegalArgumentException("sink must not null");
+        mSink = sink;
+    }
+
+    /**
+     * @return 下一个分段使用的 MediaSink , 不会抛出 IOException
+     */
+    public synchronized MediaSink newSegment() {
+        return new Segment(++mSegmentCount);
+    }
+
+    /**
+     * @return sink 是否出错并且已经断开
+     */
+    public synchronized boolean isFailed() {
+        return mFailed;
+    }
+
+    private synchronized void writeHeader(int segment, ByteBuffer header) {
+        mCurrentSegment = segment;
+        if (mFailed || mClosed) return;
+        try {
+            mSink.writeHeader(header);
+        } catch (IOException e) {
+            detach(e);
+        }
+    }
+
+    private synchronized void writeFragment(int segment, ByteBuffer[] buffers, long startUs, boolean sync) {
+        if (segment != mCurrentSegment || mFailed || mClosed) return;
+        try {
+            mSink.writeFragment(buffers, startUs, sync);
+        } catch (IOException e) {
+            detach(e);
+        }
+    }
+
+    private synchronized void close(int segment) {
+        if (segment != mCurrentSegment || mClosed) return;
+        mClosed = true;
+        try {
+            mSink.close();
+        } catch (IOException e) {
+            LogUtil.loge(TAG, "close " + mSink + " error " + e);
+        }
+    }
+
+    private void detach(IOException e) {
+        mFailed = true;
+        LogUtil.loge(TAG, "write " + mSink + " error " + e + " , detached");
+    }
+
+    private final class Segment implements MediaSink {
+        private final int mSegment;
+
+        Segment(int segment) {
+            mSegment = segment;
+        }
+
+        @Override
+        public void writeHeader(ByteBuffer header) {
+            SharedMediaSink.this.writeHeader(mSegment, header);
+        }
+
+        @Override
+        public void writeFragment(ByteBuffer[] buffers, long startUs, boolean sync) {
+            SharedMediaSink.this.writeFragment(mSegment, buffers, startUs, sync);
+        }
+
+        @Override
+        public void close() {
+            SharedMediaSink.this.close(mSegment);
+        }
+    }
+}
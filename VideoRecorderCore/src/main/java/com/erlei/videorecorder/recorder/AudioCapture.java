@@ -9,7 +9,9 @@ import android.os.Message;
 
 import com.erlei.videorecorder.encoder.AudioEncoder;
 import com.erlei.videorecorder.encoder.MediaEncoder;
+import com.erlei.videorecorder.util.AudioClock;
 import com.erlei.videorecorder.util.LogUtil;
+import com.erlei.videorecorder.util.MediaClock;
 
 import java.nio.ByteBuffer;
 
@@ -32,6 +34,7 @@ public class AudioCapture extends HandlerThread {
     private final AudioEncoder mAudioEncoder;
     private ByteBuffer mByteBuffer;
     private AudioRecord mAudioRecord;
+    private AudioClock mAudioClock;
     private int mMinBufferSize;
 
 
@@ -116,6 +119,7 @@ public class AudioCapture extends HandlerThread {
         if (mAudioRecord != null) {
             LogUtil.logd(TAG, "mAudioRecord.startRecording();");
             mByteBuffer = ByteBuffer.allocateDirect(mMinBufferSize / 2);
+            mAudioClock = new AudioClock(mSampleRate, mAudioRecord.getChannelCount(), mMinBufferSize * mFrames / 2);
             mAudioRecord.startRecording();
 //            int framePeriod = mSampleRate * (1000 / mFrames) / 1000;
             int framePeriod = 160;
@@ -151,7 +155,7 @@ public class AudioCapture extends HandlerThread {
             mByteBuffer.position(readBytes);
             mByteBuffer.flip();
             LogUtil.logd(TAG, "AudioCapture send count " + ++mFrameCount + "\t\t readBytes = " + readBytes + "\t ");
-            handler.encode(mByteBuffer, readBytes, System.nanoTime() / 1000L);
+            handler.encode(mByteBuffer, readBytes, mAudioClock.onRead(readBytes, MediaClock.nowUs()));
             handler.frameAvailableSoon();
         }
     }
@@ -165,7 +169,8 @@ public class AudioCapture extends HandlerThread {
     private void handleStopCapture() {
         MediaEncoder.MediaEncoderHandler handler = mAudioEncoder.getHandler();
         if (handler == null) return;
-        handler.encode(null, 0, System.nanoTime() / 1000L);
+        handler.encode(null, 0, mAudioClock != null ? mAudioClock.getNextPTSUs() : MediaClock.nowUs());
+        LogUtil.logd(TAG, "stopCapture " + mAudioClock);
         try {
             mAudioRecord.stop();
         } catch (Exception e) {
@@ -7,7 +7,9 @@ import android.media.MediaRecorder;
 
 import com.erlei.videorecorder.encoder.AudioEncoder;
 import com.erlei.videorecorder.encoder.MediaEncoder;
+import com.erlei.videorecorder.util.AudioClock;
 import com.erlei.videorecorder.util.LogUtil;
+import com.erlei.videorecorder.util.MediaClock;
 
 import java.nio.ByteBuffer;
 
@@ -83,6 +85,7 @@ public class AudioCaptureThread extends Thread {
                         LogUtil.logd(TAG, "AudioThread:startRecord audio recording");
                         final ByteBuffer buf = ByteBuffer.allocateDirect(minBufferSize / 2);
                         int readBytes;
+                        final AudioClock clock = new AudioClock(mSampleRate, audioRecord.getChannelCount(), minBufferSize * 2);
                         audioRecord.startRecording();
                         try {
                             MediaEncoder.MediaEncoderHandler handler = mAudioEncoder.getHandler();
@@ -96,12 +99,13 @@ public class AudioCaptureThread extends Thread {
                                     buf.position(readBytes);
                                     buf.flip();
                                     LogUtil.logd(TAG, "AudioCapture send count " + ++mFrameCount + "\t\t readBytes = " + readBytes + "\t " + (System.currentTimeMillis() - lastMillis) + "ms");
-                                    handler.encode(buf, readBytes, System.nanoTime() / 1000L);
+                                    handler.encode(buf, readBytes, clock.onRead(readBytes, MediaClock.nowUs()));
                                     lastMillis = System.currentTimeMillis();
                                     handler.frameAvailableSoon();
                                 }
                             }
-                            handler.encode(null, 0, System.nanoTime() / 1000L);
+                            handler.encode(null, 0, clock.getNextPTSUs());
+                            LogUtil.logd(TAG, "AudioThread:stop " + clock);
                         } finally {
                             audioRecord.stop();
                         }
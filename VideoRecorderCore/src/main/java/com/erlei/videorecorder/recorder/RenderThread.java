@@ -111,7 +111,7 @@ public class RenderThread extends HandlerThread implements SurfaceTexture.OnFram
     private void onDrawFrame(long timestamp) {
         boolean swapBuffers;
         if (mCallBack != null) {
-            swapBuffers = mCallBack.onDrawFrame(mRenderer, mWindowSurface);
+            swapBuffers = mCallBack.onDrawFrame(mRenderer, mWindowSurface, timestamp);
         } else {
             mWindowSurface.makeCurrent();
             mRenderer.onDrawFrame();
@@ -224,9 +224,10 @@ public class RenderThread extends HandlerThread implements SurfaceTexture.OnFram
         /**
          * 渲染一帧
          *
+         * @param timestamp 相机帧的时间戳 (SurfaceTexture.getTimestamp()) , 纳秒
          * @return swapBuffers
          */
-        boolean onDrawFrame(CameraGLRenderer renderer, EglSurfaceBase windowSurface);
+        boolean onDrawFrame(CameraGLRenderer renderer, EglSurfaceBase windowSurface, long timestamp);
 
         /**
          * 渲染线程停止
@@ -11,6 +11,7 @@ import android.support.annotation.NonNull;
 
 import com.erlei.videorecorder.camera.Camera;
 import com.erlei.videorecorder.camera.Size;
+import com.erlei.videorecorder.encoder1.CodecCapabilityCache;
 import com.erlei.videorecorder.encoder1.MediaAudioEncoder;
 import com.erlei.videorecorder.encoder1.MediaMuxerWrapper;
 import com.erlei.videorecorder.encoder1.MediaVideoEncoder;
@@ -18,10 +19,23 @@ import com.erlei.videorecorder.gles.EglCore;
 import com.erlei.videorecorder.gles.EglSurfaceBase;
 import com.erlei.videorecorder.gles.GLUtil;
 import com.erlei.videorecorder.gles.WindowSurface;
+import com.erlei.videorecorder.mp4.FileMediaSink;
+import com.erlei.videorecorder.mp4.MediaSink;
+import com.erlei.videorecorder.mp4.TeeMediaSink;
+import com.erlei.videorecorder.muxer.AndroidMediaMuxer;
+import com.erlei.videorecorder.muxer.FilePreallocator;
+import com.erlei.videorecorder.muxer.FragmentedMp4Muxer;
+import com.erlei.videorecorder.muxer.JournaledMp4Muxer;
+import com.erlei.videorecorder.muxer.IMediaMuxer;
+import com.erlei.videorecorder.muxer.SegmentedMediaMuxer;
+import com.erlei.videorecorder.muxer.SharedMediaSink;
 import com.erlei.videorecorder.util.LogUtil;
+import com.erlei.videorecorder.util.MediaClock;
+import com.erlei.videorecorder.util.PreRollBuffer;
 import com.erlei.videorecorder.util.SaveFrameTask;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.text.SimpleDateFormat;
@@ -39,9 +53,17 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
     private ExecutorService mThreadExecutor;
     private RenderThread mRenderThread;
     private volatile boolean mRecordEnabled, mMuxerRunning, mRequestStart, mRequestStop, mPreviewState;
+    /**
+     * 预录制模式下编码器是否正在运行
+     */
+    private volatile boolean mPreRolling;
     private volatile WindowSurface mInputWindowSurface;
     private volatile MediaVideoEncoder mVideoEncoder;
     private volatile MediaMuxerWrapper mMuxer;
+    /**
+     * 把相机帧的时间戳转换到音视频共用的时间基准
+     */
+    private final MediaClock mFrameClock = new MediaClock();
     private ByteBuffer mByteBuffer;
     private Size mSize;
     private volatile boolean mTakePicture;
@@ -59,6 +81,8 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
     @Override
     public synchronized void startPreview() {
         if (mPreviewState) return;
+        //预览时在后台准备编码器能力 , 开始录制时不再查询 MediaCodecList
+        CodecCapabilityCache.preload(mConfig.context);
         mThreadExecutor = Executors.newSingleThreadExecutor();
         mRenderThread = new RenderThread(mConfig);
         mRenderThread.setCallBack(this);
@@ -94,6 +118,27 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
         return mMuxerRunning;
     }
 
+    /**
+     * 写入一个定时元数据样本 (例如设备方向 , 定位 , 应用的遥测数据) , 时间为当前时间
+     *
+     * @see #writeMetadata(long, byte[])
+     */
+    public boolean writeMetadata(byte[] data) {
+        return writeMetadata(MediaClock.nowUs(), data);
+    }
+
+    /**
+     * 写入一个定时元数据样本 , 需要先通过 Builder.setMetadataTrack() 开启 , 可以在任意线程调用 ,
+     * 数据拷贝到队列之后立即返回 , 由混合器线程按时间顺序批量写入 , 可以通过 Mp4Probe.readMetadata() 读取
+     *
+     * @param timeUs 与编码器一致的时间戳 , MediaClock.nowUs()
+     * @return 是否加入了队列 , 没有在录制 (预录制) , 没有开启元数据轨道或者时间戳没有递增时返回 false
+     */
+    public boolean writeMetadata(long timeUs, byte[] data) {
+        MediaMuxerWrapper muxer = mMuxer;
+        return muxer != null && muxer.writeMetadata(timeUs, data);
+    }
+
     @Override
     public void onSizeChanged(int width, int height) {
         mRenderThread.getHandler().onSizeChanged(width, height);
@@ -136,6 +181,10 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
         mRequestStart = true;
         LogUtil.loge(TAG, "startEncoder:begin");
         mOutputFile = getOutPut();
+        if (isPreRollEnable()) {
+            attachPreRollOutput();
+            return;
+        }
         mThreadExecutor.execute(new Runnable() {
             @Override
             public void run() {
@@ -143,8 +192,12 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
                 LogUtil.loge(TAG, "startEncoder:begin");
                 synchronized (mSync) {
                     try {
-                        mMuxer = new MediaMuxerWrapper(mOutputFile.getAbsolutePath(), mConfig.viewHandler);
+                        String output = mOutputFile.getAbsolutePath();
+                        IMediaMuxer muxer = createOutputMuxer(output);
+                        mMuxer = new MediaMuxerWrapper(output, mConfig.viewHandler, muxer);
+                        if (mConfig.metadataMime != null) mMuxer.setMetadataTrack(mConfig.metadataMime);
                         mVideoEncoder = new MediaVideoEncoder(mMuxer, mConfig);
+                        setSyncFrameRequester(muxer, mVideoEncoder);
                         new MediaAudioEncoder(mMuxer, mConfig);
                         mMuxer.prepare();
                         mMuxer.startRecording();
@@ -164,6 +217,209 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
         });
     }
 
+    private boolean isPreRollEnable() {
+        return mConfig.preRollDurationMs > 0;
+    }
+
+    /**
+     * 预录制模式 , 预览开始后就启动编码器 , 样本写入预录制缓冲区
+     */
+    private void startPreRoll() {
+        mThreadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mPreviewState) return;
+                synchronized (mSync) {
+                    try {
+                        PreRollBuffer buffer = new PreRollBuffer(mConfig.preRollMaxBytes,
+                                PreRollBuffer.DEFAULT_MAX_SAMPLES, mConfig.preRollDurationMs * 1000L);
+                        mMuxer = new MediaMuxerWrapper(mConfig.viewHandler, buffer);
+                        if (mConfig.metadataMime != null) mMuxer.setMetadataTrack(mConfig.metadataMime);
+                        mVideoEncoder = new MediaVideoEncoder(mMuxer, mConfig);
+                        new MediaAudioEncoder(mMuxer, mConfig);
+                        mMuxer.prepare();
+                        mMuxer.startRecording();
+                        mInputWindowSurface = new WindowSurface(mRenderThread.getEglCore(), mVideoEncoder.getSurface(), true);
+                        mPreRolling = true;
+                        mMuxerRunning = true;
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        LogUtil.loge(TAG, "startPreRoll:" + e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 预录制模式下开始录制 , 只需要给混合器添加输出 , 编码器一直在运行
+     */
+    private void attachPreRollOutput() {
+        mThreadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mPreviewState) return;
+                synchronized (mSync) {
+                    try {
+                        String output = mOutputFile.getAbsolutePath();
+                        IMediaMuxer muxer = createOutputMuxer(output);
+                        setSyncFrameRequester(muxer, mVideoEncoder);
+                        mMuxer.attachOutput(output, muxer);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        LogUtil.loge(TAG, "attachPreRollOutput:" + e);
+                    }
+                    mRequestStart = false;
+                }
+                if (mConfig.viewHandler != null) {
+                    mConfig.viewHandler.onCaptureStarted(mOutputFile.getAbsolutePath());
+                }
+            }
+        });
+    }
+
+    /**
+     * 预录制模式下停止录制 , 编码器继续运行 , 样本重新写入预录制缓冲区
+     */
+    private void detachPreRollOutput() {
+        mThreadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mSync) {
+                    try {
+                        if (mMuxer != null) mMuxer.detachOutput();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        LogUtil.loge(TAG, "detachPreRollOutput:" + e);
+                    }
+                    mRequestStop = false;
+                }
+                if (mConfig.viewHandler != null) {
+                    mConfig.viewHandler.onCaptureStopped(mOutputFile.getAbsolutePath());
+                }
+            }
+        });
+    }
+
+    /**
+     * 停止预录制的编码器
+     */
+    private void stopPreRoll() {
+        synchronized (mSync) {
+            mPreRolling = false;
+            mMuxerRunning = false;
+            try {
+                if (mMuxer != null) {
+                    mMuxer.stopRecording();
+                    mMuxer = null;
+                }
+                if (mInputWindowSurface != null) {
+                    mInputWindowSurface.release();
+                    mInputWindowSurface = null;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                LogUtil.loge(TAG, "stopPreRoll:" + e);
+            }
+        }
+    }
+
+    private IMediaMuxer createOutputMuxer(String output) throws IOException {
+        //额外的输出在整个录制 (所有分段) 中共用 , 录制结束时才关闭
+        SharedMediaSink sink = mConfig.mediaSink != null ? new SharedMediaSink(mConfig.mediaSink) : null;
+        return isSegmentEnable() ? createSegmentedMuxer(output, sink) : createMediaMuxer(output, sink);
+    }
+
+    private void setSyncFrameRequester(IMediaMuxer muxer, final MediaVideoEncoder encoder) {
+        if (!(muxer instanceof SegmentedMediaMuxer) || encoder == null) return;
+        ((SegmentedMediaMuxer) muxer).setSyncFrameRequester(new SegmentedMediaMuxer.SyncFrameRequester() {
+            @Override
+            public void requestSyncFrame() {
+                encoder.requestSyncFrame();
+            }
+        });
+    }
+
+    private boolean isSegmentEnable() {
+        return mConfig.segmentDurationMs > 0 || mConfig.segmentMaxBytes > 0;
+    }
+
+    /**
+     * 分段录制 , 每个分段使用 createMediaMuxer() 创建的混合器
+     */
+    private IMediaMuxer createSegmentedMuxer(String output, final SharedMediaSink sink) throws IOException {
+        SegmentedMediaMuxer muxer = new SegmentedMediaMuxer(output, new SegmentedMediaMuxer.Factory() {
+            @Override
+            public IMediaMuxer create(String output) throws IOException {
+                return createMediaMuxer(output, sink);
+            }
+        }, mConfig.segmentDurationMs * 1000L, mConfig.segmentMaxBytes);
+        muxer.setOnSegmentListener(new SegmentedMediaMuxer.OnSegmentListener() {
+            @Override
+            public void onSegmentFinished(String output, int index, long durationUs, long bytes) {
+                LogUtil.logd(TAG, "onSegmentFinished " + output + " , durationUs = " + durationUs + " , bytes = " + bytes);
+                if (mConfig.viewHandler != null) mConfig.viewHandler.onSegmentFinished(output, index);
+            }
+        });
+        return muxer;
+    }
+
+    /**
+     * @param sink 额外的输出 , 为 null 时只写入文件
+     */
+    private IMediaMuxer createMediaMuxer(String output, SharedMediaSink sink) throws IOException {
+        if (sink != null) {
+            FileMediaSink file = new FileMediaSink(new File(output));
+            if (mConfig.preallocateDurationMs > 0) {
+                file.getFileWriter().setPreallocation(new FilePreallocator(), getPreallocateBytes(), getPreallocateExtentBytes());
+            }
+            return new FragmentedMp4Muxer(new TeeMediaSink(file, sink.newSegment()), mConfig.fragmentDurationMs * 1000L);
+        }
+        if (mConfig.fragmentedMp4) {
+            FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(output, mConfig.fragmentDurationMs * 1000L);
+            if (mConfig.preallocateDurationMs > 0) {
+                muxer.getWriter().setPreallocation(new FilePreallocator(), getPreallocateBytes(), getPreallocateExtentBytes());
+            }
+            return muxer;
+        }
+        if (mConfig.journalEnable) {
+            JournaledMp4Muxer muxer = new JournaledMp4Muxer(output);
+            if (mConfig.preallocateDurationMs > 0) {
+                muxer.getWriter().setPreallocation(new FilePreallocator(), getPreallocateBytes(), getPreallocateExtentBytes());
+            }
+            return muxer;
+        }
+        return new AndroidMediaMuxer(output);
+    }
+
+    /**
+     * @return 按码率估算的每秒字节数 , 没有设置视频码率时与 MediaVideoEncoder 的估算方式相同
+     */
+    private long getBytesPerSecond() {
+        long videoBitRate = mConfig.videoBitRate;
+        if (videoBitRate <= 0) {
+            Size size = mConfig.getCameraController().getSurfaceSize();
+            videoBitRate = (long) size.getWidth() * size.getHeight() * 3 * 4;
+        }
+        return (videoBitRate + mConfig.audioBitRate) / 8;
+    }
+
+    /**
+     * @return 第一次预分配的大小 , 分段录制时不超过一个分段的时长
+     */
+    private long getPreallocateBytes() {
+        long durationMs = mConfig.preallocateDurationMs;
+        if (mConfig.segmentDurationMs > 0) durationMs = Math.min(durationMs, mConfig.segmentDurationMs);
+        return getBytesPerSecond() * durationMs / 1000;
+    }
+
+    /**
+     * @return 超过预计时长之后每次追加分配的大小 , 10 秒的数据 , 至少 1MB
+     */
+    private long getPreallocateExtentBytes() {
+        return Math.max(getBytesPerSecond() * 10, 1024 * 1024);
+    }
+
     @SuppressWarnings("ResultOfMethodCallIgnored")
     @NonNull
     private File getOutPut() {
@@ -184,6 +440,10 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
         mRecordEnabled = false;
         mRequestStop = true;
         LogUtil.loge(TAG, "stopEncoder:begin");
+        if (isPreRollEnable()) {
+            detachPreRollOutput();
+            return;
+        }
         mThreadExecutor.execute(new Runnable() {
             @Override
             public void run() {
@@ -218,6 +478,7 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
     public synchronized void stopPreview() {
         if (!mPreviewState) return;
         mPreviewState = false;
+        if (mPreRolling) stopPreRoll();
         mThreadExecutor.shutdownNow();
         mThreadExecutor = null;
         mMuxerRunning = false;
@@ -240,6 +501,7 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
     @Override
     public void onPrepared(EglCore eglCore) {
         mConfig.cameraController.openCamera(getPreviewTexture());
+        if (isPreRollEnable()) startPreRoll();
         LogUtil.logd(TAG, "GL_VERSION " + GLUtil.GL_VERSION + (GLUtil.GL_VERSION < 3 ? "draw twice" : "glBlitFramebuffer"));
     }
 
@@ -248,15 +510,17 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
      *
      * @param renderer
      * @param windowSurface
+     * @param timestamp     相机帧的时间戳 , 转换后作为编码器输入帧的显示时间 , 不使用编码器输出时的时间
      * @return swapBuffers
      */
     @Override
-    public synchronized boolean onDrawFrame(CameraGLRenderer renderer, EglSurfaceBase windowSurface) {
+    public synchronized boolean onDrawFrame(CameraGLRenderer renderer, EglSurfaceBase windowSurface, long timestamp) {
         boolean swapBuffers;
         long startTime = System.currentTimeMillis();
         //使用mSync同步锁将导致录制开始的时候卡顿一下
 //        && !mRequestStart && !mRequestStop
-        if (mInputWindowSurface != null && mVideoEncoder != null && mRecordEnabled && mMuxerRunning && mPreviewState) {
+        if (mInputWindowSurface != null && mVideoEncoder != null && (mRecordEnabled || mPreRolling) && mMuxerRunning && mPreviewState) {
+            final long presentationTimeNs = mFrameClock.toTimebaseNs(timestamp);
             if (GLUtil.GL_VERSION >= 3) {
 
                 windowSurface.makeCurrent();
@@ -275,6 +539,7 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
                 if ((err = GLES30.glGetError()) != GLES30.GL_NO_ERROR) {
                     LogUtil.logw("ERROR: glBlitFramebuffer failed: 0x" + Integer.toHexString(err));
                 }
+                mInputWindowSurface.setPresentationTime(presentationTimeNs);
                 mInputWindowSurface.swapBuffers();
                 windowSurface.makeCurrent();
                 swapBuffers = windowSurface.swapBuffers();
@@ -286,6 +551,7 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
                 mInputWindowSurface.makeCurrent();
                 mVideoEncoder.frameAvailableSoon();
                 renderer.onDrawFrame();
+                mInputWindowSurface.setPresentationTime(presentationTimeNs);
                 mInputWindowSurface.swapBuffers();
             }
         } else {
@@ -364,6 +630,20 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
             return this;
         }
 
+        /**
+         * 开启自适应码率 , 需要 API 19 , 录制过程中根据输出码率 , 编码器排队的帧数 , 写入积压和存储速度调整视频码率 ,
+         * 存储跟不上时降低码率 , 避免写入阻塞和丢帧 ; 初始码率为 setVideoBitRate() 设置的码率
+         *
+         * @param minBitRate 最低码率 , 0 表示最高码率的 1/8
+         * @param maxBitRate 最高码率 , 0 表示初始码率
+         */
+        public Builder setAdaptiveBitRate(int minBitRate, int maxBitRate) {
+            mP.adaptiveBitRate = true;
+            mP.minVideoBitRate = minBitRate;
+            mP.maxVideoBitRate = maxBitRate;
+            return this;
+        }
+
         /**
          * @param bitRate 设置音频比特率
          *                默认为 64000
@@ -405,6 +685,111 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
             return this;
         }
 
+        /**
+         * @param enable 是否输出分片 MP4 (moof + mdat) , 默认关闭使用系统 MediaMuxer
+         *               开启后样本按分片直接写入文件 , 录制中途崩溃文件依然可以播放到最后一个分片 ,
+         *               停止录制时也不需要等待 MediaMuxer 重写索引
+         */
+        public Builder setFragmentedMp4Enable(boolean enable) {
+            mP.fragmentedMp4 = enable;
+            return this;
+        }
+
+        /**
+         * @param enable 是否记录样本索引日志 , 默认关闭 , 开启分片 MP4 时不起作用 (分片 MP4 本身可以播放到最后一个分片)
+         *               开启后使用纯 Java 的混合器输出普通 MP4 , 并在输出文件旁边写入 .journal 日志 ,
+         *               录制中途崩溃后可以通过 JournaledMp4Muxer.recover() 恢复视频
+         */
+        public Builder setJournalEnable(boolean enable) {
+            mP.journalEnable = enable;
+            return this;
+        }
+
+        /**
+         * @param sink 额外的输出 , 例如 LiveStreamServer , 设置后使用分片 MP4 , 同时写入输出文件和 sink ,
+         *             录制过程中就可以在其他进程预览或者转推 ; 每次录制结束时调用 sink.close() , 切换分段时不会关闭 ,
+         *             sink 出错时只断开 sink , 不影响文件的录制
+         */
+        public Builder setMediaSink(MediaSink sink) {
+            mP.mediaSink = sink;
+            return this;
+        }
+
+        /**
+         * @param durationMs 分片时长 , 只有开启了分片 MP4 才会起作用 , 默认 1000 毫秒
+         */
+        public Builder setFragmentDuration(int durationMs) {
+            mP.fragmentDurationMs = durationMs;
+            return this;
+        }
+
+        /**
+         * @param durationMs 分段录制 , 每个文件的时长 , 默认 0 不分段
+         *                   到达时长之后在下一个视频关键帧处切换到新的文件 , 编码器不会停止 , 分段之间没有丢帧
+         *                   API 19 以上会请求编码器立即输出关键帧 , 更低的版本需要等待关键帧间隔
+         *                   每个分段完成时回调 VideoRecorderHandler.handleSegmentFinished()
+         */
+        public Builder setSegmentDuration(int durationMs) {
+            mP.segmentDurationMs = durationMs;
+            return this;
+        }
+
+        /**
+         * @param maxBytes 分段录制 , 每个文件的最大字节数 , 默认 0 不限制 , 可以和 setSegmentDuration() 同时使用
+         */
+        public Builder setSegmentMaxBytes(long maxBytes) {
+            mP.segmentMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * @param durationMs 预录制时长 , 默认 0 不预录制
+         *                   开启后预览时编码器就开始运行 , 编码数据保存在内存中的环形缓冲区 ,
+         *                   开始录制时视频从覆盖这个时长的最近一个关键帧开始 , 所以实际预录制的时长最多会多一个关键帧间隔
+         *                   预录制会一直占用编码器和麦克风
+         */
+        public Builder setPreRollDuration(int durationMs) {
+            mP.preRollDurationMs = durationMs;
+            return this;
+        }
+
+        /**
+         * @param maxBytes 预录制缓冲区大小 , 默认 16MB , 不够保存预录制时长的数据时会丢弃最早的关键帧间隔
+         */
+        public Builder setPreRollMaxBytes(int maxBytes) {
+            mP.preRollMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * @param durationMs 按码率预分配输出文件空间的时长 , 默认 0 不预分配 ,
+         *                   只对 setFragmentedMp4Enable() 和 setJournalEnable() 使用的纯 Java 混合器有效
+         *                   预计时长用完之后每次追加分配 10 秒的空间 , 停止录制时截断到实际大小
+         */
+        public Builder setPreallocateDuration(int durationMs) {
+            mP.preallocateDurationMs = durationMs;
+            return this;
+        }
+
+        /**
+         * @param mime 定时元数据轨道的格式 , 以 application/ 开头 , 例如 TrackFormat.MIME_METADATA_JSON ,
+         *             默认 null 不添加 ; 开启后通过 VideoRecorder.writeMetadata() 写入 ,
+         *             系统 MediaMuxer 需要 API 26 , 纯 Java 混合器 (分片 MP4 , 日志) 没有限制
+         */
+        public Builder setMetadataTrack(String mime) {
+            mP.metadataMime = mime;
+            return this;
+        }
+
+        /**
+         * @param enable 是否使用 MediaCodec 异步回调模式 , 默认开启 , 只在 API 21 以上生效 ,
+         *               编码器输出样本后立即在回调线程写入混合器 , 不再由编码线程轮询 ; 关闭或者 API 18 - 20 使用轮询模式
+         */
+        public Builder setAsyncEncoderEnable(boolean enable) {
+            mP.asyncEncoder = enable;
+            return this;
+        }
+
         /**
          * @param enable 是否启用FPS日志输出
          */
@@ -462,6 +847,20 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
         int audioSampleRate = 44100;
         int audioChannelCount = 1;
         int videoBitRate;
+        boolean adaptiveBitRate;
+        int minVideoBitRate;
+        int maxVideoBitRate;
+        boolean fragmentedMp4;
+        int fragmentDurationMs = 1000;
+        boolean journalEnable;
+        int segmentDurationMs;
+        long segmentMaxBytes;
+        int preRollDurationMs;
+        int preRollMaxBytes = 16 * 1024 * 1024;
+        int preallocateDurationMs;
+        String metadataMime;
+        boolean asyncEncoder = true;
+        MediaSink mediaSink;
         String outputPath;
         Camera.CameraBuilder cameraBuilder;
 
@@ -518,6 +917,62 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
             return outputPath;
         }
 
+        public boolean isFragmentedMp4() {
+            return fragmentedMp4;
+        }
+
+        public int getFragmentDurationMs() {
+            return fragmentDurationMs;
+        }
+
+        public boolean isJournalEnable() {
+            return journalEnable;
+        }
+
+        public int getSegmentDurationMs() {
+            return segmentDurationMs;
+        }
+
+        public long getSegmentMaxBytes() {
+            return segmentMaxBytes;
+        }
+
+        public int getPreRollDurationMs() {
+            return preRollDurationMs;
+        }
+
+        public int getPreRollMaxBytes() {
+            return preRollMaxBytes;
+        }
+
+        public int getPreallocateDurationMs() {
+            return preallocateDurationMs;
+        }
+
+        public MediaSink getMediaSink() {
+            return mediaSink;
+        }
+
+        public String getMetadataMime() {
+            return metadataMime;
+        }
+
+        public boolean isAsyncEncoder() {
+            return asyncEncoder;
+        }
+
+        public boolean isAdaptiveBitRate() {
+            return adaptiveBitRate;
+        }
+
+        public int getMinVideoBitRate() {
+            return minVideoBitRate;
+        }
+
+        public int getMaxVideoBitRate() {
+            return maxVideoBitRate;
+        }
+
         public ICameraPreview getCameraPreview() {
             return cameraPreview;
         }
@@ -574,6 +1029,62 @@ public class VideoRecorder implements RenderThread.RenderCallBack, IVideoRecorde
             this.outputPath = outputPath;
         }
 
+        public void setFragmentedMp4(boolean fragmentedMp4) {
+            this.fragmentedMp4 = fragmentedMp4;
+        }
+
+        public void setFragmentDurationMs(int fragmentDurationMs) {
+            this.fragmentDurationMs = fragmentDurationMs;
+        }
+
+        public void setJournalEnable(boolean journalEnable) {
+            this.journalEnable = journalEnable;
+        }
+
+        public void setSegmentDurationMs(int segmentDurationMs) {
+            this.segmentDurationMs = segmentDurationMs;
+        }
+
+        public void setSegmentMaxBytes(long segmentMaxBytes) {
+            this.segmentMaxBytes = segmentMaxBytes;
+        }
+
+        public void setPreRollDurationMs(int preRollDurationMs) {
+            this.preRollDurationMs = preRollDurationMs;
+        }
+
+        public void setPreRollMaxBytes(int preRollMaxBytes) {
+            this.preRollMaxBytes = preRollMaxBytes;
+        }
+
+        public void setPreallocateDurationMs(int preallocateDurationMs) {
+            this.preallocateDurationMs = preallocateDurationMs;
+        }
+
+        public void setMediaSink(MediaSink mediaSink) {
+            this.mediaSink = mediaSink;
+        }
+
+        public void setMetadataMime(String metadataMime) {
+            this.metadataMime = metadataMime;
+        }
+
+        public void setAsyncEncoder(boolean asyncEncoder) {
+            this.asyncEncoder = asyncEncoder;
+        }
+
+        public void setAdaptiveBitRate(boolean adaptiveBitRate) {
+            this.adaptiveBitRate = adaptiveBitRate;
+        }
+
+        public void setMinVideoBitRate(int minVideoBitRate) {
+            this.minVideoBitRate = minVideoBitRate;
+        }
+
+        public void setMaxVideoBitRate(int maxVideoBitRate) {
+            this.maxVideoBitRate = maxVideoBitRate;
+        }
+
         public Camera.CameraBuilder getCameraBuilder() {
             return cameraBuilder;
         }
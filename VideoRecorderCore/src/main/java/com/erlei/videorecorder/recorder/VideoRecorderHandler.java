@@ -12,6 +12,7 @@ public class VideoRecorderHandler extends Handler implements MuxerCallback {
     protected static final int MSG_MEDIA_MUXER_START = 3;
     protected static final int MSG_MEDIA_CAPTURE_START = 4;
     protected static final int MSG_MEDIA_CAPTURE_STOPPED = 5;
+    protected static final int MSG_SEGMENT_FINISHED = 6;
 
 
     @Override
@@ -33,6 +34,9 @@ public class VideoRecorderHandler extends Handler implements MuxerCallback {
             case MSG_MEDIA_CAPTURE_STOPPED:
                 handleMediaCaptureStopped((String) msg.obj);
                 break;
+            case MSG_SEGMENT_FINISHED:
+                handleSegmentFinished((String) msg.obj, msg.arg1);
+                break;
         }
     }
 
@@ -91,6 +95,17 @@ public class VideoRecorderHandler extends Handler implements MuxerCallback {
 
     }
 
+    /**
+     * 开启分段录制时 , 一个分段文件已经写完 , 最后一个分段也会回调
+     *
+     * @param output 分段文件路径
+     * @param index  分段序号 , 从 0 开始
+     * @see VideoRecorder.Builder#setSegmentDuration(int)
+     */
+    protected void handleSegmentFinished(String output, int index) {
+
+    }
+
     protected void handleUpdateFPS(float obj) {
 
     }
@@ -122,4 +137,8 @@ public class VideoRecorderHandler extends Handler implements MuxerCallback {
     public void onCaptureStopped(String output) {
         sendMessage(obtainMessage(MSG_MEDIA_CAPTURE_STOPPED, output));
     }
+
+    public void onSegmentFinished(String output, int index) {
+        sendMessage(obtainMessage(MSG_SEGMENT_FINISHED, index, 0, output));
+    }
 }
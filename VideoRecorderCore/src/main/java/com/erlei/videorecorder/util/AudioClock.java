@@ -0,0 +1,163 @@
+package com.erlei.videorecorder.util;
+
+import java.util.Locale;
+
+/**
+ * 按读取的 PCM 样本数计算音频的显示时间 , 纯 Java 实现
+ * <p>
+ * 显示时间 = 锚点 + 锚定之后读取的样本数 / 采样率 , 不受读取线程调度的抖动影响
+ * 锚点是第一次读取时估计的采集时间 (读取返回的时间减去这次读取的时长) , 使用 MediaClock 的时间基准 , 与视频一致
+ * <p>
+ * 每次读取都比较估计的采集时间和样本数计算的时间 , 差值就是音频时钟相对视频时钟的漂移 :
+ * 漂移超过 AudioRecord 的缓冲区时长加两次读取的时长时 , 说明缓冲区溢出丢失了样本 (读取线程被阻塞) ,
+ * 缓冲区中的样本是阻塞之前采集的 , 读完这些样本之后按丢失的时长重新锚定 , 显示时间向前跳 ;
+ * 其他情况下的漂移 (实际采样率与标称值不同) 平滑之后超过 5ms 时修正锚点 , 每次最多修正读取时长的 1% ,
+ * 显示时间保持连续 , 单调递增
+ * 只支持 16 位 PCM , 非线程安全 , 在读取线程调用
+ */
+public class AudioClock {
+
+    private static final long DRIFT_TOLERANCE_US = 5000;
+    private static final int DRIFT_SMOOTHING = 16;
+    private static final int BYTES_PER_SAMPLE = 2;
+
+    private final int mSampleRate;
+    private final int mBytesPerFrame;
+    private final long mBufferUs;
+    private final long mBufferFrames;
+    private boolean mAnchored;
+    private long mAnchorUs;
+    /**
+     * 锚定之后读取的样本帧数 (每个声道一个样本为一帧)
+     */
+    private long mFrames;
+    private long mTotalFrames;
+    private double mDriftUs;
+    private long mMaxDriftUs;
+    private int mResyncCount;
+    private long mLostUs;
+    private long mCorrectionUs;
+    /**
+     * 检测到溢出之后还要读取的缓冲区中的样本帧数 , 读完之后显示时间跳过 mPendingLostUs
+     */
+    private long mPendingFrames;
+    private long mPendingLostUs;
+
+    /**
+     * @param bufferSizeInBytes AudioRecord 的缓冲区大小 , 读取线程被阻塞的时间超过缓冲区时长才会丢失样本
+     */
+    public AudioClock(int sampleRate, int channelCount, int bufferSizeInBytes) {
+        if (sampleRate <= 0) throw new IllegalArgumentException("sampleRate must > 0");
+        if (channelCount <= 0) throw new IllegalArgumentException("channelCount must > 0");
+        mSampleRate = sampleRate;
+        mBytesPerFrame = channelCount * BYTES_PER_SAMPLE;
+        mBufferFrames = Math.max(0, bufferSizeInBytes) / mBytesPerFrame;
+        mBufferUs = framesToUs(mBufferFrames);
+    }
+
+    /**
+     * 读取了一段 PCM 数据
+     *
+     * @param bytes      读取的字节数
+     * @param readTimeUs 读取返回的时间 , MediaClock.nowUs()
+     * @return 这段数据第一个样本的显示时间
+     */
+    public long onRead(int bytes, long readTimeUs) {
+        if (bytes <= 0) throw new IllegalArgumentException("bytes must > 0");
+        final long frames = bytes / mBytesPerFrame;
+        final long durationUs = framesToUs(frames);
+        final long captureUs = readTimeUs - durationUs;
+        if (!mAnchored) {
+            mAnchored = true;
+            mAnchorUs = captureUs;
+            mFrames = 0;
+        }
+        if (mPendingLostUs > 0 && mPendingFrames <= 0) {
+            mAnchorUs += framesToUs(mFrames) + mPendingLostUs;
+            mFrames = 0;
+            mPendingLostUs = 0;
+            mDriftUs = 0;
+        }
+        final long ptsUs = mAnchorUs + framesToUs(mFrames);
+        final long driftUs = captureUs - ptsUs;
+        if (mPendingLostUs > 0) {
+            //读取缓冲区中积压的样本 , 读取很快 , 不计入漂移
+            mPendingFrames -= frames;
+        } else if (driftUs > mBufferUs + 2 * durationUs) {
+            //缓冲区满了之后的样本丢失 , 这次读取到的是缓冲区中最早的样本
+            mResyncCount++;
+            mPendingLostUs = driftUs - mBufferUs;
+            mPendingFrames = mBufferFrames - frames;
+            mLostUs += mPendingLostUs;
+        } else {
+            mDriftUs += (driftUs - mDriftUs) / DRIFT_SMOOTHING;
+            if (Math.abs(mDriftUs) > DRIFT_TOLERANCE_US) {
+                final long maxStep = Math.max(1, durationUs / 100);
+                final long step = Math.max(-maxStep, Math.min(maxStep, (long) mDriftUs));
+                //只影响下一次读取的显示时间 , 间隔不小于读取时长的 99%
+                mAnchorUs += step;
+                mCorrectionUs += step;
+            }
+        }
+        if (Math.abs(driftUs) > Math.abs(mMaxDriftUs)) mMaxDriftUs = driftUs;
+        mFrames += frames;
+        mTotalFrames += frames;
+        return ptsUs;
+    }
+
+    /**
+     * @return 下一个样本的显示时间 , 用于结束信号 (EOS) , 还没有读取时返回 MediaClock.nowUs()
+     */
+    public long getNextPTSUs() {
+        return mAnchored ? mAnchorUs + framesToUs(mFrames) + mPendingLostUs : MediaClock.nowUs();
+    }
+
+    /**
+     * @return 平滑后的漂移 , 估计的采集时间减去样本数计算的时间 , 正数表示音频时钟落后于视频时钟
+     */
+    public long getDriftUs() {
+        return (long) mDriftUs;
+    }
+
+    /**
+     * @return 单次读取测量到的绝对值最大的漂移 , 包括重新锚定的那次
+     */
+    public long getMaxDriftUs() {
+        return mMaxDriftUs;
+    }
+
+    /**
+     * @return 因为丢失样本重新锚定的次数
+     */
+    public int getResyncCount() {
+        return mResyncCount;
+    }
+
+    /**
+     * @return 估计丢失的样本时长
+     */
+    public long getLostUs() {
+        return mLostUs;
+    }
+
+    /**
+     * @return 平滑修正的累计时长 , 正数表示显示时间被向后推
+     */
+    public long getCorrectionUs() {
+        return mCorrectionUs;
+    }
+
+    public long getTotalFrames() {
+        return mTotalFrames;
+    }
+
+    private long framesToUs(long frames) {
+        return frames * 1000000L / mSampleRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "AudioClock{frames=%d, drift=%dus, maxDrift=%dus, correction=%dus, resync=%d, lost=%dus}",
+                mTotalFrames, getDriftUs(), mMaxDriftUs, mCorrectionUs, mResyncCount, mLostUs);
+    }
+}
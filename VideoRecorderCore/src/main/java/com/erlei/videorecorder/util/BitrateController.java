@@ -0,0 +1,131 @@
+package com.erlei.videorecorder.util;
+
+import java.util.Locale;
+
+/**
+ * 视频码率闭环控制 , 纯 Java 实现 , 不依赖 MediaCodec
+ * <p>
+ * 每个统计窗口 (默认 1 秒) 调用一次 update() , 根据以下信号计算新的码率 :
+ * 编码器输出的视频字节数 , 窗口内编码器排队增加的帧数 , 写入线程被阻塞的时间占比 (写入积压) 和最长的单次写入 , 存储的写入速度
+ * <p>
+ * 拥塞 (写入占比超过 50% , 单次写入超过 200ms , 排队增加超过 4 帧) 时码率乘以 0.7 , 并且不超过存储速度允许的码率 ;
+ * 空闲 (写入占比低于 25% , 排队增加不超过 1 帧) 连续两个窗口并且编码器实际用满了当前码率时 , 码率增加最大码率的 5% ,
+ * 同样不超过存储速度允许的码率 , 避免反复增加到存储跟不上的码率
+ * 存储速度只在拥塞的窗口测量 (写入的字节数除以窗口时长) , 写入页缓存时单次写入的速度远高于存储的实际速度 ;
+ * 码率因为存储速度不能增加时 , 每个空闲的窗口放宽 2% , 存储恢复之后码率可以继续增加 ;
+ * 码率始终在 [minBitRate, maxBitRate] 之间
+ * 非线程安全 , 在编码线程调用
+ */
+public class BitrateController {
+
+    public static final long DEFAULT_WINDOW_US = 1000000;
+    private static final double CONGESTED_WRITE_RATIO = 0.5;
+    private static final double IDLE_WRITE_RATIO = 0.25;
+    private static final long MAX_WRITE_STALL_US = 200000;
+    private static final int MAX_QUEUE_DEPTH = 4;
+    private static final int IDLE_QUEUE_DEPTH = 1;
+    private static final double DECREASE_FACTOR = 0.7;
+    private static final double INCREASE_STEP = 0.05;
+    /**
+     * 编码器输出的码率达到目标码率的这个比例才认为码率不够用 , 静止的画面不需要提高码率
+     */
+    private static final double UTILIZED_RATIO = 0.8;
+    /**
+     * 视频最多使用存储写入速度的这个比例
+     */
+    private static final double STORAGE_HEADROOM = 0.6;
+    private static final int INCREASE_AFTER_IDLE_WINDOWS = 2;
+    private static final double STORAGE_RELAX_FACTOR = 1.02;
+
+    private final int mMinBitRate;
+    private final int mMaxBitRate;
+    private int mBitRate;
+    private int mIdleWindows;
+    /**
+     * 拥塞时测量到的存储写入速度 , 字节 / 秒 , 0 表示还没有拥塞过
+     */
+    private double mStorageBytesPerSec;
+    private int mDecreaseCount;
+    private int mIncreaseCount;
+
+    public BitrateController(int initialBitRate, int minBitRate, int maxBitRate) {
+        if (minBitRate <= 0) throw new IllegalArgumentException("minBitRate must > 0");
+        if (maxBitRate < minBitRate) throw new IllegalArgumentException("maxBitRate must >= minBitRate");
+        mMinBitRate = minBitRate;
+        mMaxBitRate = maxBitRate;
+        mBitRate = clamp(initialBitRate);
+    }
+
+    /**
+     * @param windowUs     统计窗口的时长
+     * @param videoBytes   窗口内编码器输出的视频字节数
+     * @param writtenBytes 窗口内写入混合器的所有轨道的字节数
+     * @param writeBusyUs  窗口内写入混合器花费的时间
+     * @param maxWriteUs   窗口内最长的单次写入
+     * @param queueDepth   窗口内编码器排队增加的帧数 , 窗口内提交的帧数减去输出的帧数 , 不小于 0 ;
+     *                     不能使用累计的计数 , 丢弃的帧会一直被当成排队
+     * @return 新的码率 , 与 getBitRate() 相同
+     */
+    public int update(long windowUs, long videoBytes, long writtenBytes, long writeBusyUs, long maxWriteUs, int queueDepth) {
+        if (windowUs <= 0) return mBitRate;
+        final double writeRatio = (double) writeBusyUs / windowUs;
+        final boolean congested = writeRatio > CONGESTED_WRITE_RATIO || maxWriteUs > MAX_WRITE_STALL_US || queueDepth > MAX_QUEUE_DEPTH;
+        if (congested && writtenBytes > 0) {
+            //写入线程大部分时间被阻塞 , 写入的速度就是存储能持续写入的速度
+            final double bytesPerSec = writtenBytes * 1000000d / Math.max(windowUs, writeBusyUs);
+            mStorageBytesPerSec = mStorageBytesPerSec == 0 ? bytesPerSec : Math.min(mStorageBytesPerSec, mStorageBytesPerSec * 0.5 + bytesPerSec * 0.5);
+        }
+        final double videoShare = writtenBytes > 0 ? Math.min(1d, (double) videoBytes / writtenBytes) : 1d;
+        final long storageLimit = mStorageBytesPerSec > 0
+                ? (long) (mStorageBytesPerSec * 8 * STORAGE_HEADROOM * videoShare) : Long.MAX_VALUE;
+        if (congested) {
+            mIdleWindows = 0;
+            final int bitRate = clamp(Math.min((long) (mBitRate * DECREASE_FACTOR), storageLimit));
+            if (bitRate < mBitRate) mDecreaseCount++;
+            mBitRate = bitRate;
+            return mBitRate;
+        }
+        final boolean idle = writeRatio < IDLE_WRITE_RATIO && queueDepth <= IDLE_QUEUE_DEPTH;
+        mIdleWindows = idle ? mIdleWindows + 1 : 0;
+        final long outputBitRate = videoBytes * 8 * 1000000L / windowUs;
+        if (mIdleWindows >= INCREASE_AFTER_IDLE_WINDOWS && outputBitRate >= mBitRate * UTILIZED_RATIO) {
+            mIdleWindows = 0;
+            final long increased = mBitRate + (long) (mMaxBitRate * INCREASE_STEP);
+            if (increased > storageLimit) mStorageBytesPerSec *= STORAGE_RELAX_FACTOR;
+            final long target = Math.min(increased, storageLimit);
+            final int bitRate = clamp(Math.max(target, mBitRate));
+            if (bitRate > mBitRate) mIncreaseCount++;
+            mBitRate = bitRate;
+        }
+        return mBitRate;
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    public int getMinBitRate() {
+        return mMinBitRate;
+    }
+
+    public int getMaxBitRate() {
+        return mMaxBitRate;
+    }
+
+    /**
+     * @return 拥塞时测量到的存储写入速度 , 字节 / 秒 , 0 表示还没有拥塞过
+     */
+    public long getStorageBytesPerSec() {
+        return (long) mStorageBytesPerSec;
+    }
+
+    private int clamp(long bitRate) {
+        return (int) Math.max(mMinBitRate, Math.min(mMaxBitRate, bitRate));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "BitrateController{bitRate=%d, range=[%d,%d], storage=%dB/s, decrease=%d, increase=%d}",
+                mBitRate, mMinBitRate, mMaxBitRate, getStorageBytesPerSec(), mDecreaseCount, mIncreaseCount);
+    }
+}
@@ -0,0 +1,43 @@
+package com.erlei.videorecorder.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 统计写入字节数的 WritableByteChannel , 把写入的字节数交给 ProgressReporter 计算进度
+ * 用于替代轮询文件长度 , 不会产生额外的系统调用
+ */
+public class CountingByteChannel implements WritableByteChannel {
+
+    private final WritableByteChannel mDelegate;
+    private final ProgressReporter mReporter;
+
+    public CountingByteChannel(WritableByteChannel delegate, ProgressReporter reporter) {
+        if (delegate == null) throw new IllegalArgumentException("delegate must not null");
+        if (reporter == null) throw new IllegalArgumentException("reporter must not null");
+        mDelegate = delegate;
+        mReporter = reporter;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int written = mDelegate.write(src);
+        mReporter.add(written);
+        return written;
+    }
+
+    public long getBytesWritten() {
+        return mReporter.getBytes();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mDelegate.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mDelegate.close();
+    }
+}
@@ -0,0 +1,208 @@
+package com.erlei.videorecorder.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * 按大小分级的 DirectByteBuffer 池
+ * <p>
+ * 容量按 2 的幂分级 (minBufferSize ~ maxBufferSize) , 申请时向上取整到对应的级别 ,
+ * 超过 maxBufferSize 的申请直接分配 , 归还时不进入池中
+ * 池中空闲缓冲区的总字节数不超过 maxPooledBytes , 超出部分在归还时丢弃 , 交给 GC 回收 native 内存
+ * <p>
+ * 线程安全 , 编码线程申请 , 混合器线程归还
+ */
+public class DirectBufferPool {
+
+    private static final int DEFAULT_MIN_BUFFER_SIZE = 4 * 1024;
+    private static final int DEFAULT_MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final long DEFAULT_MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+    private static volatile DirectBufferPool sDefault;
+
+    private final int mMinShift;
+    private final int mMaxBufferSize;
+    private final long mMaxPooledBytes;
+    private final ArrayDeque<ByteBuffer>[] mFreeLists;
+
+    private long mPooledBytes;
+    private long mLeasedBytes;
+    private long mHighWaterMark;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * @return 全局共享的缓冲池
+     */
+    public static DirectBufferPool getDefault() {
+        if (sDefault == null) {
+            synchronized (DirectBufferPool.class) {
+                if (sDefault == null) {
+                    sDefault = new DirectBufferPool(DEFAULT_MIN_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_POOLED_BYTES);
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param minBufferSize  最小级别的容量 , 会向上取整为 2 的幂
+     * @param maxBufferSize  最大级别的容量 , 会向上取整为 2 的幂
+     * @param maxPooledBytes 池中最多保留的空闲字节数
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public DirectBufferPool(int minBufferSize, int maxBufferSize, long maxPooledBytes) {
+        if (minBufferSize <= 0 || maxBufferSize < minBufferSize)
+            throw new IllegalArgumentException("invalid buffer size range " + minBufferSize + " - " + maxBufferSize);
+        mMinShift = shiftOf(minBufferSize);
+        int maxShift = shiftOf(maxBufferSize);
+        mMaxBufferSize = 1 << maxShift;
+        mMaxPooledBytes = maxPooledBytes;
+        mFreeLists = new ArrayDeque[maxShift - mMinShift + 1];
+        for (int i = 0; i < mFreeLists.length; i++) {
+            mFreeLists[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * 申请一个至少 size 字节的缓冲区
+     *
+     * @return 租约 , 使用完毕后必须调用 Lease.release() 归还
+     */
+    public Lease acquire(int size) {
+        if (size < 0) throw new IllegalArgumentException("size = " + size);
+        int sizeClass = sizeClassOf(size);
+        ByteBuffer buffer = null;
+        int capacity;
+        synchronized (this) {
+            if (sizeClass >= 0) {
+                buffer = mFreeLists[sizeClass].pollLast();
+                capacity = 1 << (sizeClass + mMinShift);
+            } else {
+                capacity = size;
+            }
+            if (buffer != null) {
+                mHits++;
+                mPooledBytes -= capacity;
+            } else {
+                mMisses++;
+            }
+            mLeasedBytes += capacity;
+            if (mLeasedBytes > mHighWaterMark) mHighWaterMark = mLeasedBytes;
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return new Lease(this, buffer, sizeClass);
+    }
+
+    /**
+     * 丢弃池中所有空闲缓冲区 , 例如录制结束后释放 native 内存
+     */
+    public synchronized void trim() {
+        for (ArrayDeque<ByteBuffer> freeList : mFreeLists) {
+            freeList.clear();
+        }
+        mPooledBytes = 0;
+    }
+
+    /**
+     * @return 租出的字节数的历史峰值
+     */
+    public synchronized long getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    public synchronized long getLeasedBytes() {
+        return mLeasedBytes;
+    }
+
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    /**
+     * @return 从池中复用的次数
+     */
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return 需要重新分配的次数
+     */
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized void resetStatistics() {
+        mHits = mMisses = 0;
+        mHighWaterMark = mLeasedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DirectBufferPool{" +
+                "hits=" + mHits +
+                ", misses=" + mMisses +
+                ", leasedBytes=" + mLeasedBytes +
+                ", pooledBytes=" + mPooledBytes +
+                ", highWaterMark=" + mHighWaterMark +
+                '}';
+    }
+
+    private void recycle(ByteBuffer buffer, int sizeClass) {
+        int capacity = buffer.capacity();
+        synchronized (this) {
+            mLeasedBytes -= capacity;
+            if (sizeClass < 0 || mPooledBytes + capacity > mMaxPooledBytes) return;
+            mFreeLists[sizeClass].addLast(buffer);
+            mPooledBytes += capacity;
+        }
+    }
+
+    /**
+     * @return 级别索引 , 超过最大级别返回 -1
+     */
+    private int sizeClassOf(int size) {
+        if (size > mMaxBufferSize) return -1;
+        if (size <= 1 << mMinShift) return 0;
+        return shiftOf(size) - mMinShift;
+    }
+
+    private static int shiftOf(int size) {
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * 缓冲区租约 , 一个租约只能归还一次
+     */
+    public static final class Lease {
+        private final DirectBufferPool mPool;
+        private final int mSizeClass;
+        private ByteBuffer mBuffer;
+
+        private Lease(DirectBufferPool pool, ByteBuffer buffer, int sizeClass) {
+            mPool = pool;
+            mBuffer = buffer;
+            mSizeClass = sizeClass;
+        }
+
+        /**
+         * @return 缓冲区 , position = 0 , limit = 申请的大小 , 归还之后返回 null
+         */
+        public ByteBuffer buffer() {
+            return mBuffer;
+        }
+
+        public void release() {
+            ByteBuffer buffer = mBuffer;
+            if (buffer == null) return;
+            mBuffer = null;
+            mPool.recycle(buffer, mSizeClass);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.erlei.videorecorder.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * 移动文件 , 先尝试 renameTo() (同一个分区内是原子操作) ,
+ * 失败时 (例如从 getExternalCacheDir() 移动到 getExternalFilesDir() 或者用户指定的目录 , 跨越了挂载点)
+ * 通过 FileChannel.transferTo() 拷贝到目标目录的临时文件 , fsync 之后重命名为目标文件 , 最后删除源文件
+ * 拷贝失败时删除临时文件 , 源文件和已存在的目标文件保持不变
+ */
+public final class FileMover {
+
+    /**
+     * 每次 transferTo 最多拷贝的字节数 , 用于计算进度
+     */
+    private static final long TRANSFER_CHUNK_BYTES = 4 * 1024 * 1024;
+
+    private FileMover() {
+    }
+
+    /**
+     * @param reporter 拷贝进度 , 可以为 null , 重命名成功时直接回调进度 1
+     * @return true 表示重命名成功 , false 表示通过拷贝移动
+     */
+    public static boolean move(File source, File target, ProgressReporter reporter) throws IOException {
+        if (source == null) throw new IllegalArgumentException("source must not null");
+        if (target == null) throw new IllegalArgumentException("target must not null");
+        if (!source.isFile()) throw new IOException("source not found " + source);
+        if (source.equals(target)) return true;
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs() && !parent.exists()) {
+            throw new IOException("create directory " + parent + " failed");
+        }
+        if (rename(source, target)) {
+            if (reporter != null) reporter.finish();
+            return true;
+        }
+        copy(source, target, reporter);
+        if (!source.delete()) {
+            //目标文件已经完整 , 只留下了源文件
+            LogUtil.loge("FileMover", "delete " + source + " failed");
+        }
+        return false;
+    }
+
+    private static boolean rename(File source, File target) {
+        if (source.renameTo(target)) return true;
+        //部分文件系统不允许覆盖已存在的文件 , 但是删除之后如果还是失败 (跨分区) 目标文件就丢失了 , 所以只在同一个目录内这样做
+        File sourceParent = source.getAbsoluteFile().getParentFile();
+        File targetParent = target.getAbsoluteFile().getParentFile();
+        if (target.exists() && sourceParent != null && sourceParent.equals(targetParent) && target.delete()) {
+            return source.renameTo(target);
+        }
+        return false;
+    }
+
+    private static void copy(File source, File target, ProgressReporter reporter) throws IOException {
+        File temp = new File(target.getPath() + ".part");
+        FileInputStream in = new FileInputStream(source);
+        FileOutputStream out = null;
+        boolean success = false;
+        try {
+            out = new FileOutputStream(temp);
+            FileChannel src = in.getChannel();
+            FileChannel dst = out.getChannel();
+            long size = src.size();
+            long position = 0;
+            while (position < size) {
+                long count = src.transferTo(position, Math.min(TRANSFER_CHUNK_BYTES, size - position), dst);
+                if (count <= 0) throw new IOException("transfer " + source + " stopped at " + position);
+                position += count;
+                if (reporter != null) reporter.add(count);
+            }
+            //数据写入磁盘之后再重命名 , 断电时目标文件要么是完整的 , 要么不存在
+            dst.force(true);
+            out.close();
+            out = null;
+            if (temp.length() != size) throw new IOException("copy " + source + " size mismatch " + temp.length() + " != " + size);
+            if (!rename(temp, target)) throw new IOException("rename " + temp + " to " + target + " failed");
+            success = true;
+            if (reporter != null) reporter.finish();
+        } finally {
+            in.close();
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (!success) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        }
+    }
+}
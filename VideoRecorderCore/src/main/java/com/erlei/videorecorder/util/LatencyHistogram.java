@@ -0,0 +1,78 @@
+package com.erlei.videorecorder.util;
+
+import java.util.Locale;
+
+/**
+ * 延迟直方图 , 纯 Java 实现 , 按 2 的幂划分区间 (微秒) , 记录不分配内存
+ * 百分位返回所在区间的上限 , 最大值和平均值是精确值
+ * 线程安全
+ */
+public class LatencyHistogram {
+
+    /**
+     * 区间 i 包含 [2^(i-1), 2^i) 微秒 , 区间 0 包含小于 1 微秒 , 最后一个区间包含所有更大的值 (约 34 秒以上)
+     */
+    private static final int BUCKET_COUNT = 36;
+
+    private final String mName;
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSumUs;
+    private long mMaxUs;
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public synchronized void record(long latencyUs) {
+        if (latencyUs < 0) latencyUs = 0;
+        int bucket = 64 - Long.numberOfLeadingZeros(latencyUs);
+        mBuckets[Math.min(bucket, BUCKET_COUNT - 1)]++;
+        mCount++;
+        mSumUs += latencyUs;
+        if (latencyUs > mMaxUs) mMaxUs = latencyUs;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMaxUs() {
+        return mMaxUs;
+    }
+
+    public synchronized long getMeanUs() {
+        return mCount == 0 ? 0 : mSumUs / mCount;
+    }
+
+    /**
+     * @param percentile 0 - 100
+     * @return 百分位所在区间的上限 , 不超过最大值 , 没有记录时返回 0
+     */
+    public synchronized long getPercentileUs(double percentile) {
+        if (mCount == 0) return 0;
+        long rank = (long) Math.ceil(mCount * Math.max(0, Math.min(100, percentile)) / 100d);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) return i == BUCKET_COUNT - 1 ? mMaxUs : Math.min((1L << i) - 1, mMaxUs);
+        }
+        return mMaxUs;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mSumUs = 0;
+        mMaxUs = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%s{count=%d, mean=%dus, p50=%dus, p90=%dus, p99=%dus, max=%dus}",
+                mName, mCount, getMeanUs(), getPercentileUs(50), getPercentileUs(90), getPercentileUs(99), mMaxUs);
+    }
+}
@@ -0,0 +1,514 @@
+package com.erlei.videorecorder.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 视频缩略图和 MediaInfo 的两级缓存 , 用于相册等反复读取同一批视频的界面
+ * <p>
+ * 缓存的 key 为 路径 + 修改时间 + 文件大小 , 文件被修改 (例如裁剪) 之后自动失效
+ * 缩略图 : 内存中按字节数限制的 LRU (缩小到 thumbnailSize 以内) , 磁盘上保存 JPEG ;
+ * 从内存中淘汰并且没有被调用方持有的 Bitmap 进入复用池 , 从磁盘解码时通过 inBitmap 复用 , 减少大块内存分配和 GC
+ * MediaInfo : 内存中按条数限制的 LRU
+ * 同一个文件的并发请求合并为一次解码 , 其他线程等待同一个结果
+ * <p>
+ * 线程安全 , 读取方法会阻塞 (解码视频帧) , 不要在主线程调用
+ * 返回的 Bitmap 属于缓存 , 调用方不能 recycle() ; getThumbnail() 对返回的 Bitmap 引用计数 , 用完之后调用 release() ,
+ * 所有引用都释放并且被淘汰之后才会被复用 ; 不调用 release() 的 Bitmap 永远不会被复用 , 由 GC 回收
+ */
+public class MediaCache {
+
+    private static final String TAG = "MediaCache";
+    public static final int DEFAULT_THUMBNAIL_SIZE = 512;
+    private static final int DEFAULT_INFO_ENTRIES = 256;
+    private static final int JPEG_QUALITY = 85;
+
+    private final LruCache<String, Bitmap> mBitmaps;
+    private final LruCache<String, MediaUtil.MediaInfo> mInfos;
+    private final ConcurrentHashMap<String, FutureTask<Bitmap>> mBitmapLoads = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, FutureTask<MediaUtil.MediaInfo>> mInfoLoads = new ConcurrentHashMap<>();
+    /**
+     * 从内存缓存中淘汰的可复用 Bitmap , 同时作为 mEntries 的锁
+     */
+    private final ArrayDeque<Bitmap> mReusable = new ArrayDeque<>();
+    /**
+     * 内存缓存 , 复用池中和调用方持有的 Bitmap 的状态 , 弱引用 , 调用方不 release() 也不会泄漏
+     * (Bitmap 没有重写 equals / hashCode , 按对象比较)
+     */
+    private final WeakHashMap<Bitmap, Entry> mEntries = new WeakHashMap<>();
+    private final int mMaxReusableBytes;
+    private int mReusableBytes;
+    private final File mDiskDir;
+    private final long mMaxDiskBytes;
+    private long mDiskBytes = -1;
+    private final int mThumbnailSize;
+
+    private final AtomicLong mMemoryHits = new AtomicLong();
+    private final AtomicLong mDiskHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mCollapsed = new AtomicLong();
+    private final AtomicLong mReused = new AtomicLong();
+
+    /**
+     * @param diskDir       磁盘缓存目录 , 例如 context.getCacheDir() 下的子目录 , null 表示不使用磁盘缓存
+     * @param memoryBytes   内存中缩略图的最大字节数
+     * @param diskBytes     磁盘缓存的最大字节数 , 超过时删除最久没有使用的文件
+     * @param thumbnailSize 缩略图长边的最大像素数
+     */
+    public MediaCache(File diskDir, int memoryBytes, long diskBytes, int thumbnailSize) {
+        if (memoryBytes <= 0) throw new IllegalArgumentException("memoryBytes must > 0");
+        if (thumbnailSize <= 0) throw new IllegalArgumentException("thumbnailSize must > 0");
+        mDiskDir = diskDir;
+        mMaxDiskBytes = diskBytes;
+        mThumbnailSize = thumbnailSize;
+        mMaxReusableBytes = memoryBytes / 4;
+        mBitmaps = new LruCache<String, Bitmap>(memoryBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return getBitmapBytes(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                onRemoved(oldValue);
+            }
+        };
+        mInfos = new LruCache<>(DEFAULT_INFO_ENTRIES);
+    }
+
+    /**
+     * @return 缩小到 thumbnailSize 以内的第一帧 , 文件不存在或者解码失败时返回 null ;
+     * 返回的 Bitmap 在 release() 之前不会被复用
+     */
+    public Bitmap getThumbnail(String path) {
+        String key = getKey(path);
+        if (key == null) return null;
+        Bitmap bitmap = mBitmaps.get(key);
+        if (bitmap != null && acquire(key, bitmap)) {
+            mMemoryHits.incrementAndGet();
+            return bitmap;
+        }
+        //解码完成之后 , 被其他线程的请求淘汰并且复用时重新读取
+        for (int attempt = 0; attempt < 2; attempt++) {
+            bitmap = loadThumbnail(path, key);
+            if (bitmap == null || acquire(key, bitmap)) return bitmap;
+        }
+        return null;
+    }
+
+    /**
+     * getThumbnail() 返回的 Bitmap 用完之后调用 , 所有引用都释放之后 , 被淘汰时才能复用
+     */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null) return;
+        synchronized (mReusable) {
+            Entry entry = mEntries.get(bitmap);
+            if (entry == null || entry.references <= 0) return;
+            entry.references--;
+            if (entry.references == 0 && !entry.cached) addReusable(bitmap);
+        }
+    }
+
+    private Bitmap loadThumbnail(final String path, final String key) {
+        return load(mBitmapLoads, key, new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                Bitmap bitmap = decodeDisk(key);
+                if (bitmap != null) {
+                    mDiskHits.incrementAndGet();
+                } else {
+                    mMisses.incrementAndGet();
+                    bitmap = decodeVideo(path);
+                    if (bitmap == null) return null;
+                    writeDisk(key, bitmap);
+                }
+                synchronized (mReusable) {
+                    mEntries.put(bitmap, new Entry(key));
+                }
+                mBitmaps.put(key, bitmap);
+                return bitmap;
+            }
+        });
+    }
+
+    /**
+     * @see MediaUtil#getMediaInfo(String)
+     */
+    public MediaUtil.MediaInfo getMediaInfo(final String path) {
+        final String key = getKey(path);
+        if (key == null) return null;
+        MediaUtil.MediaInfo info = mInfos.get(key);
+        if (info != null) {
+            mMemoryHits.incrementAndGet();
+            return info;
+        }
+        return load(mInfoLoads, key, new Callable<MediaUtil.MediaInfo>() {
+            @Override
+            public MediaUtil.MediaInfo call() {
+                mMisses.incrementAndGet();
+                MediaUtil.MediaInfo info = MediaUtil.getMediaInfo(path);
+                if (info != null) mInfos.put(key, info);
+                return info;
+            }
+        });
+    }
+
+    /**
+     * 清空内存缓存 , 例如 onTrimMemory() 时调用 , 磁盘缓存保留
+     */
+    public void clearMemory() {
+        mBitmaps.evictAll();
+        mInfos.evictAll();
+        synchronized (mReusable) {
+            for (Bitmap bitmap : mReusable) {
+                mEntries.remove(bitmap);
+            }
+            mReusable.clear();
+            mReusableBytes = 0;
+        }
+    }
+
+    /**
+     * 清空内存和磁盘缓存
+     */
+    public void clear() {
+        clearMemory();
+        synchronized (this) {
+            File[] files = mDiskDir == null ? null : mDiskDir.listFiles();
+            if (files == null) return;
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+            mDiskBytes = 0;
+        }
+    }
+
+    public long getMemoryHitCount() {
+        return mMemoryHits.get();
+    }
+
+    public long getDiskHitCount() {
+        return mDiskHits.get();
+    }
+
+    /**
+     * @return 需要解码视频 (或者读取 MediaInfo) 的次数
+     */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return 等待其他线程正在进行的解码 , 没有重复解码的次数
+     */
+    public long getCollapsedCount() {
+        return mCollapsed.get();
+    }
+
+    /**
+     * @return 从磁盘解码时复用了淘汰的 Bitmap 的次数
+     */
+    public long getReusedCount() {
+        return mReused.get();
+    }
+
+    /**
+     * @return 不需要解码视频的请求比例 (内存命中 , 磁盘命中 , 合并的请求)
+     */
+    public float getHitRate() {
+        long hits = mMemoryHits.get() + mDiskHits.get() + mCollapsed.get();
+        long total = hits + mMisses.get();
+        return total == 0 ? 0 : (float) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "MediaCache{" +
+                "memoryHits=" + mMemoryHits +
+                ", diskHits=" + mDiskHits +
+                ", misses=" + mMisses +
+                ", collapsed=" + mCollapsed +
+                ", reused=" + mReused +
+                ", hitRate=" + getHitRate() +
+                ", memoryBytes=" + mBitmaps.size() +
+                '}';
+    }
+
+    /**
+     * 同一个 key 只有第一个线程执行 loader , 其他线程等待同一个结果
+     */
+    private <T> T load(ConcurrentHashMap<String, FutureTask<T>> loads, String key, Callable<T> loader) {
+        FutureTask<T> task = new FutureTask<>(loader);
+        FutureTask<T> running = loads.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loads.remove(key, task);
+            }
+        } else {
+            mCollapsed.incrementAndGet();
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LogUtil.loge(TAG, "load " + key + " error " + e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * @return 路径 + 修改时间 + 文件大小 , 文件不存在时返回 null
+     */
+    private static String getKey(String path) {
+        if (path == null) return null;
+        File file = new File(path);
+        long length = file.length();
+        if (length == 0) return null;
+        return path + '|' + file.lastModified() + '|' + length;
+    }
+
+    private Bitmap decodeVideo(String path) {
+        Bitmap frame = MediaUtil.getVideoThumbnail(path);
+        if (frame == null) return null;
+        int width = frame.getWidth(), height = frame.getHeight();
+        float scale = Math.min(1f, (float) mThumbnailSize / Math.max(width, height));
+        if (scale >= 1f) return frame;
+        Bitmap scaled = Bitmap.createScaledBitmap(frame, Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)), true);
+        if (scaled != frame) frame.recycle();
+        return scaled;
+    }
+
+    private Bitmap decodeDisk(String key) {
+        File file = getDiskFile(key);
+        if (file == null || !file.exists()) return null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        options.inMutable = true;
+        options.inBitmap = takeReusable(options.outWidth, options.outHeight);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (IllegalArgumentException e) {
+            //inBitmap 不能复用
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        }
+        if (bitmap != null && options.inBitmap != null) mReused.incrementAndGet();
+        //更新修改时间 , 磁盘缓存按修改时间淘汰
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        return bitmap;
+    }
+
+    private synchronized void writeDisk(String key, Bitmap bitmap) {
+        File file = getDiskFile(key);
+        if (file == null) return;
+        if (!mDiskDir.exists() && !mDiskDir.mkdirs()) return;
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) throw new IOException("compress failed");
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) throw new IOException("rename failed");
+            if (mDiskBytes < 0) mDiskBytes = getDiskBytes();
+            else mDiskBytes += file.length();
+            trimDisk();
+        } catch (IOException e) {
+            LogUtil.loge(TAG, "write thumbnail " + file + " error " + e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 删除最久没有使用的文件 , 直到不超过 maxDiskBytes
+     */
+    private void trimDisk() {
+        if (mDiskBytes <= mMaxDiskBytes) return;
+        File[] files = mDiskDir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            if (mDiskBytes <= mMaxDiskBytes * 3 / 4) break;
+            long length = file.length();
+            if (file.delete()) mDiskBytes -= length;
+        }
+    }
+
+    private long getDiskBytes() {
+        long bytes = 0;
+        File[] files = mDiskDir.listFiles();
+        if (files == null) return 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    private File getDiskFile(String key) {
+        if (mDiskDir == null || mMaxDiskBytes <= 0) return null;
+        return new File(mDiskDir, md5(key) + ".jpg");
+    }
+
+    /**
+     * 从内存缓存中移除 , 没有被调用方持有时进入复用池 , 否则等待 release()
+     */
+    private void onRemoved(Bitmap bitmap) {
+        synchronized (mReusable) {
+            Entry entry = mEntries.get(bitmap);
+            if (entry == null) return;
+            entry.cached = false;
+            if (entry.references == 0) addReusable(bitmap);
+        }
+    }
+
+    /**
+     * 增加 Bitmap 的引用计数 , 如果已经进入复用池就从复用池中取回
+     *
+     * @return bitmap 是否还是 key 对应的缩略图 , 已经被复用或者 recycle() 时返回 false
+     */
+    private boolean acquire(String key, Bitmap bitmap) {
+        synchronized (mReusable) {
+            Entry entry = mEntries.get(bitmap);
+            if (entry == null || !entry.key.equals(key) || bitmap.isRecycled()) return false;
+            if (entry.references == 0 && !entry.cached && mReusable.remove(bitmap)) {
+                mReusableBytes -= getBitmapBytes(bitmap);
+            }
+            entry.references++;
+            return true;
+        }
+    }
+
+    /**
+     * 调用时必须持有 mReusable 的锁 , 不能复用的 Bitmap 直接丢弃
+     */
+    private void addReusable(Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable()) {
+            mEntries.remove(bitmap);
+            return;
+        }
+        int bytes = getBitmapBytes(bitmap);
+        while (!mReusable.isEmpty() && mReusableBytes + bytes > mMaxReusableBytes) {
+            Bitmap oldest = mReusable.pollFirst();
+            mEntries.remove(oldest);
+            mReusableBytes -= getBitmapBytes(oldest);
+        }
+        if (bytes > mMaxReusableBytes) {
+            mEntries.remove(bitmap);
+            return;
+        }
+        mReusable.addLast(bitmap);
+        mReusableBytes += bytes;
+    }
+
+    /**
+     * API 19 以上只要求容量足够 , 更低的版本要求宽高完全相同
+     */
+    private Bitmap takeReusable(int width, int height) {
+        int required = width * height * 4;
+        synchronized (mReusable) {
+            Iterator<Bitmap> iterator = mReusable.iterator();
+            while (iterator.hasNext()) {
+                Bitmap bitmap = iterator.next();
+                if (bitmap.isRecycled()) {
+                    iterator.remove();
+                    mEntries.remove(bitmap);
+                    mReusableBytes -= getBitmapBytes(bitmap);
+                    continue;
+                }
+                boolean fit = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                        ? bitmap.getAllocationByteCount() >= required
+                        : bitmap.getWidth() == width && bitmap.getHeight() == height;
+                if (fit && bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+                    iterator.remove();
+                    mEntries.remove(bitmap);
+                    mReusableBytes -= getBitmapBytes(bitmap);
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 缩略图的状态 , 不引用 Bitmap
+     */
+    private static final class Entry {
+        final String key;
+        /**
+         * getThumbnail() 返回之后还没有 release() 的次数
+         */
+        int references;
+        /**
+         * 是否还在内存缓存中
+         */
+        boolean cached = true;
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private static int getBitmapBytes(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) return bitmap.getAllocationByteCount();
+        return bitmap.getByteCount();
+    }
+
+    private static String md5(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(String.format(Locale.US, "%02x", b & 0xFF));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.erlei.videorecorder.util;
+
+/**
+ * 音视频共用的单调时间基准 , CLOCK_MONOTONIC (System.nanoTime())
+ * <p>
+ * 音频样本 , 视频帧 , 定时元数据的显示时间都使用 nowUs() 的时间基准 , 不同轨道之间可以直接比较
+ * 相机帧的时间戳 (SurfaceTexture.getTimestamp()) 通常也是 CLOCK_MONOTONIC , 但是部分设备使用 CLOCK_BOOTTIME
+ * 或者返回 0 , toTimebaseNs() 把帧时间戳转换到这个时间基准 :
+ * 第一帧的时间戳与当前时间相差超过 1 秒时认为使用了其他时钟 , 之后的帧都加上这个偏移 ;
+ * 时间戳为 0 时使用当前时间 ; 转换后的时间戳保证单调递增
+ */
+public class MediaClock {
+
+    private static final long MAX_SAME_CLOCK_DIFF_NS = 1000000000L;
+
+    private boolean mOffsetKnown;
+    private long mOffsetNs;
+    private long mLastNs = Long.MIN_VALUE;
+
+    public static long nowUs() {
+        return System.nanoTime() / 1000L;
+    }
+
+    public static long nowNs() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @param timestampNs 相机帧的时间戳 , 纳秒
+     * @return 转换到 nowNs() 时间基准的时间戳 , 纳秒
+     */
+    public synchronized long toTimebaseNs(long timestampNs) {
+        long now = nowNs();
+        long result;
+        if (timestampNs <= 0) {
+            result = now;
+        } else {
+            if (!mOffsetKnown) {
+                long diff = now - timestampNs;
+                mOffsetNs = Math.abs(diff) > MAX_SAME_CLOCK_DIFF_NS ? diff : 0;
+                mOffsetKnown = true;
+                if (mOffsetNs != 0) LogUtil.logw(LogUtil.TAG, "frame timestamp uses another clock , offset = " + mOffsetNs + "ns");
+            }
+            result = timestampNs + mOffsetNs;
+        }
+        if (result <= mLastNs) result = mLastNs + 1;
+        mLastNs = result;
+        return result;
+    }
+}
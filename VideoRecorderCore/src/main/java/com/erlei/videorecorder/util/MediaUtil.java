@@ -6,6 +6,11 @@ import android.media.MediaMetadataRetriever;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.erlei.videorecorder.mp4.Mp4Probe;
+
+import java.io.File;
+import java.io.IOException;
+
 /**
  * Created by lll on 2017/12/7.
  * 视频工具类
@@ -14,8 +19,13 @@ public class MediaUtil {
 
     private static final String TAG = "MediaUtil";
 
+    /**
+     * @return 视频时长 (毫秒) , 优先使用 Mp4Probe 读取 MP4 头部 , 不是 MP4 或者读取失败时使用 MediaMetadataRetriever
+     */
     public static long getVideoDuration(String path) {
         if (TextUtils.isEmpty(path)) return 0;
+        Mp4Probe.Result probe = probe(path);
+        if (probe != null) return probe.getDurationMs();
         android.media.MediaMetadataRetriever mmr = new android.media.MediaMetadataRetriever();
         try {
             mmr.setDataSource(path);
@@ -37,8 +47,26 @@ public class MediaUtil {
         return 0;
     }
 
+    /**
+     * 优先使用 Mp4Probe 读取 MP4 头部 , 不需要解码视频帧 , 但是不包括 writer , date , title , location ;
+     * 不是 MP4 或者读取失败时使用 MediaMetadataRetriever
+     * 反复读取同一批文件时使用 MediaCache
+     */
     public static MediaInfo getMediaInfo(String path) {
         if (TextUtils.isEmpty(path)) return null;
+        Mp4Probe.Result probe = probe(path);
+        if (probe != null) {
+            MediaInfo mediaInfo = new MediaInfo();
+            mediaInfo.setPath(path);
+            mediaInfo.setDuration(String.valueOf(probe.getDurationMs()));
+            mediaInfo.setBitrate(String.valueOf(probe.bitRate));
+            mediaInfo.setRotation(String.valueOf(probe.rotation));
+            mediaInfo.setHasVideo(probe.hasVideo() ? "yes" : null);
+            mediaInfo.setMimeType("video/mp4");
+            mediaInfo.setWidth(String.valueOf(probe.width));
+            mediaInfo.setHeight(String.valueOf(probe.height));
+            return mediaInfo;
+        }
         android.media.MediaMetadataRetriever mmr = new android.media.MediaMetadataRetriever();
         MediaInfo mediaInfo = new MediaInfo();
         try {
@@ -73,6 +101,18 @@ public class MediaUtil {
         return mediaInfo;
     }
 
+    /**
+     * @return MP4 头部信息 , 不是 MP4 或者读取失败时返回 null
+     */
+    public static Mp4Probe.Result probe(String path) {
+        try {
+            return Mp4Probe.probe(new File(path));
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "probe " + path + " failed " + e);
+            return null;
+        }
+    }
+
     public static int[] getImageSize(String path) {
         try {
             BitmapFactory.Options options = new BitmapFactory.Options();
@@ -85,6 +125,9 @@ public class MediaUtil {
         return new int[2];
     }
 
+    /**
+     * @return 第一帧 , 原始分辨率 , 反复读取同一批文件时使用 MediaCache
+     */
     public static Bitmap getVideoThumbnail(String filePath) {
         Bitmap bitmap = null;
         MediaMetadataRetriever retriever = new MediaMetadataRetriever();
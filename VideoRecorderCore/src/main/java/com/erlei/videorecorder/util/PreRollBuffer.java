@@ -0,0 +1,236 @@
+package com.erlei.videorecorder.util;
+
+import com.erlei.videorecorder.mp4.SampleFlags;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 预录制环形缓冲区 , 保存最近一段时间的编码样本 , 纯 Java 实现
+ * <p>
+ * 样本数据保存在一块固定大小的堆外内存中 , 首尾相接循环使用 , 一个样本不会跨越缓冲区末尾 ;
+ * 样本的位置 , 大小 , 时间等保存在基本类型数组中 , 另外用一个数组记录视频关键帧的序号 , 写入样本时没有对象分配
+ * <p>
+ * 缓冲区中的第一个样本总是视频关键帧 (没有视频轨道时不限制) :
+ * 每写入一个视频关键帧 , 就丢弃覆盖预录制时长所需的最新关键帧之前的样本 ;
+ * 空间或者样本数不够时 , 从最早的样本开始丢弃到下一个视频关键帧为止
+ * flush() 从第一个样本开始按写入顺序输出 , 早于第一个视频关键帧的音频样本会被跳过
+ * 非线程安全 , 调用方需要加锁
+ */
+public class PreRollBuffer {
+
+    public static final int DEFAULT_MAX_SAMPLES = 8192;
+
+    private final ByteBuffer mSlab;
+    private final ByteBuffer mView;
+    private final int mCapacity;
+    private final int mMaxSamples;
+    private final long[] mTimes;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private final int[] mTracks;
+    /**
+     * 视频关键帧的样本序号 , 与样本使用相同的环形下标
+     */
+    private final long[] mSyncSeqs;
+    private final long mWindowUs;
+    private long mHead, mTail;
+    private long mSyncHead, mSyncTail;
+    private int mVideoTrack = -1;
+    private long mDroppedCount;
+
+    /**
+     * @param capacityBytes 样本数据的最大字节数
+     * @param maxSamples    最多保存的样本数
+     * @param windowUs      预录制时长 , flush() 输出的数据至少包括最近 windowUs 的样本 (缓冲区足够大时)
+     */
+    public PreRollBuffer(int capacityBytes, int maxSamples, long windowUs) {
+        if (capacityBytes <= 0) throw new IllegalArgumentException("capacityBytes must > 0");
+        if (maxSamples <= 0) throw new IllegalArgumentException("maxSamples must > 0");
+        mSlab = ByteBuffer.allocateDirect(capacityBytes);
+        mView = mSlab.duplicate();
+        mCapacity = capacityBytes;
+        mMaxSamples = maxSamples;
+        mTimes = new long[maxSamples];
+        mOffsets = new int[maxSamples];
+        mSizes = new int[maxSamples];
+        mFlags = new int[maxSamples];
+        mTracks = new int[maxSamples];
+        mSyncSeqs = new long[maxSamples];
+        mWindowUs = windowUs;
+    }
+
+    /**
+     * @param trackIndex 视频轨道索引 , 缓冲区按这个轨道的关键帧对齐
+     */
+    public void setVideoTrack(int trackIndex) {
+        mVideoTrack = trackIndex;
+    }
+
+    /**
+     * 写入 data 中 position 到 limit 的数据 , 不改变 data 的 position
+     * 编码器配置数据 (csd) 不写入 , 它们已经在 MediaFormat 中
+     */
+    public void write(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+        if ((flags & SampleFlags.FLAG_CODEC_CONFIG) != 0) return;
+        boolean videoSync = trackIndex == mVideoTrack && SampleFlags.isSync(flags);
+        int size = data.remaining();
+        if (size > mCapacity) {
+            mDroppedCount++;
+            return;
+        }
+        int offset;
+        while ((offset = allocate(size)) < 0) {
+            evictHead();
+        }
+        if (isEmpty() && mVideoTrack >= 0 && !videoSync) {
+            //缓冲区必须从视频关键帧开始
+            mDroppedCount++;
+            return;
+        }
+        mView.limit(mCapacity);
+        mView.position(offset);
+        int position = data.position();
+        mView.put(data);
+        data.position(position);
+
+        int index = index(mTail);
+        mTimes[index] = presentationTimeUs;
+        mOffsets[index] = offset;
+        mSizes[index] = size;
+        mFlags[index] = flags;
+        mTracks[index] = trackIndex;
+        if (videoSync) {
+            mSyncSeqs[index(mSyncTail++)] = mTail;
+        }
+        mTail++;
+        if (videoSync) trim(presentationTimeUs);
+    }
+
+    /**
+     * 按写入顺序输出所有样本并清空缓冲区
+     *
+     * @return 输出的样本数
+     */
+    public int flush(SampleStaging.SampleWriter writer) {
+        int count = 0;
+        long startUs = isEmpty() ? 0 : mTimes[index(mHead)];
+        try {
+            for (long seq = mHead; seq < mTail; seq++) {
+                int index = index(seq);
+                if (mVideoTrack >= 0 && mTracks[index] != mVideoTrack && mTimes[index] < startUs) continue;
+                mView.limit(mCapacity);
+                mView.position(mOffsets[index]);
+                mView.limit(mOffsets[index] + mSizes[index]);
+                writer.writeSample(mTracks[index], mView, mTimes[index], mFlags[index]);
+                count++;
+            }
+        } finally {
+            clear();
+        }
+        return count;
+    }
+
+    public void clear() {
+        mHead = mTail = 0;
+        mSyncHead = mSyncTail = 0;
+    }
+
+    public boolean isEmpty() {
+        return mHead == mTail;
+    }
+
+    public int getSampleCount() {
+        return (int) (mTail - mHead);
+    }
+
+    /**
+     * @return 缓冲区中第一个样本到最后一个样本的时长
+     */
+    public long getDurationUs() {
+        if (isEmpty()) return 0;
+        return mTimes[index(mTail - 1)] - mTimes[index(mHead)];
+    }
+
+    /**
+     * @return 样本数据占用的字节数 , 不包括缓冲区末尾跳过的空间
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (long seq = mHead; seq < mTail; seq++) {
+            bytes += mSizes[index(seq)];
+        }
+        return bytes;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public long getWindowUs() {
+        return mWindowUs;
+    }
+
+    /**
+     * @return 因为空间不够 , 没有从关键帧开始或者超过容量被丢弃的样本数 , 不包括超出预录制时长正常丢弃的样本
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    private int index(long seq) {
+        return (int) (seq % mMaxSamples);
+    }
+
+    /**
+     * @return 新样本的位置 , 空间或者样本数不够时返回 -1
+     */
+    private int allocate(int size) {
+        if (isEmpty()) return 0;
+        if (mTail - mHead >= mMaxSamples) return -1;
+        int head = mOffsets[index(mHead)];
+        int lastIndex = index(mTail - 1);
+        int last = mOffsets[lastIndex];
+        int end = last + mSizes[lastIndex];
+        if (last >= head) {
+            //没有回绕 , 数据在 [head , end)
+            if (mCapacity - end >= size) return end;
+            if (head >= size) return 0;
+        } else {
+            //已经回绕 , 空闲空间在 [end , head)
+            if (head - end >= size) return end;
+        }
+        return -1;
+    }
+
+    /**
+     * 丢弃最早的样本 , 并继续丢弃到下一个视频关键帧为止
+     */
+    private void evictHead() {
+        mHead++;
+        mDroppedCount++;
+        if (mVideoTrack >= 0) {
+            while (mHead < mTail && !(mTracks[index(mHead)] == mVideoTrack && SampleFlags.isSync(mFlags[index(mHead)]))) {
+                mHead++;
+                mDroppedCount++;
+            }
+        }
+        while (mSyncHead < mSyncTail && mSyncSeqs[index(mSyncHead)] < mHead) {
+            mSyncHead++;
+        }
+    }
+
+    /**
+     * 丢弃覆盖预录制时长所需的最新关键帧之前的样本
+     */
+    private void trim(long nowUs) {
+        long limitUs = nowUs - mWindowUs;
+        long start = mSyncHead;
+        while (start + 1 < mSyncTail && mTimes[index(mSyncSeqs[index(start + 1)])] <= limitUs) {
+            start++;
+        }
+        if (start == mSyncHead) return;
+        mHead = mSyncSeqs[index(start)];
+        mSyncHead = start;
+    }
+}
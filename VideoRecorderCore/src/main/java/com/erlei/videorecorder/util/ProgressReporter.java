@@ -0,0 +1,86 @@
+package com.erlei.videorecorder.util;
+
+/**
+ * 按字节数计算进度 , 并限制回调频率
+ * 进度增加超过 minStep 或者距离上一次回调超过 minIntervalMs 时才会回调 , 进度不变时不回调
+ * 非线程安全 , 需要在写入数据的线程中调用
+ */
+public class ProgressReporter {
+
+    public static final float DEFAULT_MIN_STEP = 0.01f;
+    public static final long DEFAULT_MIN_INTERVAL_MS = 100;
+
+    private final long mTotalBytes;
+    private final float mMinStep;
+    private final long mMinIntervalNs;
+    private final Listener mListener;
+    private long mBytes;
+    private float mLastProgress = -1;
+    private long mLastReportNs;
+
+    public ProgressReporter(long totalBytes, Listener listener) {
+        this(totalBytes, DEFAULT_MIN_STEP, DEFAULT_MIN_INTERVAL_MS, listener);
+    }
+
+    /**
+     * @param totalBytes    总字节数
+     * @param minStep       两次回调之间最小的进度变化 (0 - 1)
+     * @param minIntervalMs 两次回调之间最小的时间间隔
+     */
+    public ProgressReporter(long totalBytes, float minStep, long minIntervalMs, Listener listener) {
+        if (listener == null) throw new IllegalArgumentException("listener must not null");
+        mTotalBytes = totalBytes;
+        mMinStep = minStep;
+        mMinIntervalNs = minIntervalMs * 1000000L;
+        mListener = listener;
+    }
+
+    /**
+     * 记录新写入的字节数
+     */
+    public void add(long bytes) {
+        if (bytes <= 0) return;
+        mBytes += bytes;
+        float progress = getProgress();
+        long now = System.nanoTime();
+        if (progress - mLastProgress >= mMinStep || (progress > mLastProgress && now - mLastReportNs >= mMinIntervalNs)) {
+            report(progress, now);
+        }
+    }
+
+    /**
+     * 写入完成 , 回调进度 1
+     */
+    public void finish() {
+        if (mLastProgress < 1f) report(1f, System.nanoTime());
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * @return 0 - 1 , 写入的字节数超过总字节数时返回 1
+     */
+    public float getProgress() {
+        if (mTotalBytes <= 0) return 0;
+        return Math.min(1f, (float) mBytes / mTotalBytes);
+    }
+
+    private void report(float progress, long now) {
+        mLastProgress = progress;
+        mLastReportNs = now;
+        mListener.onProgress(progress);
+    }
+
+    public interface Listener {
+        /**
+         * @param progress 0 - 1
+         */
+        void onProgress(float progress);
+    }
+}
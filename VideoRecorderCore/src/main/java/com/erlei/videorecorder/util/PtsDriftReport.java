@@ -0,0 +1,102 @@
+package com.erlei.videorecorder.util;
+
+import java.util.Locale;
+
+/**
+ * 显示时间漂移报告 , 纯 Java 实现
+ * <p>
+ * 编码器每输出一个样本记录一次 : 样本的显示时间 (采集时间) 和输出时间
+ * ptsJitter 是显示时间间隔的标准差 , 也就是写入文件的时间戳的抖动 ;
+ * outputJitter 是输出时间间隔的标准差 , 也就是按输出时间打时间戳 (旧的做法) 时的抖动 ;
+ * latency 是输出时间减去显示时间 , 音视频 latency 的平均值之差就是按输出时间打时间戳时视频相对音频的偏移
+ * 线程安全
+ */
+public class PtsDriftReport {
+
+    private final Track mVideo = new Track("video");
+    private final Track mAudio = new Track("audio");
+
+    public synchronized void record(boolean video, long ptsUs, long outputUs) {
+        (video ? mVideo : mAudio).add(ptsUs, outputUs);
+    }
+
+    public synchronized long getCount(boolean video) {
+        return (video ? mVideo : mAudio).latency.count;
+    }
+
+    public synchronized long getPtsJitterUs(boolean video) {
+        return (video ? mVideo : mAudio).ptsInterval.stdDev();
+    }
+
+    public synchronized long getOutputJitterUs(boolean video) {
+        return (video ? mVideo : mAudio).outputInterval.stdDev();
+    }
+
+    public synchronized long getMeanLatencyUs(boolean video) {
+        return (long) (video ? mVideo : mAudio).latency.mean;
+    }
+
+    /**
+     * @return 按输出时间打时间戳时视频相对音频的平均偏移 , 正数表示视频滞后 , 使用采集时间后这部分偏移被消除
+     */
+    public synchronized long getAVOffsetUs() {
+        if (mVideo.latency.count == 0 || mAudio.latency.count == 0) return 0;
+        return (long) (mVideo.latency.mean - mAudio.latency.mean);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PtsDriftReport{" + mVideo + ", " + mAudio + ", avOffset=" + getAVOffsetUs() + "us}";
+    }
+
+    private static final class Track {
+        final String name;
+        final Stats ptsInterval = new Stats();
+        final Stats outputInterval = new Stats();
+        final Stats latency = new Stats();
+        long lastPtsUs, lastOutputUs;
+
+        Track(String name) {
+            this.name = name;
+        }
+
+        void add(long ptsUs, long outputUs) {
+            if (latency.count > 0) {
+                ptsInterval.add(ptsUs - lastPtsUs);
+                outputInterval.add(outputUs - lastOutputUs);
+            }
+            latency.add(outputUs - ptsUs);
+            lastPtsUs = ptsUs;
+            lastOutputUs = outputUs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s{samples=%d, ptsJitter=%dus, outputJitter=%dus, latency=%d[%d,%d]us}",
+                    name, latency.count, ptsInterval.stdDev(), outputInterval.stdDev(),
+                    (long) latency.mean, latency.min, latency.max);
+        }
+    }
+
+    /**
+     * Welford 算法计算均值和方差
+     */
+    private static final class Stats {
+        long count;
+        double mean, m2;
+        long min, max;
+
+        void add(long value) {
+            if (count == 0 || value < min) min = value;
+            if (count == 0 || value > max) max = value;
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+        }
+
+        long stdDev() {
+            return count < 2 ? 0 : (long) Math.sqrt(m2 / (count - 1));
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.erlei.videorecorder.util;
+
+import com.erlei.videorecorder.mp4.NalUnitUtil;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 编码器和混合器之间的有界样本队列 , 纯 Java 实现
+ * <p>
+ * 每个轨道一个环形队列 , 单生产者 (该轨道的编码线程) 单消费者 (混合器线程) , 只通过 head / tail 两个计数器同步 , 不加锁
+ * 槽位对象预先分配 , 样本数据拷贝到 DirectBufferPool 的缓冲区中 , 出队之后归还
+ * 消费者每次取所有轨道队首中显示时间最小的样本 , 保持轨道之间的交错顺序
+ * <p>
+ * 队列满时按 Policy 处理 : 阻塞生产者 , 丢弃非参考帧 , 或者直接拒绝
+ * 提供队列深度 , 丢弃次数 , 阻塞次数和入队到出队的延迟统计
+ */
+public class SampleQueue {
+
+    public static final int DEFAULT_CAPACITY = 128;
+    private static final long BLOCK_PARK_NS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /**
+     * 队列满时的处理方式
+     */
+    public enum Policy {
+        /**
+         * 阻塞生产者直到有空闲的槽位或者队列关闭
+         */
+        BLOCK,
+        /**
+         * 丢弃视频轨道的非参考帧 (nal_ref_idc = 0) , 其他样本阻塞
+         */
+        DROP_NON_REFERENCE,
+        /**
+         * 直接拒绝 , offer() 返回 false
+         */
+        FAIL_FAST
+    }
+
+    private final int mCapacity;
+    private final DirectBufferPool mPool;
+    private volatile Policy mPolicy;
+    private volatile Ring[] mRings = new Ring[0];
+    private volatile boolean mClosed;
+
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mBlockedCount = new AtomicLong();
+    private volatile long mDequeuedCount;
+    private volatile long mTotalLatencyNs;
+    private volatile long mMaxLatencyNs;
+
+    /**
+     * @param capacity 每个轨道的槽位数 , 会向上取整为 2 的幂
+     * @param policy   队列满时的处理方式
+     * @param pool     样本数据的缓冲池
+     */
+    public SampleQueue(int capacity, Policy policy, DirectBufferPool pool) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must > 0");
+        if (policy == null) throw new IllegalArgumentException("policy must not null");
+        if (pool == null) throw new IllegalArgumentException("pool must not null");
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        mCapacity = size;
+        mPolicy = policy;
+        mPool = pool;
+    }
+
+    /**
+     * 添加轨道 , 必须在这个轨道第一次 offer() 之前调用
+     *
+     * @param trackIndex 轨道索引 , 与混合器的轨道索引相同
+     * @param video      是否是视频轨道 , 只有视频轨道会按 DROP_NON_REFERENCE 丢弃样本
+     */
+    public synchronized void addTrack(int trackIndex, boolean video) {
+        Ring[] rings = mRings;
+        if (trackIndex < rings.length && rings[trackIndex] != null) return;
+        Ring[] newRings = new Ring[Math.max(rings.length, trackIndex + 1)];
+        System.arraycopy(rings, 0, newRings, 0, rings.length);
+        newRings[trackIndex] = new Ring(trackIndex, mCapacity, video);
+        mRings = newRings;
+    }
+
+    public void setPolicy(Policy policy) {
+        if (policy == null) throw new IllegalArgumentException("policy must not null");
+        mPolicy = policy;
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * 生产者调用 , 拷贝 data 中 position 到 limit 的数据 , 不改变 data 的 position
+     *
+     * @return 是否入队 , 被丢弃 , 被拒绝或者队列已经关闭时返回 false
+     */
+    public boolean offer(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+        Ring ring = mRings[trackIndex];
+        long tail = ring.tail.get();
+        if (tail - ring.head.get() >= mCapacity && !waitForSpace(ring, tail, data)) return false;
+        if (mClosed) return false;
+        Slot slot = ring.slots[(int) tail & (mCapacity - 1)];
+        slot.set(mPool, data, presentationTimeUs, flags);
+        ring.tail.lazySet(tail + 1);
+        int depth = (int) (tail + 1 - ring.head.get());
+        if (depth > ring.maxDepth) ring.maxDepth = depth;
+        return true;
+    }
+
+    /**
+     * 消费者调用 , 返回所有轨道队首中显示时间最小的样本 , 不出队
+     *
+     * @return 队列为空时返回 null
+     */
+    public Slot peek() {
+        Slot next = null;
+        for (Ring ring : mRings) {
+            if (ring == null) continue;
+            long head = ring.head.get();
+            if (head == ring.tail.get()) continue;
+            Slot slot = ring.slots[(int) head & (mCapacity - 1)];
+            if (next == null || slot.presentationTimeUs < next.presentationTimeUs) next = slot;
+        }
+        return next;
+    }
+
+    /**
+     * 消费者调用 , 把 peek() 返回的样本出队并归还缓冲区
+     */
+    public void remove(Slot slot) {
+        Ring ring = mRings[slot.trackIndex];
+        long latency = System.nanoTime() - slot.enqueueTimeNs;
+        mTotalLatencyNs += latency;
+        if (latency > mMaxLatencyNs) mMaxLatencyNs = latency;
+        mDequeuedCount++;
+        slot.recycle();
+        ring.head.lazySet(ring.head.get() + 1);
+    }
+
+    /**
+     * 关闭队列 , 唤醒阻塞的生产者 , 之后的 offer() 都返回 false
+     */
+    public void close() {
+        mClosed = true;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * 消费者调用 , 丢弃队列中所有的样本
+     */
+    public void clear() {
+        Slot slot;
+        while ((slot = peek()) != null) {
+            remove(slot);
+        }
+    }
+
+    /**
+     * @return 所有轨道当前的样本数
+     */
+    public int getDepth() {
+        int depth = 0;
+        for (Ring ring : mRings) {
+            if (ring != null) depth += (int) (ring.tail.get() - ring.head.get());
+        }
+        return depth;
+    }
+
+    /**
+     * @return 单个轨道样本数的历史峰值
+     */
+    public int getMaxDepth() {
+        int max = 0;
+        for (Ring ring : mRings) {
+            if (ring != null) max = Math.max(max, ring.maxDepth);
+        }
+        return max;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return 因为队列满被丢弃或者拒绝的样本数
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return 因为队列满阻塞生产者的次数
+     */
+    public long getBlockedCount() {
+        return mBlockedCount.get();
+    }
+
+    public long getDequeuedCount() {
+        return mDequeuedCount;
+    }
+
+    /**
+     * @return 入队到出队的平均延迟
+     */
+    public long getAverageLatencyUs() {
+        long count = mDequeuedCount;
+        return count == 0 ? 0 : mTotalLatencyNs / count / 1000;
+    }
+
+    public long getMaxLatencyUs() {
+        return mMaxLatencyNs / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "SampleQueue{" +
+                "policy=" + mPolicy +
+                ", capacity=" + mCapacity +
+                ", depth=" + getDepth() +
+                ", maxDepth=" + getMaxDepth() +
+                ", dequeued=" + mDequeuedCount +
+                ", dropped=" + getDroppedCount() +
+                ", blocked=" + getBlockedCount() +
+                ", avgLatencyUs=" + getAverageLatencyUs() +
+                ", maxLatencyUs=" + getMaxLatencyUs() +
+                '}';
+    }
+
+    /**
+     * 队列满时按 Policy 处理
+     *
+     * @return 是否有了空闲的槽位
+     */
+    private boolean waitForSpace(Ring ring, long tail, ByteBuffer data) {
+        Policy policy = mPolicy;
+        if (policy == Policy.FAIL_FAST
+                || (policy == Policy.DROP_NON_REFERENCE && ring.video && NalUnitUtil.isNonReference(data))) {
+            mDroppedCount.incrementAndGet();
+            return false;
+        }
+        mBlockedCount.incrementAndGet();
+        while (tail - ring.head.get() >= mCapacity) {
+            if (mClosed) return false;
+            LockSupport.parkNanos(BLOCK_PARK_NS);
+        }
+        return true;
+    }
+
+    /**
+     * 样本槽位 , 只能在 peek() 和 remove() 之间使用
+     */
+    public static final class Slot {
+        private final int trackIndex;
+        private ByteBuffer data;
+        private long presentationTimeUs;
+        private int flags;
+        private long enqueueTimeNs;
+        private DirectBufferPool.Lease mLease;
+
+        Slot(int trackIndex) {
+            this.trackIndex = trackIndex;
+        }
+
+        public int getTrackIndex() {
+            return trackIndex;
+        }
+
+        /**
+         * @return 样本数据 , position = 0 , limit = 样本大小
+         */
+        public ByteBuffer getData() {
+            return data;
+        }
+
+        public int getSize() {
+            return data.limit();
+        }
+
+        public long getPresentationTimeUs() {
+            return presentationTimeUs;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        void set(DirectBufferPool pool, ByteBuffer src, long presentationTimeUs, int flags) {
+            mLease = pool.acquire(src.remaining());
+            ByteBuffer buffer = mLease.buffer();
+            int position = src.position();
+            buffer.put(src);
+            src.position(position);
+            buffer.flip();
+            this.data = buffer;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+            this.enqueueTimeNs = System.nanoTime();
+        }
+
+        void recycle() {
+            data = null;
+            if (mLease != null) {
+                mLease.release();
+                mLease = null;
+            }
+        }
+    }
+
+    private static final class Ring {
+        final Slot[] slots;
+        final boolean video;
+        /**
+         * 消费者写入
+         */
+        final AtomicLong head = new AtomicLong();
+        /**
+         * 生产者写入
+         */
+        final AtomicLong tail = new AtomicLong();
+        volatile int maxDepth;
+
+        Ring(int trackIndex, int capacity, boolean video) {
+            this.video = video;
+            slots = new Slot[capacity];
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = new Slot(trackIndex);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.erlei.videorecorder.util;
+
+import com.erlei.videorecorder.mp4.SampleFlags;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 混合器启动之前的样本暂存区 , 纯 Java 实现
+ * <p>
+ * 混合器要等所有轨道都添加之后才能启动 , 先拿到输出格式的编码器不需要等待 , 样本先拷贝到缓冲池中暂存 ,
+ * 混合器启动之后按显示时间顺序一次写入
+ * 暂存的字节数超过上限时丢弃最早的样本 , 视频轨道会一直丢弃到下一个关键帧 , 保证写入的第一帧是关键帧
+ * 非线程安全 , 调用方需要加锁
+ */
+public class SampleStaging {
+
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private final DirectBufferPool mPool;
+    private final List<ArrayDeque<StagedSample>> mTracks = new ArrayList<>();
+    private final List<Boolean> mVideoTracks = new ArrayList<>();
+    private long mMaxBytes;
+    private long mBytes;
+    private long mDroppedCount;
+
+    public SampleStaging(long maxBytes, DirectBufferPool pool) {
+        if (pool == null) throw new IllegalArgumentException("pool must not null");
+        mMaxBytes = maxBytes;
+        mPool = pool;
+    }
+
+    /**
+     * 写入暂存样本的接口
+     */
+    public interface SampleWriter {
+        void writeSample(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags);
+    }
+
+    /**
+     * @param video 是否是视频轨道 , 丢弃样本时视频轨道会丢弃到下一个关键帧
+     */
+    public void addTrack(int trackIndex, boolean video) {
+        while (mTracks.size() <= trackIndex) {
+            mTracks.add(new ArrayDeque<StagedSample>());
+            mVideoTracks.add(false);
+        }
+        mVideoTracks.set(trackIndex, video);
+    }
+
+    /**
+     * 暂存 data 中 position 到 limit 的数据 , 不改变 data 的 position
+     */
+    public void stage(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+        if (trackIndex >= mTracks.size()) addTrack(trackIndex, false);
+        int size = data.remaining();
+        DirectBufferPool.Lease lease = mPool.acquire(size);
+        ByteBuffer buffer = lease.buffer();
+        int position = data.position();
+        buffer.put(data);
+        data.position(position);
+        buffer.flip();
+        mTracks.get(trackIndex).addLast(new StagedSample(lease, size, presentationTimeUs, flags));
+        mBytes += size;
+        while (mBytes > mMaxBytes && evictOldest()) {
+            mDroppedCount++;
+        }
+    }
+
+    /**
+     * 按显示时间顺序写入所有暂存的样本并归还缓冲区
+     */
+    public void flush(SampleWriter writer) {
+        while (true) {
+            int next = -1;
+            long nextTime = Long.MAX_VALUE;
+            for (int i = 0; i < mTracks.size(); i++) {
+                StagedSample head = mTracks.get(i).peekFirst();
+                if (head != null && head.presentationTimeUs < nextTime) {
+                    next = i;
+                    nextTime = head.presentationTimeUs;
+                }
+            }
+            if (next < 0) break;
+            StagedSample sample = mTracks.get(next).pollFirst();
+            try {
+                writer.writeSample(next, sample.lease.buffer(), sample.presentationTimeUs, sample.flags);
+            } finally {
+                release(sample);
+            }
+        }
+    }
+
+    /**
+     * 丢弃所有暂存的样本
+     */
+    public void clear() {
+        for (ArrayDeque<StagedSample> track : mTracks) {
+            StagedSample sample;
+            while ((sample = track.pollFirst()) != null) {
+                release(sample);
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return mBytes == 0;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * @return 当前暂存的字节数
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return 因为超过上限被丢弃的样本数
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * 丢弃显示时间最早的样本 , 视频轨道丢弃到下一个关键帧为止
+     *
+     * @return 是否丢弃了样本
+     */
+    private boolean evictOldest() {
+        int oldest = -1;
+        long oldestTime = Long.MAX_VALUE;
+        for (int i = 0; i < mTracks.size(); i++) {
+            StagedSample head = mTracks.get(i).peekFirst();
+            if (head != null && head.presentationTimeUs < oldestTime) {
+                oldest = i;
+                oldestTime = head.presentationTimeUs;
+            }
+        }
+        if (oldest < 0) return false;
+        ArrayDeque<StagedSample> track = mTracks.get(oldest);
+        release(track.pollFirst());
+        if (mVideoTracks.get(oldest)) {
+            while (!track.isEmpty() && !SampleFlags.isSync(track.peekFirst().flags)) {
+                release(track.pollFirst());
+                mDroppedCount++;
+            }
+        }
+        return true;
+    }
+
+    private void release(StagedSample sample) {
+        mBytes -= sample.size;
+        sample.lease.release();
+    }
+
+    private static final class StagedSample {
+        final DirectBufferPool.Lease lease;
+        final int size;
+        final long presentationTimeUs;
+        final int flags;
+
+        StagedSample(DirectBufferPool.Lease lease, int size, long presentationTimeUs, int flags) {
+            this.lease = lease;
+            this.size = size;
+            this.presentationTimeUs = presentationTimeUs;
+            this.flags = flags;
+        }
+    }
+}
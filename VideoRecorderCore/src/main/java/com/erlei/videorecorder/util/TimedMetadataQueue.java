@@ -0,0 +1,152 @@
+package com.erlei.videorecorder.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 定时元数据队列 , 纯 Java 实现
+ * <p>
+ * 应用线程 (传感器回调 , 定位回调等) 调用 offer() , 数据拷贝到缓冲池中就返回 , 不会等待混合器 ;
+ * 混合器线程在写入音视频样本之后调用 drain() , 把显示时间已经到达的元数据一次写入
+ * 时间戳与编码器一致 , 使用 MediaClock.nowUs()
+ * 队列中的样本数超过上限时丢弃最早的样本 , 时间戳没有递增的样本直接丢弃
+ * 线程安全
+ */
+public class TimedMetadataQueue {
+
+    public static final int DEFAULT_MAX_SAMPLES = 256;
+
+    private final DirectBufferPool mPool;
+    private final int mMaxSamples;
+    private final ArrayDeque<Sample> mSamples = new ArrayDeque<>();
+    private long mLastTimeUs = Long.MIN_VALUE;
+    private long mDroppedCount;
+    private long mWrittenCount;
+
+    public TimedMetadataQueue(int maxSamples, DirectBufferPool pool) {
+        if (pool == null) throw new IllegalArgumentException("pool must not null");
+        if (maxSamples <= 0) throw new IllegalArgumentException("maxSamples must > 0");
+        mMaxSamples = maxSamples;
+        mPool = pool;
+    }
+
+    public boolean offer(long timeUs, byte[] data) {
+        return offer(timeUs, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * 拷贝 data 中 position 到 limit 的数据 , 不改变 data 的 position
+     *
+     * @return false 表示时间戳没有递增 , 样本被丢弃
+     */
+    public boolean offer(long timeUs, ByteBuffer data) {
+        if (data == null) throw new IllegalArgumentException("data must not null");
+        int size = data.remaining();
+        DirectBufferPool.Lease lease = mPool.acquire(size);
+        ByteBuffer buffer = lease.buffer();
+        buffer.put(data.duplicate());
+        buffer.flip();
+        DirectBufferPool.Lease evicted = null;
+        boolean accepted = false;
+        synchronized (this) {
+            if (timeUs <= mLastTimeUs) {
+                mDroppedCount++;
+                evicted = lease;
+            } else {
+                accepted = true;
+                mLastTimeUs = timeUs;
+                mSamples.addLast(new Sample(lease, timeUs));
+                if (mSamples.size() > mMaxSamples) {
+                    evicted = mSamples.pollFirst().lease;
+                    mDroppedCount++;
+                }
+            }
+        }
+        if (evicted != null) evicted.release();
+        return accepted;
+    }
+
+    /**
+     * 写入显示时间不晚于 untilUs 的样本并归还缓冲区 , 写入时不持有队列的锁
+     *
+     * @return 写入的样本数
+     */
+    public int drain(long untilUs, int trackIndex, SampleStaging.SampleWriter writer) {
+        int count = 0;
+        while (true) {
+            Sample sample;
+            synchronized (this) {
+                Sample head = mSamples.peekFirst();
+                if (head == null || head.timeUs > untilUs) break;
+                sample = mSamples.pollFirst();
+                mWrittenCount++;
+            }
+            try {
+                writer.writeSample(trackIndex, sample.lease.buffer(), sample.timeUs, 0);
+                count++;
+            } finally {
+                sample.lease.release();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 丢弃显示时间早于 timeUs 的样本 , 但是保留其中最晚的一个并把时间改为 timeUs ,
+     * 这个样本在 timeUs 时依然有效 , 用于开始新的输出时对齐第一个音视频样本
+     */
+    public void trimBefore(long timeUs) {
+        Sample last = null;
+        ArrayDeque<Sample> dropped = new ArrayDeque<>();
+        synchronized (this) {
+            while (!mSamples.isEmpty() && mSamples.peekFirst().timeUs < timeUs) {
+                if (last != null) dropped.add(last);
+                last = mSamples.pollFirst();
+            }
+            if (last != null) mSamples.addFirst(new Sample(last.lease, timeUs));
+            mDroppedCount += dropped.size();
+        }
+        for (Sample sample : dropped) {
+            sample.lease.release();
+        }
+    }
+
+    /**
+     * 丢弃所有样本
+     */
+    public void clear() {
+        ArrayDeque<Sample> samples;
+        synchronized (this) {
+            samples = new ArrayDeque<>(mSamples);
+            mSamples.clear();
+        }
+        for (Sample sample : samples) {
+            sample.lease.release();
+        }
+    }
+
+    public synchronized int size() {
+        return mSamples.size();
+    }
+
+    /**
+     * @return 因为超过上限或者时间戳没有递增被丢弃的样本数
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized long getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    private static final class Sample {
+        final DirectBufferPool.Lease lease;
+        final long timeUs;
+
+        Sample(DirectBufferPool.Lease lease, long timeUs) {
+            this.lease = lease;
+            this.timeUs = timeUs;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.erlei.videorecorder.util;
+
+/**
+ * 统计写入的字节数和花费的时间 , 用于估计写入积压和存储速度
+ * poll() 返回上次 poll() 之后的统计并重新开始
+ * 线程安全
+ */
+public class WriteMeter {
+
+    private long mBytes;
+    private long mBusyUs;
+    private long mMaxUs;
+    private long mCount;
+
+    public synchronized void record(long bytes, long durationUs) {
+        mBytes += bytes;
+        mBusyUs += durationUs;
+        if (durationUs > mMaxUs) mMaxUs = durationUs;
+        mCount++;
+    }
+
+    public synchronized Snapshot poll() {
+        Snapshot snapshot = new Snapshot(mBytes, mBusyUs, mMaxUs, mCount);
+        mBytes = 0;
+        mBusyUs = 0;
+        mMaxUs = 0;
+        mCount = 0;
+        return snapshot;
+    }
+
+    public static final class Snapshot {
+        public final long bytes;
+        public final long busyUs;
+        /**
+         * 最长的单次写入
+         */
+        public final long maxUs;
+        public final long count;
+
+        Snapshot(long bytes, long busyUs, long maxUs, long count) {
+            this.bytes = bytes;
+            this.busyUs = busyUs;
+            this.maxUs = maxUs;
+            this.count = count;
+        }
+    }
+}
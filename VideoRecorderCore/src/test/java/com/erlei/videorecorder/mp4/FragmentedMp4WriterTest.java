@@ -0,0 +1,250 @@
+package com.erlei.videorecorder.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentedMp4WriterTest {
+
+    private static final int FRAME_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * 每秒一个关键帧 , 分片时长 1 秒 : 每个分片从关键帧开始
+     */
+    @Test
+    public void fragmentsStartOnSyncFrames() throws IOException {
+        FragmentLog log = new FragmentLog();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(log, 1000000, 0);
+        writeVideo(writer, 100, 25);
+        writer.stop();
+
+        assertEquals(4, writer.getFragmentCount());
+        assertEquals(4, log.startUs.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i * 1000000L, (long) log.startUs.get(i));
+            assertTrue(log.sync.get(i));
+        }
+    }
+
+    /**
+     * 关键帧间隔 0.4 秒 : 分片达到 1 秒之后在下一个关键帧切分
+     */
+    @Test
+    public void fragmentIsCutAtFirstSyncFrameAfterDuration() throws IOException {
+        FragmentLog log = new FragmentLog();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(log, 1000000, 0);
+        writeVideo(writer, 100, 10);
+        writer.stop();
+
+        assertEquals(4, log.startUs.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i * 1200000L, (long) log.startUs.get(i));
+            assertTrue(log.sync.get(i));
+        }
+    }
+
+    /**
+     * 缓存的样本超过 maxFragmentBytes 时不等关键帧立即切分 , 这样的分片不是从关键帧开始
+     */
+    @Test
+    public void fragmentIsCutAtMaxFragmentBytes() throws IOException {
+        File file = mFolder.newFile("max-bytes.mp4");
+        FragmentLog log = new FragmentLog();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(new TeeMediaSink(new FileMediaSink(file), log), 1000000, 10 * FRAME_SIZE);
+        writeVideo(writer, 50, 25);
+        writer.stop();
+
+        //每个分片 10 帧
+        assertEquals(5, log.startUs.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i * 10 * Mp4Fixtures.FRAME_US, (long) log.startUs.get(i));
+            assertEquals((i * 10) % 25 == 0, log.sync.get(i));
+        }
+        TrackIndex video = Mp4Reader.read(file).getTrack("vide");
+        assertFrames(Mp4Fixtures.sampleTags(file, video), 0, 50);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i % 25 == 0, video.isSync(i));
+        }
+    }
+
+    /**
+     * csd-0 带起始码的轨道 , 样本从 Annex-B 转换为长度前缀格式 , 包括 3 字节起始码和一个样本中的多个 NAL
+     */
+    @Test
+    public void annexBSamplesAreConvertedToLengthPrefixed() throws IOException {
+        File file = mFolder.newFile("annexb.mp4");
+        byte[] sps = {0, 0, 0, 1, 0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8};
+        byte[] pps = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+        TrackFormat format = TrackFormat.createVideoFormat(TrackFormat.MIME_AVC, Mp4Fixtures.WIDTH, Mp4Fixtures.HEIGHT, sps, pps);
+        assertTrue(format.isAnnexB());
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file);
+        int video = writer.addTrack(format);
+        writer.start();
+        byte[] sei = {0x06, 0x05, 0x01, (byte) 0x80};
+        byte[] idr = nal(0x65, 300);
+        writer.writeSample(video, ByteBuffer.wrap(concat(new byte[]{0, 0, 0, 1}, sei, new byte[]{0, 0, 1}, idr)), 0, SampleFlags.FLAG_SYNC);
+        byte[] slice = nal(0x41, 20);
+        writer.writeSample(video, ByteBuffer.wrap(concat(new byte[]{0, 0, 0, 1}, slice)), Mp4Fixtures.FRAME_US, 0);
+        writer.stop();
+
+        TrackIndex track = Mp4Reader.read(file).getTrack("vide");
+        assertEquals(2, track.getSampleCount());
+        assertArrayEquals(concat(lengthPrefix(sei.length), sei, lengthPrefix(idr.length), idr), readSample(file, track, 0));
+        assertArrayEquals(concat(lengthPrefix(slice.length), slice), readSample(file, track, 1));
+    }
+
+    /**
+     * 长度前缀格式的轨道 , 256 到 511 字节的 NAL 的长度以 00 00 01 开头 , 不能被当成起始码转换
+     */
+    @Test
+    public void lengthPrefixedSamplesAreKept() throws IOException {
+        File file = mFolder.newFile("length-prefixed.mp4");
+        assertFalse(Mp4Fixtures.videoFormat().isAnnexB());
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file);
+        int video = writer.addTrack(Mp4Fixtures.videoFormat());
+        writer.start();
+        int[] sizes = {300, 4 + 256, 4 + 511, FRAME_SIZE};
+        for (int i = 0; i < sizes.length; i++) {
+            writer.writeSample(video, Mp4Fixtures.videoSample(i, sizes[i], i == 0), i * Mp4Fixtures.FRAME_US, i == 0 ? SampleFlags.FLAG_SYNC : 0);
+        }
+        writer.stop();
+
+        TrackIndex track = Mp4Reader.read(file).getTrack("vide");
+        assertFrames(Mp4Fixtures.sampleTags(file, track), 0, sizes.length);
+        for (int i = 0; i < sizes.length; i++) {
+            assertEquals(sizes[i], track.sampleSizes.get(i));
+            assertArrayEquals(Mp4Fixtures.videoSample(i, sizes[i], i == 0).array(), readSample(file, track, i));
+        }
+    }
+
+    /**
+     * 进程被杀死 (没有 stop()) : 已经写完的分片可以读取 , 最后一个分片被截断时读取到前一个分片
+     */
+    @Test
+    public void fileWithoutStopIsPlayableToLastFragment() throws IOException {
+        File file = mFolder.newFile("killed.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, 1000000, 0);
+        writeVideo(writer, 100, 25);
+        //不调用 stop() , 最后一个分片还在内存中
+
+        MovieIndex index = Mp4Reader.read(file);
+        assertTrue(index.fragmented);
+        TrackIndex video = index.getTrack("vide");
+        assertFrames(Mp4Fixtures.sampleTags(file, video), 0, 75);
+        assertEquals(3000000, Mp4Probe.probe(file).durationUs);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(file.length() - 100);
+        } finally {
+            raf.close();
+        }
+        video = Mp4Reader.read(file).getTrack("vide");
+        assertFrames(Mp4Fixtures.sampleTags(file, video), 0, 50);
+    }
+
+    private static void writeVideo(FragmentedMp4Writer writer, int frames, int gop) throws IOException {
+        int video = writer.addTrack(Mp4Fixtures.videoFormat());
+        writer.start();
+        for (int i = 0; i < frames; i++) {
+            boolean key = i % gop == 0;
+            writer.writeSample(video, Mp4Fixtures.videoSample(i, FRAME_SIZE, key), i * Mp4Fixtures.FRAME_US, key ? SampleFlags.FLAG_SYNC : 0);
+        }
+    }
+
+    private static void assertFrames(int[] tags, int from, int to) {
+        assertEquals(to - from, tags.length);
+        for (int i = 0; i < tags.length; i++) {
+            assertEquals(from + i, tags[i]);
+        }
+    }
+
+    private static byte[] readSample(File file, TrackIndex track, int sample) throws IOException {
+        long offset = -1;
+        int index = 0;
+        for (int c = 0; c < track.getChunkCount() && offset < 0; c++) {
+            long position = track.chunkOffsets.get(c);
+            for (int i = 0; i < track.chunkSampleCounts.get(c); i++, index++) {
+                if (index == sample) {
+                    offset = position;
+                    break;
+                }
+                position += track.sampleSizes.get(index);
+            }
+        }
+        ByteBuffer data = ByteBuffer.allocate(track.sampleSizes.get(sample));
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            Mp4Reader.readFully(channel, data, offset);
+        } finally {
+            raf.close();
+        }
+        return data.array();
+    }
+
+    private static byte[] nal(int header, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) header;
+        for (int i = 1; i < size; i++) {
+            //不包含 00 00 , 避免出现起始码
+            nal[i] = (byte) (i % 200 + 1);
+        }
+        return nal;
+    }
+
+    private static byte[] lengthPrefix(int length) {
+        return ByteBuffer.allocate(4).putInt(length).array();
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        int length = 0;
+        for (byte[] array : arrays) {
+            length += array.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] array : arrays) {
+            buffer.put(array);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 记录每个分片的开始时间和是否从关键帧开始
+     */
+    private static final class FragmentLog implements MediaSink {
+        final List<Long> startUs = new ArrayList<>();
+        final List<Boolean> sync = new ArrayList<>();
+
+        @Override
+        public void writeHeader(ByteBuffer header) {
+            header.position(header.limit());
+        }
+
+        @Override
+        public void writeFragment(ByteBuffer[] buffers, long startUs, boolean sync) {
+            this.startUs.add(startUs);
+            this.sync.add(sync);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
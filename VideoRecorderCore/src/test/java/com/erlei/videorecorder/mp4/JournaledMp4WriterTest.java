@@ -0,0 +1,269 @@
+package com.erlei.videorecorder.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 进程被杀死之后 (没有 stop()) 按日志恢复 , 以及日志中无效记录的处理
+ */
+public class JournaledMp4WriterTest {
+
+    private static final int FRAME_SIZE = 4096;
+    private static final int FRAMES = 100;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * 日志中只有数据已经写入文件的样本 , 恢复到最后一次写入的位置 , 缓冲区中的样本丢失
+     */
+    @Test
+    public void recoverWithoutStopKeepsFlushedSamples() throws IOException {
+        File file = mFolder.newFile("killed.mp4");
+        JournaledMp4Writer writer = new JournaledMp4Writer(file);
+        long dataOffset = writeVideo(writer, FRAMES);
+        assertRecovered(file, dataOffset, flushedFrames(writer, dataOffset));
+    }
+
+    /**
+     * 预分配的文件比数据长 , 恢复时截断到最后一个样本之后
+     */
+    @Test
+    public void recoverTruncatesPreallocatedSpace() throws IOException {
+        File file = mFolder.newFile("preallocated.mp4");
+        JournaledMp4Writer writer = new JournaledMp4Writer(file);
+        writer.setPreallocation(CoalescingFileWriter.SET_LENGTH, 4 << 20, 1 << 20);
+        long dataOffset = writeVideo(writer, FRAMES);
+        assertTrue(file.length() >= 4 << 20);
+        assertRecovered(file, dataOffset, flushedFrames(writer, dataOffset));
+    }
+
+    /**
+     * sync() 之后所有样本都在日志中
+     */
+    @Test
+    public void recoverAfterSyncKeepsAllSamples() throws IOException {
+        File file = mFolder.newFile("synced.mp4");
+        JournaledMp4Writer writer = new JournaledMp4Writer(file);
+        long dataOffset = writeVideo(writer, FRAMES);
+        writer.sync();
+        assertRecovered(file, dataOffset, FRAMES);
+    }
+
+    /**
+     * 日志中的样本位置与文件不连续时在不连续的地方截断
+     */
+    @Test
+    public void recordOffsetMismatchTruncatesThere() throws IOException {
+        File file = mFolder.newFile("gap.mp4");
+        long dataOffset = writeSynced(file);
+        List<TrackFormat> formats = Collections.singletonList(Mp4Fixtures.videoFormat());
+        SampleJournal journal = new SampleJournal(JournaledMp4Writer.getJournalFile(file), dataOffset, formats);
+        for (int i = 0; i < 20; i++) {
+            //跳过第 6 帧的记录
+            if (i == 6) continue;
+            appendFrame(journal, dataOffset, i);
+        }
+        journal.close();
+        assertRecovered(file, dataOffset, 6);
+    }
+
+    /**
+     * 文件比日志中的样本短 (数据没有写回就掉电) 时在第一个不完整的样本处截断
+     */
+    @Test
+    public void sampleBeyondFileEndTruncatesThere() throws IOException {
+        File file = mFolder.newFile("short.mp4");
+        long dataOffset = writeSynced(file);
+        List<TrackFormat> formats = Collections.singletonList(Mp4Fixtures.videoFormat());
+        SampleJournal journal = new SampleJournal(JournaledMp4Writer.getJournalFile(file), dataOffset, formats);
+        for (int i = 0; i < 20; i++) {
+            appendFrame(journal, dataOffset, i);
+        }
+        journal.close();
+        setLength(file, dataOffset + 8 * FRAME_SIZE + FRAME_SIZE / 2);
+        assertRecovered(file, dataOffset, 8);
+    }
+
+    @Test
+    public void recoverWithoutJournalFails() throws IOException {
+        File file = Mp4Fixtures.writeMp4(mFolder.newFile("complete.mp4"), 10, 5, 1000);
+        long length = file.length();
+        assertFalse(JournaledMp4Writer.recover(file));
+        assertEquals(length, file.length());
+    }
+
+    /**
+     * 没有关闭的日志 , 映射窗口中还没有写入的部分是 0 , 在第一条为 0 的记录处停止
+     */
+    @Test
+    public void zeroedRecordEndsRead() throws IOException {
+        File file = mFolder.newFile("unclosed.journal");
+        SampleJournal journal = new SampleJournal(file, 48, Collections.singletonList(Mp4Fixtures.videoFormat()));
+        for (int i = 0; i < 10; i++) {
+            appendFrame(journal, 48, i);
+        }
+        assertTrue(file.length() > 10 * SampleJournal.RECORD_SIZE);
+        assertContent(SampleJournal.read(file), 48, 10);
+
+        //中间的记录被清零
+        long recordsOffset = file.length() - 2048L * SampleJournal.RECORD_SIZE;
+        overwrite(file, recordsOffset + 4 * SampleJournal.RECORD_SIZE, new byte[SampleJournal.RECORD_SIZE]);
+        assertContent(SampleJournal.read(file), 48, 4);
+    }
+
+    /**
+     * 写了一半的记录 : 校验值不匹配或者不足一条记录时停止
+     */
+    @Test
+    public void tornRecordEndsRead() throws IOException {
+        File file = mFolder.newFile("torn.journal");
+        SampleJournal journal = new SampleJournal(file, 48, Collections.singletonList(Mp4Fixtures.videoFormat()));
+        for (int i = 0; i < 10; i++) {
+            appendFrame(journal, 48, i);
+        }
+        journal.close();
+        long recordsOffset = file.length() - 10L * SampleJournal.RECORD_SIZE;
+        assertContent(SampleJournal.read(file), 48, 10);
+
+        //最后一条记录只写入了一半
+        setLength(file, file.length() - SampleJournal.RECORD_SIZE / 2);
+        assertContent(SampleJournal.read(file), 48, 9);
+
+        //第 7 条记录的大小已经写入 , 校验值还是旧的
+        overwrite(file, recordsOffset + 6 * SampleJournal.RECORD_SIZE + 16, ByteBuffer.allocate(4).putInt(1).array());
+        assertContent(SampleJournal.read(file), 48, 6);
+    }
+
+    /**
+     * 写入 frames 个视频帧 , 每 25 帧一个关键帧 , 不调用 stop()
+     *
+     * @return 第一个样本在文件中的位置
+     */
+    private static long writeVideo(JournaledMp4Writer writer, int frames) throws IOException {
+        int video = writer.addTrack(Mp4Fixtures.videoFormat());
+        writer.start();
+        long dataOffset = writer.getBytesWritten();
+        for (int i = 0; i < frames; i++) {
+            boolean key = i % 25 == 0;
+            writer.writeSample(video, Mp4Fixtures.videoSample(i, FRAME_SIZE, key), i * Mp4Fixtures.FRAME_US, key ? SampleFlags.FLAG_SYNC : 0);
+        }
+        return dataOffset;
+    }
+
+    /**
+     * 写入 FRAMES 个视频帧并 sync() , 复制文件的数据部分到 file , 日志由调用者写入
+     *
+     * @return 第一个样本在文件中的位置
+     */
+    private long writeSynced(File file) throws IOException {
+        File source = mFolder.newFile(file.getName() + ".source");
+        JournaledMp4Writer writer = new JournaledMp4Writer(source);
+        long dataOffset = writeVideo(writer, FRAMES);
+        writer.sync();
+        FileInputStream in = new FileInputStream(source);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            channel.transferTo(0, channel.size(), out.getChannel());
+        } finally {
+            in.close();
+            out.close();
+        }
+        return dataOffset;
+    }
+
+    /**
+     * @return 数据已经完整写入文件的帧数
+     */
+    private static int flushedFrames(JournaledMp4Writer writer, long dataOffset) {
+        int frames = (int) ((writer.getFileWriter().getFlushedPosition() - dataOffset) / FRAME_SIZE);
+        assertTrue("flushed frames " + frames, frames > 0 && frames < FRAMES);
+        return frames;
+    }
+
+    private static void appendFrame(SampleJournal journal, long dataOffset, int frame) throws IOException {
+        journal.append(0, dataOffset + (long) frame * FRAME_SIZE, FRAME_SIZE, frame * Mp4Fixtures.FRAME_US, frame % 25 == 0 ? SampleFlags.FLAG_SYNC : 0);
+    }
+
+    /**
+     * 恢复之后 : 日志被删除 , 文件是 ftyp + mdat + moov , mdat 在最后一个样本之后结束 , 样本的序号和时间连续
+     */
+    private static void assertRecovered(File file, long dataOffset, int frames) throws IOException {
+        assertTrue(JournaledMp4Writer.recover(file));
+        assertFalse(JournaledMp4Writer.getJournalFile(file).exists());
+
+        long dataEnd = dataOffset + (long) frames * FRAME_SIZE;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(16);
+            Mp4Reader.readFully(channel, header, dataOffset - 16);
+            assertEquals("mdat", new String(header.array(), 4, 4, "US-ASCII"));
+            assertEquals(dataEnd - dataOffset + 16, header.getLong(8));
+            header.clear().limit(8);
+            Mp4Reader.readFully(channel, header, dataEnd);
+            assertEquals("moov", new String(header.array(), 4, 4, "US-ASCII"));
+            assertEquals(channel.size(), dataEnd + header.getInt(0));
+        } finally {
+            raf.close();
+        }
+
+        TrackIndex video = Mp4Reader.read(file).getTrack("vide");
+        assertEquals(frames, video.getSampleCount());
+        int[] tags = Mp4Fixtures.sampleTags(file, video);
+        long[] times = Mp4Fixtures.decodeTimes(video);
+        for (int i = 0; i < frames; i++) {
+            assertEquals(i, tags[i]);
+            assertEquals(i * Mp4Fixtures.FRAME_US * video.timescale / 1000000L, times[i]);
+            assertEquals(i % 25 == 0, video.isSync(i));
+        }
+    }
+
+    private static void assertContent(SampleJournal.Content content, long dataOffset, int records) {
+        assertEquals(dataOffset, content.dataOffset);
+        assertEquals(1, content.formats.size());
+        assertEquals(TrackFormat.MIME_AVC, content.formats.get(0).mime);
+        assertEquals(records, content.getRecordCount());
+        for (int i = 0; i < records; i++) {
+            assertEquals(0, content.trackIndexes.get(i));
+            assertEquals(dataOffset + (long) i * FRAME_SIZE, content.offsets.get(i));
+            assertEquals(FRAME_SIZE, content.sizes.get(i));
+            assertEquals(i * Mp4Fixtures.FRAME_US, content.presentationTimesUs.get(i));
+        }
+    }
+
+    private static void overwrite(File file, long position, byte[] data) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void setLength(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
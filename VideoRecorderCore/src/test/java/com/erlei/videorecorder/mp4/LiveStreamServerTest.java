@@ -0,0 +1,236 @@
+package com.erlei.videorecorder.mp4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 用本地的 HTTP 客户端读取 LiveStreamServer 的 chunked 响应
+ */
+public class LiveStreamServerTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int TIMEOUT_MS = 5000;
+    private static final byte[] HEADER = {'f', 't', 'y', 'p'};
+    private static final byte[] F1 = {1, 1, 1};
+    private static final byte[] F2 = {2, 2};
+    private static final byte[] F3 = {3, 3, 3, 3};
+
+    private LiveStreamServer mServer;
+    private final List<Client> mClients = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LiveStreamServer(0);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.stop();
+        for (Client client : mClients) {
+            client.socket.close();
+        }
+    }
+
+    @Test
+    public void streamsHeaderCachedGopAndNewFragments() throws IOException {
+        mServer.writeHeader(ByteBuffer.wrap(HEADER));
+        writeFragment(F1, true);
+        writeFragment(F2, false);
+
+        Client client = connect();
+        assertEquals("HTTP/1.1 200 OK", client.status);
+        assertTrue(client.headers.contains("Content-Type: video/mp4"));
+        assertTrue(client.headers.contains("Transfer-Encoding: chunked"));
+        assertArrayEquals(HEADER, client.readChunk());
+        assertArrayEquals(F1, client.readChunk());
+        assertArrayEquals(F2, client.readChunk());
+
+        writeFragment(F3, false);
+        assertArrayEquals(F3, client.readChunk());
+
+        mServer.close();
+        assertNull("end of stream", client.readChunk());
+        assertTrue(mServer.isRunning());
+        assertEquals(0, mServer.getClientCount());
+    }
+
+    @Test
+    public void clientWaitsForNextStream() throws IOException {
+        Client client = connect();
+        mServer.writeHeader(ByteBuffer.wrap(HEADER));
+        writeFragment(F1, true);
+
+        assertArrayEquals(HEADER, client.readChunk());
+        assertArrayEquals(F1, client.readChunk());
+    }
+
+    /**
+     * 不缓存关键帧分片时 , 新的客户端从下一个关键帧分片开始
+     */
+    @Test
+    public void withoutGopCacheClientStartsAtNextSyncFragment() throws IOException {
+        mServer.stop();
+        mServer = new LiveStreamServer(0, LiveStreamServer.DEFAULT_CLIENT_QUEUE_SIZE, 0);
+        mServer.start();
+        mServer.writeHeader(ByteBuffer.wrap(HEADER));
+        writeFragment(F1, true);
+
+        Client client = connect();
+        writeFragment(F2, false);
+        writeFragment(F3, true);
+
+        assertArrayEquals(HEADER, client.readChunk());
+        assertArrayEquals(F3, client.readChunk());
+    }
+
+    @Test
+    public void rejectsNonGetRequest() throws IOException {
+        Client client = new Client(mServer.getPort(), "POST /live.mp4 HTTP/1.1\r\n\r\n");
+        mClients.add(client);
+        assertEquals("HTTP/1.1 405 Method Not Allowed", client.status);
+        assertEquals(-1, client.in.read());
+    }
+
+    @Test
+    public void stopDisconnectsClients() throws IOException {
+        mServer.writeHeader(ByteBuffer.wrap(HEADER));
+        Client client = connect();
+        assertArrayEquals(HEADER, client.readChunk());
+
+        mServer.stop();
+        assertFalse(mServer.isRunning());
+        assertEquals(0, mServer.getClientCount());
+        client.assertDisconnected();
+    }
+
+    /**
+     * 客户端不读取 , 发送线程阻塞在写入第一个大分片上 , 队列被后面的分片填满 :
+     * close() 放不下结束标记 , 必须直接断开 , 否则发送线程和连接会一直存在
+     */
+    @Test
+    public void closeDisconnectsClientWithFullQueue() throws Exception {
+        mServer.stop();
+        mServer = new LiveStreamServer(0, 1, 0);
+        mServer.start();
+        Client client = connect();
+        mServer.writeHeader(ByteBuffer.wrap(HEADER));
+        writeFragment(new byte[16 * 1024 * 1024], true);
+        //等待发送线程取出大分片 , 队列空出来
+        Thread.sleep(200);
+        writeFragment(F2, false);
+        assertEquals(1, mServer.getClientCount());
+        assertEquals(0, mServer.getDroppedClientCount());
+
+        mServer.close();
+        assertEquals(0, mServer.getClientCount());
+        assertEquals(1, mServer.getDroppedClientCount());
+        client.assertDisconnected();
+    }
+
+    private void writeFragment(byte[] data, boolean sync) {
+        mServer.writeFragment(new ByteBuffer[]{ByteBuffer.wrap(data)}, 0, sync);
+    }
+
+    /**
+     * 连接并等待服务端把客户端加入列表
+     */
+    private Client connect() throws IOException {
+        int count = mServer.getClientCount();
+        Client client = new Client(mServer.getPort(), "GET /live.mp4 HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+        mClients.add(client);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mServer.getClientCount() == count) {
+            if (System.currentTimeMillis() > deadline) fail("client not added");
+            Thread.yield();
+        }
+        return client;
+    }
+
+    private static final class Client {
+        final Socket socket;
+        final InputStream in;
+        final String status;
+        final List<String> headers = new ArrayList<>();
+
+        Client(int port, String request) throws IOException {
+            socket = new Socket();
+            //接收缓冲区小一些 , 不读取时服务端很快就会阻塞
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("127.0.0.1", port), TIMEOUT_MS);
+            socket.setSoTimeout(TIMEOUT_MS);
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes(ASCII));
+            out.flush();
+            in = socket.getInputStream();
+            status = readLine();
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                headers.add(line);
+            }
+        }
+
+        /**
+         * @return 下一个 chunk , 结束的 chunk 返回 null
+         */
+        byte[] readChunk() throws IOException {
+            int size = Integer.parseInt(readLine(), 16);
+            byte[] data = new byte[size];
+            int offset = 0;
+            while (offset < size) {
+                int read = in.read(data, offset, size - offset);
+                if (read < 0) throw new IOException("unexpected end of stream");
+                offset += read;
+            }
+            assertEquals("", readLine());
+            return size == 0 ? null : data;
+        }
+
+        /**
+         * 读取剩余的数据直到连接断开 , 超时说明服务端没有断开
+         */
+        void assertDisconnected() throws IOException {
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                while (in.read(buffer) != -1) {
+                    //丢弃
+                }
+            } catch (SocketTimeoutException e) {
+                fail("server did not close the connection");
+            } catch (SocketException e) {
+                //连接被重置
+            }
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) throw new IOException("unexpected end of stream");
+                if (c != '\r') line.write(c);
+            }
+            return new String(line.toByteArray(), ASCII);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.erlei.videorecorder.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 同一个流写入不同的 MediaSink , 得到的字节完全相同
+ */
+public class MediaSinkTest {
+
+    private static final int FRAMES = 75;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void fileAndMemorySinksWriteSameBytes() throws IOException {
+        File file = mFolder.newFile("fragmented.mp4");
+        writeStream(new FileMediaSink(file));
+        MemoryMediaSink memory = new MemoryMediaSink();
+        FragmentedMp4Writer writer = writeStream(memory);
+
+        assertArrayEquals(Files.readAllBytes(file.toPath()), memory.toByteArray());
+        assertTrue(memory.isClosed());
+        assertEquals(writer.getFragmentCount(), memory.getFragmentCount());
+        assertEquals(writer.getBytesWritten(), memory.size());
+        assertTrue(memory.getHeaderSize() > 0);
+
+        MovieIndex index = Mp4Reader.read(file);
+        assertTrue(index.fragmented);
+        assertEquals(FRAMES, index.getTrack("vide").getSampleCount());
+    }
+
+    /**
+     * 进程被杀死时 (没有 close()) 完整的分片已经写入文件 , 不能留在合并写入的缓冲区中
+     */
+    @Test
+    public void fileSinkFlushesEveryFragment() throws IOException {
+        File file = mFolder.newFile("unclosed.mp4");
+        FileMediaSink sink = new FileMediaSink(file);
+        sink.writeHeader(ByteBuffer.allocate(100));
+        sink.writeFragment(new ByteBuffer[]{ByteBuffer.allocate(1000), ByteBuffer.allocate(24)}, 0, true);
+        assertEquals(1124, file.length());
+        sink.writeFragment(new ByteBuffer[]{ByteBuffer.allocate(300)}, 1000000, false);
+        assertEquals(1424, file.length());
+        assertEquals(2, sink.getFileWriter().getWriteCount());
+        sink.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void memorySinkRejectsDataOverMaxBytes() throws IOException {
+        MemoryMediaSink memory = new MemoryMediaSink(16);
+        memory.writeHeader(ByteBuffer.allocate(8));
+        memory.writeFragment(new ByteBuffer[]{ByteBuffer.allocate(8), ByteBuffer.allocate(1)}, 0, true);
+    }
+
+    @Test
+    public void socketSinkSendsSameBytes() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> received = executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    Socket socket = server.accept();
+                    try {
+                        return readAll(socket.getInputStream());
+                    } finally {
+                        socket.close();
+                    }
+                }
+            });
+            SocketMediaSink socket = new SocketMediaSink("127.0.0.1", server.getLocalPort());
+            writeStream(socket);
+            MemoryMediaSink memory = new MemoryMediaSink();
+            writeStream(memory);
+
+            byte[] bytes = received.get(5, TimeUnit.SECONDS);
+            assertArrayEquals(memory.toByteArray(), bytes);
+            assertEquals(bytes.length, socket.getBytesSent());
+        } finally {
+            executor.shutdownNow();
+            server.close();
+        }
+    }
+
+    /**
+     * 一个 sink 出错不影响其他 sink , 最后抛出第一个异常 , 传入的 ByteBuffer 全部被读取
+     */
+    @Test
+    public void teeSinkWritesAllSinksAndThrowsFirstError() throws IOException {
+        MemoryMediaSink first = new MemoryMediaSink();
+        MemoryMediaSink last = new MemoryMediaSink();
+        final boolean[] closed = new boolean[1];
+        MediaSink failing = new MediaSink() {
+            @Override
+            public void writeHeader(ByteBuffer header) throws IOException {
+                header.get();
+                throw new IOException("header");
+            }
+
+            @Override
+            public void writeFragment(ByteBuffer[] buffers, long startUs, boolean sync) throws IOException {
+                throw new IOException("fragment");
+            }
+
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        TeeMediaSink tee = new TeeMediaSink(first, failing, last);
+
+        ByteBuffer header = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+        try {
+            tee.writeHeader(header);
+            fail("writeHeader should fail");
+        } catch (IOException e) {
+            assertEquals("header", e.getMessage());
+        }
+        ByteBuffer[] fragment = {ByteBuffer.wrap(new byte[]{5, 6}), ByteBuffer.wrap(new byte[]{7, 8, 9})};
+        try {
+            tee.writeFragment(fragment, 0, true);
+            fail("writeFragment should fail");
+        } catch (IOException e) {
+            assertEquals("fragment", e.getMessage());
+        }
+        tee.close();
+
+        byte[] expected = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+        assertArrayEquals(expected, first.toByteArray());
+        assertArrayEquals(expected, last.toByteArray());
+        assertEquals(0, header.remaining());
+        assertEquals(0, fragment[0].remaining());
+        assertEquals(0, fragment[1].remaining());
+        assertTrue(first.isClosed());
+        assertTrue(last.isClosed());
+        assertTrue(closed[0]);
+    }
+
+    @Test
+    public void writerClosesSink() throws IOException {
+        MemoryMediaSink memory = new MemoryMediaSink();
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(memory, 1000000, 0);
+        assertSame(memory, writer.getSink());
+        writer.addTrack(Mp4Fixtures.videoFormat());
+        writer.start();
+        assertEquals(memory.getHeaderSize(), memory.size());
+        writer.stop();
+        assertTrue(memory.isClosed());
+        assertEquals(0, memory.getFragmentCount());
+    }
+
+    /**
+     * 3 秒 25fps 视频和音频 , 1 秒一个分片
+     */
+    private static FragmentedMp4Writer writeStream(MediaSink sink) throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(sink, 1000000, 0);
+        int video = writer.addTrack(Mp4Fixtures.videoFormat());
+        int audio = writer.addTrack(Mp4Fixtures.audioFormat());
+        writer.start();
+        int audioFrame = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            long videoUs = i * Mp4Fixtures.FRAME_US;
+            boolean key = i % 25 == 0;
+            writer.writeSample(video, Mp4Fixtures.videoSample(i, 1024, key), videoUs, key ? SampleFlags.FLAG_SYNC : 0);
+            while (audioFrame * Mp4Fixtures.AAC_FRAME_US <= videoUs) {
+                writer.writeSample(audio, Mp4Fixtures.audioSample(audioFrame), audioFrame * Mp4Fixtures.AAC_FRAME_US, SampleFlags.FLAG_SYNC);
+                audioFrame++;
+            }
+        }
+        writer.stop();
+        return writer;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
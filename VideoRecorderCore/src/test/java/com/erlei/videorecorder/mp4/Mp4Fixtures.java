@@ -0,0 +1,123 @@
+package com.erlei.videorecorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 生成测试用的 MP4 , 一个 H.264 轨道 (25fps) 和一个 AAC 轨道 (44100Hz 单声道) ,
+ * 每个样本的数据里写入了轨道和样本序号 , 可以用 sampleTags() 读出来检查样本的顺序
+ */
+final class Mp4Fixtures {
+
+    static final long FRAME_US = 40000;
+    static final int SAMPLE_RATE = 44100;
+    static final long AAC_FRAME_US = 1024 * 1000000L / SAMPLE_RATE;
+    static final int WIDTH = 1280;
+    static final int HEIGHT = 720;
+    /**
+     * profile 0x42 (Baseline) , constraint 0x80 , level 0x1f (3.1) , 不带起始码 , 样本是长度前缀格式
+     */
+    static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8};
+    static final byte[] PPS = {0x68, (byte) 0xce, 0x06, (byte) 0xe2};
+    /**
+     * AAC LC , 44100Hz , 单声道
+     */
+    static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x08};
+    static final int AAC_FRAME_SIZE = 64;
+
+    private static final int TAG_OFFSET = 5;
+
+    private Mp4Fixtures() {
+    }
+
+    static TrackFormat videoFormat() {
+        return TrackFormat.createVideoFormat(TrackFormat.MIME_AVC, WIDTH, HEIGHT, SPS, PPS);
+    }
+
+    static TrackFormat audioFormat() {
+        return TrackFormat.createAudioFormat(TrackFormat.MIME_AAC, SAMPLE_RATE, 1, AUDIO_SPECIFIC_CONFIG);
+    }
+
+    /**
+     * 写入 ftyp + mdat + moov 结构的文件 , 视频和音频交错写入
+     *
+     * @param frames    视频帧数
+     * @param gop       关键帧间隔 (帧)
+     * @param frameSize 每个视频帧的字节数
+     */
+    static File writeMp4(File file, int frames, int gop, int frameSize) throws IOException {
+        JournaledMp4Writer writer = new JournaledMp4Writer(file);
+        int video = writer.addTrack(videoFormat());
+        int audio = writer.addTrack(audioFormat());
+        writer.start();
+        int audioFrame = 0;
+        for (int i = 0; i < frames; i++) {
+            long videoUs = i * FRAME_US;
+            boolean key = i % gop == 0;
+            writer.writeSample(video, videoSample(i, frameSize, key), videoUs, key ? SampleFlags.FLAG_SYNC : 0);
+            while (audioFrame * AAC_FRAME_US <= videoUs) {
+                writer.writeSample(audio, audioSample(audioFrame), audioFrame * AAC_FRAME_US, SampleFlags.FLAG_SYNC);
+                audioFrame++;
+            }
+        }
+        writer.stop();
+        return file;
+    }
+
+    /**
+     * 长度前缀格式的 NAL , NAL 头之后是样本序号
+     */
+    static ByteBuffer videoSample(int frame, int frameSize, boolean key) {
+        ByteBuffer buffer = ByteBuffer.allocate(frameSize);
+        buffer.putInt(frameSize - 4).put((byte) (key ? 0x65 : 0x41)).putInt(frame);
+        buffer.clear();
+        return buffer;
+    }
+
+    static ByteBuffer audioSample(int frame) {
+        ByteBuffer buffer = ByteBuffer.allocate(AAC_FRAME_SIZE);
+        buffer.putInt(TAG_OFFSET, frame);
+        return buffer;
+    }
+
+    /**
+     * @return 每个样本中写入的序号 , 按解码顺序
+     */
+    static int[] sampleTags(File file, TrackIndex track) throws IOException {
+        int[] tags = new int[track.getSampleCount()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer tag = ByteBuffer.allocate(4);
+            int sample = 0;
+            for (int c = 0; c < track.getChunkCount(); c++) {
+                long offset = track.chunkOffsets.get(c);
+                for (int i = 0; i < track.chunkSampleCounts.get(c); i++) {
+                    tag.clear();
+                    Mp4Reader.readFully(channel, tag, offset + TAG_OFFSET);
+                    tags[sample] = tag.getInt(0);
+                    offset += track.sampleSizes.get(sample++);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        return tags;
+    }
+
+    /**
+     * @return 每个样本的解码时间 , 单位是 timescale
+     */
+    static long[] decodeTimes(TrackIndex track) {
+        long[] times = new long[track.getSampleCount()];
+        long time = 0;
+        for (int i = 0; i < times.length; i++) {
+            times[i] = time;
+            time += track.sampleDurations.get(i);
+        }
+        return times;
+    }
+}
@@ -0,0 +1,202 @@
+package com.erlei.videorecorder.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Mp4ProbeTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void probesRegularMp4() throws IOException {
+        File file = Mp4Fixtures.writeMp4(mFolder.newFile("regular.mp4"), 100, 25, 1024);
+
+        Mp4Probe.Result result = Mp4Probe.probe(file);
+
+        assertFalse(result.fragmented);
+        assertEquals(file.length(), result.fileSize);
+        assertEquals(videoDurationUs(file), result.durationUs);
+        assertEquals(4000000, result.durationUs);
+        assertEquals(Mp4Fixtures.WIDTH, result.width);
+        assertEquals(Mp4Fixtures.HEIGHT, result.height);
+        assertEquals(0, result.rotation);
+        assertEquals(TrackFormat.MIME_AVC, result.videoMime);
+        assertEquals("avc1.42801f", result.videoCodec);
+        assertEquals(TrackFormat.MIME_AAC, result.audioMime);
+        assertEquals("mp4a.40.2", result.audioCodec);
+        assertEquals(Mp4Fixtures.SAMPLE_RATE, result.sampleRate);
+        assertEquals(1, result.channelCount);
+        assertFalse(result.hasMetadata());
+
+        long mdatBytes = 0;
+        MovieIndex index = Mp4Reader.read(file);
+        for (TrackIndex track : index.tracks) {
+            for (int i = 0; i < track.getSampleCount(); i++) {
+                mdatBytes += track.sampleSizes.get(i);
+            }
+        }
+        assertEquals(mdatBytes * 8 * 1000000L / result.durationUs, result.bitRate);
+    }
+
+    @Test
+    public void probesRotation() throws IOException {
+        for (int rotation : new int[]{0, 90, 180, 270}) {
+            File file = mFolder.newFile("rotation" + rotation + ".mp4");
+            JournaledMp4Writer writer = new JournaledMp4Writer(file);
+            TrackFormat format = Mp4Fixtures.videoFormat();
+            format.rotation = rotation;
+            int video = writer.addTrack(format);
+            writer.start();
+            writer.writeSample(video, Mp4Fixtures.videoSample(0, 1024, true), 0, SampleFlags.FLAG_SYNC);
+            writer.stop();
+
+            Mp4Probe.Result result = Mp4Probe.probe(file);
+            assertEquals(rotation, result.rotation);
+            //宽高是编码后的尺寸 , 不随旋转交换
+            assertEquals(Mp4Fixtures.WIDTH, result.width);
+            assertFalse(result.hasAudio());
+        }
+    }
+
+    @Test
+    public void probesFragmentedMp4() throws IOException {
+        File file = writeFragmented(mFolder.newFile("fragmented.mp4"), 75);
+
+        Mp4Probe.Result result = Mp4Probe.probe(file);
+
+        assertTrue(result.fragmented);
+        assertEquals(3000000, result.durationUs);
+        assertEquals(videoDurationUs(file), result.durationUs);
+        assertEquals("avc1.42801f", result.videoCodec);
+        assertEquals(Mp4Fixtures.SAMPLE_RATE, result.sampleRate);
+    }
+
+    /**
+     * 最后一个分片不完整 (录制过程中进程被杀死) , 时长按最后一个完整的分片计算
+     */
+    @Test
+    public void fragmentedDurationIgnoresTruncatedFragment() throws IOException {
+        File file = writeFragmented(mFolder.newFile("truncated.mp4"), 75);
+        truncate(file, file.length() - 100);
+
+        Mp4Probe.Result result = Mp4Probe.probe(file);
+
+        assertTrue(result.fragmented);
+        assertEquals(2000000, result.durationUs);
+    }
+
+    @Test
+    public void missingMoovIsAnError() throws IOException {
+        File file = Mp4Fixtures.writeMp4(mFolder.newFile("nomoov.mp4"), 25, 25, 1024);
+        truncate(file, Mp4Reader.read(file).moovOffset);
+        try {
+            Mp4Probe.probe(file);
+            fail("probe should fail without moov");
+        } catch (IOException e) {
+            assertEquals("moov not found", e.getMessage());
+        }
+    }
+
+    @Test
+    public void truncatedMoovIsAnError() throws IOException {
+        File file = Mp4Fixtures.writeMp4(mFolder.newFile("truncated-moov.mp4"), 25, 25, 1024);
+        truncate(file, file.length() - 8);
+        try {
+            Mp4Probe.probe(file);
+            fail("probe should fail with truncated moov");
+        } catch (IOException e) {
+            assertEquals("moov is truncated", e.getMessage());
+        }
+    }
+
+    /**
+     * 元数据轨道从文件开始计时 , 第一个元数据样本之前的空样本不返回
+     */
+    @Test
+    public void readsTimedMetadata() throws IOException {
+        File file = mFolder.newFile("metadata.mp4");
+        JournaledMp4Writer writer = new JournaledMp4Writer(file);
+        int video = writer.addTrack(Mp4Fixtures.videoFormat());
+        int metadata = writer.addTrack(TrackFormat.createMetadataFormat(TrackFormat.MIME_METADATA_JSON));
+        writer.start();
+        for (int i = 0; i < 50; i++) {
+            long timeUs = 1000000 + i * Mp4Fixtures.FRAME_US;
+            writer.writeSample(video, Mp4Fixtures.videoSample(i, 1024, i % 25 == 0), timeUs, i % 25 == 0 ? SampleFlags.FLAG_SYNC : 0);
+            if (i == 10 || i == 30) {
+                writer.writeSample(metadata, ByteBuffer.wrap(("{\"frame\":" + i + "}").getBytes(UTF_8)), timeUs, 0);
+            }
+        }
+        writer.stop();
+
+        Mp4Probe.Result result = Mp4Probe.probe(file);
+        assertEquals(TrackFormat.MIME_METADATA_JSON, result.metadataMime);
+        assertNull(result.audioMime);
+
+        List<Mp4Probe.MetadataSample> samples = Mp4Probe.readMetadata(file);
+        assertEquals(2, samples.size());
+        assertEquals(10 * Mp4Fixtures.FRAME_US, samples.get(0).timeUs);
+        assertEquals(30 * Mp4Fixtures.FRAME_US, samples.get(1).timeUs);
+        assertArrayEquals("{\"frame\":10}".getBytes(UTF_8), samples.get(0).data);
+        assertArrayEquals("{\"frame\":30}".getBytes(UTF_8), samples.get(1).data);
+    }
+
+    @Test
+    public void readMetadataWithoutMetadataTrackIsEmpty() throws IOException {
+        File file = Mp4Fixtures.writeMp4(mFolder.newFile("plain.mp4"), 25, 25, 1024);
+        assertTrue(Mp4Probe.readMetadata(file).isEmpty());
+    }
+
+    /**
+     * 25fps , 1 秒一个关键帧和一个分片
+     */
+    private static File writeFragmented(File file, int frames) throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, 1000000, 0);
+        int video = writer.addTrack(Mp4Fixtures.videoFormat());
+        int audio = writer.addTrack(Mp4Fixtures.audioFormat());
+        writer.start();
+        int audioFrame = 0;
+        for (int i = 0; i < frames; i++) {
+            long videoUs = i * Mp4Fixtures.FRAME_US;
+            boolean key = i % 25 == 0;
+            writer.writeSample(video, Mp4Fixtures.videoSample(i, 1024, key), videoUs, key ? SampleFlags.FLAG_SYNC : 0);
+            while (audioFrame * Mp4Fixtures.AAC_FRAME_US <= videoUs) {
+                writer.writeSample(audio, Mp4Fixtures.audioSample(audioFrame), audioFrame * Mp4Fixtures.AAC_FRAME_US, SampleFlags.FLAG_SYNC);
+                audioFrame++;
+            }
+        }
+        writer.stop();
+        return file;
+    }
+
+    private static long videoDurationUs(File file) throws IOException {
+        TrackIndex video = Mp4Reader.read(file).getTrack("vide");
+        return video.getDuration() * 1000000L / video.timescale;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.erlei.videorecorder.mp4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 测试文件 4 秒 , 25fps , 每秒一个关键帧 (0 , 25 , 50 , 75)
+ */
+public class Mp4TrimmerTest {
+
+    private static final int FRAMES = 100;
+    private static final int GOP = 25;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mInput;
+    private File mOutput;
+
+    @Before
+    public void setUp() throws IOException {
+        mInput = Mp4Fixtures.writeMp4(mFolder.newFile("input.mp4"), FRAMES, GOP, 1024);
+        mOutput = new File(mFolder.getRoot(), "trimmed.mp4");
+    }
+
+    @Test
+    public void startSnapsBackToKeyFrame() throws IOException {
+        Mp4Trimmer.Result result = Mp4Trimmer.trim(mInput, mOutput, 1500000, 3200000);
+
+        assertEquals(1000000, result.startUs);
+        assertEquals(3200000, result.endUs);
+        assertVideoFrames(25, 80);
+        assertTrue(Mp4Reader.read(mOutput).getTrack("vide").isSync(0));
+    }
+
+    @Test
+    public void startOnKeyFrameIsKept() throws IOException {
+        Mp4Trimmer.Result result = Mp4Trimmer.trim(mInput, mOutput, 2000000, 2400000);
+
+        assertEquals(2000000, result.startUs);
+        assertEquals(2400000, result.endUs);
+        assertVideoFrames(50, 60);
+    }
+
+    /**
+     * 没有 B 帧时结束位置向后对齐到样本边界 , 不需要对齐到关键帧
+     */
+    @Test
+    public void endSnapsForwardToSampleBoundary() throws IOException {
+        Mp4Trimmer.Result result = Mp4Trimmer.trim(mInput, mOutput, 0, 3210000);
+
+        assertEquals(0, result.startUs);
+        assertEquals(3240000, result.endUs);
+        assertVideoFrames(0, 81);
+    }
+
+    /**
+     * 有 B 帧 (ctts) 时结束位置向后对齐到下一个关键帧
+     */
+    @Test
+    public void endSnapsToNextKeyFrameWithCompositionOffsets() throws IOException {
+        MovieIndex index = Mp4Reader.read(mInput);
+        TrackIndex video = index.getTrack("vide");
+        TrackIndex reordered = video.copyDescription();
+        reordered.sampleEntries.addAll(video.sampleEntries);
+        for (int i = 0; i < video.getSampleCount(); i++) {
+            reordered.appendSample(video.sampleSizes.get(i), video.sampleDurations.get(i), video.isSync(i) ? 0 : 3600, video.isSync(i));
+        }
+        for (int c = 0; c < video.getChunkCount(); c++) {
+            reordered.appendChunk(video.chunkOffsets.get(c), video.chunkSampleCounts.get(c), video.chunkDescriptionIndexes.get(c));
+        }
+        index.tracks.set(index.tracks.indexOf(video), reordered);
+
+        Mp4Trimmer.Result result = Mp4Trimmer.trim(mInput, index, mOutput, 1500000, 2200000);
+
+        assertEquals(1000000, result.startUs);
+        assertEquals(3000000, result.endUs);
+        assertVideoFrames(25, 75);
+        TrackIndex trimmed = Mp4Reader.read(mOutput).getTrack("vide");
+        assertTrue(trimmed.hasCompositionOffsets());
+        assertEquals(0, trimmed.compositionOffsets.get(0));
+        assertEquals(3600, trimmed.compositionOffsets.get(1));
+    }
+
+    @Test
+    public void audioIsCutToKeptRange() throws IOException {
+        Mp4Trimmer.Result result = Mp4Trimmer.trim(mInput, mOutput, 1500000, 3200000);
+
+        TrackIndex source = Mp4Reader.read(mInput).getTrack("soun");
+        TrackIndex audio = Mp4Reader.read(mOutput).getTrack("soun");
+        long[] times = Mp4Fixtures.decodeTimes(source);
+        long start = result.startUs * source.timescale / 1000000L;
+        long end = result.endUs * source.timescale / 1000000L;
+        int first = 0;
+        while (times[first] < start) first++;
+        int last = first;
+        while (last < times.length && times[last] < end) last++;
+
+        int[] tags = Mp4Fixtures.sampleTags(mOutput, audio);
+        assertEquals(last - first, tags.length);
+        for (int i = 0; i < tags.length; i++) {
+            assertEquals(first + i, tags[i]);
+        }
+        assertEquals(80 - 25 + tags.length, result.sampleCount);
+    }
+
+    @Test
+    public void fullRangeKeepsEverySample() throws IOException {
+        Mp4Trimmer.Result result = Mp4Trimmer.trim(mInput, mOutput, 0, -1);
+
+        MovieIndex source = Mp4Reader.read(mInput);
+        MovieIndex trimmed = Mp4Reader.read(mOutput);
+        assertEquals(0, result.startUs);
+        assertEquals(FRAMES * Mp4Fixtures.FRAME_US, result.endUs);
+        assertEquals(source.getSampleCount(), result.sampleCount);
+        for (String handlerType : new String[]{"vide", "soun"}) {
+            TrackIndex s = source.getTrack(handlerType);
+            TrackIndex t = trimmed.getTrack(handlerType);
+            assertArrayEquals(s.sampleSizes.toArray(), t.sampleSizes.toArray());
+            assertArrayEquals(s.sampleDurations.toArray(), t.sampleDurations.toArray());
+            assertArrayEquals(Mp4Fixtures.sampleTags(mInput, s), Mp4Fixtures.sampleTags(mOutput, t));
+        }
+        //相邻的样本合并为一个 chunk , 输出的 chunk 数不会比输入多
+        assertTrue(trimmed.getTrack("vide").getChunkCount() <= source.getTrack("vide").getChunkCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyRangeIsRejected() throws IOException {
+        Mp4Trimmer.trim(mInput, mOutput, 2000000, 1000000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outputMustNotBeInput() throws IOException {
+        Mp4Trimmer.trim(mInput, mInput, 0, -1);
+    }
+
+    /**
+     * 视频轨道保留 [from , to) 的帧 , 并且文件可以重新读取
+     */
+    private void assertVideoFrames(int from, int to) throws IOException {
+        TrackIndex video = Mp4Reader.read(mOutput).getTrack("vide");
+        int[] tags = Mp4Fixtures.sampleTags(mOutput, video);
+        assertEquals(to - from, tags.length);
+        for (int i = 0; i < tags.length; i++) {
+            assertEquals(from + i, tags[i]);
+            assertEquals((from + i) % GOP == 0, video.isSync(i));
+        }
+    }
+}
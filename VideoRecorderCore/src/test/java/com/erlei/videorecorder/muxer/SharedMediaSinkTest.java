@@ -0,0 +1,114 @@
+package com.erlei.videorecorder.muxer;
+
+import com.erlei.videorecorder.mp4.MediaSink;
+import com.erlei.videorecorder.mp4.MemoryMediaSink;
+import com.erlei.videorecorder.mp4.TeeMediaSink;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SharedMediaSinkTest {
+
+    /**
+     * 按 SegmentedMediaMuxer 切换分段的顺序 : 新分段的 header 先写入 , 旧分段的最后一个分片和 close() 在后台线程
+     */
+    @Test
+    public void rotationKeepsSinkOpenAndDropsStaleFragments() throws IOException {
+        LoggingSink log = new LoggingSink(-1);
+        SharedMediaSink shared = new SharedMediaSink(log);
+        MediaSink first = shared.newSegment();
+        first.writeHeader(buffer(0));
+        first.writeFragment(new ByteBuffer[]{buffer(1)}, 0, true);
+
+        MediaSink second = shared.newSegment();
+        second.writeHeader(buffer(10));
+        first.writeFragment(new ByteBuffer[]{buffer(2)}, 1000000, false);
+        first.close();
+        second.writeFragment(new ByteBuffer[]{buffer(11)}, 0, true);
+        assertEquals(Arrays.asList("header 0", "fragment 1", "header 10", "fragment 11"), log.events);
+
+        second.close();
+        second.close();
+        assertEquals(Arrays.asList("header 0", "fragment 1", "header 10", "fragment 11", "close"), log.events);
+    }
+
+    /**
+     * sink 出错之后断开 , 不再写入 , 也不把异常抛给文件 ; 录制结束时依然关闭
+     */
+    @Test
+    public void failingSinkIsDetached() throws IOException {
+        LoggingSink log = new LoggingSink(2);
+        SharedMediaSink shared = new SharedMediaSink(log);
+        MemoryMediaSink file = new MemoryMediaSink();
+        TeeMediaSink tee = new TeeMediaSink(file, shared.newSegment());
+        tee.writeHeader(buffer(0));
+        tee.writeFragment(new ByteBuffer[]{buffer(1)}, 0, true);
+        assertTrue(shared.isFailed());
+
+        MediaSink next = shared.newSegment();
+        next.writeHeader(buffer(10));
+        next.writeFragment(new ByteBuffer[]{buffer(11)}, 0, true);
+        tee.close();
+        next.close();
+
+        assertArrayEquals(new byte[]{0, 1}, file.toByteArray());
+        assertEquals(Arrays.asList("header 0", "close"), log.events);
+    }
+
+    @Test
+    public void segmentWithoutHeaderDoesNotCloseSink() throws IOException {
+        LoggingSink log = new LoggingSink(-1);
+        SharedMediaSink shared = new SharedMediaSink(log);
+        MediaSink current = shared.newSegment();
+        current.writeHeader(buffer(0));
+        shared.newSegment().close();
+        assertFalse(log.events.contains("close"));
+    }
+
+    private static ByteBuffer buffer(int value) {
+        return ByteBuffer.wrap(new byte[]{(byte) value});
+    }
+
+    /**
+     * 记录收到的调用 , 第 failAt 次写入 (从 1 开始) 抛出异常
+     */
+    private static final class LoggingSink implements MediaSink {
+        final List<String> events = new ArrayList<>();
+        private final int mFailAt;
+        private int mWrites;
+
+        LoggingSink(int failAt) {
+            mFailAt = failAt;
+        }
+
+        @Override
+        public void writeHeader(ByteBuffer header) throws IOException {
+            write("header " + header.get(header.position()));
+        }
+
+        @Override
+        public void writeFragment(ByteBuffer[] buffers, long startUs, boolean sync) throws IOException {
+            write("fragment " + buffers[0].get(buffers[0].position()));
+        }
+
+        @Override
+        public void close() {
+            events.add("close");
+        }
+
+        private void write(String event) throws IOException {
+            if (++mWrites == mFailAt) throw new IOException("broken pipe");
+            events.add(event);
+        }
+    }
+}
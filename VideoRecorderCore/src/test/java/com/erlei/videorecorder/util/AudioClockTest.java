@@ -0,0 +1,149 @@
+package com.erlei.videorecorder.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 48000Hz 单声道 , 每次读取 480 帧 (10ms) , AudioRecord 缓冲区 4800 帧 (100ms)
+ */
+public class AudioClockTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int READ_BYTES = 960;
+    private static final long READ_US = 10000;
+    private static final int BUFFER_BYTES = 9600;
+    private static final long BUFFER_US = 100000;
+    private static final long START_US = 1000000;
+
+    @Test
+    public void ptsFollowsSampleCountNotReadJitter() {
+        AudioClock clock = new AudioClock(SAMPLE_RATE, 1, BUFFER_BYTES);
+        for (int i = 0; i < 100; i++) {
+            //读取线程的调度抖动 ±3ms
+            long jitterUs = i % 2 == 0 ? 3000 : -3000;
+            long ptsUs = clock.onRead(READ_BYTES, START_US + (i + 1) * READ_US + jitterUs);
+            assertEquals(START_US + 3000 + i * READ_US, ptsUs);
+        }
+        assertEquals(0, clock.getResyncCount());
+        assertEquals(0, clock.getCorrectionUs());
+        assertEquals(100 * READ_BYTES / 2, clock.getTotalFrames());
+    }
+
+    /**
+     * 读取线程被阻塞 300ms : 先读完缓冲区中阻塞之前采集的样本 , 显示时间连续 ,
+     * 读完之后显示时间跳过丢失的时长 , 只重新锚定一次
+     */
+    @Test
+    public void overrunResyncsAfterBufferedSamples() {
+        AudioClock clock = new AudioClock(SAMPLE_RATE, 1, BUFFER_BYTES);
+        long readTimeUs = START_US;
+        for (int i = 0; i < 10; i++) {
+            readTimeUs += READ_US;
+            assertEquals(START_US + i * READ_US, clock.onRead(READ_BYTES, readTimeUs));
+        }
+        long blockedUs = 300000;
+        readTimeUs += blockedUs;
+        //缓冲区中最早的样本 , 显示时间与阻塞之前连续
+        assertEquals(START_US + 10 * READ_US, clock.onRead(READ_BYTES, readTimeUs));
+        assertEquals(1, clock.getResyncCount());
+        long lostUs = blockedUs - READ_US - BUFFER_US;
+        assertEquals(lostUs, clock.getLostUs());
+        assertEquals(blockedUs - READ_US, clock.getMaxDriftUs());
+        //还没有读完的缓冲区也计入 , 结束信号在跳过之后
+        assertEquals(START_US + 11 * READ_US + lostUs, clock.getNextPTSUs());
+
+        //缓冲区中剩余的样本读取很快 , 不再触发重新锚定
+        for (int i = 11; i < 20; i++) {
+            readTimeUs += 100;
+            assertEquals(START_US + i * READ_US, clock.onRead(READ_BYTES, readTimeUs));
+        }
+        assertEquals(1, clock.getResyncCount());
+
+        //读完缓冲区之后显示时间跳过丢失的时长 , 之后正常增长
+        readTimeUs += READ_US;
+        long resyncUs = START_US + 20 * READ_US + lostUs;
+        assertEquals(resyncUs, clock.onRead(READ_BYTES, readTimeUs));
+        for (int i = 1; i < 10; i++) {
+            readTimeUs += READ_US;
+            assertEquals(resyncUs + i * READ_US, clock.onRead(READ_BYTES, readTimeUs));
+        }
+        assertEquals(1, clock.getResyncCount());
+        assertEquals(lostUs, clock.getLostUs());
+    }
+
+    @Test
+    public void shortStallWithinBufferIsNotAnOverrun() {
+        AudioClock clock = new AudioClock(SAMPLE_RATE, 1, BUFFER_BYTES);
+        long readTimeUs = START_US + READ_US;
+        clock.onRead(READ_BYTES, readTimeUs);
+        //阻塞 80ms , 缓冲区没有满 , 没有丢失样本
+        readTimeUs += 80000;
+        clock.onRead(READ_BYTES, readTimeUs);
+        assertEquals(0, clock.getResyncCount());
+        assertEquals(0, clock.getLostUs());
+    }
+
+    /**
+     * 实际采样率比标称值低 1% : 平滑之后修正锚点 , 每次最多修正读取时长的 1% , 漂移保持在容差附近
+     */
+    @Test
+    public void slowAudioClockIsCorrectedWithinSlewLimit() {
+        assertDriftCorrected(READ_US + 100);
+    }
+
+    @Test
+    public void fastAudioClockIsCorrectedWithinSlewLimit() {
+        assertDriftCorrected(READ_US - 100);
+    }
+
+    private static void assertDriftCorrected(long readIntervalUs) {
+        AudioClock clock = new AudioClock(SAMPLE_RATE, 1, BUFFER_BYTES);
+        long maxStepUs = READ_US / 100;
+        long readTimeUs = START_US;
+        long lastPtsUs = 0;
+        for (int i = 0; i < 3000; i++) {
+            readTimeUs += readIntervalUs;
+            long ptsUs = clock.onRead(READ_BYTES, readTimeUs);
+            if (i > 0) {
+                long intervalUs = ptsUs - lastPtsUs;
+                assertTrue("interval " + intervalUs, intervalUs >= READ_US - maxStepUs && intervalUs <= READ_US + maxStepUs);
+            }
+            lastPtsUs = ptsUs;
+        }
+        long totalDriftUs = 3000 * (readIntervalUs - READ_US);
+        assertEquals(0, clock.getResyncCount());
+        assertTrue("drift " + clock.getDriftUs(), Math.abs(clock.getDriftUs()) < 10000);
+        //修正的方向与漂移相同 , 累计修正抵消了几乎全部漂移
+        assertTrue("correction " + clock.getCorrectionUs(), Math.abs(totalDriftUs - clock.getCorrectionUs()) < 20000);
+        assertEquals(Long.signum(totalDriftUs), Long.signum(clock.getCorrectionUs()));
+    }
+
+    @Test
+    public void smallDriftIsNotCorrected() {
+        AudioClock clock = new AudioClock(SAMPLE_RATE, 1, BUFFER_BYTES);
+        long readTimeUs = START_US;
+        for (int i = 0; i < 1000; i++) {
+            //固定落后 4ms , 在容差以内
+            readTimeUs += READ_US;
+            clock.onRead(READ_BYTES, readTimeUs + (i == 0 ? 0 : 4000));
+        }
+        assertEquals(0, clock.getCorrectionUs());
+        assertTrue(clock.getDriftUs() > 3000);
+    }
+
+    @Test
+    public void stereoCountsFrames() {
+        AudioClock clock = new AudioClock(SAMPLE_RATE, 2, BUFFER_BYTES * 2);
+        assertEquals(START_US, clock.onRead(READ_BYTES * 2, START_US + READ_US));
+        assertEquals(START_US + READ_US, clock.onRead(READ_BYTES * 2, START_US + 2 * READ_US));
+        assertEquals(START_US + 2 * READ_US, clock.getNextPTSUs());
+        assertEquals(2 * READ_BYTES / 2, clock.getTotalFrames());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyReadIsRejected() {
+        new AudioClock(SAMPLE_RATE, 1, BUFFER_BYTES).onRead(0, START_US);
+    }
+}
@@ -0,0 +1,205 @@
+package com.erlei.videorecorder.util;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BitrateControllerTest {
+
+    private static final int MAX_BIT_RATE = 1920 * 1080 * 12;
+    private static final int MIN_BIT_RATE = 1000000;
+    private static final long WINDOW_US = BitrateController.DEFAULT_WINDOW_US;
+
+    /**
+     * 慢速 SD 卡 (1.5MB/s , 每 4 秒阻塞 500ms) : 固定码率时写入一直积压 , 丢帧和长时间阻塞很多 ;
+     * 自适应码率下降到存储能持续写入的码率之后 , 丢帧和阻塞基本消失 (固定码率丢帧约 60% , 自适应不到 1%)
+     */
+    @Test
+    public void slowMediaStallsAndDropsGoAway() {
+        Simulation fixed = new Simulation(1.5e6, 4000000, 500000).run(null);
+        BitrateController controller = new BitrateController(MAX_BIT_RATE, MIN_BIT_RATE, MAX_BIT_RATE);
+        Simulation adaptive = new Simulation(1.5e6, 4000000, 500000).run(controller);
+
+        assertTrue("fixed drops " + fixed.dropRatio(), fixed.dropRatio() > 0.3);
+        assertTrue("fixed stalls " + fixed.stalls, fixed.stalls > 100);
+        assertTrue("adaptive drops " + adaptive.dropRatio(), adaptive.dropRatio() < 0.02);
+        //剩下的阻塞来自码率降下来之前和之后试探增加码率的窗口
+        assertTrue("adaptive stalls " + adaptive.stalls, adaptive.stalls * 10 < fixed.stalls);
+        assertTrue(controller.getBitRate() < MAX_BIT_RATE / 2);
+        assertTrue(controller.getBitRate() > MIN_BIT_RATE);
+        assertTrue(controller.getStorageBytesPerSec() > 0);
+    }
+
+    /**
+     * 存储足够快时码率保持最大值
+     */
+    @Test
+    public void fastMediaKeepsMaxBitRate() {
+        BitrateController controller = new BitrateController(MAX_BIT_RATE, MIN_BIT_RATE, MAX_BIT_RATE);
+        Simulation simulation = new Simulation(40e6, 0, 0).run(controller);
+
+        assertEquals(0, simulation.drops);
+        assertEquals(0, simulation.stalls);
+        assertEquals(MAX_BIT_RATE, controller.getBitRate());
+    }
+
+    /**
+     * 编码器偶尔丢弃的帧 (提交了但是不会输出) 只影响所在的窗口 , 不会一直被当成排队把码率降到最低
+     */
+    @Test
+    public void occasionalEncoderDropsDoNotLowerBitRate() {
+        BitrateController controller = new BitrateController(MAX_BIT_RATE, MIN_BIT_RATE, MAX_BIT_RATE);
+        long writtenBytes = MAX_BIT_RATE / 8;
+        for (int window = 0; window < 60; window++) {
+            //每个窗口提交 30 帧 , 输出 29 帧
+            int queueDepth = 30 - 29;
+            controller.update(WINDOW_US, writtenBytes, writtenBytes, WINDOW_US / 10, 10000, queueDepth);
+        }
+        assertEquals(MAX_BIT_RATE, controller.getBitRate());
+    }
+
+    @Test
+    public void growingQueueIsCongestion() {
+        BitrateController controller = new BitrateController(MAX_BIT_RATE, MIN_BIT_RATE, MAX_BIT_RATE);
+        //写入很快 , 存储速度不限制码率
+        long writtenBytes = MAX_BIT_RATE / 2;
+        int bitRate = controller.update(WINDOW_US, writtenBytes, writtenBytes, WINDOW_US / 10, 10000, 5);
+        assertEquals((int) (MAX_BIT_RATE * 0.7), bitRate);
+    }
+
+    /**
+     * 空闲并且用满码率时逐步增加 , 不超过最大码率
+     */
+    @Test
+    public void idleWindowsIncreaseBitRate() {
+        BitrateController controller = new BitrateController(MIN_BIT_RATE, MIN_BIT_RATE, 10 * MIN_BIT_RATE);
+        int previous = controller.getBitRate();
+        for (int window = 0; window < 100; window++) {
+            long videoBytes = controller.getBitRate() / 8;
+            int bitRate = controller.update(WINDOW_US, videoBytes, videoBytes, 0, 1000, 0);
+            assertTrue(bitRate >= previous);
+            previous = bitRate;
+        }
+        assertEquals(10 * MIN_BIT_RATE, controller.getBitRate());
+    }
+
+    /**
+     * 静止的画面 , 编码器输出远低于目标码率 , 不增加码率
+     */
+    @Test
+    public void underutilizedBitRateIsNotIncreased() {
+        BitrateController controller = new BitrateController(MIN_BIT_RATE, MIN_BIT_RATE, 10 * MIN_BIT_RATE);
+        for (int window = 0; window < 20; window++) {
+            controller.update(WINDOW_US, MIN_BIT_RATE / 80, MIN_BIT_RATE / 80, 0, 1000, 0);
+        }
+        assertEquals(MIN_BIT_RATE, controller.getBitRate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxMustNotBeLessThanMin() {
+        new BitrateController(MIN_BIT_RATE, MIN_BIT_RATE, MIN_BIT_RATE - 1);
+    }
+
+    /**
+     * 30fps 的编码器和写入线程 , 以 1ms 为步长模拟 10 分钟 :
+     * 编码器最多排队 4 帧 , 排满时丢帧 ; 写入线程把帧写入 8MB 的页缓存 , 页缓存按存储的速度写回 , 页缓存满时写入阻塞 ;
+     * 每个窗口按 MediaVideoEncoder 的方式统计 , 排队的帧数是窗口内提交的帧数减去输出的帧数
+     */
+    private static final class Simulation {
+        private static final long STEP_US = 1000;
+        private static final long DURATION_US = 600 * WINDOW_US;
+        private static final long FRAME_INTERVAL_US = 33333;
+        private static final int ENCODER_QUEUE = 4;
+        private static final long PAGE_CACHE_BYTES = 8 << 20;
+        private static final long AUDIO_BYTES_PER_FRAME = 8000 / 30;
+        private static final long STALL_US = 100000;
+
+        private final double mStorageBytesPerSec;
+        private final long mStorageStallIntervalUs;
+        private final long mStorageStallUs;
+
+        long frames;
+        long drops;
+        /**
+         * 超过 100ms 的写入次数
+         */
+        int stalls;
+
+        Simulation(double storageBytesPerSec, long storageStallIntervalUs, long storageStallUs) {
+            mStorageBytesPerSec = storageBytesPerSec;
+            mStorageStallIntervalUs = storageStallIntervalUs;
+            mStorageStallUs = storageStallUs;
+        }
+
+        /**
+         * @param controller 为 null 时固定使用最大码率
+         */
+        Simulation run(BitrateController controller) {
+            Random random = new Random(3);
+            ArrayDeque<Long> encoderQueue = new ArrayDeque<>();
+            int bitRate = MAX_BIT_RATE;
+            double pageCache = 0;
+            long writing = 0;
+            long writeStartUs = 0;
+            long nextFrameUs = 0;
+            long windowStartUs = 0;
+            long windowSubmitted = 0;
+            long windowOutput = 0;
+            long windowVideoBytes = 0;
+            long windowWrittenBytes = 0;
+            long windowBusyUs = 0;
+            long windowMaxWriteUs = 0;
+            for (long nowUs = 0; nowUs < DURATION_US; nowUs += STEP_US) {
+                boolean storageStalled = mStorageStallIntervalUs > 0 && nowUs % mStorageStallIntervalUs < mStorageStallUs;
+                if (!storageStalled) pageCache = Math.max(0, pageCache - mStorageBytesPerSec * STEP_US / 1000000);
+                if (nowUs >= nextFrameUs) {
+                    //每秒一个关键帧 , 大小是普通帧的 4 倍左右
+                    double scale = frames % 30 == 0 ? 4 : 0.9 + 0.1 * random.nextDouble();
+                    nextFrameUs += FRAME_INTERVAL_US;
+                    frames++;
+                    windowSubmitted++;
+                    if (encoderQueue.size() >= ENCODER_QUEUE) {
+                        drops++;
+                    } else {
+                        encoderQueue.add((long) (bitRate / 8d / 30 * scale));
+                    }
+                }
+                if (writing == 0 && !encoderQueue.isEmpty()) {
+                    writing = encoderQueue.poll();
+                    writeStartUs = nowUs;
+                }
+                if (writing > 0) {
+                    windowBusyUs += STEP_US;
+                    if (pageCache + writing <= PAGE_CACHE_BYTES) {
+                        pageCache += writing;
+                        long writeUs = nowUs + STEP_US - writeStartUs;
+                        windowMaxWriteUs = Math.max(windowMaxWriteUs, writeUs);
+                        if (writeUs > STALL_US) stalls++;
+                        windowOutput++;
+                        windowVideoBytes += writing;
+                        windowWrittenBytes += writing + AUDIO_BYTES_PER_FRAME;
+                        writing = 0;
+                    }
+                }
+                if (nowUs - windowStartUs >= WINDOW_US) {
+                    if (controller != null) {
+                        int queueDepth = (int) Math.max(0, windowSubmitted - windowOutput);
+                        bitRate = controller.update(nowUs - windowStartUs, windowVideoBytes, windowWrittenBytes, windowBusyUs, windowMaxWriteUs, queueDepth);
+                    }
+                    windowStartUs = nowUs;
+                    windowSubmitted = windowOutput = 0;
+                    windowVideoBytes = windowWrittenBytes = windowBusyUs = windowMaxWriteUs = 0;
+                }
+            }
+            return this;
+        }
+
+        double dropRatio() {
+            return (double) drops / frames;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.erlei.videorecorder.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class CountingByteChannelTest {
+
+    private final List<Float> mReports = new ArrayList<>();
+    private final ProgressReporter.Listener mListener = new ProgressReporter.Listener() {
+        @Override
+        public void onProgress(float progress) {
+            mReports.add(progress);
+        }
+    };
+
+    @Test
+    public void countsBytesWrittenToMemory() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProgressReporter reporter = new ProgressReporter(4096, 0.25f, 3600 * 1000L, mListener);
+        CountingByteChannel channel = new CountingByteChannel(Channels.newChannel(out), reporter);
+        byte[] data = new byte[4096];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        for (int i = 0; i < data.length; i += 256) {
+            channel.write(ByteBuffer.wrap(data, i, 256));
+        }
+
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(4096, channel.getBytesWritten());
+        //0.0625 , 0.3125 , 0.5625 , 0.8125 , 每次至少增加 0.25
+        assertEquals(Arrays.asList(0.0625f, 0.3125f, 0.5625f, 0.8125f), mReports);
+    }
+
+    @Test
+    public void countsPartialWrites() throws IOException {
+        //每次最多写入 100 字节的通道
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel slow = new WritableByteChannel() {
+            private boolean mOpen = true;
+
+            @Override
+            public int write(ByteBuffer src) {
+                int count = Math.min(100, src.remaining());
+                for (int i = 0; i < count; i++) {
+                    out.write(src.get());
+                }
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return mOpen;
+            }
+
+            @Override
+            public void close() {
+                mOpen = false;
+            }
+        };
+        CountingByteChannel channel = new CountingByteChannel(slow, new ProgressReporter(1000, mListener));
+        ByteBuffer buffer = ByteBuffer.allocate(250);
+        assertEquals(100, channel.write(buffer));
+        assertEquals(100, channel.getBytesWritten());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        assertEquals(250, channel.getBytesWritten());
+        assertEquals(250, out.size());
+
+        channel.close();
+        assertFalse(channel.isOpen());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNullReporter() {
+        new CountingByteChannel(Channels.newChannel(new ByteArrayOutputStream()), null);
+    }
+}
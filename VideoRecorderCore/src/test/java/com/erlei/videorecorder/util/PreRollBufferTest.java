@@ -0,0 +1,212 @@
+package com.erlei.videorecorder.util;
+
+import com.erlei.videorecorder.mp4.SampleFlags;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PreRollBufferTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final long FRAME_US = 40000;
+    private static final long NO_WINDOW = Long.MAX_VALUE / 2;
+
+    private final List<long[]> mFlushed = new ArrayList<>();
+    private final SampleStaging.SampleWriter mWriter = new SampleStaging.SampleWriter() {
+        @Override
+        public void writeSample(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+            //track , pts , flags , size , 第一个字节 (写入时的序号)
+            mFlushed.add(new long[]{trackIndex, presentationTimeUs, flags, data.remaining(), data.get(data.position())});
+        }
+    };
+
+    @Test
+    public void startsWithVideoKeyFrame() {
+        PreRollBuffer buffer = newBuffer(4096, 64, NO_WINDOW);
+        writeVideo(buffer, 0, 100, false);
+        writeAudio(buffer, 1, 100);
+        assertTrue(buffer.isEmpty());
+        assertEquals(2, buffer.getDroppedCount());
+
+        writeVideo(buffer, 2, 100, true);
+        writeVideo(buffer, 3, 100, false);
+        assertEquals(2, buffer.getSampleCount());
+        assertEquals(2, buffer.flush(mWriter));
+        assertEquals(2, mFlushed.get(0)[4]);
+        assertTrue(buffer.isEmpty());
+    }
+
+    /**
+     * 25fps , 每 10 帧一个关键帧 , 预录制 1 秒 : 最后一个关键帧在 3.2 秒 , 保留从 2.0 秒的关键帧开始的样本
+     */
+    @Test
+    public void keepsNewestKeyFrameCoveringWindow() {
+        PreRollBuffer buffer = newBuffer(64 * 1024, 1024, 1000000);
+        for (int i = 0; i < 90; i++) {
+            writeVideo(buffer, i, 100, i % 10 == 0);
+        }
+        assertEquals(40, buffer.getSampleCount());
+        assertEquals(39 * FRAME_US, buffer.getDurationUs());
+        assertEquals(0, buffer.getDroppedCount());
+
+        buffer.flush(mWriter);
+        assertEquals(50 * FRAME_US, mFlushed.get(0)[1]);
+        assertEquals(SampleFlags.FLAG_SYNC, mFlushed.get(0)[2]);
+        assertSequence(50, 89);
+    }
+
+    /**
+     * 空间不够时从最早的样本开始丢弃到下一个关键帧 , 新样本从缓冲区开头继续写入
+     */
+    @Test
+    public void evictsToNextKeyFrameAndWrapsAround() {
+        PreRollBuffer buffer = newBuffer(1000, 64, NO_WINDOW);
+        for (int i = 0; i < 10; i++) {
+            writeVideo(buffer, i, 100, i % 4 == 0);
+        }
+        assertEquals(1000, buffer.getBytes());
+        assertEquals(0, buffer.getDroppedCount());
+
+        writeVideo(buffer, 10, 100, false);
+        writeVideo(buffer, 11, 100, false);
+        assertEquals(4, buffer.getDroppedCount());
+        assertEquals(8, buffer.getSampleCount());
+
+        buffer.flush(mWriter);
+        assertSequence(4, 11);
+    }
+
+    /**
+     * 缓冲区末尾剩余的空间放不下新样本时跳过 , 一个样本不会跨越缓冲区末尾
+     */
+    @Test
+    public void sampleNeverSpansEndOfBuffer() {
+        PreRollBuffer buffer = newBuffer(1000, 64, NO_WINDOW);
+        writeVideo(buffer, 0, 300, true);
+        writeVideo(buffer, 1, 300, false);
+        writeVideo(buffer, 2, 300, true);
+        //末尾只剩 100 字节 , 丢弃第一个 GOP 之后从开头写入
+        writeVideo(buffer, 3, 300, false);
+        assertEquals(2, buffer.getDroppedCount());
+        assertEquals(600, buffer.getBytes());
+
+        //已经回绕 , 空闲空间在 [300 , 600)
+        writeVideo(buffer, 4, 300, false);
+        assertEquals(2, buffer.getDroppedCount());
+
+        buffer.flush(mWriter);
+        assertSequence(2, 4);
+        for (long[] sample : mFlushed) {
+            assertEquals(300, sample[3]);
+        }
+    }
+
+    @Test
+    public void evictsWhenSampleCountIsFull() {
+        PreRollBuffer buffer = newBuffer(64 * 1024, 5, NO_WINDOW);
+        for (int i = 0; i < 7; i++) {
+            writeVideo(buffer, i, 10, i % 2 == 0);
+        }
+        //第 6 个样本写入时丢弃 0 , 1 , 第 7 个样本还有位置
+        assertEquals(2, buffer.getDroppedCount());
+        assertEquals(5, buffer.getSampleCount());
+        buffer.flush(mWriter);
+        assertSequence(2, 6);
+    }
+
+    /**
+     * 按关键帧丢弃之后 , 早于第一个视频关键帧的音频样本不输出
+     */
+    @Test
+    public void flushSkipsAudioBeforeFirstKeyFrame() {
+        PreRollBuffer buffer = newBuffer(64 * 1024, 1024, FRAME_US * 2);
+        writeVideo(buffer, 0, 100, true);
+        writeVideo(buffer, 1, 100, false);
+        writeVideo(buffer, 2, 100, true);
+        //音频比视频晚到
+        buffer.write(AUDIO, sample(100, 3), FRAME_US * 2 - 1000, SampleFlags.FLAG_SYNC);
+        buffer.write(AUDIO, sample(100, 4), FRAME_US * 2 + 1000, SampleFlags.FLAG_SYNC);
+        writeVideo(buffer, 5, 100, false);
+        writeVideo(buffer, 6, 100, true);
+
+        assertEquals(5, buffer.getSampleCount());
+        assertEquals(4, buffer.flush(mWriter));
+        assertEquals(FRAME_US * 2, mFlushed.get(0)[1]);
+        assertEquals(AUDIO, mFlushed.get(1)[0]);
+        assertEquals(FRAME_US * 2 + 1000, mFlushed.get(1)[1]);
+    }
+
+    @Test
+    public void ignoresCodecConfigAndOversizedSamples() {
+        PreRollBuffer buffer = newBuffer(1000, 64, NO_WINDOW);
+        buffer.write(VIDEO, sample(20, 0), 0, SampleFlags.FLAG_CODEC_CONFIG);
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.getDroppedCount());
+
+        writeVideo(buffer, 1, 100, true);
+        writeVideo(buffer, 2, 1001, true);
+        assertEquals(1, buffer.getSampleCount());
+        assertEquals(1, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void withoutVideoTrackKeepsEverySample() {
+        PreRollBuffer buffer = new PreRollBuffer(1000, 64, NO_WINDOW);
+        for (int i = 0; i < 12; i++) {
+            buffer.write(AUDIO, sample(100, i), i * FRAME_US, 0);
+        }
+        //没有关键帧对齐 , 空间不够时只丢弃最早的样本
+        assertEquals(2, buffer.getDroppedCount());
+        buffer.flush(mWriter);
+        assertSequence(2, 11);
+    }
+
+    @Test
+    public void writeDoesNotChangeSourcePosition() {
+        PreRollBuffer buffer = newBuffer(1000, 64, NO_WINDOW);
+        ByteBuffer data = sample(100, 7);
+        data.position(10);
+        buffer.write(VIDEO, data, 0, SampleFlags.FLAG_SYNC);
+        assertEquals(10, data.position());
+        buffer.flush(mWriter);
+        assertEquals(90, mFlushed.get(0)[3]);
+    }
+
+    private static PreRollBuffer newBuffer(int capacityBytes, int maxSamples, long windowUs) {
+        PreRollBuffer buffer = new PreRollBuffer(capacityBytes, maxSamples, windowUs);
+        buffer.setVideoTrack(VIDEO);
+        return buffer;
+    }
+
+    private static void writeVideo(PreRollBuffer buffer, int frame, int size, boolean key) {
+        buffer.write(VIDEO, sample(size, frame), frame * FRAME_US, key ? SampleFlags.FLAG_SYNC : 0);
+    }
+
+    private static void writeAudio(PreRollBuffer buffer, int frame, int size) {
+        buffer.write(AUDIO, sample(size, frame), frame * FRAME_US, SampleFlags.FLAG_SYNC);
+    }
+
+    private static ByteBuffer sample(int size, int seq) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) seq);
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * 输出的样本依次是序号 first 到 last
+     */
+    private void assertSequence(int first, int last) {
+        assertEquals(last - first + 1, mFlushed.size());
+        for (int i = 0; i < mFlushed.size(); i++) {
+            assertEquals(first + i, mFlushed.get(i)[4]);
+        }
+    }
+}
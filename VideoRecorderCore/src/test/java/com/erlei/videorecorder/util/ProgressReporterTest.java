@@ -0,0 +1,88 @@
+package com.erlei.videorecorder.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressReporterTest {
+
+    private static final long NEVER_MS = 3600 * 1000L;
+
+    private final List<Float> mReports = new ArrayList<>();
+    private final ProgressReporter.Listener mListener = new ProgressReporter.Listener() {
+        @Override
+        public void onProgress(float progress) {
+            mReports.add(progress);
+        }
+    };
+
+    @Test
+    public void reportsOncePerStep() {
+        //进度都是 1/64 的整数倍 , float 可以精确表示
+        ProgressReporter reporter = new ProgressReporter(1024, 0.125f, NEVER_MS, mListener);
+        for (int i = 0; i < 64; i++) {
+            reporter.add(16);
+        }
+        reporter.finish();
+
+        float[] expected = {1 / 64f, 9 / 64f, 17 / 64f, 25 / 64f, 33 / 64f, 41 / 64f, 49 / 64f, 57 / 64f, 1f};
+        assertEquals(expected.length, mReports.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], mReports.get(i), 0f);
+        }
+    }
+
+    @Test
+    public void reportsSmallStepsAfterInterval() throws InterruptedException {
+        ProgressReporter reporter = new ProgressReporter(1000, 1f, 50, mListener);
+        reporter.add(1);
+        reporter.add(1);
+        assertEquals(1, mReports.size());
+
+        Thread.sleep(60);
+        reporter.add(1);
+        assertEquals(2, mReports.size());
+        assertEquals(0.003f, mReports.get(1), 1e-6f);
+    }
+
+    @Test
+    public void ignoresEmptyWritesAndUnchangedProgress() {
+        ProgressReporter reporter = new ProgressReporter(100, 0.01f, 0, mListener);
+        reporter.add(0);
+        reporter.add(-5);
+        assertTrue(mReports.isEmpty());
+
+        reporter.add(150);
+        reporter.add(10);
+        reporter.finish();
+        assertEquals(1, mReports.size());
+        assertEquals(1f, mReports.get(0), 0f);
+        assertEquals(160, reporter.getBytes());
+    }
+
+    @Test
+    public void finishReportsCompletion() {
+        ProgressReporter reporter = new ProgressReporter(100, 0.5f, NEVER_MS, mListener);
+        reporter.add(10);
+        reporter.add(10);
+        reporter.finish();
+        reporter.finish();
+        assertEquals(2, mReports.size());
+        assertEquals(0.1f, mReports.get(0), 1e-6f);
+        assertEquals(1f, mReports.get(1), 0f);
+    }
+
+    @Test
+    public void unknownTotalReportsZeroOnce() {
+        ProgressReporter reporter = new ProgressReporter(0, 0.01f, 0, mListener);
+        reporter.add(100);
+        reporter.add(100);
+        assertEquals(0f, reporter.getProgress(), 0f);
+        assertEquals(1, mReports.size());
+        assertEquals(0f, mReports.get(0), 0f);
+    }
+}
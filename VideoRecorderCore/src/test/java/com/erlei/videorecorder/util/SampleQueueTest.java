@@ -0,0 +1,209 @@
+package com.erlei.videorecorder.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SampleQueueTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    /**
+     * Annex B , nal_ref_idc = 0 的 P slice
+     */
+    private static final byte[] NON_REFERENCE = {0, 0, 0, 1, 0x01, 0x11, 0x22};
+    private static final byte[] REFERENCE = {0, 0, 0, 1, 0x41, 0x11, 0x22};
+    private static final byte[] KEY_FRAME = {0, 0, 0, 1, 0x65, 0x11, 0x22};
+
+    private final DirectBufferPool mPool = new DirectBufferPool(1024, 64 * 1024, 1024 * 1024);
+
+    private SampleQueue newQueue(int capacity, SampleQueue.Policy policy) {
+        SampleQueue queue = new SampleQueue(capacity, policy, mPool);
+        queue.addTrack(VIDEO, true);
+        queue.addTrack(AUDIO, false);
+        return queue;
+    }
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(8, new SampleQueue(5, SampleQueue.Policy.BLOCK, mPool).getCapacity());
+        assertEquals(8, new SampleQueue(8, SampleQueue.Policy.BLOCK, mPool).getCapacity());
+    }
+
+    @Test
+    public void peekReturnsSmallestTimestampAcrossTracks() {
+        SampleQueue queue = newQueue(4, SampleQueue.Policy.BLOCK);
+        ByteBuffer data = ByteBuffer.wrap(KEY_FRAME);
+        data.position(4);
+        assertTrue(queue.offer(VIDEO, data, 0, 1));
+        assertEquals("offer must not change the position", 4, data.position());
+        assertTrue(queue.offer(VIDEO, ByteBuffer.wrap(REFERENCE), 33333, 0));
+        assertTrue(queue.offer(AUDIO, ByteBuffer.wrap(new byte[]{1, 2}), 23219, 0));
+        assertEquals(3, queue.getDepth());
+
+        long[] expected = {0, 23219, 33333};
+        int[] sizes = {3, 2, 7};
+        for (int i = 0; i < expected.length; i++) {
+            SampleQueue.Slot slot = queue.peek();
+            assertEquals(expected[i], slot.getPresentationTimeUs());
+            assertEquals(sizes[i], slot.getSize());
+            assertEquals(0, slot.getData().position());
+            queue.remove(slot);
+        }
+        assertNull(queue.peek());
+        assertEquals(3, queue.getDequeuedCount());
+        assertEquals(0, mPool.getLeasedBytes());
+    }
+
+    @Test
+    public void wrapsAroundWithoutLosingOrder() {
+        SampleQueue queue = newQueue(4, SampleQueue.Policy.FAIL_FAST);
+        long expected = 0;
+        for (int i = 0; i < 20; i++) {
+            assertTrue(queue.offer(VIDEO, ByteBuffer.wrap(new byte[]{(byte) i}), i, 0));
+            //保持 3 个样本 , 头尾计数器绕过槽位数组多次
+            if (queue.getDepth() == 3) {
+                SampleQueue.Slot slot = queue.peek();
+                assertEquals(expected, slot.getPresentationTimeUs());
+                assertEquals(expected, slot.getData().get(0));
+                queue.remove(slot);
+                expected++;
+            }
+        }
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(2, queue.getDepth());
+        assertEquals(3, queue.getMaxDepth());
+    }
+
+    @Test
+    public void failFastRejectsWhenFull() {
+        SampleQueue queue = newQueue(2, SampleQueue.Policy.FAIL_FAST);
+        assertTrue(queue.offer(AUDIO, ByteBuffer.wrap(new byte[4]), 0, 0));
+        assertTrue(queue.offer(AUDIO, ByteBuffer.wrap(new byte[4]), 1, 0));
+        assertFalse(queue.offer(AUDIO, ByteBuffer.wrap(new byte[4]), 2, 0));
+        assertFalse(queue.offer(AUDIO, ByteBuffer.wrap(new byte[4]), 3, 0));
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(0, queue.getBlockedCount());
+        assertEquals(2, queue.getDepth());
+        assertEquals(2, queue.getMaxDepth());
+
+        //其他轨道不受影响
+        assertTrue(queue.offer(VIDEO, ByteBuffer.wrap(KEY_FRAME), 0, 1));
+    }
+
+    @Test
+    public void dropNonReferenceDropsOnlyDisposableVideoFrames() throws Exception {
+        SampleQueue queue = newQueue(2, SampleQueue.Policy.DROP_NON_REFERENCE);
+        assertTrue(queue.offer(VIDEO, ByteBuffer.wrap(KEY_FRAME), 0, 1));
+        assertTrue(queue.offer(VIDEO, ByteBuffer.wrap(NON_REFERENCE), 1, 0));
+        assertFalse(queue.offer(VIDEO, ByteBuffer.wrap(NON_REFERENCE), 2, 0));
+        assertEquals(1, queue.getDroppedCount());
+
+        //参考帧不能丢弃 , 阻塞到有空闲的槽位
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> reference = executor.submit(offer(queue, VIDEO, REFERENCE, 3));
+            assertBlocked(reference);
+            queue.remove(queue.peek());
+            assertTrue(reference.get(1, TimeUnit.SECONDS));
+            assertEquals(1, queue.getBlockedCount());
+            assertEquals(1, queue.getDroppedCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void dropNonReferenceNeverDropsAudio() throws Exception {
+        SampleQueue queue = newQueue(1, SampleQueue.Policy.DROP_NON_REFERENCE);
+        assertTrue(queue.offer(AUDIO, ByteBuffer.wrap(NON_REFERENCE), 0, 0));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> audio = executor.submit(offer(queue, AUDIO, NON_REFERENCE, 1));
+            assertBlocked(audio);
+            queue.remove(queue.peek());
+            assertTrue(audio.get(1, TimeUnit.SECONDS));
+            assertEquals(0, queue.getDroppedCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void blockWaitsForConsumer() throws Exception {
+        SampleQueue queue = newQueue(1, SampleQueue.Policy.BLOCK);
+        assertTrue(queue.offer(VIDEO, ByteBuffer.wrap(NON_REFERENCE), 0, 0));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> blocked = executor.submit(offer(queue, VIDEO, NON_REFERENCE, 1));
+            assertBlocked(blocked);
+            SampleQueue.Slot slot = queue.peek();
+            assertEquals(0, slot.getPresentationTimeUs());
+            queue.remove(slot);
+            assertTrue(blocked.get(1, TimeUnit.SECONDS));
+            assertEquals(1, queue.peek().getPresentationTimeUs());
+            assertEquals(1, queue.getBlockedCount());
+            assertEquals(0, queue.getDroppedCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closeReleasesBlockedProducer() throws Exception {
+        SampleQueue queue = newQueue(1, SampleQueue.Policy.BLOCK);
+        assertTrue(queue.offer(VIDEO, ByteBuffer.wrap(KEY_FRAME), 0, 1));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> blocked = executor.submit(offer(queue, VIDEO, REFERENCE, 1));
+            assertBlocked(blocked);
+            queue.close();
+            assertFalse(blocked.get(1, TimeUnit.SECONDS));
+            assertFalse(queue.offer(AUDIO, ByteBuffer.wrap(new byte[4]), 2, 0));
+        } finally {
+            executor.shutdownNow();
+        }
+        queue.clear();
+        assertEquals(0, queue.getDepth());
+        assertEquals(0, mPool.getLeasedBytes());
+    }
+
+    @Test
+    public void policyCanChangeWhileRunning() {
+        SampleQueue queue = newQueue(1, SampleQueue.Policy.BLOCK);
+        assertTrue(queue.offer(VIDEO, ByteBuffer.wrap(KEY_FRAME), 0, 1));
+        queue.setPolicy(SampleQueue.Policy.FAIL_FAST);
+        assertFalse(queue.offer(VIDEO, ByteBuffer.wrap(KEY_FRAME), 1, 1));
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    private static Callable<Boolean> offer(final SampleQueue queue, final int track, final byte[] data, final long timeUs) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return queue.offer(track, ByteBuffer.wrap(data), timeUs, 0);
+            }
+        };
+    }
+
+    private static void assertBlocked(Future<Boolean> future) throws Exception {
+        try {
+            future.get(100, TimeUnit.MILLISECONDS);
+            fail("offer should block while the queue is full");
+        } catch (TimeoutException expected) {
+            //阻塞中
+        }
+    }
+}